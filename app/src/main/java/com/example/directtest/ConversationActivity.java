@@ -0,0 +1,419 @@
+package com.example.directtest;
+
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.directtest.store.MessageStore;
+import com.example.directtest.store.StoredMessage;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Переписка с одним пиром из MessageStore.
+ *
+ * В адаптере держится только окно из не более WINDOW_MAX сообщений.
+ * При прокрутке к краю окна следующая страница читается в фоне
+ * (MessageStore.load*), а противоположный край окна выгружается,
+ * поэтому память не зависит от длины истории.
+ * Новые сообщения и ACK приходят через MessageStore.Listener;
+ * ACK перерисовывает только строку статуса (PAYLOAD_ACK).
+ */
+public class ConversationActivity extends AppCompatActivity implements MessageStore.Listener {
+
+    public static final String EXTRA_PEER_ID = "peer_id";
+    public static final String EXTRA_TITLE = "title";
+
+    /** Сообщений в одной подгружаемой странице */
+    private static final int PAGE_SIZE = 100;
+
+    /** Максимум сообщений в адаптере */
+    private static final int WINDOW_MAX = 500;
+
+    /** За сколько строк до края окна начинать подгрузку */
+    private static final int PREFETCH_DISTANCE = 30;
+
+    private MessageStore store;
+    private String peerId;
+
+    private RecyclerView recyclerView;
+    private LinearLayoutManager layoutManager;
+    private MessageAdapter adapter;
+    private TextView tvInfo;
+
+    // Состояние окна
+    private boolean hasOlder = false;
+    private boolean hasNewer = false;
+    private boolean loadingOlder = false;
+    private boolean loadingNewer = false;
+
+    /** Поколение окна: ответы на запросы до перезагрузки окна игнорируются */
+    private int windowGeneration = 0;
+
+    // ==================== LIFECYCLE ====================
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_conversation);
+
+        peerId = getIntent().getStringExtra(EXTRA_PEER_ID);
+        if (peerId == null) {
+            finish();
+            return;
+        }
+
+        TextView tvTitle = findViewById(R.id.tv_conversation_title);
+        String title = getIntent().getStringExtra(EXTRA_TITLE);
+        tvTitle.setText(title != null ? title : peerId);
+
+        tvInfo = findViewById(R.id.tv_conversation_info);
+
+        Button btnBack = findViewById(R.id.btn_back);
+        btnBack.setOnClickListener(v -> finish());
+
+        recyclerView = findViewById(R.id.recycler_messages);
+        layoutManager = new LinearLayoutManager(this);
+        layoutManager.setStackFromEnd(true);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.setHasFixedSize(true);
+        adapter = new MessageAdapter();
+        recyclerView.setAdapter(adapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView rv, int dx, int dy) {
+                maybeLoadMore();
+            }
+        });
+
+        store = MessageStore.getInstance(this);
+        store.addListener(this);
+        reloadLatest();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (store != null) {
+            store.removeListener(this);
+        }
+    }
+
+    // ==================== ПОДГРУЗКА ====================
+
+    /**
+     * Сбросить окно на последние сообщения
+     */
+    private void reloadLatest() {
+        int generation = ++windowGeneration;
+        loadingOlder = true;
+        loadingNewer = true;
+
+        store.loadLatest(peerId, PAGE_SIZE, page -> {
+            if (generation != windowGeneration) return;
+            loadingOlder = false;
+            loadingNewer = false;
+
+            adapter.setMessages(page.messages);
+            hasOlder = page.hasOlder;
+            hasNewer = page.hasNewer;
+            if (!page.isEmpty()) {
+                recyclerView.scrollToPosition(adapter.getItemCount() - 1);
+            }
+            updateInfo();
+        });
+    }
+
+    private void maybeLoadMore() {
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) return;
+
+        if (hasOlder && !loadingOlder && first < PREFETCH_DISTANCE) {
+            loadOlder();
+        }
+        if (hasNewer && !loadingNewer && last >= adapter.getItemCount() - PREFETCH_DISTANCE) {
+            loadNewer();
+        }
+    }
+
+    private void loadOlder() {
+        StoredMessage oldest = adapter.first();
+        if (oldest == null) return;
+
+        int generation = windowGeneration;
+        loadingOlder = true;
+        store.loadBefore(peerId, oldest.seq, PAGE_SIZE, page -> {
+            if (generation != windowGeneration) return;
+            loadingOlder = false;
+
+            // Окно могло сдвинуться, пока страница читалась - стыкуем только вплотную
+            StoredMessage first = adapter.first();
+            if (page.isEmpty() || first == null || page.newerCursor() != first.seq - 1) {
+                hasOlder = !page.isEmpty() || page.hasOlder;
+                return;
+            }
+
+            adapter.prepend(page.messages);
+            hasOlder = page.hasOlder;
+
+            int excess = adapter.getItemCount() - WINDOW_MAX;
+            if (excess > 0) {
+                adapter.trimNewest(excess);
+                hasNewer = true;
+            }
+            updateInfo();
+        });
+    }
+
+    private void loadNewer() {
+        StoredMessage newest = adapter.last();
+        if (newest == null) return;
+
+        int generation = windowGeneration;
+        loadingNewer = true;
+        store.loadAfter(peerId, newest.seq, PAGE_SIZE, page -> {
+            if (generation != windowGeneration) return;
+            loadingNewer = false;
+
+            StoredMessage last = adapter.last();
+            if (page.isEmpty() || last == null || page.olderCursor() != last.seq + 1) {
+                hasNewer = !page.isEmpty() || page.hasNewer;
+                return;
+            }
+
+            adapter.append(page.messages);
+            hasNewer = page.hasNewer;
+
+            int excess = adapter.getItemCount() - WINDOW_MAX;
+            if (excess > 0) {
+                adapter.trimOldest(excess);
+                hasOlder = true;
+            }
+            updateInfo();
+        });
+    }
+
+    private void updateInfo() {
+        StoredMessage first = adapter.first();
+        StoredMessage last = adapter.last();
+        if (first == null) {
+            tvInfo.setText("Нет сообщений");
+            return;
+        }
+        tvInfo.setText(String.format(Locale.getDefault(),
+                "#%d..#%d | в окне: %d/%d%s%s",
+                first.seq, last.seq, adapter.getItemCount(), WINDOW_MAX,
+                hasOlder ? " | ↑ ещё" : "",
+                hasNewer ? " | ↓ ещё" : ""));
+    }
+
+    // ==================== STORE LISTENER ====================
+
+    @Override
+    public void onMessageAppended(String peer, StoredMessage message) {
+        if (!peerId.equals(peer)) return;
+
+        // Запрос страницы в очереди фонового потока позже записи - сообщение придёт в странице
+        if (loadingNewer) return;
+
+        StoredMessage last = adapter.last();
+        if (hasNewer || (last != null && message.seq != last.seq + 1)) {
+            // Окно не на конце истории - подгрузится при прокрутке вниз
+            if (last == null || message.seq > last.seq) {
+                hasNewer = true;
+                updateInfo();
+            }
+            return;
+        }
+
+        boolean atBottom = adapter.getItemCount() == 0
+                || layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - 1;
+
+        adapter.append(Collections.singletonList(message));
+        int excess = adapter.getItemCount() - WINDOW_MAX;
+        if (excess > 0) {
+            adapter.trimOldest(excess);
+            hasOlder = true;
+        }
+        if (atBottom) {
+            recyclerView.scrollToPosition(adapter.getItemCount() - 1);
+        }
+        updateInfo();
+    }
+
+    @Override
+    public void onMessageAcked(String peer, long seq, long ackTime) {
+        if (peerId.equals(peer)) {
+            adapter.markAcked(seq, ackTime);
+        }
+    }
+
+    @Override
+    public void onStoreCleared() {
+        reloadLatest();
+    }
+
+    // ==================== ADAPTER ====================
+
+    /**
+     * Адаптер окна сообщений. Окно - непрерывный диапазон seq,
+     * поэтому позиция сообщения вычисляется как seq - first.seq.
+     */
+    static class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.VH> {
+
+        /** Payload: изменился только статус ACK */
+        static final Object PAYLOAD_ACK = new Object();
+
+        private static final int TYPE_INCOMING = 0;
+        private static final int TYPE_OUTGOING = 1;
+
+        private final List<StoredMessage> items = new ArrayList<>();
+
+        // Переиспользуемые объекты для строки статуса
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("dd.MM HH:mm:ss", Locale.getDefault());
+        private final Date date = new Date();
+        private final StringBuilder sb = new StringBuilder(64);
+
+        MessageAdapter() {
+            setHasStableIds(true);
+        }
+
+        StoredMessage first() {
+            return items.isEmpty() ? null : items.get(0);
+        }
+
+        StoredMessage last() {
+            return items.isEmpty() ? null : items.get(items.size() - 1);
+        }
+
+        void setMessages(List<StoredMessage> messages) {
+            items.clear();
+            items.addAll(messages);
+            notifyDataSetChanged();
+        }
+
+        void prepend(List<StoredMessage> messages) {
+            items.addAll(0, messages);
+            notifyItemRangeInserted(0, messages.size());
+        }
+
+        void append(List<StoredMessage> messages) {
+            int start = items.size();
+            items.addAll(messages);
+            notifyItemRangeInserted(start, messages.size());
+        }
+
+        void trimOldest(int count) {
+            items.subList(0, count).clear();
+            notifyItemRangeRemoved(0, count);
+        }
+
+        void trimNewest(int count) {
+            int start = items.size() - count;
+            items.subList(start, items.size()).clear();
+            notifyItemRangeRemoved(start, count);
+        }
+
+        void markAcked(long seq, long ackTime) {
+            StoredMessage first = first();
+            if (first == null) return;
+            long pos = seq - first.seq;
+            if (pos < 0 || pos >= items.size()) return;
+
+            int position = (int) pos;
+            StoredMessage m = items.get(position);
+            if (m.acked) return;
+            items.set(position, m.withAck(ackTime));
+            notifyItemChanged(position, PAYLOAD_ACK);
+        }
+
+        @Override
+        public int getItemCount() {
+            return items.size();
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return items.get(position).seq;
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            return items.get(position).outgoing ? TYPE_OUTGOING : TYPE_INCOMING;
+        }
+
+        @NonNull
+        @Override
+        public VH onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            int layout = viewType == TYPE_OUTGOING ? R.layout.item_message_out : R.layout.item_message_in;
+            View v = LayoutInflater.from(parent.getContext()).inflate(layout, parent, false);
+            return new VH(v);
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull VH h, int position, @NonNull List<Object> payloads) {
+            StoredMessage m = items.get(position);
+
+            boolean ackOnly = !payloads.isEmpty();
+            for (Object p : payloads) {
+                if (p != PAYLOAD_ACK) {
+                    ackOnly = false;
+                    break;
+                }
+            }
+
+            if (!ackOnly) {
+                h.tvText.setText(m.text);
+            }
+            bindMeta(h, m);
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull VH h, int position) {
+            onBindViewHolder(h, position, Collections.emptyList());
+        }
+
+        private void bindMeta(VH h, StoredMessage m) {
+            date.setTime(m.timestamp);
+            sb.setLength(0);
+            sb.append(timeFormat.format(date));
+            if (m.outgoing) {
+                if (m.acked) {
+                    sb.append(" ✓");
+                    if (m.ackTime > m.timestamp) {
+                        sb.append(" ").append((m.ackTime - m.timestamp) / 1000).append("s");
+                    }
+                } else {
+                    sb.append(" ⏳");
+                }
+            }
+            sb.append(" [").append(m.messageId).append("]");
+            h.tvMeta.setText(sb.toString());
+            h.tvMeta.setTextColor(m.outgoing && !m.acked ? 0xFFFF9800 : 0xFF666666);
+        }
+
+        static class VH extends RecyclerView.ViewHolder {
+            TextView tvText, tvMeta;
+
+            VH(View v) {
+                super(v);
+                tvText = v.findViewById(R.id.tv_message_text);
+                tvMeta = v.findViewById(R.id.tv_message_meta);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.directtest;
+
+import com.example.directtest.metrics.LinkQuality;
+import com.example.directtest.model.DeviceSnapshot;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Неизменяемая модель строки списка устройств.
+ *
+ * Строится из опубликованного DeviceSnapshot (списки сообщений общие со снимком),
+ * поэтому безопасно сравнивается DiffUtil в фоновом потоке.
+ * Хранит абсолютные времена, а не "N с назад", поэтому строка не меняется
+ * от одного лишь хода часов - возраст перерисовывается отдельным payload.
+ */
+final class DeviceRow {
+
+    /** Сколько последних сообщений показывать в карточке */
+    static final int VISIBLE_MESSAGES = 3;
+
+    final String address;
+    final String name;
+    final String deviceId;
+    final String sessionId;
+    final boolean online;
+    final boolean hasOurApp;
+    final int seenCount;
+    final long lastSeen;
+    final long heartbeatSeq;
+    final long prevHeartbeatSeq;
+    final long lastHeartbeatReceived;
+    final List<DeviceSnapshot.Received> received;
+    final List<DeviceSnapshot.Sent> sent;
+    final String lastServiceName;
+    final int lastSlotIndex;
+    final int visibleMsgCount;
+    final int pendingAckCount;
+    final String latencyText;
+    // Оценки связи; строка с оценкой зависит от времени (свежесть) и строится при показе
+    final double linkLoss;
+    final long linkInterval;
+    final long linkJitter;
+    final long linkLastRecordAt;
+
+    private DeviceRow(DeviceSnapshot d) {
+        address = d.address;
+        name = d.name;
+        deviceId = d.deviceId;
+        sessionId = d.sessionId;
+        online = d.isOnline();
+        hasOurApp = d.hasOurApp;
+        seenCount = d.seenCount;
+        lastSeen = d.lastSeen;
+        heartbeatSeq = d.heartbeatSeq;
+        prevHeartbeatSeq = d.prevHeartbeatSeq;
+        lastHeartbeatReceived = d.lastHeartbeatReceived;
+        received = d.receivedMessages.subList(0, Math.min(VISIBLE_MESSAGES, d.receivedMessages.size()));
+        sent = d.sentMessages.subList(0, Math.min(VISIBLE_MESSAGES, d.sentMessages.size()));
+        lastServiceName = d.lastServiceName;
+        lastSlotIndex = d.lastSlotIndex;
+        visibleMsgCount = d.visibleMsgIds.size();
+        pendingAckCount = d.pendingAckIds.size();
+        latencyText = d.latencySummary;
+        linkLoss = d.linkLoss;
+        linkInterval = d.linkInterval;
+        linkJitter = d.linkJitter;
+        linkLastRecordAt = d.linkLastRecordAt;
+    }
+
+    /**
+     * Построить строку из снимка устройства
+     */
+    static DeviceRow from(DeviceSnapshot d) {
+        return new DeviceRow(d);
+    }
+
+    /**
+     * Строка качества связи на момент now
+     */
+    String linkSummary(long now) {
+        return LinkQuality.format(linkLoss, linkInterval, linkJitter, linkLastRecordAt,
+                P2pConfig.HEARTBEAT_INTERVAL, now);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DeviceRow)) return false;
+        DeviceRow r = (DeviceRow) o;
+        return online == r.online
+                && hasOurApp == r.hasOurApp
+                && seenCount == r.seenCount
+                && lastSeen == r.lastSeen
+                && heartbeatSeq == r.heartbeatSeq
+                && prevHeartbeatSeq == r.prevHeartbeatSeq
+                && lastHeartbeatReceived == r.lastHeartbeatReceived
+                && lastSlotIndex == r.lastSlotIndex
+                && linkLoss == r.linkLoss
+                && linkInterval == r.linkInterval
+                && linkJitter == r.linkJitter
+                && linkLastRecordAt == r.linkLastRecordAt
+                && visibleMsgCount == r.visibleMsgCount
+                && pendingAckCount == r.pendingAckCount
+                && Objects.equals(address, r.address)
+                && Objects.equals(name, r.name)
+                && Objects.equals(deviceId, r.deviceId)
+                && Objects.equals(sessionId, r.sessionId)
+                && Objects.equals(lastServiceName, r.lastServiceName)
+                && Objects.equals(latencyText, r.latencyText)
+                && received.equals(r.received)
+                && sent.equals(r.sent);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(address, heartbeatSeq, lastSeen);
+    }
+}
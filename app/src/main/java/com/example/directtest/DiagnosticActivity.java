@@ -8,9 +8,16 @@ import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.FileProvider;
 
+import com.example.directtest.metrics.MetricsRegistry;
+import com.example.directtest.metrics.MetricsSnapshot;
+import com.example.directtest.metrics.OpenMetricsExporter;
+import com.example.directtest.trace.ChromeTraceExporter;
+import com.example.directtest.trace.Tracer;
+
 import java.io.File;
 
 public class DiagnosticActivity extends AppCompatActivity implements DiagnosticLogger.LogListener {
@@ -31,6 +38,7 @@ public class DiagnosticActivity extends AppCompatActivity implements DiagnosticL
         Button btnClear = findViewById(R.id.btn_clear);
         Button btnSave = findViewById(R.id.btn_save);
         Button btnShare = findViewById(R.id.btn_share);
+        Button btnMetrics = findViewById(R.id.btn_metrics);
         Button btnBack = findViewById(R.id.btn_back);
 
         logger = DiagnosticLogger.getInstance();
@@ -50,6 +58,8 @@ public class DiagnosticActivity extends AppCompatActivity implements DiagnosticL
 
         btnShare.setOnClickListener(v -> shareLogs());
 
+        btnMetrics.setOnClickListener(v -> showMetrics());
+
         btnBack.setOnClickListener(v -> finish());
 
         // Авто-скролл по клику
@@ -101,6 +111,44 @@ public class DiagnosticActivity extends AppCompatActivity implements DiagnosticL
         }
     }
 
+    private void showMetrics() {
+        MetricsSnapshot snapshot = MetricsRegistry.getInstance().snapshot();
+
+        new AlertDialog.Builder(this)
+                .setTitle("Метрики")
+                .setMessage(snapshot.toText())
+                .setPositiveButton("Экспорт", (d, w) -> exportMetrics(snapshot))
+                .setNeutralButton("Трейс", (d, w) -> exportTrace())
+                .setNegativeButton("Закрыть", null)
+                .show();
+    }
+
+    private void exportMetrics(MetricsSnapshot snapshot) {
+        try {
+            File file = OpenMetricsExporter.exportToFile(this, snapshot);
+            Toast.makeText(this,
+                    "Метрики сохранены:\n" + file.getAbsolutePath(),
+                    Toast.LENGTH_LONG).show();
+        } catch (Exception e) {
+            Toast.makeText(this,
+                    "Ошибка экспорта: " + e.getMessage(),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private void exportTrace() {
+        try {
+            File file = ChromeTraceExporter.exportToFile(this, Tracer.getInstance().snapshot());
+            Toast.makeText(this,
+                    "Трейс сохранён (chrome://tracing):\n" + file.getAbsolutePath(),
+                    Toast.LENGTH_LONG).show();
+        } catch (Exception e) {
+            Toast.makeText(this,
+                    "Ошибка экспорта: " + e.getMessage(),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
     private void shareLogs() {
         try {
             File file = logger.saveToFile(this);
@@ -12,7 +12,9 @@ import android.os.Looper;
 import androidx.annotation.Nullable;
 
 
+import com.example.directtest.model.DeviceSnapshot;
 import com.example.directtest.model.DiscoveredDevice;
+import com.example.directtest.model.MessagePriority;
 
 import java.util.List;
 
@@ -167,7 +169,7 @@ public class DiscoveryService extends Service implements DiscoveryListener {
         if (discoveryManager == null) return 0;
 
         int count = 0;
-        for (DiscoveredDevice device : discoveryManager.getAllDevices()) {
+        for (DeviceSnapshot device : discoveryManager.getDeviceSnapshots()) {
             if (device.isOnline() && device.hasOurApp) {
                 count++;
             }
@@ -208,6 +210,16 @@ public class DiscoveryService extends Service implements DiscoveryListener {
         return java.util.Collections.emptyList();
     }
 
+    /**
+     * Получить неизменяемые снимки устройств (без блокировок, можно с любого потока)
+     */
+    public List<DeviceSnapshot> getDeviceSnapshots() {
+        if (discoveryManager != null) {
+            return discoveryManager.getDeviceSnapshots();
+        }
+        return java.util.Collections.emptyList();
+    }
+
     /**
      * Отправить сообщение
      */
@@ -218,6 +230,16 @@ public class DiscoveryService extends Service implements DiscoveryListener {
         return null;
     }
 
+    /**
+     * Отправить сообщение с приоритетом
+     */
+    public String sendMessage(String message, String targetDeviceId, MessagePriority priority) {
+        if (discoveryManager != null) {
+            return discoveryManager.sendMessage(message, targetDeviceId, priority);
+        }
+        return null;
+    }
+
     /**
      * Принудительное обновление
      */
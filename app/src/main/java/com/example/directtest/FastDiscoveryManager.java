@@ -16,21 +16,48 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 
+import com.example.directtest.metrics.Counter;
+import com.example.directtest.metrics.Histogram;
+import com.example.directtest.metrics.MetricsRegistry;
+import com.example.directtest.mesh.GossipPolicy;
+import com.example.directtest.mesh.NeighbourDigest;
+import com.example.directtest.mesh.RelayManager;
+import com.example.directtest.mesh.TopologyGraph;
+import com.example.directtest.model.BroadcastDelivery;
+import com.example.directtest.model.DeviceSnapshot;
 import com.example.directtest.model.DiscoveredDevice;
+import com.example.directtest.model.MessagePriority;
 import com.example.directtest.model.PendingMessage;
 import com.example.directtest.model.SlotInfo;
 import com.example.directtest.sync.DeviceState;
 import com.example.directtest.sync.DeviceStateRepository;
+import com.example.directtest.sync.FlowWindow;
+import com.example.directtest.sync.FragmentAssembler;
+import com.example.directtest.sync.FragmentCodec;
+import com.example.directtest.sync.MailboxPolicy;
+import com.example.directtest.store.MessageStore;
+import com.example.directtest.sync.ReceiveWindow;
+import com.example.directtest.sync.ResendScheduler;
+import com.example.directtest.sync.RttEstimator;
+import com.example.directtest.sync.SendQueue;
+import com.example.directtest.sync.SendWindow;
+import com.example.directtest.sync.SessionResume;
+import com.example.directtest.sync.SyncDigest;
 import com.example.directtest.sync.SyncManager;
+import com.example.directtest.sync.SyncRecordMux;
+import com.example.directtest.trace.Tracer;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -74,6 +101,7 @@ public class FastDiscoveryManager {
     private WifiP2pDnsSdServiceInfo mainServiceInfo;
     private WifiP2pDnsSdServiceInfo ackServiceInfo;
     private WifiP2pDnsSdServiceInfo syncServiceInfo;
+    private WifiP2pDnsSdServiceInfo nbrServiceInfo;
     private final Map<Integer, SlotInfo> messageSlots = new ConcurrentHashMap<>();
     private final List<WifiP2pServiceRequest> serviceRequests = new ArrayList<>();
 
@@ -95,12 +123,122 @@ public class FastDiscoveryManager {
     // SYNC system
     private DeviceStateRepository stateRepository;
     private SyncManager syncManager;
+    private final MessageStore messageStore;
+
+    // Нумерация сообщений по получателям (ключ - shortId получателя)
+    private final Map<String, SendWindow> sendWindows = new HashMap<>();
+    // Окна приёма по отправителям (ключ - shortId отправителя)
+    private final Map<String, ReceiveWindow> receiveWindows = new HashMap<>();
+    // Окна, вытесненные из отчёта по RX_REPORT_TTL: возобновляются, если сессия отправителя та же
+    private final Map<String, ReceiveWindow> idleReceiveWindows = new HashMap<>();
+    private boolean rxReportPending = false;
+
+    // Очередь переотправок (SYNC и отчёты "rx")
+    private final ResendScheduler resendScheduler = new ResendScheduler(
+            P2pConfig.RESEND_MIN_INTERVAL, P2pConfig.RESEND_MAX_SLOTS, P2pConfig.RESEND_RESERVED_SLOTS);
+    private final Runnable resendPumpRunnable = this::pumpResends;
+
+    // Свои сообщения, ожидающие слота (по приоритету и сроку)
+    private final SendQueue sendQueue = new SendQueue(P2pConfig.SEND_QUEUE_CAPACITY);
+    private final Runnable sendQueuePumpRunnable = this::pumpSendQueue;
+    private final Runnable coalesceRunnable = () -> {
+        coalescePending = false;
+        pumpSendQueue();
+    };
+    private boolean coalescePending = false;
+
+    /** Ящики, которые нужно переписать (ACK или новые сообщения) */
+    private final Set<Integer> dirtyMailboxes = new HashSet<>();
+    private final Runnable mailboxUpdateRunnable = this::flushMailboxUpdates;
+
+    /** Активность получателей ящиков и выбор ящика для нового (LRU) */
+    private final MailboxPolicy mailboxPolicy = new MailboxPolicy(P2pConfig.MAX_MAILBOXES, P2pConfig.MAILBOX_IDLE);
+
+    // Окна приёма: объявляемые нами отправителям и объявленные нам получателями ("w")
+    private final FlowWindow flowWindow = new FlowWindow(P2pConfig.FLOW_WINDOW_REFERENCE,
+            P2pConfig.FLOW_WINDOW_BURST_GAP, P2pConfig.FLOW_WINDOW_MAX_GAP,
+            P2pConfig.FLOW_WINDOW_TTL, P2pConfig.MAX_MSG_SLOTS);
+
+    /** Свои сообщения, отправленные фрагментами и ещё не подтверждённые целиком */
+    private final Map<String, PendingMessage> fragmentedMessages = new LinkedHashMap<>();
+
+    /** Полученные фрагменты для ACK -> когда последний раз видели */
+    private final Map<String, Long> fragmentAcks = new LinkedHashMap<>();
+
+    private final FragmentAssembler fragmentAssembler = new FragmentAssembler(
+            P2pConfig.MAX_FRAGMENT_ASSEMBLIES, P2pConfig.FRAGMENT_ASSEMBLY_TTL);
+
+    /** Перезапущенные получатели, ждущие границ приёма "rs" (ключ - shortId) */
+    private final Map<String, SessionResume> sessionResumes = new HashMap<>();
+
+    /** Сообщения, переотправленные после перезапуска получателя -> когда замечен перезапуск */
+    private final Map<String, Long> resumedMessages =
+            new LinkedHashMap<String, Long>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > P2pConfig.STATE_HISTORY_DEPTH;
+                }
+            };
+
+    /** Наши сохранённые границы приёма ("rs") и до какого момента их публиковать */
+    private String resumeMarks = "";
+    private long resumeMarksUntil = 0;
+
+    // RTT и таймаут повторной публикации по получателям (ключ - shortId)
+    private final Map<String, RttEstimator> rttEstimators = new HashMap<>();
+
+    // Полученные срочные сообщения: их ACK публикуются первыми
+    private final Set<String> urgentAckIds = new LinkedHashSet<>();
+
+    // Общая запись SYNC с секциями для нескольких пиров
+    private final SyncRecordMux syncMux = new SyncRecordMux(P2pConfig.SYNC_RECORD_BUDGET);
+    private final Runnable syncPublishRunnable = this::publishSyncRecord;
+    private long lastSyncPublishAt = 0;
+
+    // Ретрансляция сообщений соседей (режим relay)
+    private final RelayManager relayManager = new RelayManager(P2pConfig.RELAY_HOLD,
+            P2pConfig.RELAY_MIN_INTERVAL, P2pConfig.RELAY_MAX_SLOTS, P2pConfig.RELAY_RESERVED_SLOTS,
+            P2pConfig.RELAY_QUEUE_CAPACITY, P2pConfig.MAX_MSG_AGE_SEC * 1000, P2pConfig.RELAY_ACK_LIFETIME);
+    private final Runnable relayPumpRunnable = this::pumpRelays;
+    private volatile boolean relayEnabled = P2pConfig.RELAY_ENABLED;
+    private final GossipPolicy gossipPolicy = new GossipPolicy(P2pConfig.GOSSIP_FANOUT,
+            P2pConfig.GOSSIP_COPY_THRESHOLD, P2pConfig.GOSSIP_RESCUE_THRESHOLD,
+            P2pConfig.GOSSIP_MAX_BACKOFF, new Random());
+
+    // Доставка broadcast по получателям: msgId -> кто подтвердил
+    private final Map<String, BroadcastDelivery> broadcastDeliveries = new LinkedHashMap<>();
+
+    // Карта сети по спискам соседей (WFD_Nbr)
+    private final TopologyGraph topology;
+    private final Runnable rxReportRunnable = () -> {
+        rxReportPending = false;
+        updateMainService();
+    };
 
     private final AtomicLong heartbeatSeq = new AtomicLong(0);
     private final AtomicInteger messageIdCounter = new AtomicInteger(0);
     private final AtomicInteger txtRecordsReceived = new AtomicInteger(0);
     private final AtomicInteger serviceResponsesReceived = new AtomicInteger(0);
 
+    // Метрики
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final Counter txtRecordsCounter = metrics.counter(MetricsRegistry.TXT_RECORDS);
+    private final Counter serviceResponsesCounter = metrics.counter(MetricsRegistry.SERVICE_RESPONSES);
+    private final Histogram ackLatency = metrics.histogram(MetricsRegistry.ACK_LATENCY);
+
+    // Снимки устройств для UI/сервиса: список заменяется целиком (copy-on-write)
+    private volatile List<DeviceSnapshot> deviceSnapshots = Collections.emptyList();
+    private volatile long snapshotVersion = 0;
+    private Map<String, DeviceSnapshot> snapshotIndex = new HashMap<>();
+    private boolean snapshotPublishPending = false;
+    private final Runnable publishSnapshotsRunnable = this::publishSnapshots;
+
+    // Трассировка конвейеров отправки/приёма
+    private final Tracer tracer = Tracer.getInstance();
+
+    // Время последней TXT записи от каждого пира (для inter-arrival)
+    private final Map<String, Long> lastTxtArrival = new ConcurrentHashMap<>();
+
     private volatile boolean isRunning = false;
     private volatile boolean discoveryInProgress = false;
     private int burstCount = 0;
@@ -120,32 +258,57 @@ public class FastDiscoveryManager {
         this.deviceId = generateDeviceId();
         this.shortDeviceId = deviceId.substring(0, 8);
         this.sessionId = generateSessionId();
+        this.topology = new TopologyGraph(shortDeviceId);
 
         // Инициализация SYNC системы
         stateRepository = new DeviceStateRepository(context);
         stateRepository.initialize(deviceId, sessionId);
 
-        syncManager = new SyncManager(stateRepository);
+        messageStore = MessageStore.getInstance(context);
+
+        syncManager = new SyncManager(stateRepository, shortDeviceId + "_" + sessionId + "_");
         syncManager.setCallback(new SyncManager.SyncCallback() {
             @Override
-            public void onPublishSync(String targetDeviceId, List<String> mySentIds, List<String> myRecvIds) {
-                registerSyncService(targetDeviceId, mySentIds, myRecvIds);
+            public void onPublishSync(String targetDeviceId, List<String> mySentIds, List<String> myRecvIds,
+                                      SyncDigest recvDigest) {
+                registerSyncService(targetDeviceId, mySentIds, myRecvIds, recvDigest);
             }
 
             @Override
             public void onResendMessage(String targetDeviceId, String msgId, String text) {
-                resendMessage(targetDeviceId, msgId, text);
+                scheduleResend(targetDeviceId, msgId, text);
             }
 
             @Override
             public void onSyncComplete(String deviceId) {
                 log.success("SYNC complete with " + deviceId);
             }
+
+            @Override
+            public void onAckedViaSync(String targetDeviceId, String msgId) {
+                for (DiscoveredDevice dd : deviceCache.values()) {
+                    if (targetDeviceId.equals(dd.deviceId)) {
+                        processAckFromSync(msgId, dd);
+                        return;
+                    }
+                }
+            }
+
+            @Override
+            public boolean isInFlight(String msgId) {
+                return pendingMessages.containsKey(msgId) || resendScheduler.contains(msgId);
+            }
         });
 
         // ДОБАВЛЕНО: Загрузка сохранённых устройств в кэш
         loadSavedDevicesToCache();
 
+        // Отправители по ним сразу переотправят то, что не дошло до перезапуска
+        resumeMarks = SessionResume.encode(stateRepository.getAll().values(), P2pConfig.MAX_RESUME_MARKS_LENGTH);
+        resumeMarksUntil = System.currentTimeMillis() + P2pConfig.RESUME_ADVERTISE_PERIOD;
+
+        registerGauges();
+
         log.divider("FastDiscoveryManager INIT");
         log.i("Device ID: " + shortDeviceId);
         log.i("Session ID: " + sessionId);
@@ -189,9 +352,11 @@ public class FastDiscoveryManager {
                 dd.addSentMessageFromState(m.msgId, m.text, m.timestamp, m.acked, m.ackTime);
             }
 
-            // Загружаем историю полученных сообщений
+            // Загружаем историю полученных сообщений; повторная доставка после
+            // перезапуска не покажет их второй раз
             for (DeviceState.MessageRecord m : state.recvMessages) {
                 dd.addReceivedMessageFromState(m.msgId, m.text, m.timestamp, m.acked);
+                markProcessed(m.msgId);
             }
 
             deviceCache.put(state.address, dd);
@@ -201,6 +366,20 @@ public class FastDiscoveryManager {
         }
 
         log.i("Loaded " + loaded + " devices from repository to cache");
+        requestSnapshotPublish();
+    }
+
+    /**
+     * Gauges вычисляются при снятии snapshot - на горячем пути ничего не пишется
+     */
+    private void registerGauges() {
+        metrics.gauge(MetricsRegistry.SLOTS_OCCUPIED, () -> P2pConfig.MAX_MSG_SLOTS - freeSlotCount());
+        metrics.gauge(MetricsRegistry.MAILBOXES_ACTIVE, () -> messageSlots.size() - P2pConfig.MAX_MSG_SLOTS + freeSlotCount());
+        metrics.gauge(MetricsRegistry.PENDING_MESSAGES, () -> pendingMessages.size());
+        metrics.gauge(MetricsRegistry.PENDING_ACKS, () -> pendingAcksToSend.size());
+        metrics.gauge(MetricsRegistry.RESEND_BACKLOG, () -> resendScheduler.backlog());
+        metrics.gauge(MetricsRegistry.RELAY_BACKLOG, () -> relayManager.backlog());
+        metrics.gauge(MetricsRegistry.SEND_QUEUE_BACKLOG, () -> sendQueue.size());
     }
 
     private String generateDeviceId() {
@@ -271,8 +450,10 @@ public class FastDiscoveryManager {
             DeviceState state = stateRepository.getOrCreate(senderId);
             if (state.lastSessionId != null && isNewerSessionId(incomingSid, state.lastSessionId)) {
                 log.w("New session for " + senderId + " (repo): " + state.lastSessionId + " -> " + incomingSid);
+                captureResume(state, incomingSid);
                 state.clearMessages();
                 dd.clearHistory();
+                resendScheduler.cancelPeer(senderId);
             }
             state.lastSessionId = incomingSid;
             stateRepository.save();
@@ -292,9 +473,11 @@ public class FastDiscoveryManager {
 
             DeviceState state = stateRepository.get(senderId);
             if (state != null) {
+                captureResume(state, incomingSid);
                 state.clearMessages();
                 state.lastSessionId = incomingSid;
                 stateRepository.save();
+                resendScheduler.cancelPeer(senderId);
             }
             return true;
         }
@@ -356,12 +539,17 @@ public class FastDiscoveryManager {
         handler.removeCallbacks(dnsCacheResetRunnable);  // ДОБАВИТЬ (опционально)
 
         handler.removeCallbacksAndMessages(null);
+        snapshotPublishPending = false;
+        rxReportPending = false;
+        coalescePending = false;
+        dirtyMailboxes.clear();
 
         // Принудительное сохранение состояния
         if (stateRepository != null) {
             stateRepository.saveNow();
             log.i("State saved");
         }
+        messageStore.flush();
 
         if (receiver != null) {
             try { context.unregisterReceiver(receiver); } catch (Exception e) {}
@@ -369,8 +557,8 @@ public class FastDiscoveryManager {
         }
 
         if (manager != null && channel != null) {
-            manager.clearLocalServices(channel, null);
-            manager.clearServiceRequests(channel, null);
+            manager.clearLocalServices(channel, tracked("clearLocalServices", null));
+            manager.clearServiceRequests(channel, tracked("clearServiceRequests", null));
             manager.stopPeerDiscovery(channel, null);
             manager.removeGroup(channel, null);
         }
@@ -387,6 +575,28 @@ public class FastDiscoveryManager {
         processedMessageIds.clear();
         recentTxtRecords.clear();
         processedAcks.clear();
+        lastTxtArrival.clear();
+        fragmentAcks.clear();
+        sessionResumes.clear();
+        resumedMessages.clear();
+
+        // Публикации сняты вместе с сервисами: очереди, ретрансляции и оценки пиров
+        // строятся заново после start(). Личные сообщения остаются в DeviceState
+        // и доходят через SYNC, как и снятые со слотов
+        sendQueue.clear();
+        resendScheduler.clear();
+        relayManager.clear();
+        broadcastDeliveries.clear();
+        urgentAckIds.clear();
+        mailboxPolicy.clear();
+        fragmentedMessages.clear();
+        fragmentAssembler.clear();
+        flowWindow.clear();
+        rttEstimators.clear();
+        // sendWindows и receiveWindows сохраняются: sessionId переживает stop/start,
+        // и нумерация "q" в сессии должна продолжаться - с 1 получатель принял бы
+        // новые номера за уже полученные. Неподтверждённые номера без слота
+        // переотправляются по первому отчёту "rx" после start()
 
         log.i("Stop complete. Discovery restarts: " + discoveryRestartCount);
         notifyStatus("Stopped");
@@ -432,23 +642,41 @@ public class FastDiscoveryManager {
         log.divider("CLEAR ALL");
 
         handler.removeCallbacksAndMessages(null);
+        snapshotPublishPending = false;
+        rxReportPending = false;
+        coalescePending = false;
+        dirtyMailboxes.clear();
 
         for (SlotInfo slot : messageSlots.values()) {
             if (slot.serviceInfo != null && slot.isRegistered) {
-                manager.removeLocalService(channel, slot.serviceInfo, null);
+                manager.removeLocalService(channel, slot.serviceInfo, tracked("removeLocalService", null));
             }
         }
         messageSlots.clear();
 
         if (ackServiceInfo != null) {
-            manager.removeLocalService(channel, ackServiceInfo, null);
+            manager.removeLocalService(channel, ackServiceInfo, tracked("removeLocalService", null));
             ackServiceInfo = null;
         }
 
         if (syncServiceInfo != null) {
-            manager.removeLocalService(channel, syncServiceInfo, null);
+            manager.removeLocalService(channel, syncServiceInfo, tracked("removeLocalService", null));
             syncServiceInfo = null;
         }
+        syncMux.clear();
+        lastSyncPublishAt = 0;
+        relayManager.clear();
+        broadcastDeliveries.clear();
+        sendQueue.clear();
+        flowWindow.clear();
+        rttEstimators.clear();
+        mailboxPolicy.clear();
+        fragmentedMessages.clear();
+        fragmentAcks.clear();
+        sessionResumes.clear();
+        resumedMessages.clear();
+        fragmentAssembler.clear();
+        urgentAckIds.clear();
 
         pendingMessages.clear();
         activeIncomingMessages.clear();
@@ -465,6 +693,9 @@ public class FastDiscoveryManager {
         txtRecordsReceived.set(0);
         serviceResponsesReceived.set(0);
         heartbeatSeq.set(0);
+        lastTxtArrival.clear();
+        metrics.reset();
+        tracer.clear();
 
         // Очищаем состояния в репозитории
         if (stateRepository != null) {
@@ -473,10 +704,12 @@ public class FastDiscoveryManager {
             }
             stateRepository.saveNow();
         }
+        messageStore.clearAll();
 
         if (syncManager != null) {
             syncManager.clearAllPending();
         }
+        resendScheduler.clear();
 
         DiagnosticLogger.getInstance().clear();
 
@@ -484,41 +717,67 @@ public class FastDiscoveryManager {
         log.divider("FRESH START");
 
         schedulePeriodicTasks();
+        requestSnapshotPublish();
         notifyStatus("Cleared. Devices: " + deviceCache.size());
     }
 
     public String sendMessage(String message, String targetDeviceId) {
+        return sendMessage(message, targetDeviceId, MessagePriority.NORMAL);
+    }
+
+    /**
+     * Отправить сообщение с приоритетом. Без свободного слота срочное вытесняет
+     * менее срочное (оно возвращается в очередь), остальные ждут в очереди.
+     */
+    public String sendMessage(String message, String targetDeviceId, MessagePriority priority) {
         if (!isRunning) return null;
+        if (usesFragments(targetDeviceId, message)) {
+            return sendFragmented(message, targetDeviceId, priority);
+        }
 
-        // ДОБАВЛЕНО: Проверка лимита неподтверждённых сообщений
+        // Лимит неподтверждённых сообщений (срочные не ограничиваются)
         int pendingCount = countPendingMessagesTo(targetDeviceId);
-        if (pendingCount >= P2pConfig.MAX_MSG_SLOTS) {
-            String error = "Лимит: " + P2pConfig.MAX_MSG_SLOTS + " неподтверждённых сообщений";
+        if (priority != MessagePriority.URGENT && pendingCount >= P2pConfig.MAX_UNACKED_PER_PEER) {
+            String error = "Лимит: " + P2pConfig.MAX_UNACKED_PER_PEER + " неподтверждённых сообщений";
             log.w(error + " to " + targetDeviceId);
             notifyError(error);
             return null;
         }
 
-        int freeSlot = findFreeSlot();
-        // ИЗМЕНЕНО: Вместо вытеснения - ошибка
-        if (freeSlot < 0) {
+        // Получатель не успевает за нами - ждём в очереди, а не занимаем слот впустую
+        boolean mailbox = usesMailbox(targetDeviceId);
+        boolean windowOpen = mailbox || priority == MessagePriority.URGENT || hasWindowRoom(targetDeviceId);
+        if (!windowOpen) {
+            metrics.counter(MetricsRegistry.FLOW_WINDOW_BLOCKED, "kind", "send").inc();
+        }
+        // Обычное личное сообщение ждёт COALESCE_WINDOW: следующие за ним
+        // сообщения тому же получателю уйдут в той же записи
+        boolean coalesce = priority != MessagePriority.URGENT && targetDeviceId != null && !sendQueue.isFull();
+        int freeSlot = windowOpen && !coalesce && !mailbox ? acquireSlot(priority) : -1;
+        if (freeSlot < 0 && priority != MessagePriority.URGENT && sendQueue.isFull()) {
             String error = "Нет свободных слотов для отправки";
-            log.w(error);
+            log.w(error + " (queue " + sendQueue.size() + ")");
             notifyError(error);
             return null;
         }
 
         String msgId = shortDeviceId + "_" + sessionId + "_" + messageIdCounter.incrementAndGet();
-        PendingMessage pending = new PendingMessage(msgId, message, targetDeviceId, freeSlot);
-        pendingMessages.put(msgId, pending);
+        long now = System.currentTimeMillis();
+        if (targetDeviceId != null) {
+            sendWindowFor(targetDeviceId).assign(msgId);
+        }
+        tracer.begin(Tracer.CAT_SEND, "message", msgId);
 
         // Сохранение в репозиторий для SYNC
         if (targetDeviceId != null) {
             DeviceState state = stateRepository.getOrCreate(targetDeviceId);
             state.addSentMessage(msgId, message);
             stateRepository.save();
+            syncManager.reschedule(state);
             log.d("Saved to state repository: " + msgId + " -> " + targetDeviceId);
         }
+        messageStore.append(targetDeviceId != null ? targetDeviceId : MessageStore.BROADCAST_PEER,
+                msgId, message, now, true);
 
         // Записываем в историю устройства (для UI)
         for (DiscoveredDevice dd : deviceCache.values()) {
@@ -533,10 +792,22 @@ public class FastDiscoveryManager {
             }
         }
 
-        registerMessageSlot(freeSlot, msgId, message, targetDeviceId);
+        SendQueue.Entry entry = new SendQueue.Entry(msgId, message, targetDeviceId, priority, now);
+        if (freeSlot >= 0) {
+            publishOutgoing(packWith(entry), freeSlot);
+        } else {
+            enqueueOutgoing(entry);
+            if (coalesce && windowOpen) {
+                scheduleCoalescedPump();
+            } else if (mailbox) {
+                pumpSendQueue();
+            }
+        }
+        requestSnapshotPublish();
 
-        log.i("SEND MESSAGE: " + msgId + " slot=" + freeSlot +
-                (targetDeviceId != null ? " to=" + targetDeviceId : " (broadcast)"));
+        log.i((freeSlot >= 0 ? "SEND MESSAGE: " + msgId + " slot=" + freeSlot : "QUEUED MESSAGE: " + msgId) +
+                (targetDeviceId != null ? " to=" + targetDeviceId : " (broadcast)") +
+                (priority != MessagePriority.NORMAL ? " [" + priority.label + "]" : ""));
 
         if (listener != null) {
             listener.onMessageSent(msgId, message, targetDeviceId);
@@ -545,23 +816,59 @@ public class FastDiscoveryManager {
     }
 
     /**
-     * Подсчёт неподтверждённых сообщений для конкретного устройства
+     * Подсчёт неподтверждённых и ждущих в очереди сообщений для устройства (null - broadcast)
      */
     private int countPendingMessagesTo(String targetDeviceId) {
-        int count = 0;
+        return PendingMessage.countTo(pendingMessages.values(), targetDeviceId) + sendQueue.countTo(targetDeviceId);
+    }
+
+    /**
+     * Сколько слотов сейчас занято сообщениями для устройства (включая переотправки).
+     * Упакованная запись с несколькими сообщениями - один слот: пир видит их разом.
+     */
+    private int countInFlightTo(String targetDeviceId) {
+        String key = peerKey(targetDeviceId);
+        int slots = 0;
         for (PendingMessage pm : pendingMessages.values()) {
-            if (targetDeviceId == null) {
-                // Broadcast - считаем все
-                count++;
-            } else if (targetDeviceId.equals(pm.targetDeviceId)) {
-                count++;
+            if (pm.targetDeviceId != null && key.equals(peerKey(pm.targetDeviceId))) {
+                slots |= 1 << pm.slotIndex;
             }
         }
-        return count;
+        return Integer.bitCount(slots);
+    }
+
+    /**
+     * Можно ли занять ещё один слот для устройства: их меньше, чем окно,
+     * объявленное им в heartbeat ("w"). Broadcast окном не ограничен.
+     */
+    private boolean hasWindowRoom(String targetDeviceId) {
+        if (targetDeviceId == null || MessageStore.BROADCAST_PEER.equals(targetDeviceId)) {
+            return true;
+        }
+        return countInFlightTo(targetDeviceId) <
+                flowWindow.windowFor(peerKey(targetDeviceId), System.currentTimeMillis());
     }
 
 
 
+    /**
+     * Режим relay: ретранслировать сообщения соседей для других получателей.
+     * Доставка ретранслированных нам сообщений работает и без него.
+     */
+    public void setRelayEnabled(boolean enabled) {
+        if (relayEnabled == enabled) return;
+        relayEnabled = enabled;
+        log.i("Relay mode " + (enabled ? "enabled" : "disabled"));
+        if (!enabled) {
+            relayManager.clear();
+            handler.removeCallbacks(relayPumpRunnable);
+        }
+    }
+
+    public boolean isRelayEnabled() {
+        return relayEnabled;
+    }
+
     public void forceRefresh() {
         if (!isRunning) return;
         log.divider("FORCE REFRESH");
@@ -595,6 +902,21 @@ public class FastDiscoveryManager {
         return new ArrayList<>(deviceCache.values());
     }
 
+    /**
+     * Последние опубликованные снимки устройств (неизменяемый список, без копирования).
+     * Безопасно читать с любого потока.
+     */
+    public List<DeviceSnapshot> getDeviceSnapshots() {
+        return deviceSnapshots;
+    }
+
+    /**
+     * Версия последней публикации снимков (растёт при каждом изменении)
+     */
+    public long getSnapshotVersion() {
+        return snapshotVersion;
+    }
+
     public DeviceStateRepository getStateRepository() {
         return stateRepository;
     }
@@ -692,14 +1014,14 @@ public class FastDiscoveryManager {
     }
 
     private void clearAndSetup() {
-        manager.clearLocalServices(channel, new WifiP2pManager.ActionListener() {
+        manager.clearLocalServices(channel, tracked("clearLocalServices", new WifiP2pManager.ActionListener() {
             @Override public void onSuccess() { clearRequestsAndSetup(); }
             @Override public void onFailure(int r) { clearRequestsAndSetup(); }
-        });
+        }));
     }
 
     private void clearRequestsAndSetup() {
-        manager.clearServiceRequests(channel, new WifiP2pManager.ActionListener() {
+        manager.clearServiceRequests(channel, tracked("clearServiceRequests", new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
                 serviceRequests.clear();
@@ -710,7 +1032,7 @@ public class FastDiscoveryManager {
                 serviceRequests.clear();
                 setupDiscovery();
             }
-        });
+        }));
     }
 
     private void setupDiscovery() {
@@ -724,15 +1046,15 @@ public class FastDiscoveryManager {
     }
 
     private void startDiscoverySequence() {
-        manager.discoverPeers(channel, null);
-        handler.postDelayed(() -> manager.discoverServices(channel, null), 500);
+        manager.discoverPeers(channel, tracked("discoverPeers", null));
+        handler.postDelayed(() -> manager.discoverServices(channel, tracked("discoverServices", null)), 500);
         schedulePeriodicTasks();
         handler.postDelayed(this::performBurstStep, P2pConfig.INITIAL_BURST_INTERVAL);
     }
 
     private void restartServiceDiscovery() {
         manager.stopPeerDiscovery(channel, null);
-        manager.clearServiceRequests(channel, new WifiP2pManager.ActionListener() {
+        manager.clearServiceRequests(channel, tracked("clearServiceRequests", new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
                 serviceRequests.clear();
@@ -751,7 +1073,7 @@ public class FastDiscoveryManager {
                     performBurstStep();
                 });
             }
-        });
+        }));
     }
 
     // ==================== MAIN SERVICE ====================
@@ -765,7 +1087,7 @@ public class FastDiscoveryManager {
         mainServiceInfo = WifiP2pDnsSdServiceInfo.newInstance(
                 P2pConfig.MAIN_SERVICE_NAME, P2pConfig.SERVICE_TYPE, record);
 
-        manager.addLocalService(channel, mainServiceInfo, new WifiP2pManager.ActionListener() {
+        manager.addLocalService(channel, mainServiceInfo, tracked("addLocalService", new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
                 log.success("MAIN SERVICE REGISTERED: " + shortDeviceId);
@@ -776,7 +1098,7 @@ public class FastDiscoveryManager {
                 log.error("FAILED to register main service: " + reasonToString(reason));
                 handler.postDelayed(() -> registerMainService(onComplete), 1000);
             }
-        });
+        }));
     }
 
     private Map<String, String> buildMainServiceRecord() {
@@ -792,6 +1114,23 @@ public class FastDiscoveryManager {
             record.put("ack", acks);
         }
 
+        String rx = buildRxReport();
+        if (!rx.isEmpty()) {
+            record.put("rx", rx);
+        }
+
+        // Окна приёма для отправителей, которых мы не успеваем обнаруживать
+        flowWindow.prune(System.currentTimeMillis());
+        String w = flowWindow.encode(receiveWindows.keySet(), P2pConfig.MAX_FLOW_WINDOW_LENGTH);
+        if (!w.isEmpty()) {
+            record.put("w", w);
+        }
+
+        // Границы приёма до перезапуска - первые RESUME_ADVERTISE_PERIOD
+        if (!resumeMarks.isEmpty() && System.currentTimeMillis() < resumeMarksUntil) {
+            record.put("rs", resumeMarks);
+        }
+
         return record;
     }
 
@@ -799,17 +1138,41 @@ public class FastDiscoveryManager {
         StringBuilder sb = new StringBuilder();
         int count = 0;
 
+        List<String> acks = new ArrayList<>();
+        Map<String, DiscoveredDevice> ackOwners = new HashMap<>();
         for (DiscoveredDevice dd : deviceCache.values()) {
-            List<String> deviceAcks = dd.getPendingAckMessageIds();
-            for (String msgId : deviceAcks) {
-                if (count >= P2pConfig.MAX_ACKS_PER_RECORD) break;
+            for (String msgId : dd.getPendingAckMessageIds()) {
+                acks.add(msgId);
+                ackOwners.put(msgId, dd);
+            }
+        }
+        prioritizeAcks(acks);
+
+        for (String msgId : acks) {
+            if (count >= P2pConfig.MAX_ACKS_PER_RECORD) break;
+            if (sb.length() > 0) sb.append(",");
+            sb.append(msgId);
+            ackOwners.get(msgId).markReceivedMessageAckSent(msgId);
+            tracer.mark(Tracer.CAT_RECV, "ack.piggyback", msgId, null);
+            pendingAcksToSend.add(msgId);
+            count++;
+        }
+
+        // ACK фрагментов: отправитель сменит их в записи следующими фрагментами
+        for (String msgId : fragmentAcks.keySet()) {
+            if (count >= P2pConfig.MAX_ACKS_PER_RECORD) break;
+            if (sb.length() > 0) sb.append(",");
+            sb.append(msgId);
+            count++;
+        }
+
+        // Сквозные ACK ретранслированных нами сообщений - назад по пути
+        if (count < P2pConfig.MAX_ACKS_PER_RECORD) {
+            for (String msgId : relayManager.acksToForward(System.currentTimeMillis(),
+                    P2pConfig.MAX_ACKS_PER_RECORD - count)) {
                 if (sb.length() > 0) sb.append(",");
                 sb.append(msgId);
-                dd.markReceivedMessageAckSent(msgId);
-                pendingAcksToSend.add(msgId);
-                count++;
             }
-            if (count >= P2pConfig.MAX_ACKS_PER_RECORD) break;
         }
 
         return sb.toString();
@@ -831,38 +1194,63 @@ public class FastDiscoveryManager {
         WifiP2pDnsSdServiceInfo newInfo = WifiP2pDnsSdServiceInfo.newInstance(
                 P2pConfig.MAIN_SERVICE_NAME, P2pConfig.SERVICE_TYPE, record);
 
-        manager.removeLocalService(channel, mainServiceInfo, new WifiP2pManager.ActionListener() {
+        manager.removeLocalService(channel, mainServiceInfo, tracked("removeLocalService", new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
-                manager.addLocalService(channel, newInfo, new WifiP2pManager.ActionListener() {
+                manager.addLocalService(channel, newInfo, tracked("addLocalService", new WifiP2pManager.ActionListener() {
                     @Override public void onSuccess() {
                         mainServiceInfo = newInfo;
                         log.d("Main service updated OK");
                     }
                     @Override public void onFailure(int r) { mainServiceInfo = newInfo; }
-                });
+                }));
             }
             @Override
             public void onFailure(int r) {
-                manager.addLocalService(channel, newInfo, null);
+                manager.addLocalService(channel, newInfo, tracked("addLocalService", null));
                 mainServiceInfo = newInfo;
             }
-        });
+        }));
     }
 
     // ==================== ACK SERVICE ====================
 
+    /**
+     * ACK срочных сообщений - в начало списка (в записи помещается MAX_ACKS_PER_RECORD)
+     */
+    private void prioritizeAcks(List<String> acks) {
+        if (urgentAckIds.isEmpty()) return;
+        acks.sort((a, b) -> Boolean.compare(!urgentAckIds.contains(a), !urgentAckIds.contains(b)));
+    }
+
+    /**
+     * Получено срочное сообщение: ACK публикуется сразу, не дожидаясь ACK_UPDATE_INTERVAL
+     */
+    private void markUrgentAck(String msgId) {
+        urgentAckIds.add(msgId);
+        if (urgentAckIds.size() > P2pConfig.MAX_ACKS_PER_RECORD * 10) {
+            Iterator<String> it = urgentAckIds.iterator();
+            it.next();
+            it.remove();
+        }
+        handler.removeCallbacks(ackUpdateRunnable);
+        handler.post(ackUpdateRunnable);
+    }
+
     private void updateAckService() {
         if (!isRunning) return;
 
-        Set<String> allAcks = new HashSet<>();
+        Set<String> ackSet = new LinkedHashSet<>();
         for (DiscoveredDevice dd : deviceCache.values()) {
-            allAcks.addAll(dd.getPendingAckMessageIds());
+            ackSet.addAll(dd.getPendingAckMessageIds());
         }
+        ackSet.addAll(relayManager.acksToForward(System.currentTimeMillis(), P2pConfig.MAX_ACKS_PER_RECORD));
+        List<String> allAcks = new ArrayList<>(ackSet);
+        prioritizeAcks(allAcks);
 
         if (allAcks.isEmpty()) {
             if (ackServiceInfo != null) {
-                manager.removeLocalService(channel, ackServiceInfo, null);
+                manager.removeLocalService(channel, ackServiceInfo, tracked("removeLocalService", null));
                 ackServiceInfo = null;
                 log.d("ACK service removed (no pending)");
             }
@@ -875,11 +1263,13 @@ public class FastDiscoveryManager {
         record.put("sid", sessionId);
 
         StringBuilder ackSb = new StringBuilder();
+        List<String> publishedAcks = new ArrayList<>();
         int count = 0;
         for (String ack : allAcks) {
             if (count >= P2pConfig.MAX_ACKS_PER_RECORD) break;
             if (ackSb.length() > 0) ackSb.append(",");
             ackSb.append(ack);
+            publishedAcks.add(ack);
             count++;
         }
         record.put("ack", ackSb.toString());
@@ -890,114 +1280,149 @@ public class FastDiscoveryManager {
                 P2pConfig.ACK_SERVICE_NAME, P2pConfig.SERVICE_TYPE, record);
 
         if (ackServiceInfo != null) {
-            manager.removeLocalService(channel, ackServiceInfo, new WifiP2pManager.ActionListener() {
+            manager.removeLocalService(channel, ackServiceInfo, tracked("removeLocalService", new WifiP2pManager.ActionListener() {
                 @Override
                 public void onSuccess() {
-                    manager.addLocalService(channel, newAckService, new WifiP2pManager.ActionListener() {
+                    manager.addLocalService(channel, newAckService, tracked("addLocalService", new WifiP2pManager.ActionListener() {
                         @Override public void onSuccess() {
                             ackServiceInfo = newAckService;
                             log.d("ACK service updated OK");
+                            traceAcksPublished(publishedAcks);
                         }
                         @Override public void onFailure(int r) {
                             ackServiceInfo = newAckService;
                         }
-                    });
+                    }));
                 }
                 @Override
                 public void onFailure(int r) {
-                    manager.addLocalService(channel, newAckService, null);
+                    manager.addLocalService(channel, newAckService, tracked("addLocalService", null));
                     ackServiceInfo = newAckService;
                 }
-            });
+            }));
         } else {
-            manager.addLocalService(channel, newAckService, new WifiP2pManager.ActionListener() {
+            manager.addLocalService(channel, newAckService, tracked("addLocalService", new WifiP2pManager.ActionListener() {
                 @Override public void onSuccess() {
                     ackServiceInfo = newAckService;
                     log.success("ACK service created: " + ackSb.toString());
+                    traceAcksPublished(publishedAcks);
                 }
                 @Override public void onFailure(int r) {
                     log.w("Failed to create ACK service");
                 }
-            });
+            }));
+        }
+    }
+
+    private void traceAcksPublished(List<String> acks) {
+        for (String ack : acks) {
+            tracer.mark(Tracer.CAT_RECV, "ack.published", ack, P2pConfig.ACK_SERVICE_NAME);
         }
     }
 
     // ==================== SYNC SERVICE ====================
 
-    private void registerSyncService(String targetDeviceId, List<String> mySentIds, List<String> myRecvIds) {
-        String shortTargetId = targetDeviceId.length() > 8
-                ? targetDeviceId.substring(0, 8)
-                : targetDeviceId;
+    /**
+     * Добавить секцию получателя в общую запись SYNC.
+     * Запросы к разным пирам объединяются в одну регистрацию (SYNC_PUBLISH_DELAY).
+     */
+    private void registerSyncService(String targetDeviceId, List<String> mySentIds, List<String> myRecvIds,
+                                     SyncDigest recvDigest) {
+        String shortTargetId = peerKey(targetDeviceId);
+        syncMux.put(shortTargetId, mySentIds, myRecvIds, recvDigest);
+
+        log.i("Queued SYNC to " + shortTargetId +
+                " | sent=" + mySentIds + " | recv=" + myRecvIds +
+                (recvDigest != null ? " | digest n=" + recvDigest.size() : "") +
+                " | sections=" + syncMux.size());
+
+        // Не чаще SYNC_PUBLISH_MIN_SPACING: при массовом возвращении пиров
+        // их секции копятся и уходят одной перерегистрацией
+        long now = System.currentTimeMillis();
+        long delay = Math.max(P2pConfig.SYNC_PUBLISH_DELAY,
+                lastSyncPublishAt + P2pConfig.SYNC_PUBLISH_MIN_SPACING - now);
+        handler.removeCallbacks(syncPublishRunnable);
+        handler.postDelayed(syncPublishRunnable, delay);
+    }
 
-        Map<String, String> record = new HashMap<>();
-        record.put("id", shortDeviceId);
-        record.put("to", shortTargetId);
-        record.put("sent", SyncManager.formatIdList(mySentIds));
-        record.put("recv", SyncManager.formatIdList(myRecvIds));
-        record.put("t", String.valueOf(System.currentTimeMillis() / 1000));
-        record.put("sid", sessionId);
+    /**
+     * Опубликовать очередную страницу записи SYNC. Пока есть секции - повторяется
+     * каждые SYNC_ROTATE_INTERVAL; перерегистрация только если страница изменилась.
+     */
+    private void publishSyncRecord() {
+        if (!isRunning) return;
+        long now = System.currentTimeMillis();
+        syncMux.expire(now, P2pConfig.SYNC_SERVICE_LIFETIME);
 
-        log.i("Publishing SYNC to " + shortTargetId +
-                " | sent=" + mySentIds + " | recv=" + myRecvIds);
+        if (syncMux.isEmpty()) {
+            if (syncServiceInfo != null) {
+                manager.removeLocalService(channel, syncServiceInfo, tracked("removeLocalService", null));
+                syncServiceInfo = null;
+                log.d("SYNC service removed (no sections)");
+            }
+            return;
+        }
 
-        WifiP2pDnsSdServiceInfo newSyncService = WifiP2pDnsSdServiceInfo.newInstance(
-                P2pConfig.SYNC_SERVICE_NAME, P2pConfig.SERVICE_TYPE, record);
+        if (syncMux.needsPublish()) {
+            Map<String, String> record = new HashMap<>();
+            record.put("id", shortDeviceId);
+            record.put("t", String.valueOf(now / 1000));
+            record.put("sid", sessionId);
+            List<String> page = syncMux.fillNextPage(record, now);
+            lastSyncPublishAt = now;
 
-        if (syncServiceInfo != null) {
-            manager.removeLocalService(channel, syncServiceInfo, new WifiP2pManager.ActionListener() {
-                @Override
-                public void onSuccess() {
-                    addSyncService(newSyncService);
-                }
-                @Override
-                public void onFailure(int r) {
-                    addSyncService(newSyncService);
-                }
-            });
-        } else {
-            addSyncService(newSyncService);
+            log.i("Publishing SYNC record: " + page + " of " + syncMux.size() + " sections");
+
+            WifiP2pDnsSdServiceInfo newSyncService = WifiP2pDnsSdServiceInfo.newInstance(
+                    P2pConfig.SYNC_SERVICE_NAME, P2pConfig.SERVICE_TYPE, record);
+
+            if (syncServiceInfo != null) {
+                manager.removeLocalService(channel, syncServiceInfo, tracked("removeLocalService", new WifiP2pManager.ActionListener() {
+                    @Override
+                    public void onSuccess() {
+                        addSyncService(newSyncService);
+                    }
+                    @Override
+                    public void onFailure(int r) {
+                        addSyncService(newSyncService);
+                    }
+                }));
+            } else {
+                addSyncService(newSyncService);
+            }
         }
+
+        handler.postDelayed(syncPublishRunnable, P2pConfig.SYNC_ROTATE_INTERVAL);
     }
 
     private void addSyncService(WifiP2pDnsSdServiceInfo service) {
-        manager.addLocalService(channel, service, new WifiP2pManager.ActionListener() {
+        manager.addLocalService(channel, service, tracked("addLocalService", new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
                 syncServiceInfo = service;
                 log.success("SYNC service registered");
-
-                handler.postDelayed(() -> {
-                    if (syncServiceInfo == service) {
-                        manager.removeLocalService(channel, syncServiceInfo, null);
-                        syncServiceInfo = null;
-                        log.d("SYNC service removed (timeout)");
-                    }
-                }, P2pConfig.SYNC_SERVICE_LIFETIME);
             }
             @Override
             public void onFailure(int r) {
                 log.w("Failed to register SYNC service: " + reasonToString(r));
             }
-        });
+        }));
     }
 
     private void handleSyncServiceRecord(Map<String, String> record, WifiP2pDevice device) {
         String senderId = record.get("id");
-        String targetId = record.get("to");
-        String theirSent = record.get("sent");
-        String theirRecv = record.get("recv");
         String sid = record.get("sid");
 
         if (senderId == null || shortDeviceId.equals(senderId)) return;
 
-        if (targetId == null ||
-                (!targetId.equalsIgnoreCase(shortDeviceId) &&
-                        !shortDeviceId.startsWith(targetId))) {
+        // Только своя секция общей записи (или старая запись с "to" = мы)
+        SyncRecordMux.Section section = SyncRecordMux.parse(record, shortDeviceId);
+        if (section == null) {
             return;
         }
 
         log.i("SYNC received from " + senderId +
-                " | theirSent=" + theirSent + " | theirRecv=" + theirRecv);
+                " | theirSent=" + section.sent + " | theirRecv=" + section.recv);
 
         DiscoveredDevice dd = getOrCreateDevice(device.deviceAddress, device);
 
@@ -1010,8 +1435,13 @@ public class FastDiscoveryManager {
         dd.hasOurApp = true;
         dd.lastSeen = System.currentTimeMillis();
 
-        List<String> theirSentIds = SyncManager.parseIdList(theirSent);
-        List<String> theirRecvIds = SyncManager.parseIdList(theirRecv);
+        // SYNC v2: точная разность по дайджесту, при неудаче - списки v1
+        if (section.digest != null && syncManager.processIncomingDigest(senderId, section.digest)) {
+            return;
+        }
+
+        List<String> theirSentIds = section.sent;
+        List<String> theirRecvIds = section.recv;
 
         List<String> filteredTheirRecvIds = new ArrayList<>();
         for (String recvId : theirRecvIds) {
@@ -1031,7 +1461,21 @@ public class FastDiscoveryManager {
     }
 
     /**
-     * Обработать ACK полученный через SYNC (а не через ACK service)
+     * Отметить подтверждение в журнале переписки
+     */
+    private void storeAck(PendingMessage pm) {
+        String peerId = pm.targetDeviceId != null ? pm.targetDeviceId : MessageStore.BROADCAST_PEER;
+        long now = System.currentTimeMillis();
+        messageStore.markAcked(peerId, pm.messageId, now);
+
+        Long restartedAt = resumedMessages.remove(pm.messageId);
+        if (restartedAt != null) {
+            metrics.histogram(MetricsRegistry.RESUME_RECOVERY).record(now - restartedAt);
+        }
+    }
+
+    /**
+     * Обработать ACK полученный через SYNC или отчёт о приёме "rx" (а не через ACK service)
      */
     private void processAckFromSync(String msgId, DiscoveredDevice sender) {
         // Проверяем что это наше сообщение текущей сессии
@@ -1039,15 +1483,30 @@ public class FastDiscoveryManager {
             return;
         }
 
+        BroadcastDelivery bd = broadcastDeliveries.get(msgId);
+        if (bd != null) {
+            onBroadcastAck(bd, sender, Collections.singletonList(msgId));
+            return;
+        }
+        sendQueue.remove(msgId);
+
         // Дедупликация
         if (processedAcks.contains(msgId)) {
             return;
         }
 
+        PendingMessage whole = fragmentedMessages.remove(msgId);
+        if (whole != null) {
+            onFragmentedMessageAcked(whole, sender, Collections.singletonList(msgId));
+            return;
+        }
+
         PendingMessage pm = pendingMessages.get(msgId);
         if (pm == null) {
             // Сообщение уже обработано или не существует - но всё равно обновим UI
             sender.markSentMessageAcked(msgId, Collections.singletonList(msgId));
+            forgetSendSeq(sender.deviceId, msgId);
+            resendScheduler.cancel(msgId, System.currentTimeMillis());
             return;
         }
 
@@ -1059,6 +1518,17 @@ public class FastDiscoveryManager {
         }
 
         log.success("ACK from SYNC for " + msgId + " from " + sender.getShortId());
+        ackLatency.record(pm.getAge());
+        sender.latency.recordAckRtt(pm.getAge());
+        recordRttSample(pm.targetDeviceId, pm);
+        if (FragmentCodec.isFragment(msgId)) {
+            releaseFragment(pm);
+            return;
+        }
+        tracer.end(Tracer.CAT_SEND, "message", msgId, "ack via SYNC from " + sender.getShortId());
+        storeAck(pm);
+        forgetSendSeq(pm.targetDeviceId, msgId);
+        resendScheduler.cancel(msgId, System.currentTimeMillis());
 
         // Обновляем UI модель
         sender.markSentMessageAcked(msgId, Collections.singletonList(msgId));
@@ -1073,8 +1543,7 @@ public class FastDiscoveryManager {
         }
 
         // Очищаем pending
-        pendingMessages.remove(msgId);
-        releaseSlot(pm.slotIndex);
+        releaseAckedMessage(pm);
 
         // Уведомляем Activity
         if (listener != null) {
@@ -1082,60 +1551,1321 @@ public class FastDiscoveryManager {
         }
     }
 
-    private void resendMessage(String targetDeviceId, String msgId, String text) {
+    // ==================== PRIORITY SCHEDULING ====================
+
+    /**
+     * Слот для своего сообщения: свободный, иначе занятый переотправкой или ретрансляцией,
+     * иначе (только для срочного) занятый несрочным своим сообщением (оно возвращается в очередь)
+     * @return индекс слота или -1
+     */
+    private int acquireSlot(MessagePriority priority) {
         int slot = findFreeSlot();
-        if (slot < 0) slot = releaseOldestSlot();
+        if (slot < 0) {
+            // Новые сообщения важнее переотправок и ретрансляций
+            slot = preemptBackgroundSlot();
+        }
+        if (slot < 0 && priority == MessagePriority.URGENT) {
+            // Вытесненное публикуется заново с нуля: при насыщении каждое вытеснение
+            // съедает время слота, поэтому обычные не вытесняют фоновые, а ждут
+            slot = preemptLowerPriority(priority);
+        }
+        return slot;
+    }
 
-        log.i("RESENDING " + msgId + " to " + targetDeviceId + " slot=" + slot);
-        registerMessageSlot(slot, msgId, text, targetDeviceId);
+    /**
+     * Освободить слот самого несрочного своего сообщения ниже priority
+     * (в том же классе - с самым поздним сроком) и вернуть его в очередь
+     * @return индекс слота или -1
+     */
+    private int preemptLowerPriority(MessagePriority priority) {
+        PendingMessage victim = null;
+        for (SlotInfo slot : messageSlots.values()) {
+            if (slot.isResend || slot.isRelay || slot.isMailbox) continue;
+            // Упакованные сообщения идут в порядке очереди - первое самое срочное
+            List<PendingMessage> inSlot = pendingInSlot(slot);
+            PendingMessage pm = inSlot.isEmpty() ? null : inSlot.get(0);
+            if (pm == null || !priority.isHigherThan(pm.priority)) {
+                continue;
+            }
+            if (victim == null || victim.priority.isHigherThan(pm.priority)
+                    || (pm.priority == victim.priority && pm.createdAt > victim.createdAt)) {
+                victim = pm;
+            }
+        }
+        if (victim == null) return -1;
+
+        log.w("Preempting " + victim.priority.label + " " + victim.messageId +
+                " in slot " + victim.slotIndex + " for " + priority.label + " message");
+        metrics.counter(MetricsRegistry.SEND_PREEMPTED, "priority", victim.priority.label).inc();
+        tracer.mark(Tracer.CAT_SEND, "preempted", victim.messageId, "slot=" + victim.slotIndex);
+        int slotIndex = victim.slotIndex;
+        List<PendingMessage> evicted = pendingInSlot(messageSlots.get(slotIndex));
+        releaseSlot(slotIndex);
+        for (PendingMessage pm : evicted) {
+            enqueueOutgoing(new SendQueue.Entry(pm.messageId, pm.message, pm.targetDeviceId,
+                    pm.priority, pm.createdAt));
+        }
+        return slotIndex;
     }
 
-    // ==================== MESSAGE SLOTS ====================
+    private void enqueueOutgoing(SendQueue.Entry entry) {
+        SendQueue.Entry dropped = sendQueue.offer(entry);
+        if (dropped == null) return;
+        if (dropped.target != null && !FragmentCodec.isFragment(dropped.msgId)) {
+            // Личное не ждёт SYNC: очередь переотправок опубликует его, когда освободятся слоты
+            log.w("Send queue full, " + dropped.priority.label + " " + dropped.msgId + " moved to resends");
+            metrics.counter(MetricsRegistry.SEND_QUEUE_OVERFLOW, "to", "resend").inc();
+            scheduleResend(dropped.target, dropped.msgId, dropped.text);
+            return;
+        }
+        // Фрагмент восстановит чётность или переотправка целиком, broadcast - переотправка пирам без ACK
+        log.w("Send queue full, dropped " + dropped.priority.label + " " + dropped.msgId);
+        metrics.counter(MetricsRegistry.SEND_QUEUE_OVERFLOW, "to", "dropped").inc();
+        tracer.end(Tracer.CAT_SEND, "message", dropped.msgId, "dropped from send queue");
+    }
 
-    private int findFreeSlot() {
-        for (int i = 0; i < P2pConfig.MAX_MSG_SLOTS; i++) {
-            if (!messageSlots.containsKey(i)) return i;
+    /**
+     * Опубликовать свои сообщения одному получателю в слоте (сразу при отправке или из очереди)
+     */
+    private void publishOutgoing(List<SendQueue.Entry> entries, int slotIndex) {
+        PendingMessage first = null;
+        for (SendQueue.Entry entry : entries) {
+            PendingMessage pending = new PendingMessage(entry.msgId, entry.text, entry.target, slotIndex);
+            pending.priority = entry.priority;
+            pending.createdAt = entry.createdAt;
+            pendingMessages.put(entry.msgId, pending);
+            if (first == null) first = pending;
+            metrics.histogram(MetricsRegistry.SEND_QUEUE_DELAY, "priority", entry.priority.label)
+                    .record(pending.sentAt - entry.createdAt);
+        }
+        registerMessageSlot(slotIndex, entries);
+
+        SendQueue.Entry head = entries.get(0);
+        if (head.target == null) {
+            BroadcastDelivery bd = broadcastDeliveries.get(head.msgId);
+            if (bd == null) {
+                startBroadcastDelivery(first);
+            } else {
+                onBroadcastPublished(bd, first);
+            }
+        }
+    }
+
+    /**
+     * Сообщение и ждущие в очереди сообщения тому же получателю, которые поместятся
+     * в ту же запись (до MAX_MSGS_PER_SLOT, в пределах SLOT_PACK_BUDGET).
+     * Взятые убираются из очереди. Broadcast и фрагменты FEC не упаковываются:
+     * фрагменту нужна своя запись, чтобы её потеря не уносила соседние.
+     */
+    private List<SendQueue.Entry> packWith(SendQueue.Entry head) {
+        List<SendQueue.Entry> pack = new ArrayList<>();
+        pack.add(head);
+        if (head.target == null || FragmentCodec.isFragment(head.msgId)) return pack;
+
+        pack.addAll(sendQueue.takePack(head.target, 1, P2pConfig.MAX_MSGS_PER_SLOT,
+                P2pConfig.SLOT_PACK_BUDGET, this::packedEntrySize));
+        return pack;
+    }
+
+    /**
+     * Размер упакованного сообщения в TXT записи: строки "midK=", "msgK=", "qK=", "pK="
+     * с байтом длины каждая
+     */
+    private int packedEntrySize(SendQueue.Entry e, int k) {
+        return packedEntrySize(e.msgId, e.text, e.priority, k);
+    }
+
+    private int packedEntrySize(String msgId, String text, MessagePriority priority, int k) {
+        String suffix = String.valueOf(k);
+        int size = 4 + suffix.length() + 1 + msgId.length();
+        size += 4 + suffix.length() + 1 + truncateMessage(text, P2pConfig.MAX_MESSAGE_LENGTH)
+                .getBytes(StandardCharsets.UTF_8).length;
+        size += 2 + suffix.length() + 1 + 6;
+        if (priority.code() != null) size += 2 + suffix.length() + 1 + priority.code().length();
+        return size;
+    }
+
+    /**
+     * Насколько возможно отложить публикацию, чтобы набрать записи для упаковки
+     */
+    private void scheduleCoalescedPump() {
+        if (coalescePending || !isRunning) return;
+        coalescePending = true;
+        handler.postDelayed(coalesceRunnable, P2pConfig.COALESCE_WINDOW);
+    }
+
+    private void scheduleSendQueuePump() {
+        handler.removeCallbacks(sendQueuePumpRunnable);
+        if (isRunning && sendQueue.size() > 0) {
+            handler.post(sendQueuePumpRunnable);
+        }
+    }
+
+    /**
+     * Опубликовать ожидающие сообщения, пока для них находятся слоты.
+     * Сообщения получателю с исчерпанным окном пропускаются - очередь не стоит из-за него.
+     */
+    private void pumpSendQueue() {
+        if (!isRunning) return;
+        SendQueue.Entry head;
+        while ((head = sendQueue.peek(e -> viaMailbox(e) ? acquireMailbox(e.target, false) >= 0
+                : e.priority == MessagePriority.URGENT || hasWindowRoom(e.target))) != null) {
+            if (viaMailbox(head)) {
+                updateMailbox(acquireMailbox(head.target, true), head.target);
+                if (sendQueue.contains(head.msgId)) break;  // Не поместилось в бюджет записи
+                continue;
+            }
+            int slot = acquireSlot(head.priority);
+            if (slot < 0) break;
+            // Вытесненное в acquireSlot менее срочно и встаёт в очередь после head
+            sendQueue.remove(head.msgId);
+            List<SendQueue.Entry> pack = packWith(head);
+            log.i("DEQUEUED MESSAGE: " + head.msgId + " slot=" + slot + " [" + head.priority.label + "]" +
+                    " waited " + (System.currentTimeMillis() - head.createdAt) + "ms" +
+                    (pack.size() > 1 ? " +" + (pack.size() - 1) + " packed" : ""));
+            publishOutgoing(pack, slot);
+        }
+        requestSnapshotPublish();
+    }
+
+    // ==================== RESEND PACING ====================
+
+    private void scheduleResend(String targetDeviceId, String msgId, String text) {
+        if (usesFragments(targetDeviceId, text)) {
+            // Длинное сообщение переотправляется фрагментами, а не обрезанным в один слот
+            if (!fragmentedMessages.containsKey(msgId)
+                    && enqueueFragments(msgId, text, targetDeviceId, MessagePriority.NORMAL)) {
+                scheduleCoalescedPump();
+            }
+            return;
+        }
+        if (resendScheduler.enqueue(targetDeviceId, msgId, text, System.currentTimeMillis())) {
+            log.d("Resend queued: " + msgId + " to " + targetDeviceId +
+                    " (backlog " + resendScheduler.backlog() + ")");
+        }
+        schedulePump();
+    }
+
+    private void schedulePump() {
+        handler.removeCallbacks(resendPumpRunnable);
+        if (isRunning && resendScheduler.backlog() > 0) {
+            handler.post(resendPumpRunnable);
         }
-        return -1;
     }
 
-    private int releaseOldestSlot() {
-        int oldestSlot = 0;
-        long oldestTime = Long.MAX_VALUE;
-        for (Map.Entry<Integer, SlotInfo> entry : messageSlots.entrySet()) {
-            if (entry.getValue().createdAt < oldestTime) {
-                oldestTime = entry.getValue().createdAt;
-                oldestSlot = entry.getKey();
+    /**
+     * Выполнить переотправки, которые разрешены сейчас (интервал и свободные слоты).
+     * Следующий запуск - по таймеру интервала или при освобождении слота.
+     */
+    private void pumpResends() {
+        if (!isRunning) return;
+        long now = System.currentTimeMillis();
+
+        ResendScheduler.Request r;
+        while ((r = resendScheduler.poll(now, freeSlotCount(), resendSlotCount())) != null) {
+            if (pendingMessages.containsKey(r.msgId) || sendQueue.contains(r.msgId)) {
+                continue;  // Уже опубликовано (например, вернулось в слот по отчёту "rx") или ждёт слота
+            }
+            if (!hasWindowRoom(r.peerId)) {
+                // Окно получателя исчерпано: вернуть в начало его очереди, следующий запуск - другой пир
+                metrics.counter(MetricsRegistry.FLOW_WINDOW_BLOCKED, "kind", "resend").inc();
+                resendScheduler.requeueFront(r.peerId, r.msgId, r.text, now);
+                break;
             }
+            resendMessage(r.peerId, r.msgId, r.text, findFreeSlot());
+        }
+
+        long next = resendScheduler.nextPollTime();
+        if (next > now) {
+            handler.postDelayed(resendPumpRunnable, next - now);
+        }
+    }
+
+    private int freeSlotCount() {
+        int free = P2pConfig.MAX_MSG_SLOTS;
+        for (SlotInfo slot : messageSlots.values()) {
+            if (!slot.isMailbox) free--;
+        }
+        return free;
+    }
+
+    private int resendSlotCount() {
+        int n = 0;
+        for (SlotInfo slot : messageSlots.values()) {
+            if (slot.isResend) n++;
         }
-        releaseSlot(oldestSlot);
-        return oldestSlot;
+        return n;
     }
 
-    private void releaseSlot(int slotIndex) {
-        SlotInfo slot = messageSlots.remove(slotIndex);
-        if (slot != null && slot.serviceInfo != null && slot.isRegistered) {
-            manager.removeLocalService(channel, slot.serviceInfo, null);
-            log.d("Slot " + slotIndex + " released: " + slot.messageId);
+    /**
+     * Освободить для нового сообщения слот с переотправкой или ретрансляцией (самой поздней);
+     * она возвращается в начало своей очереди
+     * @return индекс слота или -1 если таких слотов нет
+     */
+    private int preemptBackgroundSlot() {
+        SlotInfo victim = null;
+        for (SlotInfo slot : messageSlots.values()) {
+            if ((slot.isResend || slot.isRelay) && (victim == null || slot.createdAt > victim.createdAt)) {
+                victim = slot;
+            }
+        }
+        if (victim == null) return -1;
+
+        if (victim.isRelay) {
+            log.w("Preempting relay " + victim.messageId + " in slot " + victim.slotIndex);
+            releaseSlot(victim.slotIndex);
+            relayManager.requeueFront(victim.messageId);
+            return victim.slotIndex;
+        }
+
+        PendingMessage pm = pendingMessages.get(victim.messageId);
+        log.w("Preempting resend " + victim.messageId + " in slot " + victim.slotIndex);
+        metrics.counter(MetricsRegistry.RESEND_PREEMPTED).inc();
+        releaseSlot(victim.slotIndex);
+        if (pm != null) {
+            String peerId = victim.targetDeviceId != null ? victim.targetDeviceId : MessageStore.BROADCAST_PEER;
+            resendScheduler.requeueFront(peerId, pm.messageId, pm.message, System.currentTimeMillis());
+        }
+        return victim.slotIndex;
+    }
+
+    private void resendMessage(String targetDeviceId, String msgId, String text, int slot) {
+        // Broadcast переотправляется всем сразу: очередь пира BROADCAST_PEER
+        String target = MessageStore.BROADCAST_PEER.equals(targetDeviceId) ? null : targetDeviceId;
+        log.i("RESENDING " + msgId + " to " + targetDeviceId + " slot=" + slot);
+        tracer.mark(Tracer.CAT_SEND, "resend", msgId, "slot=" + slot);
+        registerMessageSlot(slot, msgId, text, target, MessagePriority.NORMAL);
+        messageSlots.get(slot).isResend = true;
+
+        // Снова ждём ACK: он освободит слот, а SYNC не переотправит сообщение повторно
+        PendingMessage pm = new PendingMessage(msgId, text, target, slot);
+        pm.isResend = true;
+        pendingMessages.put(msgId, pm);
+
+        BroadcastDelivery bd = target == null ? broadcastDeliveries.get(msgId) : null;
+        if (bd != null) {
+            onBroadcastPublished(bd, pm);
+        }
+    }
+
+    // ==================== TOPOLOGY ====================
+
+    /**
+     * Опубликовать запись WFD_Nbr: наши соседи и пересылаемые списки других узлов
+     */
+    private void publishNeighbourRecord() {
+        long now = System.currentTimeMillis();
+        List<NeighbourDigest.Entry> neighbours = new ArrayList<>();
+        for (DiscoveredDevice dd : deviceCache.values()) {
+            if (dd.hasOurApp && dd.deviceId != null && dd.isOnline()) {
+                neighbours.add(new NeighbourDigest.Entry(peerKey(dd.deviceId),
+                        (int) ((now - dd.lastSeen) / 1000), dd.link.score(now)));
+            }
+        }
+        topology.setLocalNeighbours(neighbours, P2pConfig.MAX_NBR_DIGEST_LENGTH, now, P2pConfig.TOPOLOGY_REFRESH);
+        int expired = topology.expire(now, P2pConfig.TOPOLOGY_TTL);
+        if (expired > 0) {
+            log.d("Topology: expired " + expired + " nodes");
+        }
+
+        Map<String, String> record = new HashMap<>();
+        record.put("id", shortDeviceId);
+        record.put("t", String.valueOf(now / 1000));
+        record.put("sid", sessionId);
+        topology.fillAdvertisement(record, P2pConfig.NBR_RECORD_BUDGET);
+
+        log.d("Publishing neighbours: " + neighbours.size() + " own, " +
+                (record.size() - 5) + " forwarded, map " + topology.nodeCount() + " nodes");
+
+        WifiP2pDnsSdServiceInfo newService = WifiP2pDnsSdServiceInfo.newInstance(
+                P2pConfig.NBR_SERVICE_NAME, P2pConfig.SERVICE_TYPE, record);
+        if (nbrServiceInfo != null) {
+            manager.removeLocalService(channel, nbrServiceInfo, tracked("removeLocalService", null));
+        }
+        manager.addLocalService(channel, newService, tracked("addLocalService", null));
+        nbrServiceInfo = newService;
+    }
+
+    private void handleNeighbourRecord(Map<String, String> record, WifiP2pDevice device) {
+        String senderId = record.get("id");
+        String sid = record.get("sid");
+        if (senderId == null) return;
+
+        DiscoveredDevice dd = getOrCreateDevice(device.deviceAddress, device);
+        if (!validateSessionId(senderId, sid, dd)) {
+            dd.lastSeen = System.currentTimeMillis();
+            return;
+        }
+        dd.deviceId = senderId;
+        dd.hasOurApp = true;
+        dd.lastSeen = System.currentTimeMillis();
+
+        long now = System.currentTimeMillis();
+        int updated = 0;
+        try {
+            String nv = record.get("nv");
+            if (nv != null && topology.update(senderId, Long.parseLong(nv), record.get("n"), now)) {
+                updated++;
+            }
+        } catch (NumberFormatException e) {}
+
+        for (Map.Entry<String, String> e : record.entrySet()) {
+            if (!e.getKey().startsWith("L.")) continue;
+            String node = e.getKey().substring(2);
+            int sep = e.getValue().indexOf(';');
+            if (node.equals(shortDeviceId) || sep <= 0) continue;
+            try {
+                long version = Long.parseLong(e.getValue().substring(0, sep));
+                if (topology.update(node, version, e.getValue().substring(sep + 1), now)) {
+                    updated++;
+                }
+            } catch (NumberFormatException ex) {}
+        }
+
+        if (updated > 0) {
+            log.d("Topology from " + senderId + ": " + updated + " lists updated, map " +
+                    topology.nodeCount() + " nodes / " + topology.edgeCount() + " edges");
+        }
+    }
+
+    /**
+     * Следующий узел к получателю, если он не наш сосед и маршрут известен
+     */
+    private String routeNextHop(String target) {
+        String key = peerKey(target);
+        String nh = topology.nextHop(key);
+        return nh != null && !nh.equals(key) ? nh : null;
+    }
+
+    // ==================== BROADCAST DELIVERY ====================
+
+    /**
+     * Начать отслеживание broadcast: ожидаемые получатели - пиры с нашим приложением онлайн
+     */
+    private void startBroadcastDelivery(PendingMessage pending) {
+        List<String> expected = new ArrayList<>();
+        for (DiscoveredDevice dd : deviceCache.values()) {
+            if (dd.hasOurApp && dd.deviceId != null && dd.isOnline()) {
+                expected.add(peerKey(dd.deviceId));
+            }
+        }
+        BroadcastDelivery bd = new BroadcastDelivery(pending.messageId, pending.message,
+                pending.sentAt, expected);
+        broadcastDeliveries.put(bd.messageId, bd);
+        trimBroadcastDeliveries(pending.sentAt);
+        onBroadcastPublished(bd, pending);
+        log.d("Broadcast " + bd.messageId + " expects " + expected.size() + " recipients");
+    }
+
+    private void trimBroadcastDeliveries(long now) {
+        Iterator<BroadcastDelivery> it = broadcastDeliveries.values().iterator();
+        while (it.hasNext()) {
+            BroadcastDelivery bd = it.next();
+            boolean tooMany = broadcastDeliveries.size() > P2pConfig.MAX_TRACKED_BROADCASTS;
+            if ((tooMany || now - bd.sentAt > P2pConfig.BROADCAST_RESEND_WINDOW)
+                    && !pendingMessages.containsKey(bd.messageId)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Broadcast опубликован (отправка или переотправка): история у получателей без ACK
+     * и срок BROADCAST_DEADLINE для этой публикации
+     */
+    private void onBroadcastPublished(BroadcastDelivery bd, PendingMessage pm) {
+        for (String id : bd.unacked()) {
+            DiscoveredDevice dd = findDeviceById(id);
+            if (dd != null && !dd.sentMessages.contains(bd.messageId)) {
+                dd.addSentMessage(bd.messageId, bd.message, pm.slotIndex);
+            }
+        }
+        updateBroadcastProgress(bd);
+        handler.postDelayed(() -> {
+            if (pendingMessages.get(bd.messageId) == pm) {
+                finishBroadcast(bd, pm, "deadline");
+            }
+        }, P2pConfig.BROADCAST_DEADLINE);
+    }
+
+    /**
+     * ACK broadcast от одного из получателей. Слот освобождается только
+     * по достижении BROADCAST_COVERAGE_TARGET (или по сроку)
+     */
+    private void onBroadcastAck(BroadcastDelivery bd, DiscoveredDevice sender, List<String> ackBatch) {
+        if (sender.deviceId == null || !bd.markAcked(peerKey(sender.deviceId))) {
+            return;
+        }
+        String msgId = bd.messageId;
+        long now = System.currentTimeMillis();
+        PendingMessage pm = pendingMessages.get(msgId);
+
+        log.success("ACK received for broadcast " + msgId + " from " + sender.getShortId() +
+                " (" + bd.ackedCount() + "/" + bd.recipientCount() + ")");
+        if (pm != null) {
+            sender.latency.recordAckRtt(pm.getAge());
+            recordRttSample(sender.deviceId, pm);
+        }
+        if (bd.ackedCount() == 1) {
+            ackLatency.record(now - bd.sentAt);
+            messageStore.markAcked(MessageStore.BROADCAST_PEER, msgId, now);
+        }
+        sender.markSentMessageAcked(msgId, ackBatch);
+        updateBroadcastProgress(bd);
+
+        if (pm != null && bd.isCoverageMet(P2pConfig.BROADCAST_COVERAGE_TARGET)) {
+            finishBroadcast(bd, pm, "coverage");
+        }
+
+        if (listener != null) {
+            handler.post(() -> listener.onAckReceived(sender, msgId));
+        }
+    }
+
+    private void finishBroadcast(BroadcastDelivery bd, PendingMessage pm, String reason) {
+        int k = bd.ackedCount();
+        int n = bd.recipientCount();
+        log.i("Broadcast " + bd.messageId + " slot done (" + reason + "): delivered to " + k + "/" + n);
+        tracer.end(Tracer.CAT_SEND, "message", bd.messageId, reason + " " + k + "/" + n);
+        if (n > 0) {
+            metrics.histogram(MetricsRegistry.BROADCAST_COVERAGE).record(100L * k / n);
+        }
+        resendScheduler.cancel(bd.messageId, System.currentTimeMillis());
+        pendingMessages.remove(bd.messageId);
+        releaseSlot(pm.slotIndex);
+    }
+
+    /**
+     * Пир появился онлайн: переотправить недавние broadcast, которые он не подтвердил
+     * (в том числе отправленные до его появления)
+     */
+    private void serveBroadcastsTo(DiscoveredDevice dd) {
+        String key = peerKey(dd.deviceId);
+        long now = System.currentTimeMillis();
+        for (BroadcastDelivery bd : broadcastDeliveries.values()) {
+            if (now - bd.sentAt > P2pConfig.BROADCAST_RESEND_WINDOW || bd.isAcked(key)) {
+                continue;
+            }
+            if (bd.addRecipient(key)) {
+                updateBroadcastProgress(bd);
+            }
+            if (pendingMessages.containsKey(bd.messageId)
+                    || now - bd.lastResendAt < P2pConfig.BROADCAST_RESEND_SPACING) {
+                continue;  // Ещё в слоте или недавно переотправлен
+            }
+            bd.lastResendAt = now;
+            log.i("Broadcast " + bd.messageId + " not acked by " + dd.getShortId() + ", scheduling resend");
+            scheduleResend(MessageStore.BROADCAST_PEER, bd.messageId, bd.message);
+        }
+    }
+
+    /**
+     * Обновить "доставлено k/n" в истории всех пиров, получивших broadcast
+     */
+    private void updateBroadcastProgress(BroadcastDelivery bd) {
+        for (DiscoveredDevice dd : deviceCache.values()) {
+            dd.setSentMessageDelivery(bd.messageId, bd.ackedCount(), bd.recipientCount());
+        }
+        requestSnapshotPublish();
+    }
+
+    // ==================== MESH RELAY ====================
+
+    /**
+     * Сообщение соседа для другого получателя: поставить в очередь ретрансляции.
+     * Дубликаты (уже услышанные от другого соседа) отсекаются processedMessageIds.
+     * Если отправитель знает маршрут, он называет ретранслятор в "nh" - остальные молчат;
+     * без "nh" сообщение ретранслируют все соседи (затопление).
+     */
+    private void offerRelay(String msgId, String origin, String targetId, String message,
+                            String hStr, String originTime, String senderId, boolean relayedCopy,
+                            String nextHop, MessagePriority priority) {
+        if (processedMessageIds.contains(msgId)) {
+            // Следующий узел ретранслировал сообщение - наша копия больше не нужна
+            if (relayedCopy && relayManager.onForwarded(msgId, senderId)) {
+                log.d("Relay " + msgId + " handed off to " + senderId);
+                releaseRelaySlot(msgId);
+            }
+            return;
+        }
+        if (nextHop != null && !nextHop.equals(shortDeviceId)) {
+            return;
+        }
+        markProcessed(msgId);
+
+        int hops = P2pConfig.RELAY_MAX_HOPS;
+        long now = System.currentTimeMillis();
+        long originTimeSec = now / 1000;
+        try {
+            if (hStr != null) hops = Integer.parseInt(hStr);
+            if (originTime != null) originTimeSec = Long.parseLong(originTime);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        if (relayManager.offer(msgId, origin, targetId, message, hops, originTimeSec, senderId,
+                priority, now)) {
+            log.i("Relay queued: " + msgId + " " + origin + "->" + targetId +
+                    " heard from " + senderId + " (backlog " + relayManager.backlog() + ")");
+            tracer.mark(Tracer.CAT_RECV, "relay.queued", msgId, "from=" + senderId + " h=" + hops);
+            scheduleRelayPump();
+        }
+    }
+
+    /**
+     * Broadcast в режиме relay (gossip). Первая копия: решение GossipPolicy и
+     * ретрансляция после случайной задержки. Следующие копии от других соседей
+     * считаются и могут отменить ретрансляцию (или снять её со слота).
+     */
+    private void gossipBroadcast(String msgId, String origin, String message, String hStr,
+                                 String originTime, String senderId, boolean firstCopy,
+                                 MessagePriority priority) {
+        if (!firstCopy) {
+            if (relayManager.onCopyHeard(msgId, senderId)) {
+                log.d("Gossip " + msgId + ": enough copies heard, relay cancelled");
+                tracer.mark(Tracer.CAT_RECV, "gossip.suppressed", msgId, "last=" + senderId);
+                releaseRelaySlot(msgId);
+            }
+            return;
+        }
+
+        int hops = P2pConfig.RELAY_MAX_HOPS;
+        long now = System.currentTimeMillis();
+        long originTimeSec = now / 1000;
+        try {
+            if (hStr != null) hops = Integer.parseInt(hStr);
+            if (originTime != null) originTimeSec = Long.parseLong(originTime);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        int neighbours = onlineNeighbourCount();
+        int copyLimit = gossipPolicy.copyLimit(neighbours);
+        long backoff = gossipPolicy.backoff();
+        if (relayManager.offerBroadcast(msgId, origin, message, hops, originTimeSec, senderId,
+                priority, now, backoff, copyLimit)) {
+            log.i("Gossip queued: " + msgId + " from " + origin + " heard from " + senderId +
+                    " (neighbours " + neighbours + ", backoff " + backoff + "ms, cancel at " +
+                    copyLimit + " copies)");
+            tracer.mark(Tracer.CAT_RECV, "gossip.queued", msgId, "from=" + senderId + " h=" + hops);
+            scheduleRelayPump();
+        }
+    }
+
+    private int onlineNeighbourCount() {
+        int n = 0;
+        for (DiscoveredDevice dd : deviceCache.values()) {
+            if (dd.hasOurApp && dd.isOnline()) n++;
+        }
+        return n;
+    }
+
+    private void scheduleRelayPump() {
+        handler.removeCallbacks(relayPumpRunnable);
+        if (isRunning && relayManager.backlog() > 0) {
+            handler.post(relayPumpRunnable);
+        }
+    }
+
+    /**
+     * Опубликовать ретрансляции, которые разрешены сейчас (выдержка, интервал, свободные слоты)
+     */
+    private void pumpRelays() {
+        if (!isRunning) return;
+        long now = System.currentTimeMillis();
+
+        RelayManager.Relay r;
+        while ((r = relayManager.poll(now, freeSlotCount(), relaySlotCount())) != null) {
+            registerRelaySlot(findFreeSlot(), r);
+        }
+
+        long next = relayManager.nextPollTime();
+        if (next > now) {
+            handler.postDelayed(relayPumpRunnable, next - now);
+        }
+    }
+
+    private int relaySlotCount() {
+        int n = 0;
+        for (SlotInfo slot : messageSlots.values()) {
+            if (slot.isRelay) n++;
+        }
+        return n;
+    }
+
+    /**
+     * Услышан ACK чужого сообщения. Если мы его ретранслировали - освободить слот
+     * и пересылать ACK назад (к предыдущему узлу пути) в своих записях.
+     */
+    private void onRelayAck(String msgId) {
+        RelayManager.Relay relay = relayManager.onAck(msgId, System.currentTimeMillis());
+        if (relay == null) return;
+
+        log.success("RELAY ACK " + msgId + " from " + relay.target + ", forwarding to " + relay.upstream);
+        tracer.mark(Tracer.CAT_SEND, "relay.acked", msgId, "upstream=" + relay.upstream);
+        releaseRelaySlot(msgId);
+    }
+
+    private void releaseRelaySlot(String msgId) {
+        for (SlotInfo slot : messageSlots.values()) {
+            if (slot.isRelay && msgId.equals(slot.messageId)) {
+                releaseSlot(slot.slotIndex);
+                return;
+            }
+        }
+    }
+
+    private DiscoveredDevice findDeviceById(String id) {
+        for (DiscoveredDevice dd : deviceCache.values()) {
+            if (dd.deviceId != null && dd.deviceId.startsWith(id)) {
+                return dd;
+            }
+        }
+        return null;
+    }
+
+    // ==================== FEC ====================
+
+    /**
+     * Длинное личное сообщение уходит фрагментами с избыточностью, а не обрезается
+     */
+    private static boolean usesFragments(String targetDeviceId, String text) {
+        return P2pConfig.FEC_ENABLED && targetDeviceId != null
+                && !MessageStore.BROADCAST_PEER.equals(targetDeviceId)
+                && text != null && text.length() > P2pConfig.MAX_MESSAGE_LENGTH;
+    }
+
+    /**
+     * Отправить длинное сообщение фрагментами. В истории, репозитории (SYNC) и у получателя
+     * оно одно - под своим ID; фрагменты живут только в слотах и очереди.
+     */
+    private String sendFragmented(String message, String targetDeviceId, MessagePriority priority) {
+        String text = truncateMessage(message, P2pConfig.MAX_FRAGMENTED_LENGTH);
+        int pendingCount = countPendingMessagesTo(targetDeviceId);
+        if (priority != MessagePriority.URGENT && pendingCount >= P2pConfig.MAX_UNACKED_PER_PEER) {
+            String error = "Лимит: " + P2pConfig.MAX_UNACKED_PER_PEER + " неподтверждённых сообщений";
+            log.w(error + " to " + targetDeviceId);
+            notifyError(error);
+            return null;
+        }
+
+        String msgId = shortDeviceId + "_" + sessionId + "_" + messageIdCounter.incrementAndGet();
+        if (!enqueueFragments(msgId, text, targetDeviceId, priority)) {
+            String error = "Нет свободных слотов для отправки";
+            log.w(error + " (queue " + sendQueue.size() + ")");
+            notifyError(error);
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        tracer.begin(Tracer.CAT_SEND, "message", msgId);
+
+        DeviceState state = stateRepository.getOrCreate(targetDeviceId);
+        state.addSentMessage(msgId, text);
+        stateRepository.save();
+        syncManager.reschedule(state);
+        messageStore.append(targetDeviceId, msgId, text, now, true);
+
+        for (DiscoveredDevice dd : deviceCache.values()) {
+            if (targetDeviceId.equals(dd.deviceId) ||
+                    (dd.deviceId != null && dd.deviceId.startsWith(targetDeviceId))) {
+                dd.addSentMessage(msgId, text, -1);
+                break;
+            }
+        }
+
+        if (priority == MessagePriority.URGENT) {
+            pumpSendQueue();
+        } else {
+            scheduleCoalescedPump();
+        }
+        requestSnapshotPublish();
+
+        if (listener != null) {
+            listener.onMessageSent(msgId, text, targetDeviceId);
+        }
+        return msgId;
+    }
+
+    /**
+     * Поставить в очередь фрагменты сообщения: k фрагментов данных и столько чётности,
+     * чтобы при доле потерь пира (LinkQuality) k из n дошли с вероятностью FEC_TARGET
+     * @return false если в очереди нет места для всех фрагментов или уже отправляется
+     *         MAX_FRAGMENTED_IN_FLIGHT сообщений фрагментами
+     */
+    private boolean enqueueFragments(String msgId, String text, String targetDeviceId, MessagePriority priority) {
+        if (fragmentedMessages.size() >= P2pConfig.MAX_FRAGMENTED_IN_FLIGHT) {
+            log.d("Fragmented send deferred: " + fragmentedMessages.size() + " in flight");
+            return false;
+        }
+        DiscoveredDevice dd = findDeviceById(peerKey(targetDeviceId));
+        double loss = Math.max(P2pConfig.FEC_MIN_LOSS, dd != null ? dd.link.lossRate() : 0);
+        int bytes = text.getBytes(StandardCharsets.UTF_8).length;
+        int k = Math.max(1, (bytes + P2pConfig.FRAGMENT_BYTES - 1) / P2pConfig.FRAGMENT_BYTES);
+        int parity = FragmentCodec.parityFor(k, loss, P2pConfig.FEC_TARGET, P2pConfig.FEC_MAX_PARITY);
+        if (P2pConfig.SEND_QUEUE_CAPACITY - sendQueue.size() < k + parity) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        SendWindow window = sendWindowFor(targetDeviceId);
+        for (FragmentCodec.Fragment f : FragmentCodec.encode(msgId, text, P2pConfig.FRAGMENT_BYTES, parity)) {
+            if (window.seqOf(f.id) < 0) {
+                window.assign(f.id);
+            }
+            enqueueOutgoing(new SendQueue.Entry(f.id, f.payload, targetDeviceId, priority, now));
+        }
+        PendingMessage whole = new PendingMessage(msgId, text, targetDeviceId, -1);
+        whole.priority = priority;
+        fragmentedMessages.put(msgId, whole);
+
+        for (int i = 0; i < k + parity; i++) {
+            metrics.counter(MetricsRegistry.FEC_FRAGMENTS, "kind", i < k ? "data" : "parity").inc();
+        }
+        log.i("FRAGMENTED " + msgId + " to " + targetDeviceId + ": " + k + " data + " + parity +
+                " parity (loss " + Math.round(loss * 100) + "%)");
+        return true;
+    }
+
+    /**
+     * Получатель собрал сообщение: снять оставшиеся фрагменты из слотов и очереди
+     */
+    private void onFragmentedMessageAcked(PendingMessage whole, DiscoveredDevice sender, List<String> ackBatch) {
+        String msgId = whole.messageId;
+        processedAcks.add(msgId);
+        int dropped = 0;
+        for (SendQueue.Entry e : sendQueue.entriesTo(whole.targetDeviceId)) {
+            if (msgId.equals(FragmentCodec.baseId(e.msgId))) {
+                sendQueue.remove(e.msgId);
+                forgetSendSeq(whole.targetDeviceId, e.msgId);
+                dropped++;
+            }
+        }
+        for (PendingMessage pm : new ArrayList<>(pendingMessages.values())) {
+            if (FragmentCodec.isFragment(pm.messageId) && msgId.equals(FragmentCodec.baseId(pm.messageId))) {
+                releaseFragment(pm);
+                dropped++;
+            }
+        }
+
+        DiscoveredDevice acker = findDeviceById(peerKey(whole.targetDeviceId));
+        if (acker == null) acker = sender;
+        log.success("ACK received for " + msgId + " (fragmented) from " + sender.getShortId() +
+                (dropped > 0 ? ", " + dropped + " fragments no longer needed" : ""));
+        ackLatency.record(whole.getAge());
+        tracer.end(Tracer.CAT_SEND, "message", msgId, "ack from " + sender.getShortId());
+        storeAck(whole);
+        acker.markSentMessageAcked(msgId, ackBatch);
+        if (acker.deviceId != null) {
+            DeviceState state = stateRepository.get(acker.deviceId);
+            if (state != null) {
+                state.markAcked(msgId);
+                stateRepository.save();
+            }
+        }
+
+        if (listener != null) {
+            DiscoveredDevice finalAcker = acker;
+            handler.post(() -> listener.onAckReceived(finalAcker, msgId));
+        }
+    }
+
+    /**
+     * Фрагмент подтверждён: освободить его место в записи (сообщение подтвердит ACK целиком)
+     */
+    private void releaseFragment(PendingMessage pm) {
+        forgetSendSeq(pm.targetDeviceId, pm.messageId);
+        releaseAckedMessage(pm);
+    }
+
+    // ==================== MAILBOXES ====================
+
+    private static boolean usesMailbox(String targetDeviceId) {
+        return P2pConfig.MAILBOX_MODE && targetDeviceId != null;
+    }
+
+    /**
+     * Фрагменты FEC идут в нумерованных слотах по одному, даже в режиме ящиков
+     */
+    private static boolean viaMailbox(SendQueue.Entry e) {
+        return usesMailbox(e.target) && !FragmentCodec.isFragment(e.msgId);
+    }
+
+    private static boolean isMailboxIndex(int slotIndex) {
+        return slotIndex >= P2pConfig.MAX_MSG_SLOTS;
+    }
+
+    /**
+     * Индекс слота ящика получателя или -1
+     */
+    private int findMailbox(String targetDeviceId) {
+        String key = peerKey(targetDeviceId);
+        for (int i = P2pConfig.MAX_MSG_SLOTS; i < P2pConfig.MAX_MSG_SLOTS + P2pConfig.MAX_MAILBOXES; i++) {
+            SlotInfo slot = messageSlots.get(i);
+            if (slot != null && slot.targetDeviceId != null && key.equals(peerKey(slot.targetDeviceId))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Ящик для сообщения получателю: его собственный (если в нём есть место), свободный
+     * или ящик получателя, дольше всех без активности (не меньше MAILBOX_IDLE)
+     * @param evict отдать ящик простаивающего получателя; false - только проверить
+     * @return индекс слота ящика или -1
+     */
+    private int acquireMailbox(String targetDeviceId, boolean evict) {
+        int own = findMailbox(targetDeviceId);
+        if (own >= 0) {
+            return pendingInSlot(messageSlots.get(own)).size() < P2pConfig.MAX_MSGS_PER_SLOT ? own : -1;
+        }
+        String[] owners = new String[P2pConfig.MAX_MAILBOXES];
+        long[] publishedAt = new long[P2pConfig.MAX_MAILBOXES];
+        for (int box = 0; box < P2pConfig.MAX_MAILBOXES; box++) {
+            SlotInfo slot = messageSlots.get(P2pConfig.MAX_MSG_SLOTS + box);
+            if (slot == null) continue;
+            owners[box] = peerKey(slot.targetDeviceId);
+            publishedAt[box] = slot.createdAt;
+        }
+        int box = mailboxPolicy.pick(owners, publishedAt, System.currentTimeMillis());
+        if (box < 0) return -1;
+        int slotIndex = P2pConfig.MAX_MSG_SLOTS + box;
+        if (evict && owners[box] != null) {
+            log.w("Mailbox " + box + " of idle " + owners[box] + " given to " + peerKey(targetDeviceId) + ", " +
+                    pendingInSlot(messageSlots.get(slotIndex)).size() + " messages left to SYNC");
+            metrics.counter(MetricsRegistry.MAILBOX_EVICTED).inc();
+            releaseSlot(slotIndex);
+        }
+        return slotIndex;
+    }
+
+    private void touchMailbox(String targetDeviceId) {
+        if (targetDeviceId != null) {
+            mailboxPolicy.touch(peerKey(targetDeviceId), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Переписать ящик получателя на месте: неподтверждённые сообщения и ждущие в очереди
+     * (до MAX_MSGS_PER_SLOT, в пределах SLOT_PACK_BUDGET). Пустой ящик снимается.
+     */
+    private void updateMailbox(int box, String targetDeviceId) {
+        List<PendingMessage> pending = pendingInSlot(messageSlots.get(box));
+        int budget = P2pConfig.SLOT_PACK_BUDGET;
+        for (int k = 1; k < pending.size(); k++) {
+            PendingMessage pm = pending.get(k);
+            budget -= packedEntrySize(pm.messageId, pm.message, pm.priority, k);
+        }
+        int added = 0;
+        for (SendQueue.Entry e : sendQueue.takePack(targetDeviceId, pending.size(),
+                P2pConfig.MAX_MSGS_PER_SLOT, budget, this::packedEntrySize)) {
+            PendingMessage pm = new PendingMessage(e.msgId, e.text, e.target, box);
+            pm.priority = e.priority;
+            pm.createdAt = e.createdAt;
+            metrics.histogram(MetricsRegistry.SEND_QUEUE_DELAY, "priority", e.priority.label)
+                    .record(pm.sentAt - e.createdAt);
+            pending.add(pm);
+            added++;
+        }
+        if (pending.isEmpty()) {
+            releaseSlot(box);
+            return;
+        }
+        if (added > 0) {
+            touchMailbox(targetDeviceId);
+        }
+        log.i("MAILBOX " + (box - P2pConfig.MAX_MSG_SLOTS) + " -> " + peerKey(targetDeviceId) + ": " +
+                pending.size() + " unacked" + (added > 0 ? ", +" + added + " new" : ""));
+        metrics.counter(MetricsRegistry.MAILBOX_UPDATES).inc();
+        rewriteSlot(box, pending);
+    }
+
+    private void scheduleMailboxUpdate(int box) {
+        if (dirtyMailboxes.add(box) && dirtyMailboxes.size() == 1) {
+            handler.post(mailboxUpdateRunnable);
+        }
+    }
+
+    /**
+     * Несколько ACK из одной записи - одна перезапись ящика
+     */
+    private void flushMailboxUpdates() {
+        if (!isRunning) return;
+        List<Integer> boxes = new ArrayList<>(dirtyMailboxes);
+        dirtyMailboxes.clear();
+        for (int box : boxes) {
+            SlotInfo slot = messageSlots.get(box);
+            if (slot != null && slot.isMailbox) {
+                updateMailbox(box, slot.targetDeviceId);
+            }
+        }
+    }
+
+    // ==================== SESSION RESUME ====================
+
+    /**
+     * Получатель перезапустился: запомнить неподтверждённые ему сообщения до очистки истории.
+     * Что с ними делать, решит его первый heartbeat новой сессии (границы "rs").
+     */
+    private void captureResume(DeviceState state, String newSessionId) {
+        String key = peerKey(state.deviceId);
+        SessionResume resume = SessionResume.capture(state, shortDeviceId + "_" + sessionId + "_",
+                newSessionId, System.currentTimeMillis(), sessionResumes.get(key));
+        if (resume.size() > 0) {
+            sessionResumes.put(key, resume);
+            log.i("Resume pending for " + key + ": " + resume.size() + " unacked");
+        }
+    }
+
+    /**
+     * Первый heartbeat перезапущенного получателя: сообщения выше его границы приёма
+     * переотправляются сразу, остальные проверяет немедленный SYNC.
+     * Номера "q" выдаются заново - окно приёма новой сессии начинается с 1.
+     */
+    private void resumeSession(DeviceState state, String rs) {
+        String key = peerKey(state.deviceId);
+        SessionResume resume = sessionResumes.get(key);
+        if (resume == null || !resume.sessionId.equals(state.lastSessionId)) return;
+        sessionResumes.remove(key);
+
+        long mark = SessionResume.parse(rs, shortDeviceId, sessionId);
+        SessionResume.Plan plan = resume.split(mark);
+        log.i("SESSION RESUME " + key + ": mark=" + mark + " retarget=" + plan.retarget.size() +
+                " verify=" + plan.verify.size());
+        metrics.counter(MetricsRegistry.SESSION_RESUMES).inc();
+        metrics.counter(MetricsRegistry.RESUME_RETARGETED).add(plan.retarget.size());
+
+        SendWindow old = sendWindows.remove(key);
+        if (old != null) {
+            for (String id : old.unackedIds()) {
+                if (pendingMessages.containsKey(id) || sendQueue.contains(id)) {
+                    sendWindowFor(state.deviceId).assign(id);
+                }
+            }
+        }
+        // Таймауты без ACK копились, пока получателя не было
+        rttFor(state.deviceId).resetBackoff();
+
+        // В историю новой сессии: SYNC продолжит следить за ними
+        for (DeviceState.MessageRecord m : resume.records()) {
+            state.addSentMessage(m.msgId, m.text);
+        }
+        for (DeviceState.MessageRecord m : plan.retarget) {
+            resumedMessages.put(m.msgId, resume.detectedAt);
+            if (!pendingMessages.containsKey(m.msgId) && !sendQueue.contains(m.msgId)
+                    && !fragmentedMessages.containsKey(m.msgId)) {
+                scheduleResend(state.deviceId, m.msgId, m.text);
+            }
+        }
+
+        // Опубликованное получателю - свежими записями с новыми номерами
+        for (SlotInfo slot : new ArrayList<>(messageSlots.values())) {
+            if (slot.isRelay || slot.targetDeviceId == null || !key.equals(peerKey(slot.targetDeviceId))) continue;
+            if (slot.isMailbox) {
+                scheduleMailboxUpdate(slot.slotIndex);
+            } else {
+                republishSlot(slot);
+            }
+        }
+
+        stateRepository.save();
+        if (!plan.verify.isEmpty()) {
+            syncManager.onDeviceBecameOnline(state.deviceId);
+        }
+    }
+
+    // ==================== GAP REPAIR ====================
+
+    private static String peerKey(String deviceId) {
+        return deviceId.length() > 8 ? deviceId.substring(0, 8) : deviceId;
+    }
+
+    private SendWindow sendWindowFor(String targetDeviceId) {
+        String key = peerKey(targetDeviceId);
+        SendWindow window = sendWindows.get(key);
+        if (window == null) {
+            window = new SendWindow();
+            sendWindows.put(key, window);
+        }
+        return window;
+    }
+
+    private void forgetSendSeq(String targetDeviceId, String msgId) {
+        if (targetDeviceId == null) return;
+        SendWindow window = sendWindows.get(peerKey(targetDeviceId));
+        if (window != null) {
+            window.remove(msgId);
+        }
+    }
+
+    /**
+     * Отметить номер "q" сообщения от отправителя.
+     * При появлении или закрытии пропуска - внеочередной heartbeat с отчётом,
+     * чтобы отправитель переотправил пропущенное, не дожидаясь SYNC.
+     */
+    private void trackReceivedSeq(String senderId, String sid, String qStr) {
+        long q;
+        try {
+            q = Long.parseLong(qStr);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        ReceiveWindow window = receiveWindows.get(senderId);
+        if (window == null || !sid.equals(window.sessionId)) {
+            window = idleReceiveWindows.remove(senderId);
+            if (window == null || !sid.equals(window.sessionId)) {
+                window = new ReceiveWindow(sid);
+            }
+            receiveWindows.put(senderId, window);
+        }
+
+        long gapOpenedAt = window.gapOpenedAt();
+        if (!window.onReceived(q, now)) return;
+
+        if (gapOpenedAt == 0 && window.hasGaps()) {
+            log.w("GAP from " + senderId + ": missing " + window.missingCount() + " before q=" + q);
+            scheduleRxReport();
+        } else if (gapOpenedAt > 0 && !window.hasGaps()) {
+            log.success("GAP from " + senderId + " closed in " + (now - gapOpenedAt) + "ms");
+            metrics.histogram(MetricsRegistry.GAP_RECOVERY, "peer", senderId).record(now - gapOpenedAt);
+            scheduleRxReport();
+        }
+    }
+
+    private void scheduleRxReport() {
+        if (rxReportPending || !isRunning) return;
+        rxReportPending = true;
+        handler.postDelayed(rxReportRunnable, P2pConfig.RX_REPORT_DELAY);
+    }
+
+    /**
+     * Отчёт о приёме для heartbeat: окна с пропусками первыми, затем недавно изменённые
+     */
+    private String buildRxReport() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, ReceiveWindow>> windows = new ArrayList<>();
+
+        Iterator<Map.Entry<String, ReceiveWindow>> it = receiveWindows.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ReceiveWindow> entry = it.next();
+            if (now - entry.getValue().updatedAt() > P2pConfig.RX_REPORT_TTL) {
+                idleReceiveWindows.put(entry.getKey(), entry.getValue());
+                it.remove();
+            } else {
+                windows.add(entry);
+            }
+        }
+
+        Collections.sort(windows, (a, b) -> {
+            boolean gapA = a.getValue().hasGaps();
+            boolean gapB = b.getValue().hasGaps();
+            if (gapA != gapB) return gapA ? -1 : 1;
+            return Long.compare(b.getValue().updatedAt(), a.getValue().updatedAt());
+        });
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ReceiveWindow> entry : windows) {
+            String encoded = entry.getValue().encode(entry.getKey());
+            if (sb.length() + encoded.length() + 1 > P2pConfig.MAX_RX_REPORT_LENGTH) continue;
+            if (sb.length() > 0) sb.append(",");
+            sb.append(encoded);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Отчёт пира о приёме наших сообщений: полученные номера - неявный ACK,
+     * пропуски - немедленная переотправка, потерянный хвост - переотправка
+     * после освобождения слота
+     */
+    private void processRxReport(String rx, DiscoveredDevice dd, DeviceState state) {
+        ReceiveWindow report = ReceiveWindow.parse(rx, shortDeviceId);
+        if (report == null || !sessionId.equals(report.sessionId)) return;
+
+        long now = System.currentTimeMillis();
+        state.gapReportTime = now;
+
+        SendWindow window = sendWindows.get(peerKey(state.deviceId));
+        if (window == null) return;
+
+        SendWindow.Repair repair = window.apply(report, now, P2pConfig.GAP_REPAIR_GUARD);
+        if (repair.isEmpty()) return;
+
+        for (String msgId : repair.delivered) {
+            processAckFromSync(msgId, dd);
+        }
+        for (String msgId : repair.gaps) {
+            repairMessage(state, window, msgId, "gap", now);
+        }
+        for (String msgId : repair.tail) {
+            // Пока сообщение в слоте, пир может его ещё не увидеть
+            if (!pendingMessages.containsKey(msgId)) {
+                repairMessage(state, window, msgId, "tail", now);
+            }
+        }
+    }
+
+    /**
+     * Переотправить пропущенное сообщение.
+     * Если оно ещё опубликовано - слот перерегистрируется, чтобы пир получил свежую запись;
+     * иначе сообщение ставится в очередь переотправок.
+     */
+    private void repairMessage(DeviceState state, SendWindow window, String msgId, String kind, long now) {
+        DeviceState.MessageRecord record = state.findSentMessage(msgId);
+        if (record == null) {
+            // Вытеснено из истории - восстановить нечем
+            window.remove(msgId);
+            return;
+        }
+
+        log.i("GAP REPAIR (" + kind + ") " + msgId + " to " + state.deviceId);
+        tracer.mark(Tracer.CAT_SEND, "gap.repair", msgId, kind);
+        metrics.counter(MetricsRegistry.GAP_REPAIRS, "kind", kind).inc();
+        window.markRepaired(msgId, now);
+
+        PendingMessage pm = pendingMessages.get(msgId);
+        if (pm == null) {
+            scheduleResend(state.deviceId, msgId, record.text);
+            return;
+        }
+
+        SlotInfo slot = messageSlots.get(pm.slotIndex);
+        if (slot == null) {
+            pendingMessages.remove(msgId);
+            scheduleResend(state.deviceId, msgId, record.text);
+            return;
+        }
+        republishSlot(slot);
+    }
+
+    // ==================== MESSAGE SLOTS ====================
+
+    private int findFreeSlot() {
+        for (int i = 0; i < P2pConfig.MAX_MSG_SLOTS; i++) {
+            if (!messageSlots.containsKey(i)) return i;
+        }
+        return -1;
+    }
+
+    private void releaseSlot(int slotIndex) {
+        SlotInfo slot = messageSlots.remove(slotIndex);
+        if (slot != null && slot.serviceInfo != null && slot.isRegistered) {
+            manager.removeLocalService(channel, slot.serviceInfo, tracked("removeLocalService", null));
+            log.d("Slot " + slotIndex + " released: " + slot.messageId);
+            tracer.mark(Tracer.CAT_SEND, "slot.released", slot.messageId, "slot=" + slotIndex);
+        }
+        if (slot != null) {
+            for (String msgId : slot.messageIds) {
+                PendingMessage pm = pendingMessages.get(msgId);
+                if (pm != null && pm.slotIndex == slotIndex) {
+                    pendingMessages.remove(msgId);
+                }
+            }
+        }
+        if (slot != null) {
+            scheduleSendQueuePump();
+            schedulePump();
+            scheduleRelayPump();
+        }
+    }
+
+    private void registerMessageSlot(int slotIndex, String msgId, String message, String targetDeviceId,
+                                     MessagePriority priority) {
+        registerMessageSlot(slotIndex, Collections.singletonList(
+                new SendQueue.Entry(msgId, message, targetDeviceId, priority, System.currentTimeMillis())));
+    }
+
+    /**
+     * Запись слота с сообщениями одному получателю: первое - в обычных полях,
+     * остальные - mid1/msg1/q1/p1, mid2/... Каждое подтверждается своим ACK.
+     */
+    private void registerMessageSlot(int slotIndex, List<SendQueue.Entry> entries) {
+        if (messageSlots.containsKey(slotIndex)) releaseSlot(slotIndex);
+
+        SendQueue.Entry head = entries.get(0);
+        String msgId = head.msgId;
+        String message = head.text;
+        String targetDeviceId = head.target;
+        MessagePriority priority = head.priority;
+
+        Map<String, String> record = new HashMap<>();
+        record.put("id", shortDeviceId);
+        record.put("mid", msgId);
+        record.put("msg", truncateMessage(message, P2pConfig.MAX_MESSAGE_LENGTH));
+        record.put("s", String.valueOf(slotIndex));
+        record.put("t", String.valueOf(System.currentTimeMillis() / 1000));
+        record.put("sid", sessionId);
+
+        if (targetDeviceId != null) {
+            record.put("to", peerKey(targetDeviceId));
+            String nh = routeNextHop(targetDeviceId);
+            if (nh != null) {
+                record.put("nh", nh);
+            }
+            SendWindow window = sendWindows.get(peerKey(targetDeviceId));
+            long q = window != null ? window.seqOf(msgId) : -1;
+            if (q > 0) {
+                record.put("q", String.valueOf(q));
+            }
+        }
+        if (priority.code() != null) {
+            record.put("p", priority.code());
+        }
+
+        SendWindow window = targetDeviceId != null ? sendWindows.get(peerKey(targetDeviceId)) : null;
+        for (int k = 1; k < entries.size(); k++) {
+            SendQueue.Entry e = entries.get(k);
+            record.put("mid" + k, e.msgId);
+            record.put("msg" + k, truncateMessage(e.text, P2pConfig.MAX_MESSAGE_LENGTH));
+            long qk = window != null ? window.seqOf(e.msgId) : -1;
+            if (qk > 0) {
+                record.put("q" + k, String.valueOf(qk));
+            }
+            if (e.priority.code() != null) {
+                record.put("p" + k, e.priority.code());
+            }
+        }
+
+        String acks = buildAckString();
+        if (!acks.isEmpty()) {
+            record.put("ack", acks);
         }
-        if (slot != null && slot.messageId != null) {
-            pendingMessages.remove(slot.messageId);
+
+        long timeout = targetDeviceId != null ? rttFor(targetDeviceId).rto() : P2pConfig.SLOT_TIMEOUT;
+        SlotInfo slot = publishSlot(slotIndex, msgId, targetDeviceId, record, timeout);
+        for (int k = 1; k < entries.size(); k++) {
+            slot.messageIds.add(entries.get(k).msgId);
         }
+        metrics.histogram(MetricsRegistry.MSGS_PER_REGISTRATION).record(entries.size());
     }
 
-    private void registerMessageSlot(int slotIndex, String msgId, String message, String targetDeviceId) {
+    /**
+     * Опубликовать ретрансляцию чужого сообщения в слоте
+     */
+    private void registerRelaySlot(int slotIndex, RelayManager.Relay relay) {
         if (messageSlots.containsKey(slotIndex)) releaseSlot(slotIndex);
 
         Map<String, String> record = new HashMap<>();
         record.put("id", shortDeviceId);
-        record.put("mid", msgId);
-        record.put("msg", truncateMessage(message, P2pConfig.MAX_MESSAGE_LENGTH));
+        record.put("mid", relay.msgId);
+        record.put("msg", truncateMessage(relay.text, P2pConfig.MAX_MESSAGE_LENGTH));
         record.put("s", String.valueOf(slotIndex));
         record.put("t", String.valueOf(System.currentTimeMillis() / 1000));
         record.put("sid", sessionId);
-
-        if (targetDeviceId != null) {
-            record.put("to", targetDeviceId.length() > 8 ? targetDeviceId.substring(0, 8) : targetDeviceId);
+        if (!relay.isBroadcast()) {
+            record.put("to", relay.target);
+            String nh = routeNextHop(relay.target);
+            if (nh != null) {
+                record.put("nh", nh);
+            }
+        }
+        record.put("o", relay.origin);
+        record.put("h", String.valueOf(relay.hops));
+        record.put("ot", String.valueOf(relay.originTimeSec));
+        if (relay.priority.code() != null) {
+            record.put("p", relay.priority.code());
         }
 
         String acks = buildAckString();
@@ -1143,52 +2873,235 @@ public class FastDiscoveryManager {
             record.put("ack", acks);
         }
 
-        String serviceName = P2pConfig.MSG_SLOT_PREFIX + slotIndex;
+        log.i("RELAYING " + relay.msgId + " " + relay.origin + "->" +
+                (relay.isBroadcast() ? "*" : relay.target) +
+                " via slot " + slotIndex + " h=" + relay.hops);
+        tracer.mark(Tracer.CAT_SEND, "relay", relay.msgId, "slot=" + slotIndex + " h=" + relay.hops);
+        publishSlot(slotIndex, relay.msgId, relay.target, record, P2pConfig.SLOT_TIMEOUT).isRelay = true;
+    }
+
+    private SlotInfo publishSlot(int slotIndex, String msgId, String targetDeviceId, Map<String, String> record,
+                                 long timeoutMs) {
+        boolean mailbox = isMailboxIndex(slotIndex);
+        String serviceName = mailbox ? P2pConfig.MAILBOX_PREFIX + (slotIndex - P2pConfig.MAX_MSG_SLOTS)
+                : P2pConfig.MSG_SLOT_PREFIX + slotIndex;
         WifiP2pDnsSdServiceInfo slotService = WifiP2pDnsSdServiceInfo.newInstance(
                 serviceName, P2pConfig.SERVICE_TYPE, record);
 
         SlotInfo slot = new SlotInfo(slotIndex);
         slot.serviceInfo = slotService;
         slot.messageId = msgId;
+        slot.messageIds.add(msgId);
         slot.targetDeviceId = targetDeviceId;
+        slot.isMailbox = mailbox;
 
         messageSlots.put(slotIndex, slot);
+        tracer.begin(Tracer.CAT_SEND, "slot.register", msgId);
 
-        manager.addLocalService(channel, slotService, new WifiP2pManager.ActionListener() {
+        manager.addLocalService(channel, slotService, tracked("addLocalService", new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
                 slot.isRegistered = true;
                 log.success("Message slot " + slotIndex + " registered: " + msgId);
-                manager.discoverServices(channel, null);
+                tracer.end(Tracer.CAT_SEND, "slot.register", msgId, "slot=" + slotIndex);
+                manager.discoverServices(channel, tracked("discoverServices", null));
             }
             @Override
             public void onFailure(int r) {
                 log.error("Failed to register slot " + slotIndex);
+                tracer.end(Tracer.CAT_SEND, "slot.register", msgId, "failed: " + reasonToString(r));
             }
-        });
+        }));
 
-        handler.postDelayed(() -> {
-            SlotInfo current = messageSlots.get(slotIndex);
-            if (current != null && msgId.equals(current.messageId)) {
-                boolean acked = false;
-                for (DiscoveredDevice dd : deviceCache.values()) {
-                    for (DiscoveredDevice.SentMessage sm : dd.sentMessages) {
-                        if (sm.messageId.equals(msgId) && sm.acknowledged) {
-                            acked = true;
-                            break;
-                        }
-                    }
-                    if (acked) break;
-                }
+        handler.postDelayed(() -> onSlotTimeout(slot), timeoutMs);
+        return slot;
+    }
 
-                if (acked) {
-                    releaseSlot(slotIndex);
-                } else {
-                    log.w("Slot " + slotIndex + " extended - no ACK for " + msgId);
-                    handler.postDelayed(() -> releaseSlot(slotIndex), P2pConfig.SLOT_TIMEOUT);
-                }
+    // ==================== RETRANSMISSION TIMEOUT ====================
+
+    private RttEstimator rttFor(String deviceId) {
+        String key = peerKey(deviceId);
+        RttEstimator rtt = rttEstimators.get(key);
+        if (rtt == null) {
+            rtt = new RttEstimator(P2pConfig.RTO_INITIAL, P2pConfig.RTO_MIN, P2pConfig.RTO_MAX);
+            rttEstimators.put(key, rtt);
+        }
+        return rtt;
+    }
+
+    /**
+     * Выборка RTT по ACK своего сообщения. Переотправки и перерегистрированные слоты
+     * не учитываются (алгоритм Карна): неизвестно, на какую публикацию пришёл ACK
+     */
+    private void recordRttSample(String peerId, PendingMessage pm) {
+        if (peerId == null || pm.isResend || pm.retransmits > 0) return;
+        RttEstimator rtt = rttFor(peerId);
+        rtt.onSample(pm.getAge());
+        metrics.histogram(MetricsRegistry.RTO, "peer", peerKey(peerId)).record(rtt.rto());
+    }
+
+    /**
+     * Пир пропал: оффлайн по порогу или его обычный интервал обнаружения давно прошёл
+     */
+    private boolean isPeerOffline(String deviceId) {
+        DiscoveredDevice dd = findDeviceById(peerKey(deviceId));
+        if (dd == null) return false;
+        if (!dd.isOnline()) return true;
+        return dd.link.lastRecordAt() > 0
+                && dd.link.freshness(System.currentTimeMillis()) < P2pConfig.LINK_GONE_FRESHNESS;
+    }
+
+    private boolean isSentMessageAcked(String msgId) {
+        for (DiscoveredDevice dd : deviceCache.values()) {
+            DiscoveredDevice.SentMessage sm = dd.sentMessages.get(msgId);
+            if (sm != null && sm.acknowledged) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Истёк таймаут слота. Своё сообщение без ACK перерегистрируется (свежая запись
+     * для пира) с удвоенным RTO получателя, пока укладывается в SLOT_MAX_HOLD;
+     * затем слот освобождается и сообщение доставит SYNC. Пир оффлайн - слот сразу.
+     */
+    private void onSlotTimeout(SlotInfo slot) {
+        int slotIndex = slot.slotIndex;
+        if (messageSlots.get(slotIndex) != slot) {
+            return;  // Слот освобождён или перерегистрирован - у новой записи свой таймер
+        }
+        String msgId = slot.messageId;
+        if (!slot.isRelay && broadcastDeliveries.containsKey(msgId)) {
+            return;  // Broadcast держит слот до покрытия или BROADCAST_DEADLINE
+        }
+        if (slot.isRelay || isSlotAcked(slot)) {
+            releaseSlot(slotIndex);
+            return;
+        }
+
+        String target = slot.targetDeviceId;
+        if (target != null && isPeerOffline(target)) {
+            releaseOfflineSlot(slot);
+            return;
+        }
+
+        List<PendingMessage> pending = pendingInSlot(slot);
+        PendingMessage pm = pending.isEmpty() ? null : pending.get(0);
+        long held = System.currentTimeMillis() - (pm != null ? pm.sentAt : slot.createdAt);
+        long remaining = P2pConfig.SLOT_MAX_HOLD - held;
+        if (remaining <= 0) {
+            log.w("Slot " + slotIndex + " released - no ACK for " + msgId + " in " + (held / 1000) + "s");
+            releaseSlot(slotIndex);
+            return;
+        }
+
+        long rto = target != null ? rttFor(target).onTimeout() : remaining;
+        if (pm == null || target == null || rto > remaining) {
+            // Повторная публикация не успеет - просто ждём остаток
+            log.w("Slot " + slotIndex + " extended " + (remaining / 1000) + "s - no ACK for " + msgId);
+            handler.postDelayed(() -> onSlotTimeout(slot), remaining);
+            return;
+        }
+
+        log.w("RTO " + msgId + " to " + peerKey(target) + ": republishing slot " + slotIndex +
+                ", next timeout " + (rto / 1000) + "s");
+        tracer.mark(Tracer.CAT_SEND, "rto", msgId, "slot=" + slotIndex + " rto=" + rto);
+        metrics.counter(MetricsRegistry.SLOT_RETRANSMITS, "peer", peerKey(target)).inc();
+        republishSlot(slot);
+    }
+
+    /**
+     * Перерегистрировать слот с его сообщениями, ещё ждущими ACK (свежая запись для пира).
+     * ACK на них уже не даёт выборку RTT.
+     */
+    private void republishSlot(SlotInfo slot) {
+        List<PendingMessage> pending = pendingInSlot(slot);
+        if (pending.isEmpty()) {
+            releaseSlot(slot.slotIndex);
+            return;
+        }
+        for (PendingMessage pm : pending) {
+            pm.retransmits++;
+        }
+        rewriteSlot(slot.slotIndex, pending);
+    }
+
+    /**
+     * Опубликовать запись слота заново с заданными сообщениями (их PendingMessage сохраняются)
+     */
+    private void rewriteSlot(int slotIndex, List<PendingMessage> pending) {
+        SlotInfo old = messageSlots.get(slotIndex);
+        boolean isResend = old != null && old.isResend;
+        List<SendQueue.Entry> entries = new ArrayList<>();
+        for (PendingMessage pm : pending) {
+            entries.add(new SendQueue.Entry(pm.messageId, pm.message, pm.targetDeviceId, pm.priority, pm.createdAt));
+        }
+        registerMessageSlot(slotIndex, entries);
+        messageSlots.get(slotIndex).isResend = isResend;
+        for (PendingMessage pm : pending) {
+            pendingMessages.put(pm.messageId, pm);
+        }
+    }
+
+    /**
+     * Свои сообщения записи слота, ещё ждущие ACK (в порядке упаковки)
+     */
+    private List<PendingMessage> pendingInSlot(SlotInfo slot) {
+        List<PendingMessage> result = new ArrayList<>();
+        if (slot == null) return result;
+        for (String id : slot.messageIds) {
+            PendingMessage pm = pendingMessages.get(id);
+            if (pm != null && pm.slotIndex == slot.slotIndex) result.add(pm);
+        }
+        return result;
+    }
+
+    private boolean isSlotAcked(SlotInfo slot) {
+        for (String id : slot.messageIds) {
+            if (!isSentMessageAcked(id)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Сообщение подтверждено: слот освобождается, когда в его записи
+     * не осталось неподтверждённых сообщений
+     */
+    private void releaseAckedMessage(PendingMessage pm) {
+        pendingMessages.remove(pm.messageId);
+        SlotInfo slot = messageSlots.get(pm.slotIndex);
+        if (slot != null && slot.isMailbox) {
+            // Ящик переписывается на месте: без подтверждённого, с ждущими в очереди
+            touchMailbox(slot.targetDeviceId);
+            scheduleMailboxUpdate(pm.slotIndex);
+            return;
+        }
+        if (slot == null || pendingInSlot(slot).isEmpty()) {
+            releaseSlot(pm.slotIndex);
+        } else {
+            log.d("Slot " + pm.slotIndex + " kept: " + pendingInSlot(slot).size() + " packed messages unacked");
+        }
+    }
+
+    private void releaseOfflineSlot(SlotInfo slot) {
+        log.w("Slot " + slot.slotIndex + " released early - " + peerKey(slot.targetDeviceId) +
+                " offline, " + slot.messageId + " left to SYNC");
+        metrics.counter(MetricsRegistry.SLOT_EARLY_RELEASE).inc();
+        releaseSlot(slot.slotIndex);
+    }
+
+    /**
+     * Освободить слоты своих сообщений пирам, ушедшим оффлайн:
+     * ACK от них не придёт, а слоты нужны остальным
+     */
+    private void releaseOfflineSlots() {
+        for (SlotInfo slot : new ArrayList<>(messageSlots.values())) {
+            if (slot.isRelay || slot.targetDeviceId == null) continue;
+            if (isPeerOffline(slot.targetDeviceId)) {
+                releaseOfflineSlot(slot);
             }
-        }, P2pConfig.SLOT_TIMEOUT);
+        }
     }
 
     private String truncateMessage(String msg, int maxLen) {
@@ -1208,6 +3121,11 @@ public class FastDiscoveryManager {
             sb.append("mid=").append(msgId).append("|");
         }
 
+        // Перезапись ящика или слота может добавить упакованные сообщения при том же первом
+        for (int k = 1; record.containsKey("mid" + k); k++) {
+            sb.append("mid").append(k).append("=").append(record.get("mid" + k)).append("|");
+        }
+
         String ack = record.get("ack");
         if (ack != null) {
             sb.append("ack=").append(ack).append("|");
@@ -1225,7 +3143,13 @@ public class FastDiscoveryManager {
 
         String recv = record.get("recv");
         if (recv != null) {
-            sb.append("recv=").append(recv);
+            sb.append("recv=").append(recv).append("|");
+        }
+
+        // Страницы общей записи SYNC различаются нашей секцией
+        String syncSection = record.get(SyncRecordMux.META_PREFIX + shortDeviceId);
+        if (syncSection != null) {
+            sb.append("s=").append(syncSection);
         }
 
         return sb.toString();
@@ -1279,8 +3203,13 @@ public class FastDiscoveryManager {
             }
 
             int count = txtRecordsReceived.incrementAndGet();
+            txtRecordsCounter.inc();
+            recordTxtInterArrival(senderId);
             log.i("TXT #" + count + " | " + serviceName + " | from " + senderId);
 
+            recordPeerClockSample(record.get("t"), device);
+            getOrCreateDevice(device.deviceAddress, device).link.onRecord(System.currentTimeMillis());
+
             String acks = record.get("ack");
             if (acks != null && !acks.isEmpty()) {
                 log.i("Found ACKs in " + serviceName + ": " + acks);
@@ -1290,17 +3219,21 @@ public class FastDiscoveryManager {
 
             if (serviceName != null && P2pConfig.MAIN_SERVICE_NAME.equalsIgnoreCase(serviceName)) {
                 handleMainServiceRecord(record, device, serviceName);
-            } else if (serviceName != null && serviceName.toUpperCase().startsWith(P2pConfig.MSG_SLOT_PREFIX.toUpperCase())) {
-                handleMessageSlotRecord(record, device, serviceName);
+            } else if (serviceName != null && (serviceName.toUpperCase().startsWith(P2pConfig.MSG_SLOT_PREFIX.toUpperCase())
+                    || serviceName.toUpperCase().startsWith(P2pConfig.MAILBOX_PREFIX.toUpperCase()))) {
+                handleMessageSlotRecords(record, device, serviceName);
             } else if (serviceName != null && P2pConfig.ACK_SERVICE_NAME.equalsIgnoreCase(serviceName)) {
                 handleAckServiceRecord(record, device);
             } else if (serviceName != null && P2pConfig.SYNC_SERVICE_NAME.equalsIgnoreCase(serviceName)) {
                 handleSyncServiceRecord(record, device);
+            } else if (serviceName != null && P2pConfig.NBR_SERVICE_NAME.equalsIgnoreCase(serviceName)) {
+                handleNeighbourRecord(record, device);
             }
         };
 
         WifiP2pManager.DnsSdServiceResponseListener serviceListener = (instanceName, regType, device) -> {
             serviceResponsesReceived.incrementAndGet();
+            serviceResponsesCounter.inc();
             if (regType != null && regType.contains(P2pConfig.SERVICE_TYPE)) {
                 handleServiceDiscovered(device, instanceName);
             }
@@ -1310,6 +3243,33 @@ public class FastDiscoveryManager {
         log.success("DNS-SD listeners configured");
     }
 
+    private void recordTxtInterArrival(String senderId) {
+        if (senderId == null) return;
+        long now = System.currentTimeMillis();
+        Long prev = lastTxtArrival.put(senderId, now);
+        if (prev != null) {
+            metrics.histogram(MetricsRegistry.TXT_INTERARRIVAL, "peer", senderId).record(now - prev);
+        }
+        if (flowWindow.onArrival(senderId, now)) {
+            int window = flowWindow.localWindow(senderId);
+            log.i("Flow window for " + senderId + " -> " + window);
+            metrics.histogram(MetricsRegistry.FLOW_WINDOW_ADVERTISED).record(window);
+            scheduleRxReport();
+        }
+    }
+
+    /**
+     * Каждая TXT запись несёт "t" по часам пира - выборка для оценки смещения часов
+     */
+    private void recordPeerClockSample(String tStr, WifiP2pDevice device) {
+        if (tStr == null) return;
+        try {
+            long peerSec = Long.parseLong(tStr);
+            getOrCreateDevice(device.deviceAddress, device).latency
+                    .onPeerTimestamp(peerSec, System.currentTimeMillis());
+        } catch (NumberFormatException e) {}
+    }
+
     private void handleMainServiceRecord(Map<String, String> record, WifiP2pDevice device, String serviceName) {
         String senderId = record.get("id");
         if (senderId == null) return;
@@ -1333,7 +3293,11 @@ public class FastDiscoveryManager {
 
         String hbStr = record.get("hb");
         if (hbStr != null) {
-            try { dd.updateHeartbeat(Long.parseLong(hbStr)); } catch (NumberFormatException e) {}
+            try {
+                long hb = Long.parseLong(hbStr);
+                dd.updateHeartbeat(hb);
+                dd.link.onHeartbeat(hb, dd.lastSeen, currentInterval);
+            } catch (NumberFormatException e) {}
         }
 
         DeviceState state = stateRepository.getOrCreate(senderId);
@@ -1341,14 +3305,48 @@ public class FastDiscoveryManager {
         state.address = dd.address;
         stateRepository.save();  // ДОБАВЛЕНО: Сохранение
 
+        processRxReport(record.get("rx"), dd, state);
+        resumeSession(state, record.get("rs"));
+
+        if (flowWindow.onAdvertisement(peerKey(senderId), record.get("w"), shortDeviceId, System.currentTimeMillis())) {
+            // Окно выросло - можно опубликовать ждущие сообщения этому пиру
+            scheduleSendQueuePump();
+            schedulePump();
+        }
+
         if (justCameOnline && dd.deviceId != null) {
             log.i("Device " + dd.getShortId() + " came online, triggering sync");
             syncManager.onDeviceBecameOnline(dd.deviceId);
+            serveBroadcastsTo(dd);
         }
 
         notifyDeviceUpdated(dd);
     }
 
+    /**
+     * Запись слота может нести несколько сообщений одному получателю:
+     * первое - в обычных полях, остальные - mid1/msg1/q1/p1, mid2/...
+     */
+    private void handleMessageSlotRecords(Map<String, String> record, WifiP2pDevice device, String serviceName) {
+        handleMessageSlotRecord(record, device, serviceName);
+        for (int k = 1; record.containsKey("mid" + k); k++) {
+            Map<String, String> entry = new HashMap<>(record);
+            entry.put("mid", record.get("mid" + k));
+            putOrRemove(entry, "msg", record.get("msg" + k));
+            putOrRemove(entry, "q", record.get("q" + k));
+            putOrRemove(entry, "p", record.get("p" + k));
+            handleMessageSlotRecord(entry, device, serviceName);
+        }
+    }
+
+    private static void putOrRemove(Map<String, String> map, String key, String value) {
+        if (value != null) {
+            map.put(key, value);
+        } else {
+            map.remove(key);
+        }
+    }
+
     private void handleMessageSlotRecord(Map<String, String> record, WifiP2pDevice device, String serviceName) {
         String senderId = record.get("id");
         String msgId = record.get("mid");
@@ -1359,7 +3357,17 @@ public class FastDiscoveryManager {
         String tStr = record.get("t");
 
         if (senderId == null || msgId == null) return;
-        if (targetId != null && !targetId.equals(shortDeviceId)) return;
+
+        // Ретранслированное сообщение: "o" - отправитель, "ot" - его время отправки
+        String origin = record.get("o");
+        boolean relayed = origin != null && !origin.equals(senderId);
+        if (origin == null) origin = senderId;
+        String originTime = relayed && record.get("ot") != null ? record.get("ot") : tStr;
+        if (shortDeviceId.equals(origin)) return;  // Наше сообщение, ретранслированное соседом
+
+        boolean forOthers = targetId != null && !targetId.equals(shortDeviceId);
+        if (forOthers && !relayEnabled) return;
+        MessagePriority priority = MessagePriority.fromCode(record.get("p"));
 
         DiscoveredDevice dd = getOrCreateDevice(device.deviceAddress, device);
 
@@ -1377,9 +3385,9 @@ public class FastDiscoveryManager {
             try { dd.lastSlotIndex = Integer.parseInt(slotStr); } catch (NumberFormatException e) {}
         }
 
-        if (tStr != null) {
+        if (originTime != null) {
             try {
-                long msgTsSec = Long.parseLong(tStr);
+                long msgTsSec = Long.parseLong(originTime);
                 long nowSec = System.currentTimeMillis() / 1000;
                 long ageSec = nowSec - msgTsSec;
                 if (ageSec > P2pConfig.MAX_MSG_AGE_SEC) {
@@ -1390,38 +3398,127 @@ public class FastDiscoveryManager {
             } catch (NumberFormatException e) {}
         }
 
+        if (forOthers) {
+            offerRelay(msgId, origin, targetId, message, record.get("h"), originTime, senderId,
+                    relayed, record.get("nh"), priority);
+            return;
+        }
+
+        String qStr = record.get("q");
+        if (targetId != null && qStr != null && sid != null) {
+            trackReceivedSeq(senderId, sid, qStr);
+        }
+
+        if (FragmentCodec.isFragment(msgId)) {
+            // Каждый фрагмент подтверждается, чтобы отправитель сменил его следующим;
+            // собранное сообщение дальше обрабатывается и подтверждается под своим ID
+            fragmentAcks.put(msgId, System.currentTimeMillis());
+            String baseId = FragmentCodec.baseId(msgId);
+            if (!processedMessageIds.contains(baseId)) {
+                String whole = fragmentAssembler.offer(msgId, message, System.currentTimeMillis());
+                if (whole == null) {
+                    log.d("Fragment " + msgId + " from " + senderId + " (" +
+                            fragmentAssembler.receivedCount(baseId) + " collected)");
+                    notifyDeviceUpdated(dd);
+                    return;
+                }
+                log.i("Reassembled " + baseId + " from fragments (" + whole.length() + " chars)");
+                metrics.counter(MetricsRegistry.FEC_REASSEMBLED).inc();
+                message = whole;
+            }
+            msgId = baseId;
+        }
+
         dd.currentVisibleMsgIds.add(msgId);
         activeIncomingMessages.put(msgId, System.currentTimeMillis());
 
-        if (!processedMessageIds.contains(msgId)) {
-            processedMessageIds.add(msgId);
-            if (processedMessageIds.size() > P2pConfig.MAX_PROCESSED_IDS) {
-                Iterator<String> it = processedMessageIds.iterator();
-                if (it.hasNext()) { it.next(); it.remove(); }
+        boolean firstCopy = !processedMessageIds.contains(msgId);
+        if (firstCopy) {
+            markProcessed(msgId);
+            if (priority == MessagePriority.URGENT) {
+                markUrgentAck(msgId);
             }
 
-            dd.addReceivedMessage(msgId, message);
+            // Пришедшее через ретранслятор - в историю отправителя, если он в кэше;
+            // ACK опубликуется в наших записях и уйдёт назад по пути ретрансляции
+            DiscoveredDevice from = relayed ? findDeviceById(origin) : dd;
+            if (from == null) from = dd;
 
-            DeviceState state = stateRepository.getOrCreate(senderId);
+            from.addReceivedMessage(msgId, message);
+            if (relayed) {
+                recordRelayHops(record.get("h"));
+            } else {
+                recordDeliveryLatency(dd, senderId, tStr);
+            }
+            tracer.begin(Tracer.CAT_RECV, "message", msgId);
+            tracer.mark(Tracer.CAT_RECV, "first_seen", msgId, "from=" + senderId + " svc=" + serviceName +
+                    (relayed ? " origin=" + origin : ""));
+
+            messageStore.append(origin, msgId, message, System.currentTimeMillis(), false);
+
+            DeviceState state = stateRepository.getOrCreate(origin);
             state.addRecvMessage(msgId, message);
-            state.name = dd.name;
-            state.address = dd.address;
-            if (sid != null) {
-                state.lastSessionId = sid;
+            if (!relayed) {
+                state.name = dd.name;
+                state.address = dd.address;
+                if (sid != null) {
+                    state.lastSessionId = sid;
+                }
             }
             stateRepository.save();
+            syncManager.reschedule(state);
 
-            log.success("MESSAGE RECEIVED: " + msgId + " from " + senderId);
+            log.success("MESSAGE RECEIVED: " + msgId + " from " + origin +
+                    (relayed ? " via " + senderId : ""));
             log.i("Content: " + message);
 
             if (listener != null) {
-                handler.post(() -> listener.onMessageReceived(dd, msgId, message));
+                DiscoveredDevice finalFrom = from;
+                String finalMsgId = msgId;
+                String finalMessage = message;
+                handler.post(() -> listener.onMessageReceived(finalFrom, finalMsgId, finalMessage));
             }
         }
 
+        if (targetId == null && relayEnabled) {
+            gossipBroadcast(msgId, origin, message, record.get("h"), originTime, senderId, firstCopy,
+                    priority);
+        }
+
         notifyDeviceUpdated(dd);
     }
 
+    private void markProcessed(String msgId) {
+        processedMessageIds.add(msgId);
+        if (processedMessageIds.size() > P2pConfig.MAX_PROCESSED_IDS) {
+            Iterator<String> it = processedMessageIds.iterator();
+            if (it.hasNext()) { it.next(); it.remove(); }
+        }
+    }
+
+    /**
+     * Число ретрансляций по пути (по оставшемуся "h", если отправитель использовал RELAY_MAX_HOPS)
+     */
+    private void recordRelayHops(String hStr) {
+        if (hStr == null) return;
+        try {
+            int hops = P2pConfig.RELAY_MAX_HOPS - Integer.parseInt(hStr);
+            metrics.histogram(MetricsRegistry.RELAY_DELIVERED_HOPS).record(Math.max(hops, 1));
+        } catch (NumberFormatException e) {}
+    }
+
+    /**
+     * Задержка отправка → первое обнаружение (по "t" слота с поправкой на смещение часов)
+     */
+    private void recordDeliveryLatency(DiscoveredDevice dd, String senderId, String tStr) {
+        if (tStr == null) return;
+        try {
+            long sentSec = Long.parseLong(tStr);
+            long latencyMs = dd.latency.recordFirstSeen(sentSec, System.currentTimeMillis());
+            metrics.histogram(MetricsRegistry.DELIVERY_LATENCY, "peer", senderId).record(latencyMs);
+        } catch (NumberFormatException e) {}
+    }
+
     private void handleAckServiceRecord(Map<String, String> record, WifiP2pDevice device) {
         String senderId = record.get("id");
         String acks = record.get("ack");
@@ -1458,10 +3555,23 @@ public class FastDiscoveryManager {
         for (String ack : ackBatch) {
             if (ack.startsWith(shortDeviceId + "_" + sessionId + "_")) {
 
+                BroadcastDelivery bd = broadcastDeliveries.get(ack);
+                if (bd != null) {
+                    onBroadcastAck(bd, sender, ackBatch);
+                    continue;
+                }
+                sendQueue.remove(ack);  // Доставлено переотправкой, пока ждало слота
+
                 if (processedAcks.contains(ack)) {
                     continue;
                 }
 
+                PendingMessage whole = fragmentedMessages.remove(ack);
+                if (whole != null) {
+                    onFragmentedMessageAcked(whole, sender, ackBatch);
+                    continue;
+                }
+
                 PendingMessage pm = pendingMessages.get(ack);
                 if (pm == null) {
                     continue;
@@ -1473,25 +3583,46 @@ public class FastDiscoveryManager {
                     if (it.hasNext()) { it.next(); it.remove(); }
                 }
 
-                log.success("ACK received for " + ack + " from " + sender.getShortId());
+                // ACK мог прийти через ретранслятор - отмечаем у получателя сообщения
+                DiscoveredDevice acker = pm.targetDeviceId != null ? findDeviceById(pm.targetDeviceId) : null;
+                boolean viaRelay = acker != null && acker != sender;
+                if (acker == null) acker = sender;
+
+                log.success("ACK received for " + ack + " from " + sender.getShortId() +
+                        (viaRelay ? " (relayed from " + acker.getShortId() + ")" : ""));
+                ackLatency.record(pm.getAge());
+                if (!viaRelay) {
+                    sender.latency.recordAckRtt(pm.getAge());
+                }
+                recordRttSample(pm.targetDeviceId, pm);
+                if (FragmentCodec.isFragment(ack)) {
+                    releaseFragment(pm);
+                    continue;
+                }
+                tracer.end(Tracer.CAT_SEND, "message", ack, "ack from " + sender.getShortId());
+                storeAck(pm);
+                forgetSendSeq(pm.targetDeviceId, ack);
+                resendScheduler.cancel(ack, System.currentTimeMillis());
 
-                sender.markSentMessageAcked(ack, ackBatch);
+                acker.markSentMessageAcked(ack, ackBatch);
 
-                if (sender.deviceId != null) {
-                    DeviceState state = stateRepository.get(sender.deviceId);
+                if (acker.deviceId != null) {
+                    DeviceState state = stateRepository.get(acker.deviceId);
                     if (state != null) {
                         state.markAcked(ack);
                         stateRepository.save();
                     }
                 }
 
-                pendingMessages.remove(ack);
-                releaseSlot(pm.slotIndex);
+                releaseAckedMessage(pm);
 
                 if (listener != null) {
                     String finalAck = ack;
-                    handler.post(() -> listener.onAckReceived(sender, finalAck));
+                    DiscoveredDevice finalAcker = acker;
+                    handler.post(() -> listener.onAckReceived(finalAcker, finalAck));
                 }
+            } else {
+                onRelayAck(ack);
             }
         }
     }
@@ -1504,6 +3635,7 @@ public class FastDiscoveryManager {
             String upper = instanceName.toUpperCase();
             if (upper.startsWith(P2pConfig.MAIN_SERVICE_NAME.toUpperCase()) ||
                     upper.startsWith(P2pConfig.MSG_SLOT_PREFIX.toUpperCase()) ||
+                    upper.startsWith(P2pConfig.MAILBOX_PREFIX.toUpperCase()) ||
                     upper.startsWith(P2pConfig.ACK_SERVICE_NAME.toUpperCase()) ||
                     upper.startsWith(P2pConfig.SYNC_SERVICE_NAME.toUpperCase())) {
                 dd.hasOurApp = true;
@@ -1517,6 +3649,7 @@ public class FastDiscoveryManager {
     private void checkMessageVisibility() {
         long now = System.currentTimeMillis();
         long timeout = 10_000;
+        requestSnapshotPublish();
 
         for (DiscoveredDevice dd : deviceCache.values()) {
             Set<String> toRemove = new HashSet<>();
@@ -1527,6 +3660,7 @@ public class FastDiscoveryManager {
                     toRemove.add(msgId);
                     dd.markReceivedMessageAckConfirmed(msgId);
                     pendingAcksToSend.remove(msgId);
+                    tracer.end(Tracer.CAT_RECV, "message", msgId, "ack confirmed");
                     log.success("ACK confirmed delivered for: " + msgId);
                 }
             }
@@ -1536,6 +3670,25 @@ public class FastDiscoveryManager {
                 activeIncomingMessages.remove(msgId);
             }
         }
+
+        // Фрагмент больше не виден - отправитель получил ACK
+        fragmentAcks.values().removeIf(lastSeen -> now - lastSeen > timeout);
+        fragmentAssembler.prune(now);
+
+        // Все фрагменты сняты без ACK - сообщение дальше ведёт SYNC (и отправит фрагментами заново)
+        fragmentedMessages.values().removeIf(whole -> !hasFragmentsInFlight(whole));
+    }
+
+    private boolean hasFragmentsInFlight(PendingMessage whole) {
+        for (PendingMessage pm : pendingMessages.values()) {
+            if (FragmentCodec.isFragment(pm.messageId)
+                    && whole.messageId.equals(FragmentCodec.baseId(pm.messageId))) return true;
+        }
+        for (SendQueue.Entry e : sendQueue.entriesTo(whole.targetDeviceId)) {
+            if (FragmentCodec.isFragment(e.msgId)
+                    && whole.messageId.equals(FragmentCodec.baseId(e.msgId))) return true;
+        }
+        return false;
     }
 
     // ==================== SERVICE REQUESTS ====================
@@ -1547,12 +3700,12 @@ public class FastDiscoveryManager {
     private void resetServiceRequests() {
         log.d("Resetting DNS-SD requests to clear cache");
 
-        manager.clearServiceRequests(channel, new WifiP2pManager.ActionListener() {
+        manager.clearServiceRequests(channel, tracked("clearServiceRequests", new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
                 serviceRequests.clear();
                 addServiceRequests(() -> {
-                    manager.discoverServices(channel, new WifiP2pManager.ActionListener() {
+                    manager.discoverServices(channel, tracked("discoverServices", new WifiP2pManager.ActionListener() {
                         @Override
                         public void onSuccess() {
                             log.d("DNS-SD cache reset complete");
@@ -1561,14 +3714,14 @@ public class FastDiscoveryManager {
                         public void onFailure(int r) {
                             log.w("discoverServices after reset failed: " + reasonToString(r));
                         }
-                    });
+                    }));
                 });
             }
             @Override
             public void onFailure(int r) {
                 log.w("Failed to clear service requests: " + reasonToString(r));
             }
-        });
+        }));
     }
 
     private void addServiceRequests(Runnable onComplete) {
@@ -1588,7 +3741,7 @@ public class FastDiscoveryManager {
         }
 
         WifiP2pServiceRequest req = requests.get(index);
-        manager.addServiceRequest(channel, req, new WifiP2pManager.ActionListener() {
+        manager.addServiceRequest(channel, req, tracked("addServiceRequest", new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
                 serviceRequests.add(req);
@@ -1598,7 +3751,7 @@ public class FastDiscoveryManager {
             public void onFailure(int reason) {
                 addRequestsSequentially(requests, index + 1, onComplete);
             }
-        });
+        }));
     }
 
     // ==================== BURST DISCOVERY ====================
@@ -1614,10 +3767,10 @@ public class FastDiscoveryManager {
 
         log.i("BURST step " + burstCount + "/" + maxCount);
 
-        manager.discoverPeers(channel, null);
+        manager.discoverPeers(channel, tracked("discoverPeers", null));
 
         handler.postDelayed(() -> {
-            manager.discoverServices(channel, new WifiP2pManager.ActionListener() {
+            manager.discoverServices(channel, tracked("discoverServices", new WifiP2pManager.ActionListener() {
                 @Override
                 public void onSuccess() {
                     discoveryInProgress = false;
@@ -1640,7 +3793,7 @@ public class FastDiscoveryManager {
                         onBurstComplete();
                     }
                 }
-            });
+            }));
         }, 100);
     }
 
@@ -1676,14 +3829,14 @@ public class FastDiscoveryManager {
     private void reregisterMainService() {
         final WifiP2pDnsSdServiceInfo oldInfo = mainServiceInfo;
 
-        manager.removeLocalService(channel, oldInfo, new WifiP2pManager.ActionListener() {
+        manager.removeLocalService(channel, oldInfo, tracked("removeLocalService", new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
                 Map<String, String> record = buildMainServiceRecord();
                 WifiP2pDnsSdServiceInfo newInfo = WifiP2pDnsSdServiceInfo.newInstance(
                         P2pConfig.MAIN_SERVICE_NAME, P2pConfig.SERVICE_TYPE, record);
 
-                manager.addLocalService(channel, newInfo, new WifiP2pManager.ActionListener() {
+                manager.addLocalService(channel, newInfo, tracked("addLocalService", new WifiP2pManager.ActionListener() {
                     @Override
                     public void onSuccess() {
                         mainServiceInfo = newInfo;
@@ -1694,7 +3847,7 @@ public class FastDiscoveryManager {
                         mainServiceInfo = newInfo;
                         log.w("Main service re-register addLocal failed: " + reasonToString(r));
                     }
-                });
+                }));
             }
             @Override
             public void onFailure(int r) {
@@ -1703,9 +3856,9 @@ public class FastDiscoveryManager {
                 Map<String, String> record = buildMainServiceRecord();
                 mainServiceInfo = WifiP2pDnsSdServiceInfo.newInstance(
                         P2pConfig.MAIN_SERVICE_NAME, P2pConfig.SERVICE_TYPE, record);
-                manager.addLocalService(channel, mainServiceInfo, null);
+                manager.addLocalService(channel, mainServiceInfo, tracked("addLocalService", null));
             }
-        });
+        }));
     }
 
     /**
@@ -1717,10 +3870,10 @@ public class FastDiscoveryManager {
         final WifiP2pDnsSdServiceInfo serviceInfo = slot.serviceInfo;
         final int slotIndex = slot.slotIndex;
 
-        manager.removeLocalService(channel, serviceInfo, new WifiP2pManager.ActionListener() {
+        manager.removeLocalService(channel, serviceInfo, tracked("removeLocalService", new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
-                manager.addLocalService(channel, serviceInfo, new WifiP2pManager.ActionListener() {
+                manager.addLocalService(channel, serviceInfo, tracked("addLocalService", new WifiP2pManager.ActionListener() {
                     @Override
                     public void onSuccess() {
                         log.d("Slot " + slotIndex + " re-registered");
@@ -1729,14 +3882,14 @@ public class FastDiscoveryManager {
                     public void onFailure(int r) {
                         log.w("Slot " + slotIndex + " re-register addLocal failed");
                     }
-                });
+                }));
             }
             @Override
             public void onFailure(int r) {
                 // Пробуем добавить без удаления
-                manager.addLocalService(channel, serviceInfo, null);
+                manager.addLocalService(channel, serviceInfo, tracked("addLocalService", null));
             }
-        });
+        }));
     }
 
     // ==================== PERIODIC TASKS ====================
@@ -1747,6 +3900,7 @@ public class FastDiscoveryManager {
         handler.removeCallbacks(visibilityCheckRunnable);
         handler.removeCallbacks(onlineCheckRunnable);
         handler.removeCallbacks(syncCheckRunnable);
+        handler.removeCallbacks(nbrAdvertiseRunnable);
         handler.removeCallbacks(dnsCacheResetRunnable);  // ДОБАВИТЬ
         //handler.removeCallbacks(serviceReregisterRunnable);  // ДОБАВИТЬ
 
@@ -1755,6 +3909,7 @@ public class FastDiscoveryManager {
         handler.postDelayed(visibilityCheckRunnable, 5000);
         handler.postDelayed(onlineCheckRunnable, P2pConfig.DEVICE_ONLINE_THRESHOLD / 2);
         handler.postDelayed(syncCheckRunnable, P2pConfig.SYNC_CHECK_INTERVAL);
+        handler.postDelayed(nbrAdvertiseRunnable, P2pConfig.NBR_ADVERTISE_INTERVAL);
         handler.postDelayed(dnsCacheResetRunnable, DNS_CACHE_RESET_INTERVAL);  // ДОБАВИТЬ
         //handler.postDelayed(serviceReregisterRunnable, SERVICE_REREGISTER_INTERVAL);  // ДОБАВИТЬ
     }
@@ -1802,6 +3957,8 @@ public class FastDiscoveryManager {
         public void run() {
             if (!isRunning) return;
             cleanupExpiredDevices();
+            releaseOfflineSlots();
+            requestSnapshotPublish();
             handler.postDelayed(this, P2pConfig.DEVICE_ONLINE_THRESHOLD / 2);
         }
     };
@@ -1815,6 +3972,15 @@ public class FastDiscoveryManager {
         }
     };
 
+    private final Runnable nbrAdvertiseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!isRunning) return;
+            publishNeighbourRecord();
+            handler.postDelayed(this, P2pConfig.NBR_ADVERTISE_INTERVAL);
+        }
+    };
+
     private final Runnable dnsCacheResetRunnable = new Runnable() {
         @Override
         public void run() {
@@ -1830,7 +3996,24 @@ public class FastDiscoveryManager {
 
     private void scheduleNextDiscovery() {
         handler.removeCallbacks(discoveryRunnable);
-        handler.postDelayed(discoveryRunnable, currentInterval);
+        handler.postDelayed(discoveryRunnable, nextDiscoveryDelay());
+    }
+
+    /**
+     * Пока в слотах сообщения пиру с плохой связью, discovery идёт с FAST_INTERVAL:
+     * больше попыток увидеть его ACK и heartbeat
+     */
+    private long nextDiscoveryDelay() {
+        if (currentInterval <= P2pConfig.FAST_INTERVAL) return currentInterval;
+        long now = System.currentTimeMillis();
+        for (SlotInfo slot : messageSlots.values()) {
+            if (slot.isRelay || slot.targetDeviceId == null) continue;
+            DiscoveredDevice dd = findDeviceById(peerKey(slot.targetDeviceId));
+            if (dd != null && dd.isOnline() && dd.link.score(now) < P2pConfig.LINK_POOR_SCORE) {
+                return P2pConfig.FAST_INTERVAL;
+            }
+        }
+        return currentInterval;
     }
 
     private final Runnable discoveryRunnable = new Runnable() {
@@ -1845,7 +4028,7 @@ public class FastDiscoveryManager {
         lastDiscoveryTime = System.currentTimeMillis();
         discoveryInProgress = true;
 
-        manager.discoverPeers(channel, new WifiP2pManager.ActionListener() {
+        manager.discoverPeers(channel, tracked("discoverPeers", new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
                 log.d("discoverPeers started");
@@ -1854,10 +4037,10 @@ public class FastDiscoveryManager {
             public void onFailure(int reason) {
                 log.w("discoverPeers failed: " + reasonToString(reason));
             }
-        });
+        }));
 
         handler.postDelayed(() -> {
-            manager.discoverServices(channel, new WifiP2pManager.ActionListener() {
+            manager.discoverServices(channel, tracked("discoverServices", new WifiP2pManager.ActionListener() {
                 @Override
                 public void onSuccess() {
                     log.d("discoverServices started");
@@ -1871,11 +4054,11 @@ public class FastDiscoveryManager {
 
                     // При BUSY пробуем снова через короткий интервал
                     if (reason == WifiP2pManager.BUSY) {
-                        handler.postDelayed(() -> manager.discoverServices(channel, null), 500);
+                        handler.postDelayed(() -> manager.discoverServices(channel, tracked("discoverServices", null)), 500);
                     }
                     scheduleNextDiscovery();
                 }
-            });
+            }));
         }, 100);
     }
 
@@ -1891,6 +4074,8 @@ public class FastDiscoveryManager {
         sb.append("Discovery active: ").append(discoveryInProgress).append("\n");
         sb.append("Restart count: ").append(discoveryRestartCount).append("\n");
         sb.append("WiFi Lock: ").append(wifiLock != null && wifiLock.isHeld()).append("\n");
+        sb.append("SYNC scheduled: ").append(syncManager.getScheduledCount())
+                .append("/").append(stateRepository.getAll().size()).append("\n");
 
         long now = System.currentTimeMillis();
         if (lastDiscoveryTime > 0) {
@@ -1900,12 +4085,92 @@ public class FastDiscoveryManager {
             sb.append("Last peers: ").append((now - lastPeersFoundTime) / 1000).append("s ago\n");
         }
 
+        sb.append("\n═══ MESSAGE STORE ═══\n");
+        sb.append(messageStore.getDiagnosticInfo()).append("\n");
+
+        sb.append("\n═══ RESENDS ═══\n");
+        sb.append(resendScheduler.getDiagnosticInfo()).append("\n");
+
+        sb.append("\n═══ TOPOLOGY ═══\n");
+        sb.append(topology.getDiagnosticInfo()).append("\n");
+
+        sb.append("\n═══ SEND QUEUE ═══\n");
+        sb.append(sendQueue.getDiagnosticInfo(System.currentTimeMillis())).append("\n");
+
+        sb.append("\n═══ FEC (").append(P2pConfig.FEC_ENABLED ? "on" : "off").append(") ═══\n");
+        sb.append("Sent fragmented, unacked: ").append(fragmentedMessages.keySet()).append("\n");
+        sb.append("Fragment ACKs: ").append(fragmentAcks.size()).append("\n");
+        sb.append(fragmentAssembler.getDiagnosticInfo(System.currentTimeMillis())).append("\n");
+
+        sb.append("\n═══ SESSION RESUME ═══\n");
+        sb.append("Our marks: ").append(resumeMarks.isEmpty() ? "-" : resumeMarks)
+                .append(now < resumeMarksUntil ? " (advertised)" : "").append("\n");
+        for (Map.Entry<String, SessionResume> e : sessionResumes.entrySet()) {
+            sb.append(e.getKey()).append(": ").append(e.getValue().size()).append(" unacked, waiting ")
+                    .append((now - e.getValue().detectedAt) / 1000).append("s\n");
+        }
+        sb.append("Resumed, unacked: ").append(resumedMessages.size()).append("\n");
+
+        sb.append("\n═══ FLOW CONTROL ═══\n");
+        sb.append(flowWindow.getDiagnosticInfo(System.currentTimeMillis())).append("\n");
+
+        sb.append("\n═══ RETRANSMISSION ═══\n");
+        for (Map.Entry<String, RttEstimator> e : rttEstimators.entrySet()) {
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+        }
+
+        sb.append("\n═══ MAILBOXES (").append(P2pConfig.MAILBOX_MODE ? "on" : "off").append(") ═══\n");
+        for (SlotInfo slot : messageSlots.values()) {
+            if (!slot.isMailbox) continue;
+            sb.append(P2pConfig.MAILBOX_PREFIX).append(slot.slotIndex - P2pConfig.MAX_MSG_SLOTS)
+                    .append(" -> ").append(peerKey(slot.targetDeviceId))
+                    .append(": ").append(pendingInSlot(slot).size()).append(" unacked, age ")
+                    .append((System.currentTimeMillis() - slot.createdAt) / 1000).append("s\n");
+        }
+
+        sb.append("\n═══ BROADCAST DELIVERY ═══\n");
+        for (BroadcastDelivery bd : broadcastDeliveries.values()) {
+            sb.append(bd).append(pendingMessages.containsKey(bd.messageId) ? " (live)" : "");
+            List<String> missing = bd.unacked();
+            if (!missing.isEmpty()) {
+                sb.append(" missing: ").append(String.join(",", missing));
+            }
+            sb.append("\n");
+        }
+
+        sb.append("\n═══ RELAY (").append(relayEnabled ? "on" : "off").append(") ═══\n");
+        sb.append(relayManager.getDiagnosticInfo()).append("\n");
+
+        sb.append("\n═══ GAP REPAIR ═══\n");
+        for (Map.Entry<String, SendWindow> e : sendWindows.entrySet()) {
+            sb.append("to ").append(e.getKey()).append(": q=").append(e.getValue().lastSeq())
+                    .append(" unacked=").append(e.getValue().unackedCount()).append("\n");
+        }
+        for (Map.Entry<String, ReceiveWindow> e : receiveWindows.entrySet()) {
+            sb.append("from ").append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+        }
+
+        sb.append("\n═══ LATENCY ═══\n");
+        for (DiscoveredDevice dd : deviceCache.values()) {
+            if (!dd.hasOurApp) continue;
+            sb.append(dd.getShortId()).append(": ").append(dd.latency.toDetailedString()).append("\n");
+        }
+
+        sb.append("\n═══ LINK QUALITY ═══\n");
+        long linkNow = System.currentTimeMillis();
+        for (DiscoveredDevice dd : deviceCache.values()) {
+            if (!dd.hasOurApp) continue;
+            sb.append(dd.getShortId()).append(": ").append(dd.link.toShortString(linkNow)).append("\n");
+        }
+
         return sb.toString();
     }
     // ==================== DEVICE MANAGEMENT ====================
 
     private DiscoveredDevice getOrCreateDevice(String address, WifiP2pDevice device) {
         DiscoveredDevice dd = deviceCache.get(address);
+        // Вызывающий код меняет устройство дальше в этом же проходе - публикация после него
+        requestSnapshotPublish();
 
         if (dd == null) {
             dd = new DiscoveredDevice();
@@ -2067,7 +4332,7 @@ public class FastDiscoveryManager {
                     if (peerCount > 0) {
                         handler.postDelayed(() -> {
                             log.d("Triggering service discovery after peers found");
-                            manager.discoverServices(channel, null);
+                            manager.discoverServices(channel, tracked("discoverServices", null));
                         }, 100);
                     }
                 });
@@ -2180,8 +4445,10 @@ public class FastDiscoveryManager {
         sb.append("║ TXT received: ").append(txtRecordsReceived.get()).append("\n");
 
         // Слоты
-        sb.append("║ Active slots: ").append(messageSlots.size()).append("/")
+        sb.append("║ Active slots: ").append(P2pConfig.MAX_MSG_SLOTS - freeSlotCount()).append("/")
                 .append(P2pConfig.MAX_MSG_SLOTS).append("\n");
+        sb.append("║ Mailboxes: ").append(messageSlots.size() - P2pConfig.MAX_MSG_SLOTS + freeSlotCount())
+                .append("/").append(P2pConfig.MAX_MAILBOXES).append("\n");
 
         sb.append("╚══════════════════════════════════════════╝");
 
@@ -2197,6 +4464,28 @@ public class FastDiscoveryManager {
         return fullDomain;
     }
 
+    /**
+     * Обернуть ActionListener для учёта успехов/ошибок вызовов WifiP2pManager по коду причины.
+     * Время от вызова до callback пишется в трассировку как событие категории p2p.
+     */
+    private WifiP2pManager.ActionListener tracked(String op, WifiP2pManager.ActionListener delegate) {
+        long startUs = tracer.nowUs();
+        return new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                metrics.counter(MetricsRegistry.P2P_CALLS, "op", op, "result", "ok").inc();
+                tracer.complete(Tracer.CAT_P2P, op, startUs, null);
+                if (delegate != null) delegate.onSuccess();
+            }
+            @Override
+            public void onFailure(int reason) {
+                metrics.counter(MetricsRegistry.P2P_CALLS, "op", op, "result", reasonToString(reason)).inc();
+                tracer.complete(Tracer.CAT_P2P, op, startUs, reasonToString(reason));
+                if (delegate != null) delegate.onFailure(reason);
+            }
+        };
+    }
+
     private String reasonToString(int reason) {
         switch (reason) {
             case WifiP2pManager.P2P_UNSUPPORTED: return "P2P_UNSUPPORTED";
@@ -2206,17 +4495,70 @@ public class FastDiscoveryManager {
         }
     }
 
+    // ==================== SNAPSHOTS ====================
+
+    /**
+     * Запланировать публикацию снимков. Все изменения в текущем проходе
+     * handler'а схлопываются в одну публикацию.
+     */
+    private void requestSnapshotPublish() {
+        if (snapshotPublishPending) return;
+        snapshotPublishPending = true;
+        handler.post(publishSnapshotsRunnable);
+    }
+
+    /**
+     * Пересобрать снимки изменившихся устройств и опубликовать новый список.
+     * Неизменившиеся устройства переиспользуют прежний снимок.
+     */
+    private void publishSnapshots() {
+        snapshotPublishPending = false;
+
+        long version = snapshotVersion + 1;
+        Map<String, DeviceSnapshot> nextIndex = new HashMap<>(deviceCache.size() * 2);
+        List<DeviceSnapshot> list = new ArrayList<>(deviceCache.size());
+        boolean changed = snapshotIndex.size() != deviceCache.size();
+
+        for (DiscoveredDevice dd : deviceCache.values()) {
+            DeviceSnapshot prev = snapshotIndex.get(dd.address);
+            DeviceSnapshot snap;
+            if (prev != null && prev.isCurrent(dd)) {
+                snap = prev;
+            } else {
+                snap = DeviceSnapshot.of(dd, prev, version);
+                changed = true;
+            }
+            nextIndex.put(dd.address, snap);
+            list.add(snap);
+        }
+
+        if (!changed) return;
+
+        // Порядок обнаружения - стабильный порядок для UI
+        Collections.sort(list, (a, b) -> {
+            int c = Long.compare(a.firstSeen, b.firstSeen);
+            return c != 0 ? c : a.address.compareTo(b.address);
+        });
+
+        snapshotIndex = nextIndex;
+        deviceSnapshots = Collections.unmodifiableList(list);
+        snapshotVersion = version;
+    }
+
     // ==================== NOTIFICATIONS ====================
 
     private void notifyDeviceFound(DiscoveredDevice d) {
+        requestSnapshotPublish();
         handler.post(() -> { if (listener != null) listener.onDeviceFound(d); });
     }
 
     private void notifyDeviceUpdated(DiscoveredDevice d) {
+        requestSnapshotPublish();
         handler.post(() -> { if (listener != null) listener.onDeviceUpdated(d); });
     }
 
     private void notifyDeviceLost(DiscoveredDevice d) {
+        requestSnapshotPublish();
         handler.post(() -> { if (listener != null) listener.onDeviceLost(d); });
     }
 
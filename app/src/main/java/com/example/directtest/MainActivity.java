@@ -25,14 +25,21 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.example.directtest.model.DeviceSnapshot;
 import com.example.directtest.model.DiscoveredDevice;
+import com.example.directtest.model.MessagePriority;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class MainActivity extends AppCompatActivity implements DiscoveryService.ServiceCallback {
 
@@ -45,17 +52,30 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
 
     // UI
     private DeviceAdapter adapter;
-    private final List<DiscoveredDevice> devices = new ArrayList<>();
+    /** Последние снимки устройств от сервиса (неизменяемый список) */
+    private List<DeviceSnapshot> devices = Collections.emptyList();
     private TextView tvStatus;
     private Button btnStop;
 
     // Периодическое обновление UI
     private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    // Несколько callback'ов подряд дают одну пересборку строк
+    private boolean rowsUpdatePending = false;
+    private final Runnable rowsUpdateRunnable = () -> {
+        rowsUpdatePending = false;
+        if (adapter != null) {
+            adapter.submit(buildRows(), null);
+        }
+    };
     private final Runnable uiUpdateRunnable = new Runnable() {
         @Override
         public void run() {
             if (adapter != null) {
-                adapter.notifyDataSetChanged();
+                // Онлайн-статус зависит от времени: пересобираем строки,
+                // затем обновляем только тексты возраста
+                rowsUpdatePending = false;
+                adapter.submit(buildRows(), adapter::notifyAgeChanged);
             }
             updateStatusBar();
             uiHandler.postDelayed(this, 1000);
@@ -178,7 +198,7 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
 
         RecyclerView recyclerView = findViewById(R.id.recycler_devices);
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
-        adapter = new DeviceAdapter(devices, this::onDeviceClick);
+        adapter = new DeviceAdapter(this::onDeviceClick, this::openConversation);
         recyclerView.setAdapter(adapter);
 
         // Кнопка обновления
@@ -192,6 +212,17 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
             }
         });
 
+        // Долгое нажатие - переключить режим relay (ретрансляция сообщений соседей)
+        btnRefresh.setOnLongClickListener(v -> {
+            if (serviceBound && discoveryService != null && discoveryService.getDiscoveryManager() != null) {
+                FastDiscoveryManager dm = discoveryService.getDiscoveryManager();
+                dm.setRelayEnabled(!dm.isRelayEnabled());
+                Toast.makeText(this, "Relay: " + (dm.isRelayEnabled() ? "вкл" : "выкл"),
+                        Toast.LENGTH_SHORT).show();
+            }
+            return true;
+        });
+
         // Кнопка очистки
         btnClear.setOnClickListener(v -> {
             new AlertDialog.Builder(this)
@@ -200,7 +231,7 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
                     .setPositiveButton("Да", (d, w) -> {
                         if (serviceBound && discoveryService != null) {
                             discoveryService.clearAll();
-                            adapter.notifyDataSetChanged();
+                            requestRowsUpdate();
                             Toast.makeText(this, "Очищено", Toast.LENGTH_SHORT).show();
                         }
                     })
@@ -329,8 +360,8 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
         stopService(intent);
 
         // Очищаем UI
-        devices.clear();
-        adapter.notifyDataSetChanged();
+        devices = Collections.emptyList();
+        requestRowsUpdate();
         tvStatus.setText("Service stopped");
 
         Toast.makeText(this, "Service stopped", Toast.LENGTH_SHORT).show();
@@ -366,13 +397,31 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
 
     private void refreshDeviceList() {
         if (discoveryService != null) {
-            List<DiscoveredDevice> serviceDevices = discoveryService.getAllDevices();
-            devices.clear();
-            devices.addAll(serviceDevices);
-            adapter.notifyDataSetChanged();
+            devices = discoveryService.getDeviceSnapshots();
+            requestRowsUpdate();
         }
     }
 
+    /**
+     * Запланировать пересборку строк списка (схлопывает частые callback'и)
+     */
+    private void requestRowsUpdate() {
+        if (rowsUpdatePending) return;
+        rowsUpdatePending = true;
+        uiHandler.post(rowsUpdateRunnable);
+    }
+
+    private List<DeviceRow> buildRows() {
+        if (discoveryService != null) {
+            devices = discoveryService.getDeviceSnapshots();
+        }
+        List<DeviceRow> rows = new ArrayList<>(devices.size());
+        for (DeviceSnapshot d : devices) {
+            rows.add(DeviceRow.from(d));
+        }
+        return rows;
+    }
+
     private void updateStatusBar() {
         if (!serviceBound || discoveryService == null) {
             tvStatus.setText("Service not running\nTap REFRESH to start");
@@ -381,7 +430,7 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
 
         int total = devices.size();
         int online = 0, withApp = 0;
-        for (DiscoveredDevice d : devices) {
+        for (DeviceSnapshot d : devices) {
             if (d.isOnline()) online++;
             if (d.hasOurApp) withApp++;
         }
@@ -396,25 +445,18 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
                 discoveryService.getPendingAcksCount()));
     }
 
-    private void updateDevice(DiscoveredDevice device) {
-        int idx = -1;
-        for (int i = 0; i < devices.size(); i++) {
-            if (devices.get(i).address.equals(device.address)) {
-                idx = i;
-                break;
+    // ==================== DEVICE CLICK ====================
+
+    private void onDeviceClick(String address) {
+        for (DeviceSnapshot d : devices) {
+            if (d.address.equals(address)) {
+                onDeviceClick(d);
+                return;
             }
         }
-        if (idx >= 0) {
-            devices.set(idx, device);
-        } else {
-            devices.add(device);
-        }
-        adapter.notifyDataSetChanged();
     }
 
-    // ==================== DEVICE CLICK ====================
-
-    private void onDeviceClick(DiscoveredDevice device) {
+    private void onDeviceClick(DeviceSnapshot device) {
         if (!serviceBound || discoveryService == null) {
             Toast.makeText(this, "Сервис не запущен", Toast.LENGTH_SHORT).show();
             return;
@@ -441,10 +483,30 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
         showMessageInputDialog(device);
     }
 
+    /**
+     * Открыть переписку с устройством (долгое нажатие на карточку)
+     */
+    private void openConversation(String address) {
+        for (DeviceSnapshot d : devices) {
+            if (d.address.equals(address)) {
+                if (d.deviceId == null) {
+                    Toast.makeText(this, "Устройство ещё не прислало ID", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Intent intent = new Intent(this, ConversationActivity.class);
+                intent.putExtra(ConversationActivity.EXTRA_PEER_ID, d.deviceId);
+                intent.putExtra(ConversationActivity.EXTRA_TITLE,
+                        (d.name != null ? d.name : "Unknown") + " (" + d.getShortId() + ")");
+                startActivity(intent);
+                return;
+            }
+        }
+    }
+
     /**
      * Показать диалог для ввода сообщения
      */
-    private void showMessageInputDialog(DiscoveredDevice device) {
+    private void showMessageInputDialog(DeviceSnapshot device) {
         EditText input = new EditText(this);
         input.setHint("Введите сообщение");
         input.setSingleLine(false);
@@ -458,19 +520,10 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
                 .setTitle("Сообщение для " + device.getShortId())
                 .setMessage("Устройство: " + (device.name != null ? device.name : "Unknown"))
                 .setView(input)
-                .setPositiveButton("Отправить", (dialog, which) -> {
-                    String text = input.getText().toString().trim();
-                    if (text.isEmpty()) {
-                        Toast.makeText(this, "Сообщение не может быть пустым", Toast.LENGTH_SHORT).show();
-                        return;
-                    }
-
-                    String msgId = discoveryService.sendMessage(text, device.deviceId);
-                    if (msgId != null) {
-                        Toast.makeText(this, "→ " + device.getShortId() + "\n" + msgId, Toast.LENGTH_SHORT).show();
-                    }
-                    // Ошибка показывается через onError callback
-                })
+                .setPositiveButton("Отправить", (dialog, which) ->
+                        sendFromDialog(input, device, MessagePriority.NORMAL))
+                .setNeutralButton("Срочно", (dialog, which) ->
+                        sendFromDialog(input, device, MessagePriority.URGENT))
                 .setNegativeButton("Отмена", null)
                 .show();
 
@@ -484,40 +537,53 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
         }, 200);
     }
 
+    private void sendFromDialog(EditText input, DeviceSnapshot device, MessagePriority priority) {
+        String text = input.getText().toString().trim();
+        if (text.isEmpty()) {
+            Toast.makeText(this, "Сообщение не может быть пустым", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String msgId = discoveryService.sendMessage(text, device.deviceId, priority);
+        if (msgId != null) {
+            Toast.makeText(this, "→ " + device.getShortId() + "\n" + msgId, Toast.LENGTH_SHORT).show();
+        }
+        // Ошибка показывается через onError callback
+    }
+
     // ==================== SERVICE CALLBACK ====================
 
     @Override
     public void onDeviceFound(DiscoveredDevice device) {
-        updateDevice(device);
+        requestRowsUpdate();
     }
 
     @Override
     public void onDeviceUpdated(DiscoveredDevice device) {
-        updateDevice(device);
+        requestRowsUpdate();
     }
 
     @Override
     public void onDeviceLost(DiscoveredDevice device) {
-        devices.remove(device);
-        adapter.notifyDataSetChanged();
+        requestRowsUpdate();
     }
 
     @Override
     public void onMessageSent(String messageId, String message, String targetDeviceId) {
         Toast.makeText(this, "→ " + messageId, Toast.LENGTH_SHORT).show();
-        adapter.notifyDataSetChanged();
+        requestRowsUpdate();
     }
 
     @Override
     public void onMessageReceived(DiscoveredDevice device, String messageId, String message) {
         Toast.makeText(this, "← " + device.getShortId() + ": " + message, Toast.LENGTH_LONG).show();
-        adapter.notifyDataSetChanged();
+        requestRowsUpdate();
     }
 
     @Override
     public void onAckReceived(DiscoveredDevice device, String ackedMessageId) {
         Toast.makeText(this, "✓ " + ackedMessageId, Toast.LENGTH_SHORT).show();
-        adapter.notifyDataSetChanged();
+        requestRowsUpdate();
     }
 
     @Override
@@ -527,37 +593,132 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
 
     // ==================== ADAPTER ====================
 
+    /**
+     * Адаптер карточек устройств.
+     *
+     * Список - неизменяемые DeviceRow; разница считается AsyncListDiffer в фоновом
+     * потоке, поэтому перерисовываются только изменившиеся карточки.
+     * Ежесекундный тик обновляет лишь тексты "N с назад" через PAYLOAD_AGE.
+     */
     static class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.VH> {
 
-        private final List<DiscoveredDevice> list;
+        /** Payload: изменилось только текущее время (тексты возраста) */
+        static final Object PAYLOAD_AGE = new Object();
+
+        private static final DiffUtil.ItemCallback<DeviceRow> DIFF = new DiffUtil.ItemCallback<DeviceRow>() {
+            @Override
+            public boolean areItemsTheSame(@NonNull DeviceRow a, @NonNull DeviceRow b) {
+                return a.address.equals(b.address);
+            }
+
+            @Override
+            public boolean areContentsTheSame(@NonNull DeviceRow a, @NonNull DeviceRow b) {
+                return a.equals(b);
+            }
+        };
+
+        private final AsyncListDiffer<DeviceRow> differ = new AsyncListDiffer<>(this, DIFF);
         private final OnClick listener;
+        private final OnClick longClickListener;
+
+        /** Стабильные ID по MAC-адресу */
+        private final Map<String, Long> stableIds = new HashMap<>();
+
+        /** Переиспользуемый буфер для текстов возраста */
+        private final StringBuilder sb = new StringBuilder(64);
 
         interface OnClick {
-            void onClick(DiscoveredDevice d);
+            void onClick(String address);
         }
 
-        DeviceAdapter(List<DiscoveredDevice> list, OnClick l) {
-            this.list = list;
+        DeviceAdapter(OnClick l, OnClick longClick) {
             this.listener = l;
+            this.longClickListener = longClick;
+            setHasStableIds(true);
+        }
+
+        /**
+         * Передать новый список строк. Diff считается в фоне,
+         * onCommitted вызывается на главном потоке после применения.
+         */
+        void submit(List<DeviceRow> rows, Runnable onCommitted) {
+            differ.submitList(rows, onCommitted);
+        }
+
+        /**
+         * Перерисовать только тексты возраста во всех карточках
+         */
+        void notifyAgeChanged() {
+            int count = getItemCount();
+            if (count > 0) {
+                notifyItemRangeChanged(0, count, PAYLOAD_AGE);
+            }
+        }
+
+        @Override
+        public long getItemId(int position) {
+            String address = differ.getCurrentList().get(position).address;
+            Long id = stableIds.get(address);
+            if (id == null) {
+                id = (long) stableIds.size();
+                stableIds.put(address, id);
+            }
+            return id;
         }
 
         @NonNull
         @Override
         public VH onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
             View v = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_device, parent, false);
-            return new VH(v);
+            VH h = new VH(v);
+            v.setOnClickListener(view -> {
+                int pos = h.getBindingAdapterPosition();
+                if (pos != RecyclerView.NO_POSITION) {
+                    listener.onClick(differ.getCurrentList().get(pos).address);
+                }
+            });
+            v.setOnLongClickListener(view -> {
+                int pos = h.getBindingAdapterPosition();
+                if (pos == RecyclerView.NO_POSITION) return false;
+                longClickListener.onClick(differ.getCurrentList().get(pos).address);
+                return true;
+            });
+            return h;
         }
 
         @Override
-        public void onBindViewHolder(@NonNull VH h, int position) {
-            DiscoveredDevice d = list.get(position);
+        public void onBindViewHolder(@NonNull VH h, int position, @NonNull List<Object> payloads) {
+            DeviceRow d = differ.getCurrentList().get(position);
             long now = System.currentTimeMillis();
 
+            boolean ageOnly = !payloads.isEmpty();
+            for (Object p : payloads) {
+                if (p != PAYLOAD_AGE) {
+                    ageOnly = false;
+                    break;
+                }
+            }
+
+            if (!ageOnly) {
+                bindContent(h, d);
+            }
+            bindAges(h, d, now);
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull VH h, int position) {
+            onBindViewHolder(h, position, Collections.emptyList());
+        }
+
+        /**
+         * Всё, что не зависит от текущего времени
+         */
+        private void bindContent(VH h, DeviceRow d) {
             // Header
             h.tvName.setText(d.name != null ? d.name : "Unknown");
-            h.tvStatus.setText(d.isOnline() ? "● ONLINE" : "○ OFFLINE");
-            h.tvStatus.setTextColor(d.isOnline() ? 0xFF4CAF50 : 0xFF9E9E9E);
-            h.tvName.setTextColor(d.isOnline() ? 0xFF2E7D32 : 0xFF757575);
+            h.tvStatus.setText(d.online ? "● ONLINE" : "○ OFFLINE");
+            h.tvStatus.setTextColor(d.online ? 0xFF4CAF50 : 0xFF9E9E9E);
+            h.tvName.setTextColor(d.online ? 0xFF2E7D32 : 0xFF757575);
 
             // ID
             String id = d.deviceId != null ? d.deviceId.substring(0, Math.min(8, d.deviceId.length())) : "?";
@@ -573,43 +734,69 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
                 }
             }
 
+            // RECEIVED messages + ACK (видимость и цвета)
+            bindReceivedStyle(h.tvRecv1, h.tvRecv1Ack, received(d, 0));
+            bindReceivedStyle(h.tvRecv2, h.tvRecv2Ack, received(d, 1));
+            bindReceivedStyle(h.tvRecv3, h.tvRecv3Ack, received(d, 2));
+
+            // SENT messages + ACK (видимость и цвета)
+            bindSentStyle(h.tvSent1, h.tvSent1Ack, sent(d, 0));
+            bindSentStyle(h.tvSent2, h.tvSent2Ack, sent(d, 1));
+            bindSentStyle(h.tvSent3, h.tvSent3Ack, sent(d, 2));
+
+            // Service info
+            h.tvService.setText(String.format("📡 Svc: %s | Slot: %s | Visible: %d | Pending: %d",
+                    d.lastServiceName != null ? d.lastServiceName : "-",
+                    d.lastSlotIndex >= 0 ? String.valueOf(d.lastSlotIndex) : "-",
+                    d.visibleMsgCount,
+                    d.pendingAckCount));
+
+            h.itemView.setBackgroundColor(d.hasOurApp && d.online ? 0x0800FF00 : 0x00000000);
+        }
+
+        /**
+         * Тексты, зависящие от времени: "N с назад", свежесть связи (перерисовываются каждую секунду)
+         */
+        private void bindAges(VH h, DeviceRow d, long now) {
             // App status
-            h.tvApp.setText(String.format("%s | Seen: %dx | %ds ago",
-                    d.hasOurApp ? "✅App" : "❌NoApp", d.seenCount, (now - d.lastSeen) / 1000));
+            sb.setLength(0);
+            sb.append(d.hasOurApp ? "✅App" : "❌NoApp")
+                    .append(" | Seen: ").append(d.seenCount)
+                    .append("x | ").append((now - d.lastSeen) / 1000).append("s ago");
+            h.tvApp.setText(sb.toString());
 
             // Heartbeat
             if (d.lastHeartbeatReceived > 0) {
-                h.tvHb.setText(String.format(Locale.getDefault(), "💓 HB#%d←#%d (%ds)",
-                        d.heartbeatSeq, d.prevHeartbeatSeq, (now - d.lastHeartbeatReceived) / 1000));
+                sb.setLength(0);
+                sb.append("💓 HB#").append(d.heartbeatSeq)
+                        .append("←#").append(d.prevHeartbeatSeq)
+                        .append(" (").append((now - d.lastHeartbeatReceived) / 1000).append("s)");
+                h.tvHb.setText(sb.toString());
             } else {
                 h.tvHb.setText("💓 No HB");
             }
 
-            // RECEIVED messages + ACK
-            List<DiscoveredDevice.ReceivedMessage> recv = d.getLastReceivedMessages(3);
-            bindReceivedMessage(h.tvRecv1, h.tvRecv1Ack, recv.size() > 0 ? recv.get(0) : null, now);
-            bindReceivedMessage(h.tvRecv2, h.tvRecv2Ack, recv.size() > 1 ? recv.get(1) : null, now);
-            bindReceivedMessage(h.tvRecv3, h.tvRecv3Ack, recv.size() > 2 ? recv.get(2) : null, now);
+            bindReceivedText(h.tvRecv1, h.tvRecv1Ack, received(d, 0), now);
+            bindReceivedText(h.tvRecv2, h.tvRecv2Ack, received(d, 1), now);
+            bindReceivedText(h.tvRecv3, h.tvRecv3Ack, received(d, 2), now);
 
-            // SENT messages + ACK
-            List<DiscoveredDevice.SentMessage> sent = d.getLastSentMessages(3);
-            bindSentMessage(h.tvSent1, h.tvSent1Ack, sent.size() > 0 ? sent.get(0) : null, now);
-            bindSentMessage(h.tvSent2, h.tvSent2Ack, sent.size() > 1 ? sent.get(1) : null, now);
-            bindSentMessage(h.tvSent3, h.tvSent3Ack, sent.size() > 2 ? sent.get(2) : null, now);
+            bindSentText(h.tvSent1, h.tvSent1Ack, sent(d, 0), now);
+            bindSentText(h.tvSent2, h.tvSent2Ack, sent(d, 1), now);
+            bindSentText(h.tvSent3, h.tvSent3Ack, sent(d, 2), now);
 
-            // Service info
-            h.tvService.setText(String.format("📡 Svc: %s | Slot: %s | Visible: %d | Pending: %d",
-                    d.lastServiceName != null ? d.lastServiceName : "-",
-                    d.lastSlotIndex >= 0 ? String.valueOf(d.lastSlotIndex) : "-",
-                    d.currentVisibleMsgIds.size(),
-                    d.getPendingAckMessageIds().size()));
+            // Latency + качество связи (свежесть падает со временем)
+            h.tvLatency.setText(d.latencyText + "\n" + d.linkSummary(now));
+        }
 
-            h.itemView.setOnClickListener(v -> listener.onClick(d));
-            h.itemView.setBackgroundColor(d.hasOurApp && d.isOnline() ? 0x0800FF00 : 0x00000000);
+        private static DeviceSnapshot.Received received(DeviceRow d, int i) {
+            return d.received.size() > i ? d.received.get(i) : null;
         }
 
-        private void bindReceivedMessage(TextView tvMsg, TextView tvAck,
-                                         DiscoveredDevice.ReceivedMessage m, long now) {
+        private static DeviceSnapshot.Sent sent(DeviceRow d, int i) {
+            return d.sent.size() > i ? d.sent.get(i) : null;
+        }
+
+        private void bindReceivedStyle(TextView tvMsg, TextView tvAck, DeviceSnapshot.Received m) {
             if (m == null) {
                 tvMsg.setVisibility(View.GONE);
                 tvAck.setVisibility(View.GONE);
@@ -618,24 +805,36 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
             tvMsg.setVisibility(View.VISIBLE);
             tvAck.setVisibility(View.VISIBLE);
 
-            long ago = (now - m.receivedAt) / 1000;
-            tvMsg.setText(String.format("↓ [%s] \"%s\" (%ds)", m.messageId, truncate(m.text, 20), ago));
-
             if (m.ackConfirmed) {
-                tvAck.setText(String.format("  ↪ ACK ✓ delivered (sent %dx)", m.ackSendCount));
                 tvAck.setTextColor(0xFF4CAF50);
             } else if (m.ackSent) {
-                long ackAgo = (now - m.ackSentAt) / 1000;
-                tvAck.setText(String.format("  ↪ ACK sending... %dx (%ds)", m.ackSendCount, ackAgo));
                 tvAck.setTextColor(0xFFFF9800);
             } else {
-                tvAck.setText("  ↪ ACK pending");
                 tvAck.setTextColor(0xFF9E9E9E);
             }
         }
 
-        private void bindSentMessage(TextView tvMsg, TextView tvAck,
-                                     DiscoveredDevice.SentMessage m, long now) {
+        private void bindReceivedText(TextView tvMsg, TextView tvAck, DeviceSnapshot.Received m, long now) {
+            if (m == null) return;
+
+            sb.setLength(0);
+            sb.append("↓ [").append(m.messageId).append("] \"").append(truncate(m.text, 20))
+                    .append("\" (").append((now - m.receivedAt) / 1000).append("s)");
+            tvMsg.setText(sb.toString());
+
+            if (m.ackConfirmed) {
+                tvAck.setText(String.format("  ↪ ACK ✓ delivered (sent %dx)", m.ackSendCount));
+            } else if (m.ackSent) {
+                sb.setLength(0);
+                sb.append("  ↪ ACK sending... ").append(m.ackSendCount)
+                        .append("x (").append((now - m.ackSentAt) / 1000).append("s)");
+                tvAck.setText(sb.toString());
+            } else {
+                tvAck.setText("  ↪ ACK pending");
+            }
+        }
+
+        private void bindSentStyle(TextView tvMsg, TextView tvAck, DeviceSnapshot.Sent m) {
             if (m == null) {
                 tvMsg.setVisibility(View.GONE);
                 tvAck.setVisibility(View.GONE);
@@ -644,16 +843,8 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
             tvMsg.setVisibility(View.VISIBLE);
             tvAck.setVisibility(View.VISIBLE);
 
-            long ago = (now - m.sentAt) / 1000;
-            String ackIcon = m.acknowledged ? "✓" : "⏳";
-            tvMsg.setText(String.format("↑ %s [%s] \"%s\" (%ds) S:%d",
-                    ackIcon, m.messageId, truncate(m.text, 15), ago, m.slotIndex));
             tvMsg.setTextColor(m.acknowledged ? 0xFF4CAF50 : 0xFFFF9800);
-
             if (m.acknowledged) {
-                long ackAgo = (now - m.ackReceivedAt) / 1000;
-                String batch = m.ackBatch.isEmpty() ? "" : " (+" + String.join(",", m.ackBatch) + ")";
-                tvAck.setText(String.format("  ↩ ACK received (%ds)%s", ackAgo, batch));
                 tvAck.setTextColor(0xFF2196F3);
             } else {
                 tvAck.setText("  ↩ waiting ACK...");
@@ -661,6 +852,28 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
             }
         }
 
+        private void bindSentText(TextView tvMsg, TextView tvAck, DeviceSnapshot.Sent m, long now) {
+            if (m == null) return;
+
+            sb.setLength(0);
+            sb.append("↑ ").append(m.acknowledged ? "✓" : "⏳")
+                    .append(" [").append(m.messageId).append("] \"").append(truncate(m.text, 15))
+                    .append("\" (").append((now - m.sentAt) / 1000).append("s) S:").append(m.slotIndex);
+            if (m.recipients > 0) {
+                sb.append(" → ").append(m.deliveredTo).append("/").append(m.recipients);
+            }
+            tvMsg.setText(sb.toString());
+
+            if (m.acknowledged) {
+                sb.setLength(0);
+                sb.append("  ↩ ACK received (").append((now - m.ackReceivedAt) / 1000).append("s)");
+                if (!m.ackBatch.isEmpty()) {
+                    sb.append(" (+").append(m.ackBatch).append(")");
+                }
+                tvAck.setText(sb.toString());
+            }
+        }
+
         private String truncate(String s, int max) {
             if (s == null) return "";
             return s.length() <= max ? s : s.substring(0, max) + "…";
@@ -668,14 +881,14 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
 
         @Override
         public int getItemCount() {
-            return list.size();
+            return differ.getCurrentList().size();
         }
 
         static class VH extends RecyclerView.ViewHolder {
             TextView tvName, tvStatus, tvId, tvSessionId, tvApp, tvHb;
             TextView tvRecv1, tvRecv1Ack, tvRecv2, tvRecv2Ack, tvRecv3, tvRecv3Ack;
             TextView tvSent1, tvSent1Ack, tvSent2, tvSent2Ack, tvSent3, tvSent3Ack;
-            TextView tvService;
+            TextView tvService, tvLatency;
 
             VH(View v) {
                 super(v);
@@ -701,6 +914,7 @@ public class MainActivity extends AppCompatActivity implements DiscoveryService.
                 tvSent3Ack = v.findViewById(R.id.tv_sent_3_ack);
 
                 tvService = v.findViewById(R.id.tv_service_info);
+                tvLatency = v.findViewById(R.id.tv_latency_info);
             }
         }
     }
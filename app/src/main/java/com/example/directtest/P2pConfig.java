@@ -27,6 +27,11 @@ public final class P2pConfig {
      */
     public static final String MSG_SLOT_PREFIX = "WFD_Msg";
 
+    /**
+     * Префикс почтовых ящиков получателей (WFD_Box0, WFD_Box1, ...)
+     */
+    public static final String MAILBOX_PREFIX = "WFD_Box";
+
     /**
      * Имя сервиса подтверждений
      */
@@ -37,6 +42,11 @@ public final class P2pConfig {
      */
     public static final String SYNC_SERVICE_NAME = "WFD_Sync";
 
+    /**
+     * Имя сервиса списка соседей (карта сети для маршрутизации)
+     */
+    public static final String NBR_SERVICE_NAME = "WFD_Nbr";
+
     /**
      * Маркер в имени устройства для идентификации нашего приложения
      */
@@ -50,9 +60,10 @@ public final class P2pConfig {
     public static final int MAX_MSG_SLOTS = 3;
 
     /**
-     * Максимальное количество обработанных ID сообщений в памяти
+     * Максимальное количество обработанных ID сообщений в памяти.
+     * В режиме relay сюда же попадают ретранслируемые сообщения соседей.
      */
-    public static final int MAX_PROCESSED_IDS = 100;
+    public static final int MAX_PROCESSED_IDS = 1_000;
 
     /**
      * Максимальное количество обработанных ACK в памяти
@@ -74,6 +85,31 @@ public final class P2pConfig {
      */
     public static final int MAX_ACKS_PER_RECORD = 5;
 
+    /**
+     * Глубина истории сообщений устройства в UI (DiscoveredDevice).
+     * История - кольцевой буфер с индексом, поэтому глубина не влияет на стоимость операций.
+     */
+    public static final int MESSAGE_HISTORY_DEPTH = 10;
+
+    /**
+     * Глубина сохраняемой истории для SYNC (DeviceState).
+     * SYNC v2 передаёт дайджест фиксированного размера, поэтому глубина
+     * не ограничена размером TXT записи.
+     */
+    public static final int STATE_HISTORY_DEPTH = 64;
+
+    /**
+     * Сколько последних ID отправляется в списках sent/recv записи SYNC v1.
+     * Ограничено размером TXT значения (255 байт).
+     */
+    public static final int SYNC_MAX_IDS = 3;
+
+    /**
+     * Сколько сообщений хранить в журнале переписки с одним пиром (MessageStore).
+     * Более старые удаляются фоновой компакцией.
+     */
+    public static final int STORE_MAX_MESSAGES_PER_PEER = 100_000;
+
     // ==================== TIMING: BURST DISCOVERY ====================
 
     // ==================== TIMING: BURST DISCOVERY ====================
@@ -137,15 +173,383 @@ public final class P2pConfig {
     public static final long ACK_SERVICE_LIFETIME = 15_000;
 
     /**
-     * Время жизни SYNC сервиса (мс)
+     * Время жизни секции получателя в записи SYNC с момента её первой публикации (мс)
      */
     public static final long SYNC_SERVICE_LIFETIME = 30_000;
 
+    /**
+     * Задержка публикации записи SYNC: запросы SYNC к разным пирам
+     * за это время попадают в одну регистрацию (мс)
+     */
+    public static final long SYNC_PUBLISH_DELAY = 300;
+
+    /**
+     * Минимальный интервал между перерегистрациями записи SYNC (мс)
+     */
+    public static final long SYNC_PUBLISH_MIN_SPACING = 2_000;
+
+    /**
+     * Интервал смены страницы записи SYNC, если секции не помещаются в одну (мс)
+     */
+    public static final long SYNC_ROTATE_INTERVAL = 5_000;
+
+    /**
+     * Бюджет секций в записи WFD_Sync (байт). Ответ service discovery несёт
+     * все сервисы устройства, поэтому запись держим небольшой: около трёх дайджестов.
+     */
+    public static final int SYNC_RECORD_BUDGET = 900;
+
     /**
      * Интервал проверки необходимости SYNC (мс)
      */
     public static final long SYNC_CHECK_INTERVAL = 10_000;
 
+    // ==================== TIMING: GAP REPAIR ====================
+
+    /**
+     * Задержка внеочередного heartbeat с отчётом "rx" после появления
+     * или закрытия пропуска (мс). Несколько изменений объединяются в один.
+     */
+    public static final long RX_REPORT_DELAY = 500;
+
+    /**
+     * Сколько отчёт о приёме от отправителя публикуется после последнего
+     * полученного от него сообщения (мс)
+     */
+    public static final long RX_REPORT_TTL = 300_000;
+
+    /**
+     * Максимальная длина значения "rx" в heartbeat (TXT значение до 255 байт)
+     */
+    public static final int MAX_RX_REPORT_LENGTH = 240;
+
+    /**
+     * Не переотправлять один и тот же пропуск чаще (мс)
+     */
+    public static final long GAP_REPAIR_GUARD = 3_000;
+
+    // ==================== RESEND PACING ====================
+
+    /**
+     * Минимальный интервал между переотправками (мс).
+     * Каждая переотправка - перерегистрация DNS-SD сервиса.
+     */
+    public static final long RESEND_MIN_INTERVAL = 1_000;
+
+    /**
+     * Сколько слотов одновременно могут занимать переотправки
+     */
+    public static final int RESEND_MAX_SLOTS = 2;
+
+    /**
+     * Сколько свободных слотов переотправки всегда оставляют новым сообщениям
+     */
+    public static final int RESEND_RESERVED_SLOTS = 1;
+
+    // ==================== PRIORITY ====================
+
+    /**
+     * Срок доставки срочного сообщения (мс): порядок внутри класса URGENT
+     */
+    public static final long PRIORITY_URGENT_DEADLINE = 10_000;
+
+    /**
+     * Срок доставки обычного сообщения (мс)
+     */
+    public static final long PRIORITY_NORMAL_DEADLINE = 60_000;
+
+    /**
+     * Срок доставки фонового сообщения (мс)
+     */
+    public static final long PRIORITY_LOW_DEADLINE = 300_000;
+
+    /**
+     * Сколько своих сообщений может ждать свободного слота
+     */
+    public static final int SEND_QUEUE_CAPACITY = 16;
+
+    /**
+     * Сколько неподтверждённых сообщений (в слотах и в очереди) может быть у одного получателя
+     */
+    public static final int MAX_UNACKED_PER_PEER = 12;
+
+    // ==================== PACKING ====================
+
+    /**
+     * Сколько сообщений одному получателю может нести одна запись слота
+     */
+    public static final int MAX_MSGS_PER_SLOT = 4;
+
+    /**
+     * Бюджет дополнительных сообщений в записи слота (байт TXT): первое сообщение
+     * занимает обычные поля, остальные - mid1/msg1/q1/p1... в пределах бюджета
+     */
+    public static final int SLOT_PACK_BUDGET = 400;
+
+    /**
+     * Окно накопления (мс): обычное сообщение ждёт в очереди, чтобы следующие
+     * за ним сообщения тому же получателю ушли в той же записи
+     */
+    public static final long COALESCE_WINDOW = 500;
+
+    // ==================== MAILBOXES ====================
+
+    /**
+     * Личные сообщения публикуются в почтовых ящиках: одна запись на получателя со всеми
+     * его неподтверждёнными сообщениями, переписывается на месте по мере ACK.
+     * Нумерованные слоты остаются для broadcast, переотправок и ретрансляций.
+     */
+    public static final boolean MAILBOX_MODE = true;
+
+    /**
+     * Сколько ящиков может быть опубликовано одновременно
+     */
+    public static final int MAX_MAILBOXES = 4;
+
+    /**
+     * Ящик получателя без отправок и ACK дольше этого (мс) может быть отдан другому
+     * получателю (по LRU); его сообщения доставит SYNC
+     */
+    public static final long MAILBOX_IDLE = 30_000;
+
+    // ==================== FEC ====================
+
+    /**
+     * Длинное личное сообщение (больше MAX_MESSAGE_LENGTH) уходит фрагментами
+     * с фрагментами чётности Рида-Соломона: получателю хватает любых k из n
+     */
+    public static final boolean FEC_ENABLED = true;
+
+    /**
+     * Размер фрагмента (байт UTF-8): в Base64 - 96 символов, укладывается в MAX_MESSAGE_LENGTH
+     */
+    public static final int FRAGMENT_BYTES = 72;
+
+    /**
+     * Максимальная длина сообщения, отправляемого фрагментами (символов)
+     */
+    public static final int MAX_FRAGMENTED_LENGTH = 200;
+
+    /**
+     * С какой вероятностью получатель должен собрать k из n фрагментов при измеренной
+     * доле потерь (по ней выбирается число фрагментов чётности)
+     */
+    public static final double FEC_TARGET = 0.95;
+
+    /**
+     * Нижняя граница доли потерь для выбора чётности: записи теряются и без пропусков heartbeat
+     * (устаревший кэш discovery)
+     */
+    public static final double FEC_MIN_LOSS = 0.05;
+
+    /**
+     * Максимум фрагментов чётности на сообщение
+     */
+    public static final int FEC_MAX_PARITY = 4;
+
+    /**
+     * Сколько своих сообщений одновременно может быть в отправке фрагментами.
+     * Сверх этого новое длинное сообщение не ставится в очередь (переотправку доделает SYNC):
+     * вытеснять учёт отправленного нельзя - потеряется ACK всего сообщения
+     */
+    public static final int MAX_FRAGMENTED_IN_FLIGHT = 8;
+
+    /**
+     * Сколько сообщений одновременно собирается из фрагментов
+     */
+    public static final int MAX_FRAGMENT_ASSEMBLIES = 8;
+
+    /**
+     * Незавершённая сборка без новых фрагментов дольше этого (мс) отбрасывается
+     */
+    public static final long FRAGMENT_ASSEMBLY_TTL = 120_000;
+
+    // ==================== SESSION RESUME ====================
+
+    /**
+     * Сколько после запуска (мс) публиковать в heartbeat сохранённые границы приёма ("rs"),
+     * чтобы отправители сразу переотправили то, что мы не получили до перезапуска
+     */
+    public static final long RESUME_ADVERTISE_PERIOD = 300_000;
+
+    /**
+     * Максимальная длина значения "rs" в heartbeat
+     */
+    public static final int MAX_RESUME_MARKS_LENGTH = 120;
+
+    // ==================== FLOW CONTROL ====================
+
+    /**
+     * За какое время получатель должен увидеть опубликованные для него сообщения (мс).
+     * Объявляемое окно = это время / интервал, с которым он обнаруживает наши записи.
+     */
+    public static final long FLOW_WINDOW_REFERENCE = 15_000;
+
+    /**
+     * TXT записи отправителя, пришедшие с меньшим промежутком (мс),
+     * относятся к одному циклу обнаружения
+     */
+    public static final long FLOW_WINDOW_BURST_GAP = 1_500;
+
+    /**
+     * Промежуток между циклами больше этого (мс) - отправитель отсутствовал,
+     * а не медленно обнаруживается: в оценку интервала не входит
+     */
+    public static final long FLOW_WINDOW_MAX_GAP = 60_000;
+
+    /**
+     * Сколько действует окно, объявленное получателем (мс); затем - MAX_MSG_SLOTS
+     */
+    public static final long FLOW_WINDOW_TTL = 60_000;
+
+    /**
+     * Максимальная длина значения "w" в heartbeat
+     */
+    public static final int MAX_FLOW_WINDOW_LENGTH = 120;
+
+    // ==================== LINK QUALITY ====================
+
+    /**
+     * TXT записи пира, пришедшие с меньшим промежутком (мс), относятся
+     * к одному циклу обнаружения (оценка интервала обнаружения)
+     */
+    public static final long LINK_BURST_GAP = 1_500;
+
+    /**
+     * Качество связи ниже этого (0..100) - плохое: пока в слотах сообщения
+     * такому пиру, discovery идёт с FAST_INTERVAL
+     */
+    public static final int LINK_POOR_SCORE = 50;
+
+    /**
+     * Свежесть ниже этой (0..1) - пир пропал раньше DEVICE_ONLINE_THRESHOLD:
+     * его обычный интервал обнаружения давно прошёл, слоты для него освобождаются
+     */
+    public static final double LINK_GONE_FRESHNESS = 0.1;
+
+    // ==================== MESH RELAY ====================
+
+    /**
+     * Режим relay по умолчанию: ретранслировать сообщения соседей для других получателей
+     */
+    public static final boolean RELAY_ENABLED = false;
+
+    /**
+     * Сколько ретрансляций разрешено сообщению, если отправитель не указал "h"
+     */
+    public static final int RELAY_MAX_HOPS = 4;
+
+    /**
+     * Выдержка перед ретрансляцией (мс): если получатель за это время
+     * подтвердил сообщение напрямую, ретрансляция не нужна
+     */
+    public static final long RELAY_HOLD = 3_000;
+
+    /**
+     * Минимальный интервал между ретрансляциями (мс)
+     */
+    public static final long RELAY_MIN_INTERVAL = 2_000;
+
+    /**
+     * Сколько слотов одновременно могут занимать ретрансляции
+     */
+    public static final int RELAY_MAX_SLOTS = 1;
+
+    /**
+     * Сколько свободных слотов ретрансляции всегда оставляют своим сообщениям
+     */
+    public static final int RELAY_RESERVED_SLOTS = 1;
+
+    /**
+     * Максимальная очередь ретрансляций
+     */
+    public static final int RELAY_QUEUE_CAPACITY = 32;
+
+    /**
+     * Сколько пересылать назад сквозной ACK ретранслированного сообщения (мс)
+     */
+    public static final long RELAY_ACK_LIFETIME = 15_000;
+
+    /**
+     * Gossip broadcast: ожидаемое число ретрансляторов среди соседей.
+     * Вероятность ретрансляции = GOSSIP_FANOUT / число соседей (не больше 1)
+     */
+    public static final double GOSSIP_FANOUT = 4.0;
+
+    /**
+     * Gossip broadcast: выбранный ретранслятор отменяет ретрансляцию,
+     * услышав столько копий от разных соседей (включая первую)
+     */
+    public static final int GOSSIP_COPY_THRESHOLD = 4;
+
+    /**
+     * Gossip broadcast: невыбранный узел всё равно ретранслирует,
+     * если за задержку услышал меньше копий (только первую)
+     */
+    public static final int GOSSIP_RESCUE_THRESHOLD = 2;
+
+    /**
+     * Gossip broadcast: максимальная случайная задержка ретрансляции (мс).
+     * Порядка времени обнаружения записи соседями, чтобы успеть услышать их копии
+     */
+    public static final long GOSSIP_MAX_BACKOFF = 8_000;
+
+    // ==================== BROADCAST DELIVERY ====================
+
+    /**
+     * Доля ожидаемых получателей broadcast, после подтверждения которой слот освобождается
+     */
+    public static final double BROADCAST_COVERAGE_TARGET = 1.0;
+
+    /**
+     * Сколько broadcast держит слот, если цель покрытия не достигнута (мс)
+     */
+    public static final long BROADCAST_DEADLINE = 60_000;
+
+    /**
+     * Сколько после отправки broadcast переотправляется пирам, появившимся позже
+     * или не подтвердившим его (мс)
+     */
+    public static final long BROADCAST_RESEND_WINDOW = 300_000;
+
+    /**
+     * Минимальный интервал между переотправками одного broadcast (мс)
+     */
+    public static final long BROADCAST_RESEND_SPACING = 30_000;
+
+    /**
+     * Сколько последних broadcast отслеживать по получателям
+     */
+    public static final int MAX_TRACKED_BROADCASTS = 20;
+
+    // ==================== TOPOLOGY ====================
+
+    /**
+     * Интервал публикации записи WFD_Nbr (мс). Запись редкая: список соседей
+     * и пересылаемые списки других узлов меняются медленно.
+     */
+    public static final long NBR_ADVERTISE_INTERVAL = 20_000;
+
+    /**
+     * Обновлять версию своего списка соседей не реже (мс), даже если он не изменился
+     */
+    public static final long TOPOLOGY_REFRESH = 60_000;
+
+    /**
+     * Список соседей узла устаревает, если его версия старше (мс)
+     */
+    public static final long TOPOLOGY_TTL = 180_000;
+
+    /**
+     * Бюджет записи WFD_Nbr (байт)
+     */
+    public static final int NBR_RECORD_BUDGET = 900;
+
+    /**
+     * Максимальная длина своего списка соседей (TXT значение до 255 байт)
+     */
+    public static final int MAX_NBR_DIGEST_LENGTH = 240;
+
     // ==================== TIMING: MESSAGES ====================
 
     /**
@@ -153,6 +557,27 @@ public final class P2pConfig {
      */
     public static final long SLOT_TIMEOUT = 30_000;
 
+    /**
+     * Сколько своё неподтверждённое сообщение держит слот в сумме, с повторными
+     * публикациями (мс). Дальше его доставляет SYNC.
+     */
+    public static final long SLOT_MAX_HOLD = 2 * SLOT_TIMEOUT;
+
+    /**
+     * Таймаут повторной публикации пиру без выборок RTT (мс)
+     */
+    public static final long RTO_INITIAL = SLOT_TIMEOUT;
+
+    /**
+     * Нижняя граница RTO (мс): пир должен успеть хотя бы на один цикл discovery
+     */
+    public static final long RTO_MIN = 10_000;
+
+    /**
+     * Верхняя граница RTO с учётом back-off (мс)
+     */
+    public static final long RTO_MAX = 60_000;
+
     /**
      * Максимальный возраст сообщения в секундах (TTL)
      */
@@ -0,0 +1,56 @@
+package com.example.directtest.mesh;
+
+import java.util.Random;
+
+/**
+ * Правила ретрансляции broadcast-сообщений (gossip).
+ *
+ * Затопление в плотной группе (каждый ретранслирует каждое сообщение) умножает
+ * регистрации DNS-SD сервисов и забивает общий эфир. Вместо этого:
+ * - при первой копии узел "выбирается" ретранслятором с вероятностью
+ *   fanout / число соседей (при малом числе соседей - всегда);
+ * - ретрансляция ждёт случайную задержку до maxBackoffMs;
+ * - выбранный узел отменяет её, если за это время услышал copyThreshold копий
+ *   от разных соседей - сообщение уже разошлось вокруг;
+ * - невыбранный всё равно ретранслирует, если за задержку не услышал ни одной
+ *   копии кроме первой: иначе в разреженных местах рассылка обрывается.
+ */
+public final class GossipPolicy {
+
+    private final double fanout;
+    private final int copyThreshold;
+    private final int rescueThreshold;
+    private final long maxBackoffMs;
+    private final Random random;
+
+    public GossipPolicy(double fanout, int copyThreshold, int rescueThreshold,
+                        long maxBackoffMs, Random random) {
+        this.fanout = fanout;
+        this.copyThreshold = copyThreshold;
+        this.rescueThreshold = rescueThreshold;
+        this.maxBackoffMs = maxBackoffMs;
+        this.random = random;
+    }
+
+    /**
+     * Вероятность ретрансляции при данном числе соседей
+     */
+    public double forwardProbability(int neighbours) {
+        return neighbours <= fanout ? 1.0 : fanout / neighbours;
+    }
+
+    /**
+     * Решение при первой копии сообщения: сколько копий от разных соседей
+     * (включая первую) отменяют ретрансляцию
+     */
+    public int copyLimit(int neighbours) {
+        return random.nextDouble() < forwardProbability(neighbours) ? copyThreshold : rescueThreshold;
+    }
+
+    /**
+     * Случайная задержка ретрансляции (мс)
+     */
+    public long backoff() {
+        return (long) (random.nextDouble() * maxBackoffMs);
+    }
+}
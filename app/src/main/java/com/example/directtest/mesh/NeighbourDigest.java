@@ -0,0 +1,79 @@
+package com.example.directtest.mesh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Компактный список соседей узла для записи WFD_Nbr.
+ *
+ * Формат: id:age:q[,id:age:q...]
+ *   id  - shortId соседа (8 hex)
+ *   age - сколько секунд назад сосед был слышен (0..999)
+ *   q   - качество связи 0..100
+ * Одна запись около 15 байт, в TXT значение (до 255 байт) помещается 15 соседей.
+ */
+public final class NeighbourDigest {
+
+    public static final int MAX_AGE_SEC = 999;
+
+    /**
+     * Сосед в списке
+     */
+    public static final class Entry {
+        public final String id;
+        public final int ageSec;
+        public final int quality;
+
+        public Entry(String id, int ageSec, int quality) {
+            this.id = id;
+            this.ageSec = Math.max(0, Math.min(ageSec, MAX_AGE_SEC));
+            this.quality = Math.max(0, Math.min(quality, 100));
+        }
+
+        /** Стоимость ребра для кратчайших путей: 1 при идеальной связи, до 6 при плохой */
+        public int cost() {
+            return 1 + (100 - quality) / 20;
+        }
+    }
+
+    private NeighbourDigest() {
+    }
+
+    /**
+     * Закодировать соседей (лучшие по качеству первыми), не длиннее maxLength
+     */
+    public static String encode(List<Entry> entries, int maxLength) {
+        List<Entry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, (a, b) -> Integer.compare(b.quality, a.quality));
+
+        StringBuilder sb = new StringBuilder();
+        for (Entry e : sorted) {
+            String item = e.id + ":" + e.ageSec + ":" + e.quality;
+            if (sb.length() + item.length() + 1 > maxLength) break;
+            if (sb.length() > 0) sb.append(',');
+            sb.append(item);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Разобрать список соседей; неверные элементы пропускаются
+     */
+    public static List<Entry> parse(String digest) {
+        List<Entry> result = new ArrayList<>();
+        if (digest == null || digest.isEmpty()) {
+            return result;
+        }
+        for (String item : digest.split(",")) {
+            String[] parts = item.split(":");
+            if (parts.length != 3 || parts[0].isEmpty()) continue;
+            try {
+                result.add(new Entry(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+            } catch (NumberFormatException e) {
+                // пропускаем
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,365 @@
+package com.example.directtest.mesh;
+
+import com.example.directtest.metrics.Counter;
+import com.example.directtest.metrics.MetricsRegistry;
+import com.example.directtest.model.MessagePriority;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Ретрансляция чужих сообщений (store-and-forward) в режиме relay.
+ *
+ * Узел, услышавший в слоте соседа сообщение для другого получателя, публикует его
+ * в своём слоте с полями "o" (отправитель), "h" (сколько ещё ретрансляций разрешено)
+ * и "ot" (время отправки у отправителя). Сквозной ACK получателя идёт обратно
+ * по тому же пути: его пересылают в своих записях "ack" только узлы, которые
+ * ретранслировали это сообщение.
+ *
+ * Ретрансляция снимается со слота по сквозному ACK или когда слышно, что сообщение
+ * ретранслировал следующий узел (пассивное подтверждение участка пути).
+ *
+ * - Сообщение ждёт holdMs: если за это время получатель ответил ACK напрямую
+ *   или сообщение уже ретранслировал другой сосед, наша ретрансляция не нужна.
+ * - Не чаще одной ретрансляции в minIntervalMs, не больше maxSlots слотов,
+ *   reservedForLive свободных слотов всегда остаются своим сообщениям.
+ * - Готовые к ретрансляции выдаются по приоритету ("p"), внутри класса - по сроку
+ *   (время отправки + срок класса). Срочные не ждут holdMs.
+ * - Очередь ограничена capacity: при переполнении вытесняется самое несрочное.
+ *
+ * Broadcast (target == null) ретранслируется по правилам GossipPolicy: со случайной
+ * задержкой вместо holdMs и отменой, когда услышано достаточно копий от разных соседей.
+ * Сквозного ACK у broadcast нет - ретрансляция живёт в слоте до таймаута слота.
+ *
+ * Дубликаты отсекает FastDiscoveryManager по processedMessageIds до вызова offer();
+ * offer() дополнительно не принимает уже известное или подтверждённое сообщение.
+ */
+public final class RelayManager {
+
+    /**
+     * Ретранслируемое сообщение
+     */
+    public static final class Relay {
+        public final String msgId;
+        public final String origin;
+        /** null для broadcast */
+        public final String target;
+        public final String text;
+        /** Сколько ещё ретрансляций разрешено после нашей */
+        public final int hops;
+        /** "ot" - время отправки у отправителя (сек) */
+        public final long originTimeSec;
+        /** От кого услышали (предыдущий узел пути) */
+        public final String upstream;
+        public final long heardAt;
+        public final MessagePriority priority;
+
+        private final long readyAt;
+        private boolean done;
+        private boolean handedOff;
+        /** Broadcast: от каких соседей слышали копии и сколько их отменяют ретрансляцию */
+        private final Set<String> copiesFrom = new HashSet<>();
+        private int copyLimit = Integer.MAX_VALUE;
+
+        Relay(String msgId, String origin, String target, String text, int hops,
+              long originTimeSec, String upstream, long heardAt, long readyAt,
+              MessagePriority priority) {
+            this.msgId = msgId;
+            this.origin = origin;
+            this.target = target;
+            this.text = text;
+            this.hops = hops;
+            this.originTimeSec = originTimeSec;
+            this.upstream = upstream;
+            this.heardAt = heardAt;
+            this.readyAt = readyAt;
+            this.priority = priority;
+        }
+
+        public boolean isBroadcast() {
+            return target == null;
+        }
+
+        long deadline() {
+            return originTimeSec * 1000 + priority.deadlineMs;
+        }
+
+        /** Раньше в порядке выдачи: срочнее или, в том же классе, ближе срок */
+        boolean before(Relay o) {
+            if (priority != o.priority) return priority.isHigherThan(o.priority);
+            return deadline() < o.deadline();
+        }
+    }
+
+    private final long holdMs;
+    private final long minIntervalMs;
+    private final int maxSlots;
+    private final int reservedForLive;
+    private final int capacity;
+    private final long maxAgeMs;
+    private final long ackLifetimeMs;
+
+    private final ArrayDeque<Relay> queue = new ArrayDeque<>();
+    /** Все известные ретрансляции (в очереди и опубликованные) до ACK или истечения */
+    private final LinkedHashMap<String, Relay> known = new LinkedHashMap<>();
+    /** ACK для пересылки назад: msgId -> когда получен */
+    private final LinkedHashMap<String, Long> acksToForward = new LinkedHashMap<>();
+
+    private long nextAllowedAt = 0;
+
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final Counter forwardedCounter = metrics.counter(MetricsRegistry.RELAY_FORWARDED);
+    private final Counter acksCounter = metrics.counter(MetricsRegistry.RELAY_ACKS);
+
+    public RelayManager(long holdMs, long minIntervalMs, int maxSlots, int reservedForLive,
+                        int capacity, long maxAgeMs, long ackLifetimeMs) {
+        this.holdMs = holdMs;
+        this.minIntervalMs = minIntervalMs;
+        this.maxSlots = maxSlots;
+        this.reservedForLive = reservedForLive;
+        this.capacity = capacity;
+        this.maxAgeMs = maxAgeMs;
+        this.ackLifetimeMs = ackLifetimeMs;
+    }
+
+    // ==================== ОЧЕРЕДЬ ====================
+
+    /**
+     * Принять сообщение для ретрансляции
+     * @param hops сколько ретрансляций разрешено с учётом нашей
+     * @return false если TTL исчерпан или сообщение уже известно
+     */
+    public boolean offer(String msgId, String origin, String target, String text, int hops,
+                         long originTimeSec, String upstream, MessagePriority priority, long now) {
+        if (hops <= 0) {
+            metrics.counter(MetricsRegistry.RELAY_DROPPED, "reason", "ttl").inc();
+            return false;
+        }
+        if (known.containsKey(msgId) || acksToForward.containsKey(msgId)) {
+            metrics.counter(MetricsRegistry.RELAY_DROPPED, "reason", "duplicate").inc();
+            return false;
+        }
+        long readyAt = priority == MessagePriority.URGENT ? now : now + holdMs;
+        enqueue(new Relay(msgId, origin, target, text, hops - 1, originTimeSec, upstream,
+                now, readyAt, priority));
+        return true;
+    }
+
+    /**
+     * Принять broadcast для ретрансляции (gossip)
+     * @param backoffMs случайная задержка перед ретрансляцией
+     * @param copyLimit сколько копий от разных соседей (включая первую) отменяют ретрансляцию
+     * @return false если TTL исчерпан или копий уже достаточно
+     */
+    public boolean offerBroadcast(String msgId, String origin, String text, int hops,
+                                  long originTimeSec, String upstream, MessagePriority priority,
+                                  long now, long backoffMs, int copyLimit) {
+        if (hops <= 0) {
+            metrics.counter(MetricsRegistry.RELAY_DROPPED, "reason", "ttl").inc();
+            return false;
+        }
+        Relay r = new Relay(msgId, origin, null, text, hops - 1, originTimeSec, upstream,
+                now, now + backoffMs, priority);
+        r.copiesFrom.add(upstream);
+        r.copyLimit = copyLimit;
+        if (r.copiesFrom.size() >= copyLimit) {
+            metrics.counter(MetricsRegistry.RELAY_DROPPED, "reason", "suppressed").inc();
+            return false;
+        }
+        enqueue(r);
+        return true;
+    }
+
+    private void enqueue(Relay r) {
+        if (queue.size() >= capacity) {
+            Relay worst = null;
+            for (Relay q : queue) {
+                if (worst == null || worst.before(q)) worst = q;
+            }
+            queue.remove(worst);
+            known.remove(worst.msgId);
+            metrics.counter(MetricsRegistry.RELAY_DROPPED, "reason", "overflow").inc();
+        }
+        queue.addLast(r);
+        known.put(r.msgId, r);
+        trimKnown();
+    }
+
+    /**
+     * Вернуть ретрансляцию, вытесненную из слота своим сообщением, в начало очереди
+     */
+    public void requeueFront(String msgId) {
+        Relay r = known.get(msgId);
+        if (r != null && !r.done && !r.handedOff) {
+            queue.addFirst(r);
+        }
+    }
+
+    private void trimKnown() {
+        while (known.size() > capacity * 4) {
+            Iterator<Relay> it = known.values().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Услышан ACK чужого сообщения
+     * @return ретрансляция этого сообщения (ACK нужно переслать назад) или null если мы его не ретранслировали
+     */
+    public Relay onAck(String msgId, long now) {
+        Relay r = known.get(msgId);
+        if (r == null || r.isBroadcast()) return null;  // ACK одного из получателей broadcast
+        known.remove(msgId);
+        r.done = true;
+        queue.remove(r);
+        if (!acksToForward.containsKey(msgId)) {
+            acksToForward.put(msgId, now);
+            acksCounter.inc();
+        }
+        return r;
+    }
+
+    /**
+     * Услышана ретрансляция этого сообщения другим соседом (не тем, от кого мы его получили):
+     * путь продолжен, наша копия больше не нужна. ACK по-прежнему пересылается назад.
+     * @return true если нужно освободить слот или очередь изменилась
+     */
+    public boolean onForwarded(String msgId, String forwarder) {
+        Relay r = known.get(msgId);
+        if (r == null || r.done || r.handedOff || forwarder.equals(r.upstream)) {
+            return false;
+        }
+        r.handedOff = true;
+        queue.remove(r);
+        return true;
+    }
+
+    /**
+     * Услышана копия broadcast от соседа. Набралось copyLimit копий от разных
+     * соседей - сообщение разошлось вокруг без нас, ретрансляция отменяется.
+     * @return true если ретрансляция отменена (и слот, если уже опубликована, нужно освободить)
+     */
+    public boolean onCopyHeard(String msgId, String from) {
+        Relay r = known.get(msgId);
+        if (r == null || !r.isBroadcast() || r.handedOff) {
+            return false;
+        }
+        r.copiesFrom.add(from);
+        if (r.copiesFrom.size() < r.copyLimit) {
+            return false;
+        }
+        r.handedOff = true;
+        if (queue.remove(r)) {
+            metrics.counter(MetricsRegistry.RELAY_DROPPED, "reason", "suppressed").inc();
+        }
+        return true;
+    }
+
+    public boolean isAcked(String msgId) {
+        return acksToForward.containsKey(msgId);
+    }
+
+    public void clear() {
+        queue.clear();
+        known.clear();
+        acksToForward.clear();
+    }
+
+    public int backlog() {
+        return queue.size();
+    }
+
+    // ==================== ВЫДАЧА ====================
+
+    /**
+     * Следующая ретрансляция, если её можно выполнить сейчас: среди готовых
+     * самая срочная, в том же классе - с ближайшим сроком
+     * @param freeSlots свободные слоты
+     * @param relaySlots слоты, занятые ретрансляциями
+     * @return null если готовых нет, не прошёл интервал или нет слота
+     */
+    public Relay poll(long now, int freeSlots, int relaySlots) {
+        dropExpired(now);
+        if (now < nextAllowedAt || freeSlots <= reservedForLive || relaySlots >= maxSlots) {
+            return null;
+        }
+        Relay best = null;
+        for (Relay r : queue) {
+            if (now >= r.readyAt && (best == null || r.before(best))) best = r;
+        }
+        if (best == null) {
+            return null;
+        }
+        queue.remove(best);
+        nextAllowedAt = now + minIntervalMs;
+        forwardedCounter.inc();
+        return best;
+    }
+
+    private void dropExpired(long now) {
+        Iterator<Relay> it = queue.iterator();
+        while (it.hasNext()) {
+            Relay r = it.next();
+            if (now - r.originTimeSec * 1000 > maxAgeMs) {
+                it.remove();
+                known.remove(r.msgId);
+                metrics.counter(MetricsRegistry.RELAY_DROPPED, "reason", "age").inc();
+            }
+        }
+    }
+
+    /**
+     * Когда снова вызвать poll()
+     * @return -1 если очередь пуста
+     */
+    public long nextPollTime() {
+        long earliest = -1;
+        for (Relay r : queue) {
+            if (earliest < 0 || r.readyAt < earliest) earliest = r.readyAt;
+        }
+        return earliest < 0 ? -1 : Math.max(nextAllowedAt, earliest);
+    }
+
+    // ==================== ACK НАЗАД ====================
+
+    /**
+     * ACK для публикации в наших записях (самые свежие первыми)
+     */
+    public List<String> acksToForward(long now, int limit) {
+        Iterator<Map.Entry<String, Long>> it = acksToForward.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() > ackLifetimeMs) {
+                it.remove();
+            }
+        }
+        List<String> result = new ArrayList<>(acksToForward.keySet());
+        List<String> latest = new ArrayList<>();
+        for (int i = result.size() - 1; i >= 0 && latest.size() < limit; i--) {
+            latest.add(result.get(i));
+        }
+        return latest;
+    }
+
+    public String getDiagnosticInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Queued: ").append(queue.size())
+                .append(" | tracked: ").append(known.size())
+                .append(" | acks back: ").append(acksToForward.size());
+        for (Relay r : queue) {
+            sb.append("\n  ").append(r.msgId).append(" ").append(r.origin)
+                    .append("->").append(r.isBroadcast() ? "*" : r.target).append(" h=").append(r.hops)
+                    .append(" ").append(r.priority.label);
+            if (r.isBroadcast()) {
+                sb.append(" copies=").append(r.copiesFrom.size()).append("/").append(r.copyLimit);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,353 @@
+package com.example.directtest.mesh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Локальная карта сети по спискам соседей из записей WFD_Nbr.
+ *
+ * Узлы объявляют своих соседей (NeighbourDigest) с версией - временем объявления
+ * по своим часам (сек). Чужие списки пересылаются дальше (link-state), поэтому
+ * карта покрывает всю связную сеть, а не только соседей соседей. Список узла
+ * устаревает, если его версия старше ttl: сам узел обновляет версию чаще.
+ *
+ * Связь считаем симметричной: стоимость ребра - минимум из объявлений обеих сторон.
+ * Кратчайшие пути от нас (Дейкстра) обновляются по мере прихода списков:
+ * - новое или улучшившееся ребро - релаксация только от его концов;
+ * - ухудшение ребра вне дерева кратчайших путей ничего не меняет;
+ * - ухудшение ребра дерева - полный пересчёт при следующем запросе маршрута.
+ */
+public final class TopologyGraph {
+
+    private static final int INF = Integer.MAX_VALUE;
+
+    private static final class NodeInfo {
+        long version;
+        String rawDigest = "";
+        Map<String, Integer> advertised = new HashMap<>();
+    }
+
+    private static final class QueueEntry implements Comparable<QueueEntry> {
+        final String node;
+        final int dist;
+
+        QueueEntry(String node, int dist) {
+            this.node = node;
+            this.dist = dist;
+        }
+
+        @Override
+        public int compareTo(QueueEntry o) {
+            return Integer.compare(dist, o.dist);
+        }
+    }
+
+    private final String self;
+    private final Map<String, NodeInfo> nodes = new HashMap<>();
+    /** Рёбра с итоговой стоимостью (в обе стороны) */
+    private final Map<String, Map<String, Integer>> adj = new HashMap<>();
+
+    private final Map<String, Integer> dist = new HashMap<>();
+    private final Map<String, String> pred = new HashMap<>();
+    private final Map<String, String> nextHop = new HashMap<>();
+    private final PriorityQueue<QueueEntry> relaxQueue = new PriorityQueue<>();
+    private boolean needsFullRecompute = true;
+
+    /** Списки, изменившиеся с последнего объявления (пересылаются первыми) */
+    private final LinkedHashSet<String> unadvertised = new LinkedHashSet<>();
+    private int advertiseCursor = 0;
+
+    private int fullRecomputes = 0;
+    private int incrementalUpdates = 0;
+
+    public TopologyGraph(String self) {
+        this.self = self;
+        nodes.put(self, new NodeInfo());
+    }
+
+    // ==================== ОБНОВЛЕНИЕ ====================
+
+    /**
+     * Наши соседи. Версия обновляется при изменении списка или раз в refreshMs,
+     * чтобы пересылаемые другими копии не устаревали.
+     * @return true если версия обновилась
+     */
+    public boolean setLocalNeighbours(List<NeighbourDigest.Entry> entries, int maxLength,
+                                      long now, long refreshMs) {
+        NodeInfo info = nodes.get(self);
+        Map<String, Integer> costs = toCosts(self, entries);
+        long nowSec = now / 1000;
+        if (costs.equals(info.advertised) && nowSec - info.version < refreshMs / 1000) {
+            return false;
+        }
+        long version = Math.max(nowSec, info.version + 1);
+        return update(self, version, NeighbourDigest.encode(entries, maxLength), now);
+    }
+
+    /**
+     * Список соседей узла (свой или пересланный)
+     * @return false если версия не новее известной или уже устарела
+     */
+    public boolean update(String node, long version, String rawDigest, long now) {
+        NodeInfo info = nodes.get(node);
+        if (info != null && version <= info.version) {
+            return false;
+        }
+        if (!node.equals(self) && isStale(version, now, Long.MAX_VALUE)) {
+            return false;
+        }
+        if (info == null) {
+            info = new NodeInfo();
+            nodes.put(node, info);
+        }
+
+        Map<String, Integer> oldAdv = info.advertised;
+        info.advertised = toCosts(node, NeighbourDigest.parse(rawDigest));
+        info.version = version;
+        info.rawDigest = rawDigest;
+        if (!node.equals(self)) {
+            unadvertised.remove(node);
+            unadvertised.add(node);
+        }
+
+        Set<String> touched = new HashSet<>(oldAdv.keySet());
+        touched.addAll(info.advertised.keySet());
+        for (String v : touched) {
+            applyEdge(node, v);
+        }
+        if (!needsFullRecompute && !relaxQueue.isEmpty()) {
+            relax();
+        }
+        incrementalUpdates++;
+        return true;
+    }
+
+    /**
+     * Удалить списки, версия которых старше ttlMs
+     * @return количество удалённых узлов
+     */
+    public int expire(long now, long ttlMs) {
+        List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, NodeInfo> e : nodes.entrySet()) {
+            if (!e.getKey().equals(self) && isStale(e.getValue().version, now, ttlMs)) {
+                stale.add(e.getKey());
+            }
+        }
+        for (String node : stale) {
+            NodeInfo info = nodes.remove(node);
+            unadvertised.remove(node);
+            for (String v : info.advertised.keySet()) {
+                applyEdge(node, v);
+            }
+        }
+        return stale.size();
+    }
+
+    private static boolean isStale(long versionSec, long now, long ttlMs) {
+        return ttlMs != Long.MAX_VALUE && now / 1000 - versionSec > ttlMs / 1000;
+    }
+
+    private static Map<String, Integer> toCosts(String node, List<NeighbourDigest.Entry> entries) {
+        Map<String, Integer> costs = new HashMap<>();
+        for (NeighbourDigest.Entry e : entries) {
+            if (!e.id.equals(node)) {
+                costs.put(e.id, e.cost());
+            }
+        }
+        return costs;
+    }
+
+    /**
+     * Пересчитать ребро u-v по объявлениям обеих сторон
+     */
+    private void applyEdge(String u, String v) {
+        Integer a = advertisedCost(u, v);
+        Integer b = advertisedCost(v, u);
+        Integer cost = a == null ? b : (b == null ? a : Integer.valueOf(Math.min(a, b)));
+        Map<String, Integer> uAdj = adj.get(u);
+        Integer old = uAdj != null ? uAdj.get(v) : null;
+        if (old == null ? cost == null : old.equals(cost)) {
+            return;
+        }
+
+        if (cost == null) {
+            removeHalf(u, v);
+            removeHalf(v, u);
+        } else {
+            adjOf(u).put(v, cost);
+            adjOf(v).put(u, cost);
+        }
+
+        if (needsFullRecompute) {
+            return;
+        }
+        if (cost == null || (old != null && cost > old)) {
+            // Ухудшение важно только для рёбер дерева кратчайших путей
+            if (v.equals(pred.get(u)) || u.equals(pred.get(v))) {
+                needsFullRecompute = true;
+                relaxQueue.clear();
+            }
+        } else {
+            offer(u, v, cost);
+            offer(v, u, cost);
+        }
+    }
+
+    private Integer advertisedCost(String from, String to) {
+        NodeInfo info = nodes.get(from);
+        return info != null ? info.advertised.get(to) : null;
+    }
+
+    private Map<String, Integer> adjOf(String node) {
+        Map<String, Integer> m = adj.get(node);
+        if (m == null) {
+            m = new HashMap<>();
+            adj.put(node, m);
+        }
+        return m;
+    }
+
+    private void removeHalf(String u, String v) {
+        Map<String, Integer> m = adj.get(u);
+        if (m != null) {
+            m.remove(v);
+            if (m.isEmpty()) adj.remove(u);
+        }
+    }
+
+    // ==================== КРАТЧАЙШИЕ ПУТИ ====================
+
+    /**
+     * Путь до to через from короче известного - запомнить и продолжить релаксацию от to
+     */
+    private void offer(String from, String to, int cost) {
+        Integer df = dist.get(from);
+        if (df == null || to.equals(self)) return;
+        int nd = df + cost;
+        Integer dt = dist.get(to);
+        if (dt != null && dt <= nd) return;
+        dist.put(to, nd);
+        pred.put(to, from);
+        nextHop.put(to, from.equals(self) ? to : nextHop.get(from));
+        relaxQueue.add(new QueueEntry(to, nd));
+    }
+
+    private void relax() {
+        QueueEntry e;
+        while ((e = relaxQueue.poll()) != null) {
+            Integer d = dist.get(e.node);
+            if (d == null || d != e.dist) continue;  // устаревшая запись очереди
+            Map<String, Integer> edges = adj.get(e.node);
+            if (edges == null) continue;
+            for (Map.Entry<String, Integer> edge : edges.entrySet()) {
+                offer(e.node, edge.getKey(), edge.getValue());
+            }
+        }
+    }
+
+    private void recomputeIfNeeded() {
+        if (!needsFullRecompute) return;
+        dist.clear();
+        pred.clear();
+        nextHop.clear();
+        relaxQueue.clear();
+        dist.put(self, 0);
+        relaxQueue.add(new QueueEntry(self, 0));
+        relax();
+        needsFullRecompute = false;
+        fullRecomputes++;
+    }
+
+    /**
+     * Следующий узел на кратчайшем пути к target
+     * @return null если путь неизвестен
+     */
+    public String nextHop(String target) {
+        recomputeIfNeeded();
+        return nextHop.get(target);
+    }
+
+    /**
+     * Стоимость кратчайшего пути до target
+     * @return -1 если путь неизвестен
+     */
+    public int distance(String target) {
+        recomputeIfNeeded();
+        Integer d = dist.get(target);
+        return d != null ? d : -1;
+    }
+
+    // ==================== ОБЪЯВЛЕНИЕ ====================
+
+    /**
+     * Записать в record наш список ("nv", "n") и пересылаемые чужие ("L.<id>" = версия;список):
+     * сначала изменившиеся, затем остальные по кругу, пока помещаются в budget байт
+     */
+    public void fillAdvertisement(Map<String, String> record, int budget) {
+        NodeInfo own = nodes.get(self);
+        record.put("nv", String.valueOf(own.version));
+        record.put("n", own.rawDigest);
+        int used = 4 + String.valueOf(own.version).length() + 3 + own.rawDigest.length();
+
+        List<String> order = new ArrayList<>(unadvertised);
+        List<String> rest = new ArrayList<>();
+        for (String node : nodes.keySet()) {
+            if (!node.equals(self) && !unadvertised.contains(node)) rest.add(node);
+        }
+        if (!rest.isEmpty()) {
+            int start = advertiseCursor % rest.size();
+            for (int i = 0; i < rest.size(); i++) {
+                order.add(rest.get((start + i) % rest.size()));
+            }
+        }
+
+        int restTaken = 0;
+        for (String node : order) {
+            NodeInfo info = nodes.get(node);
+            String value = info.version + ";" + info.rawDigest;
+            int cost = 1 + 2 + node.length() + 1 + value.length();
+            if (used + cost > budget) break;
+            record.put("L." + node, value);
+            used += cost;
+            if (!unadvertised.remove(node)) restTaken++;
+        }
+        advertiseCursor += restTaken;
+    }
+
+    // ==================== ДИАГНОСТИКА ====================
+
+    public int nodeCount() {
+        return nodes.size();
+    }
+
+    public int edgeCount() {
+        int n = 0;
+        for (Map<String, Integer> m : adj.values()) n += m.size();
+        return n / 2;
+    }
+
+    public String getDiagnosticInfo() {
+        recomputeIfNeeded();
+        StringBuilder sb = new StringBuilder();
+        sb.append("Nodes: ").append(nodes.size()).append(" | edges: ").append(edgeCount())
+                .append(" | reachable: ").append(dist.size() - 1)
+                .append(" | updates: ").append(incrementalUpdates)
+                .append(" | full recomputes: ").append(fullRecomputes);
+        Iterator<Map.Entry<String, String>> it = nextHop.entrySet().iterator();
+        int shown = 0;
+        while (it.hasNext() && shown < 20) {
+            Map.Entry<String, String> e = it.next();
+            sb.append("\n  ").append(e.getKey()).append(" via ").append(e.getValue())
+                    .append(" cost=").append(dist.get(e.getKey()));
+            shown++;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.directtest.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Монотонно растущий счётчик.
+ * Основан на LongAdder (striped), поэтому инкремент из разных потоков
+ * не конкурирует за одну ячейку памяти.
+ */
+public final class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    Counter() {
+    }
+
+    /**
+     * Увеличить на 1
+     */
+    public void inc() {
+        value.increment();
+    }
+
+    /**
+     * Увеличить на delta
+     */
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    /**
+     * Текущее значение
+     */
+    public long get() {
+        return value.sum();
+    }
+
+    /**
+     * Сбросить в 0 (используется при clearAll)
+     */
+    public void reset() {
+        value.reset();
+    }
+}
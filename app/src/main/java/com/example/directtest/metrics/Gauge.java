@@ -0,0 +1,49 @@
+package com.example.directtest.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Мгновенное значение (занятость слотов, глубина очередей).
+ * Либо выставляется явно через set(), либо вычисляется при снятии snapshot
+ * через LongSupplier - тогда запись на горячем пути вообще не нужна.
+ */
+public final class Gauge {
+
+    private final AtomicLong value = new AtomicLong();
+    private volatile LongSupplier supplier;
+
+    Gauge() {
+    }
+
+    public void set(long v) {
+        value.set(v);
+    }
+
+    public void inc() {
+        value.incrementAndGet();
+    }
+
+    public void dec() {
+        value.decrementAndGet();
+    }
+
+    /**
+     * Привязать gauge к источнику значения (вычисляется лениво при чтении)
+     */
+    public void bind(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    public long get() {
+        LongSupplier s = supplier;
+        if (s != null) {
+            try {
+                return s.getAsLong();
+            } catch (RuntimeException e) {
+                return value.get();
+            }
+        }
+        return value.get();
+    }
+}
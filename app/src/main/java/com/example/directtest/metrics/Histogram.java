@@ -0,0 +1,152 @@
+package com.example.directtest.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма с фиксированными лог-линейными бакетами (в стиле HDR).
+ *
+ * Каждая степень двойки делится на 8 под-бакетов, поэтому относительная
+ * погрешность квантилей не превышает 12.5% во всём диапазоне 0..2^40.
+ * Запись - это вычисление индекса (несколько битовых операций)
+ * и один атомарный инкремент, без аллокаций и блокировок.
+ */
+public final class Histogram {
+
+    /** Бит на под-бакет: 2^3 = 8 под-бакетов на степень двойки */
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Максимальная степень двойки (значения выше попадают в последний бакет) */
+    private static final int MAX_EXPONENT = 40;
+
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    Histogram() {
+    }
+
+    // ==================== ЗАПИСЬ ====================
+
+    /**
+     * Записать значение (отрицательные считаются нулём)
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Сбросить все значения
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    // ==================== ЧТЕНИЕ ====================
+
+    /**
+     * Снять согласованную (насколько возможно без блокировок) копию
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = buckets.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.sum(), max.get());
+    }
+
+    // ==================== БАКЕТЫ ====================
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Верхняя граница бакета (включительно)
+     */
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    // ==================== SNAPSHOT ====================
+
+    /**
+     * Неизменяемая копия гистограммы
+     */
+    public static final class Snapshot {
+        private final long[] buckets;
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Квантиль (0..1), оценка сверху с точностью до бакета
+         */
+        public long percentile(double q) {
+            if (count == 0) return 0;
+            long target = (long) Math.ceil(q * count);
+            if (target < 1) target = 1;
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    // Последний бакет не ограничен сверху - его оценка только max
+                    return i == buckets.length - 1 ? max : Math.min(upperBoundOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        int bucketCount() {
+            return buckets.length;
+        }
+
+        long bucketValue(int index) {
+            return buckets[index];
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.directtest.metrics;
+
+import java.util.Locale;
+
+/**
+ * Модель качества связи с одним пиром.
+ *
+ * - Потери: пир нумерует heartbeat ("hb"), пропущенные номера - обновления, которые
+ *   мы не увидели. Если наш цикл discovery длиннее интервала heartbeat, за цикл
+ *   видно не больше одного номера - остальные пропуски не потери. Поэтому испытание -
+ *   max(наш цикл, интервал heartbeat): пропущенные испытания между двумя
+ *   увиденными номерами - потери. Доля потерь сглаживается EWMA.
+ * - Интервал обнаружения: промежутки между циклами, в которых приходят TXT записи
+ *   пира (записи с промежутком меньше burstGapMs - один цикл). EWMA среднего
+ *   и среднего отклонения, как srtt/rttvar.
+ * - Свежесть: 1, пока с последней записи прошло не больше ожидаемого промежутка
+ *   (интервал + 2 отклонения), дальше экспоненциально падает.
+ *
+ * Оценка score = 100 * (1 - потери) * свежесть. Все обновления O(1) и без выделения
+ * памяти: вызываются на каждую TXT запись.
+ */
+public class LinkQuality {
+
+    private static final double LOSS_ALPHA = 0.1;
+    private static final double INTERVAL_ALPHA = 0.125;
+    private static final double JITTER_BETA = 0.25;
+
+    /** Больший разрыв в номерах - пир отсутствовал, а не терял обновления */
+    private static final int MAX_HB_GAP = 10;
+
+    /** Больший промежуток между циклами - отсутствие пира, в интервал не входит (мс) */
+    private static final long MAX_CYCLE_GAP = 60_000;
+
+    private final long heartbeatIntervalMs;
+    private final long burstGapMs;
+
+    private long lastHbSeq;
+    private long lastHbAt;
+    private double loss;
+
+    private long lastRecordAt;
+    private long cycleStart;
+    private double interval;
+    private double jitter;
+
+    /** Увеличивается при каждом изменении оценок (для снимков) */
+    private int version;
+
+    public LinkQuality(long heartbeatIntervalMs, long burstGapMs) {
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+        this.burstGapMs = burstGapMs;
+    }
+
+    // ==================== ЗАПИСЬ ====================
+
+    /**
+     * Учесть номер heartbeat пира
+     * @param cycleMs текущий интервал нашего discovery
+     */
+    public synchronized void onHeartbeat(long seq, long now, long cycleMs) {
+        if (seq <= lastHbSeq) {
+            if (seq < lastHbSeq) {
+                lastHbSeq = seq;  // Новая сессия пира - нумерация заново
+                lastHbAt = now;
+            }
+            return;
+        }
+        if (lastHbSeq > 0) {
+            long missed = seq - lastHbSeq - 1;
+            long trial = Math.max(cycleMs, heartbeatIntervalMs);
+            long lost = Math.min(missed, Math.max(0, Math.round((double) (now - lastHbAt) / trial) - 1));
+            if (missed <= MAX_HB_GAP) {
+                // lost потерь подряд и один принятый
+                loss = 1 - (1 - loss) * Math.pow(1 - LOSS_ALPHA, lost);
+                loss *= 1 - LOSS_ALPHA;
+                version++;
+            }
+        }
+        lastHbSeq = seq;
+        lastHbAt = now;
+    }
+
+    /**
+     * Учесть любую TXT запись пира
+     */
+    public synchronized void onRecord(long now) {
+        long sinceLast = now - lastRecordAt;
+        boolean first = lastRecordAt == 0;
+        lastRecordAt = now;
+        if (first) {
+            cycleStart = now;
+            return;
+        }
+        if (sinceLast <= burstGapMs) {
+            return;  // Тот же цикл обнаружения
+        }
+        double gap = now - cycleStart;
+        cycleStart = now;
+        if (gap > MAX_CYCLE_GAP) {
+            return;
+        }
+        if (interval == 0) {
+            interval = gap;
+            jitter = gap / 2;
+        } else {
+            jitter = (1 - JITTER_BETA) * jitter + JITTER_BETA * Math.abs(interval - gap);
+            interval = (1 - INTERVAL_ALPHA) * interval + INTERVAL_ALPHA * gap;
+        }
+        version++;
+    }
+
+    public synchronized void clear() {
+        lastHbSeq = 0;
+        lastHbAt = 0;
+        loss = 0;
+        lastRecordAt = 0;
+        cycleStart = 0;
+        interval = 0;
+        jitter = 0;
+        version++;
+    }
+
+    // ==================== ЧТЕНИЕ ====================
+
+    /** Доля непринятых heartbeat 0..1 */
+    public synchronized double lossRate() {
+        return loss;
+    }
+
+    /** Средний интервал между циклами обнаружения (мс), 0 - не измерен */
+    public synchronized long meanInterval() {
+        return (long) interval;
+    }
+
+    /** Среднее отклонение интервала (мс) */
+    public synchronized long jitter() {
+        return (long) jitter;
+    }
+
+    public synchronized long lastRecordAt() {
+        return lastRecordAt;
+    }
+
+    /**
+     * Свежесть 0..1: насколько давно было последнее обнаружение по сравнению с обычным
+     */
+    public synchronized double freshness(long now) {
+        return freshness(interval, jitter, lastRecordAt, heartbeatIntervalMs, now);
+    }
+
+    /**
+     * Качество связи 0..100
+     */
+    public synchronized int score(long now) {
+        return score(loss, interval, jitter, lastRecordAt, heartbeatIntervalMs, now);
+    }
+
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    public static double freshness(double interval, double jitter, long lastRecordAt,
+                                   long heartbeatIntervalMs, long now) {
+        if (lastRecordAt == 0) return 0;
+        double expected = interval > 0 ? interval + 2 * jitter : heartbeatIntervalMs;
+        double late = now - lastRecordAt - expected;
+        return late <= 0 ? 1.0 : Math.exp(-late / expected);
+    }
+
+    public static int score(double loss, double interval, double jitter, long lastRecordAt,
+                            long heartbeatIntervalMs, long now) {
+        double f = freshness(interval, jitter, lastRecordAt, heartbeatIntervalMs, now);
+        return (int) Math.round(100 * (1 - loss) * f);
+    }
+
+    /**
+     * Короткая строка для карточки устройства
+     */
+    public synchronized String toShortString(long now) {
+        return format(loss, interval, jitter, lastRecordAt, heartbeatIntervalMs, now);
+    }
+
+    public static String format(double loss, double interval, double jitter, long lastRecordAt,
+                                long heartbeatIntervalMs, long now) {
+        if (lastRecordAt == 0) {
+            return "📶 no samples";
+        }
+        return String.format(Locale.US, "📶 Q %d | loss %.0f%% | every %s ± %s",
+                score(loss, interval, jitter, lastRecordAt, heartbeatIntervalMs, now),
+                loss * 100, formatMs(interval), formatMs(jitter));
+    }
+
+    private static String formatMs(double ms) {
+        return ms > 0 ? String.format(Locale.US, "%.1fs", ms / 1000.0) : "-";
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.directtest.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Реестр метрик протокольного движка.
+ *
+ * Метрика идентифицируется именем и набором меток (key=value).
+ * Поиск по имени стоит одну конкатенацию строки и обращение к ConcurrentHashMap,
+ * поэтому на горячем пути метрики без меток стоит держать в полях,
+ * а lookup по меткам оставить для редких событий (ошибки, новые пиры).
+ */
+public final class MetricsRegistry {
+
+    private static MetricsRegistry instance;
+
+    // ==================== ИМЕНА МЕТРИК ====================
+
+    public static final String TXT_RECORDS = "wfd_txt_records_total";
+    public static final String SERVICE_RESPONSES = "wfd_service_responses_total";
+    public static final String TXT_INTERARRIVAL = "wfd_txt_interarrival_ms";
+    public static final String ACK_LATENCY = "wfd_send_to_ack_ms";
+    public static final String DELIVERY_LATENCY = "wfd_send_to_first_seen_ms";
+    public static final String P2P_CALLS = "wfd_p2p_calls_total";
+    public static final String SLOTS_OCCUPIED = "wfd_slots_occupied";
+    public static final String PENDING_MESSAGES = "wfd_pending_messages";
+    public static final String PENDING_ACKS = "wfd_pending_acks";
+    public static final String REPO_SAVE_DURATION = "wfd_repo_save_duration_us";
+    public static final String STORE_APPEND_DURATION = "wfd_store_append_duration_us";
+    public static final String STORE_PAGE_LOAD_DURATION = "wfd_store_page_load_duration_us";
+    public static final String STORE_COMPACTIONS = "wfd_store_compactions_total";
+    public static final String STORE_ERRORS = "wfd_store_errors_total";
+    public static final String SYNC_DIGESTS = "wfd_sync_digests_total";
+    public static final String SYNC_RESENDS = "wfd_sync_resends_total";
+    public static final String GAP_REPAIRS = "wfd_gap_repairs_total";
+    public static final String GAP_RECOVERY = "wfd_gap_recovery_ms";
+    public static final String RESEND_BACKLOG = "wfd_resend_backlog";
+    public static final String RESEND_DRAIN = "wfd_resend_drain_ms";
+    public static final String RESEND_MERGED = "wfd_resend_merged_total";
+    public static final String RESEND_PREEMPTED = "wfd_resend_preempted_total";
+    public static final String RELAY_BACKLOG = "wfd_relay_backlog";
+    public static final String RELAY_FORWARDED = "wfd_relay_forwarded_total";
+    public static final String RELAY_ACKS = "wfd_relay_acks_forwarded_total";
+    public static final String RELAY_DROPPED = "wfd_relay_dropped_total";
+    public static final String RELAY_DELIVERED_HOPS = "wfd_relay_delivered_hops";
+    public static final String BROADCAST_COVERAGE = "wfd_broadcast_coverage_pct";
+    public static final String SEND_QUEUE_DELAY = "wfd_send_queue_delay_ms";
+    public static final String SEND_QUEUE_BACKLOG = "wfd_send_queue_backlog";
+    public static final String SEND_PREEMPTED = "wfd_send_preempted_total";
+    public static final String SEND_QUEUE_OVERFLOW = "wfd_send_queue_overflow_total";
+    public static final String FLOW_WINDOW_BLOCKED = "wfd_flow_window_blocked_total";
+    public static final String FLOW_WINDOW_ADVERTISED = "wfd_flow_window_advertised";
+    public static final String RTO = "wfd_rto_ms";
+    public static final String SLOT_RETRANSMITS = "wfd_slot_retransmits_total";
+    public static final String SLOT_EARLY_RELEASE = "wfd_slot_early_release_total";
+    public static final String MSGS_PER_REGISTRATION = "wfd_msgs_per_registration";
+    public static final String MAILBOXES_ACTIVE = "wfd_mailboxes_active";
+    public static final String MAILBOX_UPDATES = "wfd_mailbox_updates_total";
+    public static final String MAILBOX_EVICTED = "wfd_mailbox_evicted_total";
+    public static final String FEC_FRAGMENTS = "wfd_fec_fragments_total";
+    public static final String FEC_REASSEMBLED = "wfd_fec_reassembled_total";
+    public static final String SESSION_RESUMES = "wfd_session_resumes_total";
+    public static final String RESUME_RETARGETED = "wfd_resume_retargeted_total";
+    public static final String RESUME_RECOVERY = "wfd_resume_recovery_ms";
+
+    public enum Type {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    private final Map<String, Entry> metrics = new ConcurrentHashMap<>();
+
+    private MetricsRegistry() {}
+
+    public static synchronized MetricsRegistry getInstance() {
+        if (instance == null) {
+            instance = new MetricsRegistry();
+        }
+        return instance;
+    }
+
+    // ==================== РЕГИСТРАЦИЯ ====================
+
+    /**
+     * Получить (или создать) счётчик
+     * @param labels пары ключ, значение
+     */
+    public Counter counter(String name, String... labels) {
+        return (Counter) getOrCreate(Type.COUNTER, name, labels).metric;
+    }
+
+    /**
+     * Получить (или создать) gauge
+     */
+    public Gauge gauge(String name, String... labels) {
+        return (Gauge) getOrCreate(Type.GAUGE, name, labels).metric;
+    }
+
+    /**
+     * Зарегистрировать gauge, значение которого вычисляется при чтении
+     */
+    public Gauge gauge(String name, LongSupplier supplier) {
+        Gauge gauge = gauge(name);
+        gauge.bind(supplier);
+        return gauge;
+    }
+
+    /**
+     * Получить (или создать) гистограмму
+     */
+    public Histogram histogram(String name, String... labels) {
+        return (Histogram) getOrCreate(Type.HISTOGRAM, name, labels).metric;
+    }
+
+    private Entry getOrCreate(Type type, String name, String[] labels) {
+        String labelStr = formatLabels(labels);
+        String key = labelStr.isEmpty() ? name : name + labelStr;
+
+        Entry entry = metrics.get(key);
+        if (entry == null) {
+            entry = metrics.computeIfAbsent(key, k -> new Entry(type, name, labelStr));
+        }
+        if (entry.type != type) {
+            throw new IllegalArgumentException("Metric " + key + " already registered as " + entry.type);
+        }
+        return entry;
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels == null || labels.length == 0) {
+            return "";
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be key/value pairs");
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) sb.append(",");
+            sb.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append("\"");
+        }
+        return sb.append("}").toString();
+    }
+
+    private static String escape(String value) {
+        if (value == null) return "";
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // ==================== SNAPSHOT ====================
+
+    /**
+     * Снять снимок всех метрик (для DiagnosticActivity и экспорта)
+     */
+    public MetricsSnapshot snapshot() {
+        List<MetricsSnapshot.Sample> samples = new ArrayList<>();
+        for (Entry entry : metrics.values()) {
+            switch (entry.type) {
+                case COUNTER:
+                    samples.add(new MetricsSnapshot.Sample(entry.type, entry.name, entry.labels,
+                            ((Counter) entry.metric).get(), null));
+                    break;
+                case GAUGE:
+                    samples.add(new MetricsSnapshot.Sample(entry.type, entry.name, entry.labels,
+                            ((Gauge) entry.metric).get(), null));
+                    break;
+                case HISTOGRAM:
+                    Histogram.Snapshot hs = ((Histogram) entry.metric).snapshot();
+                    samples.add(new MetricsSnapshot.Sample(entry.type, entry.name, entry.labels,
+                            hs.count, hs));
+                    break;
+            }
+        }
+        Collections.sort(samples, (a, b) -> {
+            int c = a.name.compareTo(b.name);
+            return c != 0 ? c : a.labels.compareTo(b.labels);
+        });
+        return new MetricsSnapshot(System.currentTimeMillis(), samples);
+    }
+
+    /**
+     * Сбросить счётчики и гистограммы (gauges отражают текущее состояние и не сбрасываются)
+     */
+    public void reset() {
+        for (Entry entry : metrics.values()) {
+            if (entry.metric instanceof Counter) {
+                ((Counter) entry.metric).reset();
+            } else if (entry.metric instanceof Histogram) {
+                ((Histogram) entry.metric).reset();
+            }
+        }
+    }
+
+    // ==================== ENTRY ====================
+
+    private static final class Entry {
+        final Type type;
+        final String name;
+        final String labels;
+        final Object metric;
+
+        Entry(Type type, String name, String labels) {
+            this.type = type;
+            this.name = name;
+            this.labels = labels;
+            switch (type) {
+                case COUNTER: metric = new Counter(); break;
+                case GAUGE: metric = new Gauge(); break;
+                default: metric = new Histogram(); break;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.directtest.metrics;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Неизменяемый снимок всех метрик на момент времени.
+ * Читается DiagnosticActivity (текст) и OpenMetricsExporter (файл).
+ */
+public final class MetricsSnapshot {
+
+    public final long takenAt;
+    public final List<Sample> samples;
+
+    MetricsSnapshot(long takenAt, List<Sample> samples) {
+        this.takenAt = takenAt;
+        this.samples = Collections.unmodifiableList(samples);
+    }
+
+    /**
+     * Значение одной метрики
+     */
+    public static final class Sample {
+        public final MetricsRegistry.Type type;
+        public final String name;
+        /** Метки в формате {k="v",...} или пустая строка */
+        public final String labels;
+        /** Значение counter/gauge или count для гистограммы */
+        public final long value;
+        /** Данные гистограммы (null для counter/gauge) */
+        public final Histogram.Snapshot histogram;
+
+        Sample(MetricsRegistry.Type type, String name, String labels, long value, Histogram.Snapshot histogram) {
+            this.type = type;
+            this.name = name;
+            this.labels = labels;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+
+    /**
+     * Найти значение counter/gauge (0 если метрики нет)
+     */
+    public long valueOf(String name, String labels) {
+        for (Sample s : samples) {
+            if (s.name.equals(name) && s.labels.equals(labels)) {
+                return s.value;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Человекочитаемое представление для экрана диагностики
+     */
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("═══ METRICS ═══\n");
+        sb.append("Snapshot: ")
+                .append(new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date(takenAt)))
+                .append("\n");
+
+        for (Sample s : samples) {
+            sb.append(s.name).append(s.labels).append(" = ");
+            if (s.histogram != null) {
+                Histogram.Snapshot h = s.histogram;
+                sb.append("n=").append(h.count);
+                if (h.count > 0) {
+                    sb.append(String.format(Locale.US, " mean=%.1f", h.mean()));
+                    sb.append(" p50=").append(h.percentile(0.50));
+                    sb.append(" p90=").append(h.percentile(0.90));
+                    sb.append(" p99=").append(h.percentile(0.99));
+                    sb.append(" max=").append(h.max);
+                }
+            } else {
+                sb.append(s.value);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
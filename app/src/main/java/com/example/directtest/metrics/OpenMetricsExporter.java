@@ -0,0 +1,114 @@
+package com.example.directtest.metrics;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Экспорт снимка метрик в текстовый формат OpenMetrics.
+ * Файл сохраняется рядом с логами DiagnosticLogger.
+ */
+public final class OpenMetricsExporter {
+
+    private OpenMetricsExporter() {
+        // Utility class
+    }
+
+    /**
+     * Сформировать текст в формате OpenMetrics
+     */
+    public static String format(MetricsSnapshot snapshot) {
+        StringBuilder sb = new StringBuilder();
+        Set<String> declared = new HashSet<>();
+
+        for (MetricsSnapshot.Sample s : snapshot.samples) {
+            String family = familyName(s);
+            if (declared.add(family)) {
+                sb.append("# TYPE ").append(family).append(" ").append(typeName(s.type)).append("\n");
+            }
+
+            switch (s.type) {
+                case COUNTER:
+                    sb.append(family).append("_total").append(s.labels)
+                            .append(" ").append(s.value).append("\n");
+                    break;
+                case GAUGE:
+                    sb.append(family).append(s.labels)
+                            .append(" ").append(s.value).append("\n");
+                    break;
+                case HISTOGRAM:
+                    appendHistogram(sb, family, s.labels, s.histogram);
+                    break;
+            }
+        }
+
+        sb.append("# EOF\n");
+        return sb.toString();
+    }
+
+    /**
+     * Записать снимок в файл (logs/metrics_yyyyMMdd_HHmmss.om)
+     */
+    public static File exportToFile(Context context, MetricsSnapshot snapshot) throws IOException {
+        File dir = new File(context.getExternalFilesDir(null), "logs");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        String filename = "metrics_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault())
+                .format(new Date(snapshot.takenAt)) + ".om";
+        File file = new File(dir, filename);
+
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(format(snapshot));
+        }
+        return file;
+    }
+
+    // ==================== HELPERS ====================
+
+    private static void appendHistogram(StringBuilder sb, String family, String labels, Histogram.Snapshot h) {
+        long cumulative = 0;
+        // Выводим только непустые бакеты: граница "le" - верхняя граница бакета
+        for (int i = 0; i < h.bucketCount(); i++) {
+            long v = h.bucketValue(i);
+            if (v == 0) continue;
+            cumulative += v;
+            sb.append(family).append("_bucket").append(withLe(labels, String.valueOf(Histogram.upperBoundOf(i))))
+                    .append(" ").append(cumulative).append("\n");
+        }
+        sb.append(family).append("_bucket").append(withLe(labels, "+Inf"))
+                .append(" ").append(h.count).append("\n");
+        sb.append(family).append("_count").append(labels).append(" ").append(h.count).append("\n");
+        sb.append(family).append("_sum").append(labels).append(" ").append(h.sum).append("\n");
+    }
+
+    private static String withLe(String labels, String le) {
+        if (labels.isEmpty()) {
+            return "{le=\"" + le + "\"}";
+        }
+        return labels.substring(0, labels.length() - 1) + ",le=\"" + le + "\"}";
+    }
+
+    private static String familyName(MetricsSnapshot.Sample s) {
+        if (s.type == MetricsRegistry.Type.COUNTER && s.name.endsWith("_total")) {
+            return s.name.substring(0, s.name.length() - "_total".length());
+        }
+        return s.name;
+    }
+
+    private static String typeName(MetricsRegistry.Type type) {
+        switch (type) {
+            case COUNTER: return "counter";
+            case GAUGE: return "gauge";
+            default: return "histogram";
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.directtest.metrics;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Статистика задержек для одного пира.
+ *
+ * - ACK RTT: время от публикации сообщения до получения ACK (измеряется отправителем).
+ * - One-way: время от отправки (поле "t" в слоте) до первого обнаружения получателем,
+ *   с поправкой на оценку смещения часов пира.
+ *
+ * Смещение часов оценивается по полю "t" всех TXT записей пира: каждая запись даёт
+ * выборку (localNow - t), минимум по окну соответствует самой свежей записи
+ * (минимальная задержка DNS-SD). Поэтому one-way задержка считается относительно
+ * этой минимальной задержки, а t имеет секундное разрешение - точность около 1 с.
+ */
+public class PeerLatencyStats {
+
+    /** Размер окна для скользящих перцентилей */
+    private static final int WINDOW = 64;
+
+    /** Размер окна для оценки смещения часов */
+    private static final int OFFSET_WINDOW = 32;
+
+    private final RollingWindow ackRtt = new RollingWindow(WINDOW);
+    private final RollingWindow oneWay = new RollingWindow(WINDOW);
+    private final RollingWindow offsetSamples = new RollingWindow(OFFSET_WINDOW);
+
+    /** Увеличивается при каждом изменении (для снимков) */
+    private int version;
+
+    // ==================== ЗАПИСЬ ====================
+
+    /**
+     * Учесть поле "t" (секунды по часам пира) из любой его TXT записи
+     */
+    public synchronized void onPeerTimestamp(long peerTimeSec, long localNowMs) {
+        offsetSamples.add(localNowMs - peerTimeSec * 1000);
+        version++;
+    }
+
+    /**
+     * Записать RTT отправка → ACK
+     */
+    public synchronized void recordAckRtt(long rttMs) {
+        ackRtt.add(Math.max(0, rttMs));
+        version++;
+    }
+
+    /**
+     * Записать задержку доставки: сообщение с полем "t" впервые увидено сейчас
+     * @return вычисленная задержка (мс)
+     */
+    public synchronized long recordFirstSeen(long peerSentSec, long localNowMs) {
+        if (offsetSamples.size() == 0) {
+            onPeerTimestamp(peerSentSec, localNowMs);
+        }
+        long sentLocalMs = peerSentSec * 1000 + offsetSamples.min();
+        long latencyMs = Math.max(0, localNowMs - sentLocalMs);
+        oneWay.add(latencyMs);
+        version++;
+        return latencyMs;
+    }
+
+    public synchronized void clear() {
+        ackRtt.clear();
+        oneWay.clear();
+        offsetSamples.clear();
+        version++;
+    }
+
+    // ==================== ЧТЕНИЕ ====================
+
+    /**
+     * Оценка смещения часов пира (мс): localClock - peerClock
+     */
+    public synchronized long getClockOffsetMs() {
+        return offsetSamples.size() == 0 ? 0 : offsetSamples.min();
+    }
+
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    public synchronized int getAckSampleCount() {
+        return ackRtt.size();
+    }
+
+    public synchronized long getAckRttPercentile(double q) {
+        return ackRtt.percentile(q);
+    }
+
+    public synchronized long getOneWayPercentile(double q) {
+        return oneWay.percentile(q);
+    }
+
+    /**
+     * Короткая строка для карточки устройства
+     */
+    public synchronized String toShortString() {
+        if (ackRtt.size() == 0 && oneWay.size() == 0) {
+            return "⏱ no samples";
+        }
+        return String.format(Locale.US, "⏱ RTT p50/p90 %s/%s | 1w p50 %s | off %+.1fs",
+                formatMs(ackRtt, 0.5), formatMs(ackRtt, 0.9), formatMs(oneWay, 0.5),
+                getClockOffsetMs() / 1000.0);
+    }
+
+    /**
+     * Подробная строка для диагностики
+     */
+    public synchronized String toDetailedString() {
+        return String.format(Locale.US,
+                "ackRtt n=%d p50=%s p90=%s p99=%s | oneWay n=%d p50=%s p90=%s p99=%s | clockOffset=%dms",
+                ackRtt.size(), formatMs(ackRtt, 0.5), formatMs(ackRtt, 0.9), formatMs(ackRtt, 0.99),
+                oneWay.size(), formatMs(oneWay, 0.5), formatMs(oneWay, 0.9), formatMs(oneWay, 0.99),
+                getClockOffsetMs());
+    }
+
+    private static String formatMs(RollingWindow w, double q) {
+        if (w.size() == 0) return "-";
+        return String.format(Locale.US, "%.1fs", w.percentile(q) / 1000.0);
+    }
+
+    // ==================== ROLLING WINDOW ====================
+
+    /**
+     * Кольцевой буфер последних N значений
+     */
+    static final class RollingWindow {
+        private final long[] values;
+        private int next;
+        private int size;
+
+        RollingWindow(int capacity) {
+            this.values = new long[capacity];
+        }
+
+        void add(long v) {
+            values[next] = v;
+            next = (next + 1) % values.length;
+            if (size < values.length) size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long min() {
+            long m = Long.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                m = Math.min(m, values[i]);
+            }
+            return m;
+        }
+
+        long percentile(double q) {
+            if (size == 0) return 0;
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            int idx = (int) Math.ceil(q * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, idx))];
+        }
+
+        void clear() {
+            next = 0;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.directtest.model;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * История сообщений ограниченной глубины: кольцевой буфер + индекс ID → запись.
+ *
+ * Добавление, поиск по ID и вытеснение самой старой записи - O(1),
+ * итерация идёт от новых к старым. Не потокобезопасна: используется
+ * на потоке FastDiscoveryManager, UI читает DeviceSnapshot.
+ */
+public class BoundedHistory<T> implements Iterable<T> {
+
+    private final Object[] ring;
+    private final Map<String, T> index;
+    private final Function<T, String> idOf;
+
+    /** Позиция самой новой записи */
+    private int head;
+    private int size;
+
+    /** Счётчик изменений для защиты итераторов */
+    private int modCount;
+
+    /**
+     * @param capacity максимальная глубина истории
+     * @param idOf функция получения ID записи (ключ индекса)
+     */
+    public BoundedHistory(int capacity, Function<T, String> idOf) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        this.ring = new Object[capacity];
+        this.index = new HashMap<>(Math.min(capacity, 1024) * 2);
+        this.idOf = idOf;
+    }
+
+    // ==================== ЗАПИСЬ ====================
+
+    /**
+     * Добавить самую новую запись. При переполнении вытесняется самая старая.
+     * @return false если запись с таким ID уже есть
+     */
+    public boolean addNewest(T item) {
+        String id = idOf.apply(item);
+        if (index.containsKey(id)) {
+            return false;
+        }
+        if (size == ring.length) {
+            evictOldest();
+        }
+        head = (head - 1 + ring.length) % ring.length;
+        ring[head] = item;
+        size++;
+        index.put(id, item);
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Добавить запись старее всех существующих (загрузка из сохранённого состояния,
+     * где записи идут от новых к старым).
+     * @return false если ID уже есть или история заполнена
+     */
+    public boolean addOldest(T item) {
+        String id = idOf.apply(item);
+        if (size == ring.length || index.containsKey(id)) {
+            return false;
+        }
+        ring[(head + size) % ring.length] = item;
+        size++;
+        index.put(id, item);
+        modCount++;
+        return true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = null;
+        }
+        index.clear();
+        head = 0;
+        size = 0;
+        modCount++;
+    }
+
+    private void evictOldest() {
+        int tail = (head + size - 1) % ring.length;
+        @SuppressWarnings("unchecked")
+        T oldest = (T) ring[tail];
+        ring[tail] = null;
+        size--;
+        index.remove(idOf.apply(oldest));
+    }
+
+    // ==================== ЧТЕНИЕ ====================
+
+    /**
+     * Найти запись по ID (null если нет)
+     */
+    public T get(String id) {
+        return index.get(id);
+    }
+
+    public boolean contains(String id) {
+        return index.containsKey(id);
+    }
+
+    /**
+     * Запись по позиции: 0 - самая новая
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+        }
+        return (T) ring[(head + i) % ring.length];
+    }
+
+    /**
+     * Копия N самых новых записей (от новых к старым)
+     */
+    public List<T> newest(int n) {
+        int count = Math.min(n, size);
+        List<T> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(get(i));
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    /**
+     * Итерация от новых к старым
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int pos = 0;
+            private final int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return pos < size;
+            }
+
+            @Override
+            public T next() {
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (pos >= size) {
+                    throw new NoSuchElementException();
+                }
+                return get(pos++);
+            }
+        };
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.directtest.model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Доставка broadcast-сообщения по получателям.
+ *
+ * Ожидаемые получатели - снимок пиров с нашим приложением на момент отправки.
+ * Подтверждения хранятся битовой маской по индексу получателя. Пир, подтвердивший
+ * сообщение или подключившийся позже (late joiner), добавляется в список - n растёт.
+ */
+public class BroadcastDelivery {
+
+    /** ID сообщения */
+    public final String messageId;
+
+    /** Текст сообщения (для переотправки) */
+    public final String message;
+
+    /** Время отправки (мс) */
+    public final long sentAt;
+
+    /** Время последней переотправки (мс), 0 если не было */
+    public long lastResendAt;
+
+    /** Получатели (shortId), индекс - номер бита в acked */
+    private final List<String> recipients = new ArrayList<>();
+    private final BitSet acked = new BitSet();
+
+    public BroadcastDelivery(String messageId, String message, long sentAt, List<String> expected) {
+        this.messageId = messageId;
+        this.message = message;
+        this.sentAt = sentAt;
+        for (String id : expected) {
+            addRecipient(id);
+        }
+    }
+
+    /**
+     * Добавить получателя, если его ещё нет
+     * @return true если добавлен
+     */
+    public boolean addRecipient(String id) {
+        if (recipients.contains(id)) {
+            return false;
+        }
+        recipients.add(id);
+        return true;
+    }
+
+    /**
+     * Отметить подтверждение получателя (неизвестный добавляется)
+     * @return true если это новое подтверждение
+     */
+    public boolean markAcked(String id) {
+        addRecipient(id);
+        int index = recipients.indexOf(id);
+        if (acked.get(index)) {
+            return false;
+        }
+        acked.set(index);
+        return true;
+    }
+
+    public boolean isAcked(String id) {
+        int index = recipients.indexOf(id);
+        return index >= 0 && acked.get(index);
+    }
+
+    /** k - подтвердившие получатели */
+    public int ackedCount() {
+        return acked.cardinality();
+    }
+
+    /** n - ожидаемые получатели */
+    public int recipientCount() {
+        return recipients.size();
+    }
+
+    /**
+     * Подтвердила ли доля получателей не меньше target.
+     * Без получателей цель не достигнута: слот ждёт тех, кто появится
+     */
+    public boolean isCoverageMet(double target) {
+        int n = recipients.size();
+        return n > 0 && ackedCount() >= Math.ceil(target * n);
+    }
+
+    /**
+     * Получатели без подтверждения
+     */
+    public List<String> unacked() {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < recipients.size(); i++) {
+            if (!acked.get(i)) result.add(recipients.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return messageId + " " + ackedCount() + "/" + recipientCount();
+    }
+}
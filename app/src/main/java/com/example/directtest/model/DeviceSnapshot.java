@@ -0,0 +1,295 @@
+package com.example.directtest.model;
+
+import com.example.directtest.P2pConfig;
+import com.example.directtest.metrics.LinkQuality;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Неизменяемый снимок DiscoveredDevice.
+ *
+ * Снимки создаёт FastDiscoveryManager на своём потоке (где меняется DiscoveredDevice)
+ * и публикует через volatile-ссылку, поэтому UI и сервис читают их без блокировок.
+ * Если история сообщений не менялась (historyVersion), новый снимок
+ * переиспользует списки сообщений предыдущего снимка.
+ */
+public final class DeviceSnapshot {
+
+    /**
+     * Сколько последних сообщений попадает в снимок. История устройства может быть
+     * сколь угодно глубокой - снимок копирует только её начало.
+     */
+    public static final int SNAPSHOT_HISTORY = 20;
+
+    /** Версия публикации, в которой создан снимок */
+    public final long version;
+
+    // ==================== ИДЕНТИФИКАЦИЯ ====================
+
+    public final String address;
+    public final String deviceId;
+    public final String name;
+    public final boolean hasOurApp;
+    public final String sessionId;
+
+    // ==================== ВРЕМЯ / HEARTBEAT ====================
+
+    public final long firstSeen;
+    public final long lastSeen;
+    public final int seenCount;
+    public final long heartbeatSeq;
+    public final long prevHeartbeatSeq;
+    public final long lastHeartbeatReceived;
+
+    // ==================== СЕРВИС ====================
+
+    public final String lastServiceName;
+    public final int lastSlotIndex;
+    public final Set<String> visibleMsgIds;
+
+    // ==================== ИСТОРИЯ ====================
+
+    /** Последние отправленные сообщения (новые первыми, не более SNAPSHOT_HISTORY) */
+    public final List<Sent> sentMessages;
+
+    /** Последние полученные сообщения (новые первыми, не более SNAPSHOT_HISTORY) */
+    public final List<Received> receivedMessages;
+
+    /** ID полученных сообщений, ожидающих подтверждения ACK */
+    public final List<String> pendingAckIds;
+
+    /** Краткая статистика задержек (PeerLatencyStats.toShortString) */
+    public final String latencySummary;
+
+    /** Качество связи (LinkQuality): потери heartbeat, интервал обнаружения, последняя запись */
+    public final double linkLoss;
+    public final long linkInterval;
+    public final long linkJitter;
+    public final long linkLastRecordAt;
+
+    private final int historyVersion;
+    private final int latencyVersion;
+    private final int linkVersion;
+
+    private DeviceSnapshot(DiscoveredDevice d, DeviceSnapshot prev, long version) {
+        this.version = version;
+        address = d.address;
+        deviceId = d.deviceId;
+        name = d.name;
+        hasOurApp = d.hasOurApp;
+        sessionId = d.sessionId;
+        firstSeen = d.firstSeen;
+        lastSeen = d.lastSeen;
+        seenCount = d.seenCount;
+        heartbeatSeq = d.heartbeatSeq;
+        prevHeartbeatSeq = d.prevHeartbeatSeq;
+        lastHeartbeatReceived = d.lastHeartbeatReceived;
+        lastServiceName = d.lastServiceName;
+        lastSlotIndex = d.lastSlotIndex;
+
+        visibleMsgIds = prev != null && prev.visibleMsgIds.equals(d.currentVisibleMsgIds)
+                ? prev.visibleMsgIds
+                : Collections.unmodifiableSet(new HashSet<>(d.currentVisibleMsgIds));
+
+        historyVersion = d.historyVersion;
+        if (prev != null && prev.historyVersion == historyVersion) {
+            sentMessages = prev.sentMessages;
+            receivedMessages = prev.receivedMessages;
+        } else {
+            int sentCount = Math.min(SNAPSHOT_HISTORY, d.sentMessages.size());
+            List<Sent> sent = new ArrayList<>(sentCount);
+            for (int i = 0; i < sentCount; i++) {
+                sent.add(new Sent(d.sentMessages.get(i)));
+            }
+            sentMessages = Collections.unmodifiableList(sent);
+
+            int recvCount = Math.min(SNAPSHOT_HISTORY, d.receivedMessages.size());
+            List<Received> recv = new ArrayList<>(recvCount);
+            for (int i = 0; i < recvCount; i++) {
+                recv.add(new Received(d.receivedMessages.get(i)));
+            }
+            receivedMessages = Collections.unmodifiableList(recv);
+        }
+
+        if (prev != null && prev.receivedMessages == receivedMessages && prev.visibleMsgIds == visibleMsgIds) {
+            pendingAckIds = prev.pendingAckIds;
+        } else {
+            pendingAckIds = Collections.unmodifiableList(d.getPendingAckMessageIds());
+        }
+
+        latencyVersion = d.latency.getVersion();
+        latencySummary = prev != null && prev.latencyVersion == latencyVersion
+                ? prev.latencySummary
+                : d.latency.toShortString();
+
+        linkVersion = d.link.getVersion();
+        linkLoss = d.link.lossRate();
+        linkInterval = d.link.meanInterval();
+        linkJitter = d.link.jitter();
+        linkLastRecordAt = d.link.lastRecordAt();
+    }
+
+    /**
+     * Снять снимок устройства (вызывать на потоке FastDiscoveryManager)
+     * @param prev предыдущий снимок этого устройства для переиспользования (может быть null)
+     */
+    public static DeviceSnapshot of(DiscoveredDevice d, DeviceSnapshot prev, long version) {
+        return new DeviceSnapshot(d, prev, version);
+    }
+
+    /**
+     * Соответствует ли снимок текущему состоянию устройства
+     */
+    public boolean isCurrent(DiscoveredDevice d) {
+        return lastSeen == d.lastSeen
+                && seenCount == d.seenCount
+                && heartbeatSeq == d.heartbeatSeq
+                && lastHeartbeatReceived == d.lastHeartbeatReceived
+                && historyVersion == d.historyVersion
+                && latencyVersion == d.latency.getVersion()
+                && linkVersion == d.link.getVersion()
+                && linkLastRecordAt == d.link.lastRecordAt()
+                && hasOurApp == d.hasOurApp
+                && lastSlotIndex == d.lastSlotIndex
+                && Objects.equals(deviceId, d.deviceId)
+                && Objects.equals(name, d.name)
+                && Objects.equals(sessionId, d.sessionId)
+                && Objects.equals(lastServiceName, d.lastServiceName)
+                && visibleMsgIds.equals(d.currentVisibleMsgIds);
+    }
+
+    // ==================== СТАТУС ====================
+
+    public boolean isOnline() {
+        return System.currentTimeMillis() - lastSeen < P2pConfig.DEVICE_ONLINE_THRESHOLD;
+    }
+
+    /**
+     * Качество связи на момент now (свежесть зависит от времени)
+     */
+    public int linkScore(long now) {
+        return LinkQuality.score(linkLoss, linkInterval, linkJitter, linkLastRecordAt,
+                P2pConfig.HEARTBEAT_INTERVAL, now);
+    }
+
+    /**
+     * Короткий ID (как DiscoveredDevice.getShortId)
+     */
+    public String getShortId() {
+        if (deviceId != null && deviceId.length() >= 8) {
+            return deviceId.substring(0, 8);
+        }
+        if (address != null) {
+            String clean = address.replace(":", "");
+            return clean.substring(0, Math.min(12, clean.length()));
+        }
+        return "unknown";
+    }
+
+    public int getPendingSentMessagesCount() {
+        int count = 0;
+        for (Sent m : sentMessages) {
+            if (!m.acknowledged) count++;
+        }
+        return count;
+    }
+
+    // ==================== СООБЩЕНИЯ ====================
+
+    /**
+     * Снимок отправленного сообщения
+     */
+    public static final class Sent {
+        public final String messageId;
+        public final String text;
+        public final long sentAt;
+        public final int slotIndex;
+        public final boolean acknowledged;
+        public final long ackReceivedAt;
+        /** Пачка ACK, склеенная через запятую ("" если пусто) */
+        public final String ackBatch;
+        /** Broadcast: доставлено k из n (0 для личных) */
+        public final int deliveredTo;
+        public final int recipients;
+
+        Sent(DiscoveredDevice.SentMessage m) {
+            messageId = m.messageId;
+            text = m.text;
+            sentAt = m.sentAt;
+            slotIndex = m.slotIndex;
+            acknowledged = m.acknowledged;
+            ackReceivedAt = m.ackReceivedAt;
+            ackBatch = m.ackBatch.isEmpty() ? "" : String.join(",", m.ackBatch);
+            deliveredTo = m.deliveredTo;
+            recipients = m.recipients;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Sent)) return false;
+            Sent s = (Sent) o;
+            return sentAt == s.sentAt
+                    && slotIndex == s.slotIndex
+                    && acknowledged == s.acknowledged
+                    && ackReceivedAt == s.ackReceivedAt
+                    && deliveredTo == s.deliveredTo
+                    && recipients == s.recipients
+                    && Objects.equals(messageId, s.messageId)
+                    && Objects.equals(text, s.text)
+                    && Objects.equals(ackBatch, s.ackBatch);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(messageId, acknowledged);
+        }
+    }
+
+    /**
+     * Снимок полученного сообщения
+     */
+    public static final class Received {
+        public final String messageId;
+        public final String text;
+        public final long receivedAt;
+        public final boolean ackSent;
+        public final long ackSentAt;
+        public final int ackSendCount;
+        public final boolean ackConfirmed;
+
+        Received(DiscoveredDevice.ReceivedMessage m) {
+            messageId = m.messageId;
+            text = m.text;
+            receivedAt = m.receivedAt;
+            ackSent = m.ackSent;
+            ackSentAt = m.ackSentAt;
+            ackSendCount = m.ackSendCount;
+            ackConfirmed = m.ackConfirmed;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Received)) return false;
+            Received r = (Received) o;
+            return receivedAt == r.receivedAt
+                    && ackSent == r.ackSent
+                    && ackSentAt == r.ackSentAt
+                    && ackSendCount == r.ackSendCount
+                    && ackConfirmed == r.ackConfirmed
+                    && Objects.equals(messageId, r.messageId)
+                    && Objects.equals(text, r.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(messageId, ackSendCount);
+        }
+    }
+}
@@ -3,9 +3,12 @@ package com.example.directtest.model;
 import android.net.wifi.p2p.WifiP2pDevice;
 
 import com.example.directtest.P2pConfig;
+import com.example.directtest.metrics.LinkQuality;
+import com.example.directtest.metrics.PeerLatencyStats;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -64,14 +67,23 @@ public class DiscoveredDevice {
 
     // ==================== ИСТОРИЯ СООБЩЕНИЙ ====================
 
-    /** Отправленные сообщения */
-    public List<SentMessage> sentMessages = new ArrayList<>();
+    /** Максимальное количество сообщений в истории */
+    public static final int MAX_MESSAGES_HISTORY = P2pConfig.MESSAGE_HISTORY_DEPTH;
 
-    /** Полученные сообщения */
-    public List<ReceivedMessage> receivedMessages = new ArrayList<>();
+    /** Отправленные сообщения (от новых к старым) */
+    public final BoundedHistory<SentMessage> sentMessages =
+            new BoundedHistory<>(MAX_MESSAGES_HISTORY, m -> m.messageId);
 
-    /** Максимальное количество сообщений в истории */
-    public static final int MAX_MESSAGES_HISTORY = 10;
+    /** Полученные сообщения (от новых к старым) */
+    public final BoundedHistory<ReceivedMessage> receivedMessages =
+            new BoundedHistory<>(MAX_MESSAGES_HISTORY, m -> m.messageId);
+
+    /**
+     * Счётчик изменений истории сообщений.
+     * Увеличивается любым методом, меняющим sentMessages/receivedMessages,
+     * по нему DeviceSnapshot решает, можно ли переиспользовать старые списки.
+     */
+    public int historyVersion;
 
     // ==================== СЕРВИС ====================
 
@@ -84,6 +96,14 @@ public class DiscoveredDevice {
     /** ID сообщений, видимых в текущий момент */
     public Set<String> currentVisibleMsgIds = new HashSet<>();
 
+    // ==================== ЗАДЕРЖКИ ====================
+
+    /** RTT до ACK, задержка доставки и смещение часов */
+    public final PeerLatencyStats latency = new PeerLatencyStats();
+
+    /** Потери heartbeat, интервал обнаружения и свежесть */
+    public final LinkQuality link = new LinkQuality(P2pConfig.HEARTBEAT_INTERVAL, P2pConfig.LINK_BURST_GAP);
+
     // ==================== ВЛОЖЕННЫЕ КЛАССЫ ====================
 
     /**
@@ -96,7 +116,10 @@ public class DiscoveredDevice {
         public int slotIndex;
         public boolean acknowledged;
         public long ackReceivedAt;
-        public List<String> ackBatch = new ArrayList<>();
+        public Set<String> ackBatch = new LinkedHashSet<>();
+        /** Broadcast: сколько получателей подтвердили (k) и сколько ожидается (n); 0 для личных */
+        public int deliveredTo;
+        public int recipients;
 
         /** Конструктор по умолчанию для загрузки из состояния */
         public SentMessage() {
@@ -190,8 +213,9 @@ public class DiscoveredDevice {
      */
     public void addSentMessage(String msgId, String text, int slot) {
         SentMessage msg = new SentMessage(msgId, text, slot);
-        sentMessages.add(0, msg);
-        trimSentMessages();
+        if (sentMessages.addNewest(msg)) {
+            historyVersion++;
+        }
         lastSlotIndex = slot;
     }
 
@@ -199,11 +223,8 @@ public class DiscoveredDevice {
      * Добавить отправленное сообщение из сохранённого состояния
      */
     public void addSentMessageFromState(String msgId, String text, long sentAt, boolean acked, long ackTime) {
-        // Проверка на дубликат
-        for (SentMessage sm : sentMessages) {
-            if (sm.messageId.equals(msgId)) {
-                return;
-            }
+        if (sentMessages.contains(msgId)) {
+            return;
         }
 
         SentMessage sm = new SentMessage();
@@ -214,39 +235,49 @@ public class DiscoveredDevice {
         sm.ackReceivedAt = ackTime;
         sm.slotIndex = -1;  // Неизвестен после перезапуска
 
-        sentMessages.add(sm);
-        trimSentMessages();
+        if (sentMessages.addOldest(sm)) {
+            historyVersion++;
+        }
     }
 
     /**
      * Пометить отправленное сообщение как подтверждённое
      */
     public void markSentMessageAcked(String msgId, List<String> batchAcks) {
-        for (SentMessage msg : sentMessages) {
-            if (msg.messageId.equals(msgId)) {
-                msg.acknowledged = true;
-                msg.ackReceivedAt = System.currentTimeMillis();
-                if (batchAcks != null) {
-                    for (String ack : batchAcks) {
-                        if (!ack.equals(msgId) && !msg.ackBatch.contains(ack)) {
-                            msg.ackBatch.add(ack);
-                        }
-                    }
+        SentMessage msg = sentMessages.get(msgId);
+        if (msg == null) {
+            return;
+        }
+        msg.acknowledged = true;
+        msg.ackReceivedAt = System.currentTimeMillis();
+        if (batchAcks != null) {
+            for (String ack : batchAcks) {
+                if (!ack.equals(msgId)) {
+                    msg.ackBatch.add(ack);
                 }
-                break;
             }
         }
+        historyVersion++;
+    }
+
+    /**
+     * Обновить счётчик доставки broadcast "k/n"
+     */
+    public void setSentMessageDelivery(String msgId, int deliveredTo, int recipients) {
+        SentMessage msg = sentMessages.get(msgId);
+        if (msg == null || (msg.deliveredTo == deliveredTo && msg.recipients == recipients)) {
+            return;
+        }
+        msg.deliveredTo = deliveredTo;
+        msg.recipients = recipients;
+        historyVersion++;
     }
 
     /**
      * Получить последние отправленные сообщения
      */
     public List<SentMessage> getLastSentMessages(int count) {
-        List<SentMessage> result = new ArrayList<>();
-        for (int i = 0; i < Math.min(count, sentMessages.size()); i++) {
-            result.add(sentMessages.get(i));
-        }
-        return result;
+        return sentMessages.newest(count);
     }
 
     /**
@@ -262,38 +293,23 @@ public class DiscoveredDevice {
         return count;
     }
 
-    private void trimSentMessages() {
-        while (sentMessages.size() > MAX_MESSAGES_HISTORY) {
-            sentMessages.remove(sentMessages.size() - 1);
-        }
-    }
-
     // ==================== ПОЛУЧЕННЫЕ СООБЩЕНИЯ ====================
 
     /**
      * Добавить полученное сообщение в историю
      */
     public void addReceivedMessage(String msgId, String text) {
-        // Проверяем дубликаты
-        for (ReceivedMessage rm : receivedMessages) {
-            if (rm.messageId.equals(msgId)) {
-                return;
-            }
+        if (receivedMessages.addNewest(new ReceivedMessage(msgId, text))) {
+            historyVersion++;
         }
-        ReceivedMessage msg = new ReceivedMessage(msgId, text);
-        receivedMessages.add(0, msg);
-        trimReceivedMessages();
     }
 
     /**
      * Добавить полученное сообщение из сохранённого состояния
      */
     public void addReceivedMessageFromState(String msgId, String text, long receivedAt, boolean ackConfirmed) {
-        // Проверка на дубликат
-        for (ReceivedMessage rm : receivedMessages) {
-            if (rm.messageId.equals(msgId)) {
-                return;
-            }
+        if (receivedMessages.contains(msgId)) {
+            return;
         }
 
         ReceivedMessage rm = new ReceivedMessage();
@@ -305,21 +321,21 @@ public class DiscoveredDevice {
         rm.ackSentAt = receivedAt;
         rm.ackSendCount = 1;
 
-        receivedMessages.add(rm);
-        trimReceivedMessages();
+        if (receivedMessages.addOldest(rm)) {
+            historyVersion++;
+        }
     }
 
     /**
      * Пометить что ACK для сообщения отправлен
      */
     public void markReceivedMessageAckSent(String msgId) {
-        for (ReceivedMessage msg : receivedMessages) {
-            if (msg.messageId.equals(msgId)) {
-                msg.ackSent = true;
-                msg.ackSentAt = System.currentTimeMillis();
-                msg.ackSendCount++;
-                break;
-            }
+        ReceivedMessage msg = receivedMessages.get(msgId);
+        if (msg != null) {
+            msg.ackSent = true;
+            msg.ackSentAt = System.currentTimeMillis();
+            msg.ackSendCount++;
+            historyVersion++;
         }
     }
 
@@ -327,11 +343,10 @@ public class DiscoveredDevice {
      * Пометить что ACK для сообщения доставлен (другая сторона убрала слот)
      */
     public void markReceivedMessageAckConfirmed(String msgId) {
-        for (ReceivedMessage msg : receivedMessages) {
-            if (msg.messageId.equals(msgId)) {
-                msg.ackConfirmed = true;
-                break;
-            }
+        ReceivedMessage msg = receivedMessages.get(msgId);
+        if (msg != null) {
+            msg.ackConfirmed = true;
+            historyVersion++;
         }
     }
 
@@ -339,32 +354,24 @@ public class DiscoveredDevice {
      * Получить последние полученные сообщения
      */
     public List<ReceivedMessage> getLastReceivedMessages(int count) {
-        List<ReceivedMessage> result = new ArrayList<>();
-        for (int i = 0; i < Math.min(count, receivedMessages.size()); i++) {
-            result.add(receivedMessages.get(i));
-        }
-        return result;
+        return receivedMessages.newest(count);
     }
 
     /**
      * Получить ID сообщений, ожидающих подтверждения ACK
      */
     public List<String> getPendingAckMessageIds() {
+        // Видимых сообщений единицы - идём по ним, а не по всей истории
         List<String> result = new ArrayList<>();
-        for (ReceivedMessage msg : receivedMessages) {
-            if (!msg.ackConfirmed && currentVisibleMsgIds.contains(msg.messageId)) {
-                result.add(msg.messageId);
+        for (String msgId : currentVisibleMsgIds) {
+            ReceivedMessage msg = receivedMessages.get(msgId);
+            if (msg != null && !msg.ackConfirmed) {
+                result.add(msgId);
             }
         }
         return result;
     }
 
-    private void trimReceivedMessages() {
-        while (receivedMessages.size() > MAX_MESSAGES_HISTORY) {
-            receivedMessages.remove(receivedMessages.size() - 1);
-        }
-    }
-
     // ==================== ОЧИСТКА ====================
 
     /**
@@ -378,5 +385,6 @@ public class DiscoveredDevice {
         heartbeatSeq = 0;
         prevHeartbeatSeq = 0;
         lastHeartbeatReceived = 0;
+        historyVersion++;
     }
 }
\ No newline at end of file
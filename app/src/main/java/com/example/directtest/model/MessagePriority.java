@@ -0,0 +1,58 @@
+package com.example.directtest.model;
+
+import com.example.directtest.P2pConfig;
+
+/**
+ * Класс приоритета сообщения.
+ *
+ * Определяет порядок занятия слотов (срочное вытесняет несрочные) и срок,
+ * по которому упорядочиваются сообщения одного класса (раньше срок - раньше слот).
+ * В записи слота передаётся полем "p" (только если не NORMAL).
+ */
+public enum MessagePriority {
+
+    URGENT(0, "urgent", P2pConfig.PRIORITY_URGENT_DEADLINE),
+    NORMAL(1, "normal", P2pConfig.PRIORITY_NORMAL_DEADLINE),
+    LOW(2, "low", P2pConfig.PRIORITY_LOW_DEADLINE);
+
+    /** Уровень: меньше - срочнее. Значение поля "p" */
+    public final int level;
+
+    /** Метка для метрик и логов */
+    public final String label;
+
+    /** Срок доставки от момента отправки (мс) */
+    public final long deadlineMs;
+
+    MessagePriority(int level, String label, long deadlineMs) {
+        this.level = level;
+        this.label = label;
+        this.deadlineMs = deadlineMs;
+    }
+
+    /**
+     * Срочнее ли чем other
+     */
+    public boolean isHigherThan(MessagePriority other) {
+        return level < other.level;
+    }
+
+    /**
+     * Значение поля "p" или null для NORMAL (не публикуется)
+     */
+    public String code() {
+        return this == NORMAL ? null : String.valueOf(level);
+    }
+
+    /**
+     * Разобрать поле "p"; отсутствующее или неизвестное - NORMAL
+     */
+    public static MessagePriority fromCode(String code) {
+        if (code != null) {
+            for (MessagePriority p : values()) {
+                if (String.valueOf(p.level).equals(code)) return p;
+            }
+        }
+        return NORMAL;
+    }
+}
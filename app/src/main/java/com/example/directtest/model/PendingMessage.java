@@ -21,6 +21,18 @@ public class PendingMessage {
     /** Время отправки (мс) */
     public long sentAt;
 
+    /** Флаг: переотправка (не учитывается в лимите новых сообщений получателю) */
+    public boolean isResend;
+
+    /** Приоритет (срочное может вытеснить менее срочное из слота) */
+    public MessagePriority priority = MessagePriority.NORMAL;
+
+    /** Время отправки пользователем (мс); при повторной публикации после вытеснения не меняется */
+    public long createdAt;
+
+    /** Сколько раз слот перерегистрирован без ACK (такой ACK не даёт выборку RTT) */
+    public int retransmits;
+
     /**
      * Создать pending сообщение
      * @param id ID сообщения
@@ -34,6 +46,7 @@ public class PendingMessage {
         this.targetDeviceId = target;
         this.slotIndex = slot;
         this.sentAt = System.currentTimeMillis();
+        this.createdAt = sentAt;
     }
 
     /**
@@ -53,6 +66,21 @@ public class PendingMessage {
         return getAge() > timeoutMs;
     }
 
+    /**
+     * Сколько новых (не переотправок) сообщений ждут ACK от получателя.
+     * Broadcast (null) считается только против broadcast, а не против каждого получателя.
+     */
+    public static int countTo(Iterable<PendingMessage> pending, String targetDeviceId) {
+        int count = 0;
+        for (PendingMessage pm : pending) {
+            if (pm.isResend) continue;
+            if (targetDeviceId == null ? pm.targetDeviceId == null : targetDeviceId.equals(pm.targetDeviceId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     @Override
     public String toString() {
         return "PendingMessage{" +
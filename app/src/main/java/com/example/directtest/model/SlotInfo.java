@@ -2,6 +2,9 @@ package com.example.directtest.model;
 
 import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceInfo;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Информация о слоте сообщения.
  * Используется для управления DNS-SD сервисами сообщений.
@@ -17,6 +20,9 @@ public class SlotInfo {
     /** ID сообщения в этом слоте */
     public String messageId;
 
+    /** ID всех сообщений записи: первое - messageId, упакованные за ним */
+    public final List<String> messageIds = new ArrayList<>();
+
     /** ID целевого устройства (null для broadcast) */
     public String targetDeviceId;
 
@@ -26,6 +32,15 @@ public class SlotInfo {
     /** Флаг: сервис успешно зарегистрирован */
     public boolean isRegistered;
 
+    /** Флаг: в слоте переотправка (её может вытеснить новое сообщение) */
+    public boolean isResend;
+
+    /** Флаг: в слоте ретрансляция чужого сообщения (режим relay) */
+    public boolean isRelay;
+
+    /** Флаг: почтовый ящик получателя (WFD_Box), а не нумерованный слот */
+    public boolean isMailbox;
+
     /**
      * Создать информацию о слоте
      * @param index индекс слота
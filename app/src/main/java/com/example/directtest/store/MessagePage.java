@@ -0,0 +1,45 @@
+package com.example.directtest.store;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Страница переписки с пиром.
+ * Сообщения идут в хронологическом порядке (старые первыми).
+ */
+public final class MessagePage {
+
+    public final String peerId;
+    public final List<StoredMessage> messages;
+
+    /** Есть ли сообщения старше первого сообщения страницы */
+    public final boolean hasOlder;
+
+    /** Есть ли сообщения новее последнего сообщения страницы */
+    public final boolean hasNewer;
+
+    MessagePage(String peerId, List<StoredMessage> messages, boolean hasOlder, boolean hasNewer) {
+        this.peerId = peerId;
+        this.messages = Collections.unmodifiableList(messages);
+        this.hasOlder = hasOlder;
+        this.hasNewer = hasNewer;
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    /**
+     * Курсор для загрузки более старых сообщений (seq первого сообщения)
+     */
+    public long olderCursor() {
+        return messages.isEmpty() ? Long.MAX_VALUE : messages.get(0).seq;
+    }
+
+    /**
+     * Курсор для загрузки более новых сообщений (seq последнего сообщения)
+     */
+    public long newerCursor() {
+        return messages.isEmpty() ? -1 : messages.get(messages.size() - 1).seq;
+    }
+}
@@ -0,0 +1,463 @@
+package com.example.directtest.store;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import com.example.directtest.DiagnosticLogger;
+import com.example.directtest.P2pConfig;
+import com.example.directtest.metrics.Counter;
+import com.example.directtest.metrics.Histogram;
+import com.example.directtest.metrics.MetricsRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Постоянное хранилище переписки: по журналу (PeerLog) на каждого пира.
+ *
+ * В отличие от DeviceState (последние несколько сообщений для SYNC),
+ * хранит всю историю. В памяти держатся только недавно прочитанные
+ * блоки сообщений (LRU), остальное читается с диска постранично.
+ *
+ * Запись (append, markAcked) ставится в очередь фонового потока и не блокирует
+ * вызывающий поток. Чтение страниц - синхронно (для фоновых потоков)
+ * или через load*() с результатом в главном потоке.
+ * Компакция до STORE_MAX_MESSAGES_PER_PEER выполняется в том же фоновом потоке.
+ * Слушатели получают изменения в главном потоке.
+ */
+public final class MessageStore {
+
+    private static MessageStore instance;
+
+    /** Ключ журнала для broadcast сообщений */
+    public static final String BROADCAST_PEER = "broadcast";
+
+    private static final String DIR_NAME = "messages";
+
+    /** Размер блока сообщений в кэше */
+    private static final int BLOCK_SIZE = 64;
+
+    /** Сколько блоков держать в памяти (все пиры вместе) */
+    private static final int CACHE_BLOCKS = 32;
+
+    public interface PageCallback {
+        void onPageLoaded(MessagePage page);
+    }
+
+    /**
+     * Изменения журнала (вызывается в главном потоке)
+     */
+    public interface Listener {
+        void onMessageAppended(String peerId, StoredMessage message);
+        void onMessageAcked(String peerId, long seq, long ackTime);
+        void onStoreCleared();
+    }
+
+    private final File dir;
+    private final DiagnosticLogger log = DiagnosticLogger.getInstance();
+    private final HandlerThread ioThread;
+    private final Handler ioHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Журналы и кэш - под блокировкой this
+    private final Map<String, PeerLog> logs = new HashMap<>();
+    private final LinkedHashMap<String, StoredMessage[]> blockCache =
+            new LinkedHashMap<String, StoredMessage[]>(CACHE_BLOCKS * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, StoredMessage[]> eldest) {
+                    return size() > CACHE_BLOCKS;
+                }
+            };
+    // Пиры, для которых компакция уже поставлена в очередь ioHandler
+    private final Set<String> compactionPending = new HashSet<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Histogram appendDuration;
+    private final Histogram pageLoadDuration;
+    private final Counter compactions;
+    private final Counter errors;
+
+    private MessageStore(Context context) {
+        this.dir = new File(context.getApplicationContext().getFilesDir(), DIR_NAME);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        ioThread = new HandlerThread("MessageStore");
+        ioThread.start();
+        ioHandler = new Handler(ioThread.getLooper());
+
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        appendDuration = registry.histogram(MetricsRegistry.STORE_APPEND_DURATION);
+        pageLoadDuration = registry.histogram(MetricsRegistry.STORE_PAGE_LOAD_DURATION);
+        compactions = registry.counter(MetricsRegistry.STORE_COMPACTIONS);
+        errors = registry.counter(MetricsRegistry.STORE_ERRORS);
+    }
+
+    public static synchronized MessageStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new MessageStore(context);
+        }
+        return instance;
+    }
+
+    // ==================== СЛУШАТЕЛИ ====================
+
+    public void addListener(Listener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // ==================== ЗАПИСЬ (АСИНХРОННО) ====================
+
+    /**
+     * Сохранить сообщение (в фоновом потоке)
+     * @param peerId deviceId пира или BROADCAST_PEER
+     */
+    public void append(String peerId, String messageId, String text, long timestamp, boolean outgoing) {
+        if (peerId == null || messageId == null) return;
+        ioHandler.post(() -> appendNow(peerId, messageId, text, timestamp, outgoing));
+    }
+
+    /**
+     * Отметить отправленное сообщение подтверждённым (в фоновом потоке)
+     */
+    public void markAcked(String peerId, String messageId, long ackTime) {
+        if (peerId == null || messageId == null) return;
+        ioHandler.post(() -> markAckedNow(peerId, messageId, ackTime));
+    }
+
+    /**
+     * Удалить всю переписку (в фоновом потоке)
+     */
+    public void clearAll() {
+        ioHandler.post(this::clearAllNow);
+    }
+
+    /**
+     * Сбросить записанное на диск (fsync, в фоновом потоке)
+     */
+    public void flush() {
+        ioHandler.post(this::syncNow);
+    }
+
+    // ==================== ЗАПИСЬ (СИНХРОННО) ====================
+
+    /**
+     * Сохранить сообщение в текущем потоке
+     * @return seq сообщения или -1 (дубликат или ошибка)
+     */
+    public synchronized long appendNow(String peerId, String messageId, String text,
+                                       long timestamp, boolean outgoing) {
+        long startNs = System.nanoTime();
+        try {
+            PeerLog peerLog = openLog(peerId);
+            long seq = peerLog.append(messageId, text, timestamp, outgoing);
+            if (seq >= 0) {
+                blockCache.remove(blockKey(peerId, seq / BLOCK_SIZE));
+                appendDuration.record((System.nanoTime() - startNs) / 1000);
+                scheduleCompactionIfNeeded(peerLog);
+                if (!listeners.isEmpty()) {
+                    StoredMessage m = new StoredMessage(seq, messageId, text != null ? text : "",
+                            timestamp, outgoing, false, 0);
+                    mainHandler.post(() -> {
+                        for (Listener l : listeners) l.onMessageAppended(peerId, m);
+                    });
+                }
+            }
+            return seq;
+        } catch (IOException e) {
+            onError("append " + messageId, e);
+            return -1;
+        }
+    }
+
+    /**
+     * @return seq подтверждённого сообщения или -1
+     */
+    public synchronized long markAckedNow(String peerId, String messageId, long ackTime) {
+        try {
+            PeerLog peerLog = openLog(peerId);
+            long seq = peerLog.markAcked(messageId, ackTime);
+            if (seq >= 0) {
+                blockCache.remove(blockKey(peerId, seq / BLOCK_SIZE));
+                if (!listeners.isEmpty()) {
+                    mainHandler.post(() -> {
+                        for (Listener l : listeners) l.onMessageAcked(peerId, seq, ackTime);
+                    });
+                }
+            }
+            return seq;
+        } catch (IOException e) {
+            onError("ack " + messageId, e);
+            return -1;
+        }
+    }
+
+    public synchronized void clearAllNow() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(".idx")) {
+                    String baseName = f.getName().substring(0, f.getName().length() - 4);
+                    if (!logs.containsKey(baseName)) {
+                        // Журнал ещё не открыт - открываем, чтобы сбросить его тем же путём
+                        try {
+                            openLog(baseName);
+                        } catch (IOException e) {
+                            onError("open " + baseName, e);
+                        }
+                    }
+                }
+            }
+        }
+        for (PeerLog peerLog : logs.values()) {
+            try {
+                peerLog.clear();
+            } catch (IOException e) {
+                onError("clear " + peerLog.peerId, e);
+            }
+        }
+        blockCache.clear();
+        log.i("[Store] Cleared " + logs.size() + " peer logs");
+        mainHandler.post(() -> {
+            for (Listener l : listeners) l.onStoreCleared();
+        });
+    }
+
+    public synchronized void syncNow() {
+        for (PeerLog peerLog : logs.values()) {
+            try {
+                peerLog.sync();
+            } catch (IOException e) {
+                onError("sync " + peerLog.peerId, e);
+            }
+        }
+    }
+
+    // ==================== ЧТЕНИЕ ====================
+
+    /**
+     * Последние limit сообщений
+     */
+    public MessagePage latest(String peerId, int limit) {
+        return before(peerId, Long.MAX_VALUE, limit);
+    }
+
+    /**
+     * limit сообщений, предшествующих cursor (seq), в хронологическом порядке
+     */
+    public synchronized MessagePage before(String peerId, long cursor, int limit) {
+        long startNs = System.nanoTime();
+        try {
+            PeerLog peerLog = openLog(peerId);
+            long to = Math.min(cursor, peerLog.endSeq());
+            long from = Math.max(peerLog.firstSeq(), to - limit);
+            List<StoredMessage> messages = readRange(peerId, peerLog, from, to);
+            pageLoadDuration.record((System.nanoTime() - startNs) / 1000);
+            return new MessagePage(peerId, messages, from > peerLog.firstSeq(), to < peerLog.endSeq());
+        } catch (IOException e) {
+            onError("read " + peerId, e);
+            return new MessagePage(peerId, new ArrayList<>(), false, false);
+        }
+    }
+
+    /**
+     * limit сообщений, следующих за cursor (seq), в хронологическом порядке
+     */
+    public synchronized MessagePage after(String peerId, long cursor, int limit) {
+        long startNs = System.nanoTime();
+        try {
+            PeerLog peerLog = openLog(peerId);
+            long from = Math.max(peerLog.firstSeq(), cursor + 1);
+            long to = Math.min(peerLog.endSeq(), from + limit);
+            List<StoredMessage> messages = readRange(peerId, peerLog, from, Math.max(from, to));
+            pageLoadDuration.record((System.nanoTime() - startNs) / 1000);
+            return new MessagePage(peerId, messages, from > peerLog.firstSeq(), to < peerLog.endSeq());
+        } catch (IOException e) {
+            onError("read " + peerId, e);
+            return new MessagePage(peerId, new ArrayList<>(), false, false);
+        }
+    }
+
+    /**
+     * Загрузить последние сообщения в фоне, результат - в главном потоке
+     */
+    public void loadLatest(String peerId, int limit, PageCallback callback) {
+        loadBefore(peerId, Long.MAX_VALUE, limit, callback);
+    }
+
+    /**
+     * Загрузить более старую страницу в фоне, результат - в главном потоке
+     */
+    public void loadBefore(String peerId, long cursor, int limit, PageCallback callback) {
+        ioHandler.post(() -> {
+            MessagePage page = before(peerId, cursor, limit);
+            mainHandler.post(() -> callback.onPageLoaded(page));
+        });
+    }
+
+    /**
+     * Загрузить более новую страницу в фоне, результат - в главном потоке
+     */
+    public void loadAfter(String peerId, long cursor, int limit, PageCallback callback) {
+        ioHandler.post(() -> {
+            MessagePage page = after(peerId, cursor, limit);
+            mainHandler.post(() -> callback.onPageLoaded(page));
+        });
+    }
+
+    /**
+     * Количество сохранённых сообщений пира
+     */
+    public synchronized long count(String peerId) {
+        try {
+            return openLog(peerId).size();
+        } catch (IOException e) {
+            onError("open " + peerId, e);
+            return 0;
+        }
+    }
+
+    private List<StoredMessage> readRange(String peerId, PeerLog peerLog, long from, long to) throws IOException {
+        List<StoredMessage> result = new ArrayList<>((int) (to - from));
+        long seq = from;
+        while (seq < to) {
+            long blockNo = seq / BLOCK_SIZE;
+            StoredMessage[] block = getBlock(peerId, peerLog, blockNo);
+            long blockStart = Math.max(blockNo * BLOCK_SIZE, peerLog.firstSeq());
+            int i = (int) (seq - blockStart);
+            while (i < block.length && seq < to) {
+                result.add(block[i++]);
+                seq++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Блок сообщений [blockNo * BLOCK_SIZE, (blockNo + 1) * BLOCK_SIZE) из кэша или с диска.
+     * Незаполненный последний блок тоже кэшируется - append сбрасывает его.
+     */
+    private StoredMessage[] getBlock(String peerId, PeerLog peerLog, long blockNo) throws IOException {
+        String key = blockKey(peerId, blockNo);
+        StoredMessage[] block = blockCache.get(key);
+        if (block == null) {
+            long start = Math.max(blockNo * BLOCK_SIZE, peerLog.firstSeq());
+            long end = Math.min((blockNo + 1) * BLOCK_SIZE, peerLog.endSeq());
+            block = peerLog.read(start, (int) (end - start));
+            blockCache.put(key, block);
+        }
+        return block;
+    }
+
+    private static String blockKey(String peerId, long blockNo) {
+        return peerId + "#" + blockNo;
+    }
+
+    // ==================== КОМПАКЦИЯ ====================
+
+    private void scheduleCompactionIfNeeded(PeerLog peerLog) {
+        // Гистерезис 25%: компакция раз в STORE_MAX_MESSAGES_PER_PEER / 4 сообщений, а не на каждом.
+        // Порог ">=", а не "==": если компакция не удалась, журнал переоткрывается и
+        // следующая запись ставит её снова, а флаг не даёт поставить её дважды
+        long limit = P2pConfig.STORE_MAX_MESSAGES_PER_PEER;
+        if (peerLog.size() >= limit + limit / 4 && compactionPending.add(peerLog.peerId)) {
+            ioHandler.post(() -> compact(peerLog.peerId));
+        }
+    }
+
+    /**
+     * Оставить в журнале пира только STORE_MAX_MESSAGES_PER_PEER последних сообщений
+     */
+    public synchronized void compact(String peerId) {
+        long startNs = System.nanoTime();
+        try {
+            PeerLog peerLog = openLog(peerId);
+            long dropped = peerLog.compact(P2pConfig.STORE_MAX_MESSAGES_PER_PEER);
+            if (dropped > 0) {
+                invalidate(peerId);
+                compactions.inc();
+                log.i("[Store] Compacted " + peerId + ": dropped " + dropped + " in "
+                        + (System.nanoTime() - startNs) / 1_000_000 + "ms");
+            }
+        } catch (IOException e) {
+            onError("compact " + peerId, e);
+            logs.remove(peerId);
+        } finally {
+            compactionPending.remove(peerId);
+        }
+    }
+
+    private void invalidate(String peerId) {
+        String prefix = peerId + "#";
+        for (Iterator<String> it = blockCache.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    // ==================== ЖУРНАЛЫ ====================
+
+    private PeerLog openLog(String peerId) throws IOException {
+        PeerLog peerLog = logs.get(peerId);
+        if (peerLog == null) {
+            peerLog = new PeerLog(peerId, dir, fileName(peerId));
+            peerLog.open();
+            logs.put(peerId, peerLog);
+        }
+        return peerLog;
+    }
+
+    /**
+     * Имя файла журнала: deviceId без символов, недопустимых в имени файла
+     */
+    private static String fileName(String peerId) {
+        StringBuilder sb = new StringBuilder(peerId.length());
+        for (int i = 0; i < peerId.length(); i++) {
+            char c = peerId.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '-' || c == '_';
+            sb.append(ok ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private void onError(String what, IOException e) {
+        errors.inc();
+        log.e("[Store] " + what + " failed: " + e.getMessage());
+    }
+
+    // ==================== DEBUG ====================
+
+    public synchronized String getDiagnosticInfo() {
+        long messages = 0;
+        long bytes = 0;
+        for (PeerLog peerLog : logs.values()) {
+            messages += peerLog.size();
+            bytes += peerLog.diskBytes();
+        }
+        return "Peers: " + logs.size() +
+                ", messages: " + messages +
+                ", disk: " + (bytes / 1024) + "KB" +
+                ", cached blocks: " + blockCache.size() + "/" + CACHE_BLOCKS;
+    }
+}
@@ -0,0 +1,394 @@
+package com.example.directtest.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Журнал переписки с одним пиром: сегмент + индекс.
+ *
+ * Сегмент (<peer>.<gen>.seg) - только дописываемые записи:
+ *   timestamp(8) + UTF messageId + UTF text
+ * Индекс (<peer>.idx) - заголовок и записи фиксированного размера:
+ *   offset(8) + ackTime(8) + length(4) + flags(4)
+ * Флаги и время ACK меняются на месте в индексе, сегмент не переписывается.
+ *
+ * Номер сообщения (seq) = baseSeq + позиция в индексе. Компакция отбрасывает
+ * старые записи и увеличивает baseSeq, поэтому seq остаются стабильными.
+ * Компакция пишет новый сегмент следующего поколения и атомарно подменяет индекс,
+ * так что при падении в любой момент индекс указывает на целый сегмент.
+ *
+ * Не потокобезопасен: все вызовы идут под блокировкой MessageStore.
+ */
+final class PeerLog {
+
+    static final int FLAG_OUTGOING = 1;
+    static final int FLAG_ACKED = 2;
+
+    private static final int INDEX_MAGIC = 0x57464458; // "WFDX"
+    private static final int INDEX_VERSION = 1;
+
+    /** magic(4) + version(4) + baseSeq(8) + generation(4) + reserved(4) */
+    private static final int HEADER_SIZE = 24;
+    private static final int ENTRY_SIZE = 24;
+
+    private static final int E_OFFSET = 0;
+    private static final int E_ACK_TIME = 8;
+    private static final int E_LENGTH = 16;
+    private static final int E_FLAGS = 20;
+
+    /** Сколько последних ID держать в памяти (ACK и дедупликация) */
+    private static final int RECENT_IDS = 512;
+
+    /** Размер пачки записей при компакции */
+    private static final int COPY_BATCH = 1024;
+
+    final String peerId;
+    private final File dir;
+    private final String baseName;
+    private final File idxFile;
+
+    private RandomAccessFile seg;
+    private RandomAccessFile idx;
+
+    private int generation;
+    private long baseSeq;
+    private long count;
+    private long segLength;
+
+    /** messageId → seq для последних сообщений */
+    private final Map<String, Long> recentIds = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > RECENT_IDS;
+        }
+    };
+
+    private final ByteArrayOutputStream recordBuf = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut = new DataOutputStream(recordBuf);
+    private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+
+    PeerLog(String peerId, File dir, String baseName) {
+        this.peerId = peerId;
+        this.dir = dir;
+        this.baseName = baseName;
+        this.idxFile = new File(dir, baseName + ".idx");
+    }
+
+    // ==================== ОТКРЫТИЕ ====================
+
+    /**
+     * Открыть журнал, восстановив согласованность после обрыва записи
+     */
+    void open() throws IOException {
+        idx = new RandomAccessFile(idxFile, "rw");
+
+        if (!readHeader()) {
+            generation = 0;
+            seg = new RandomAccessFile(segmentFile(generation), "rw");
+            reset(0);
+            deleteStaleSegments();
+            return;
+        }
+
+        seg = new RandomAccessFile(segmentFile(generation), "rw");
+        deleteStaleSegments();
+
+        count = (idx.length() - HEADER_SIZE) / ENTRY_SIZE;
+
+        // Отбрасываем хвост индекса, указывающий за конец сегмента
+        long segFileLength = seg.length();
+        segLength = 0;
+        while (count > 0) {
+            readEntry(count - 1);
+            long end = entry.getLong(E_OFFSET) + entry.getInt(E_LENGTH);
+            if (end <= segFileLength) {
+                segLength = end;
+                break;
+            }
+            count--;
+        }
+
+        idx.setLength(HEADER_SIZE + count * ENTRY_SIZE);
+        seg.setLength(segLength);
+        loadRecentIds();
+    }
+
+    private boolean readHeader() throws IOException {
+        if (idx.length() < HEADER_SIZE) {
+            return false;
+        }
+        idx.seek(0);
+        if (idx.readInt() != INDEX_MAGIC || idx.readInt() != INDEX_VERSION) {
+            return false;
+        }
+        baseSeq = idx.readLong();
+        generation = idx.readInt();
+        return true;
+    }
+
+    private static void writeHeader(RandomAccessFile file, long baseSeq, int generation) throws IOException {
+        file.seek(0);
+        file.writeInt(INDEX_MAGIC);
+        file.writeInt(INDEX_VERSION);
+        file.writeLong(baseSeq);
+        file.writeInt(generation);
+        file.writeInt(0);
+    }
+
+    private void reset(long newBaseSeq) throws IOException {
+        baseSeq = newBaseSeq;
+        count = 0;
+        segLength = 0;
+        idx.setLength(0);
+        writeHeader(idx, baseSeq, generation);
+        seg.setLength(0);
+        recentIds.clear();
+    }
+
+    private void loadRecentIds() throws IOException {
+        recentIds.clear();
+        int n = (int) Math.min(count, RECENT_IDS);
+        if (n == 0) return;
+        for (StoredMessage m : read(baseSeq + count - n, n)) {
+            recentIds.put(m.messageId, m.seq);
+        }
+    }
+
+    private File segmentFile(int gen) {
+        return new File(dir, baseName + "." + gen + ".seg");
+    }
+
+    private void deleteStaleSegments() {
+        String current = segmentFile(generation).getName();
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(baseName + ".") && !name.equals(current)
+                    && (name.endsWith(".seg") || name.endsWith(".tmp"))) {
+                f.delete();
+            }
+        }
+    }
+
+    // ==================== ЗАПИСЬ ====================
+
+    /**
+     * Дописать сообщение
+     * @return seq сообщения или -1, если сообщение с таким ID уже есть
+     */
+    long append(String messageId, String text, long timestamp, boolean outgoing) throws IOException {
+        if (recentIds.containsKey(messageId)) {
+            return -1;
+        }
+
+        recordBuf.reset();
+        recordOut.writeLong(timestamp);
+        recordOut.writeUTF(messageId);
+        recordOut.writeUTF(text != null ? text : "");
+        int length = recordBuf.size();
+
+        // Сначала сегмент, потом индекс: запись индекса не может опередить данные
+        seg.seek(segLength);
+        seg.write(recordBuf.toByteArray(), 0, length);
+
+        entry.putLong(E_OFFSET, segLength);
+        entry.putLong(E_ACK_TIME, 0);
+        entry.putInt(E_LENGTH, length);
+        entry.putInt(E_FLAGS, outgoing ? FLAG_OUTGOING : 0);
+        idx.seek(HEADER_SIZE + count * ENTRY_SIZE);
+        idx.write(entry.array());
+
+        long seq = baseSeq + count;
+        count++;
+        segLength += length;
+        recentIds.put(messageId, seq);
+        return seq;
+    }
+
+    /**
+     * Отметить сообщение подтверждённым (запись индекса меняется на месте)
+     * @return seq сообщения или -1, если оно не найдено среди последних или уже подтверждено
+     */
+    long markAcked(String messageId, long ackTime) throws IOException {
+        Long seq = recentIds.get(messageId);
+        if (seq == null || seq < baseSeq) {
+            return -1;
+        }
+
+        long pos = entryPosition(seq);
+        idx.seek(pos + E_FLAGS);
+        int flags = idx.readInt();
+        if ((flags & FLAG_ACKED) != 0) {
+            return -1;
+        }
+
+        idx.seek(pos + E_ACK_TIME);
+        idx.writeLong(ackTime);
+        idx.seek(pos + E_FLAGS);
+        idx.writeInt(flags | FLAG_ACKED);
+        return seq;
+    }
+
+    /**
+     * Удалить всю переписку (seq продолжают расти)
+     */
+    void clear() throws IOException {
+        reset(baseSeq + count);
+    }
+
+    // ==================== ЧТЕНИЕ ====================
+
+    /**
+     * Прочитать n сообщений начиная с fromSeq.
+     * Записи идут в сегменте подряд, поэтому это одно чтение индекса и одно чтение сегмента.
+     */
+    StoredMessage[] read(long fromSeq, int n) throws IOException {
+        if (fromSeq < baseSeq || fromSeq + n > baseSeq + count) {
+            throw new IndexOutOfBoundsException("seq " + fromSeq + "+" + n
+                    + " outside [" + baseSeq + ", " + (baseSeq + count) + ")");
+        }
+        StoredMessage[] result = new StoredMessage[n];
+        if (n == 0) return result;
+
+        byte[] indexBytes = new byte[n * ENTRY_SIZE];
+        idx.seek(entryPosition(fromSeq));
+        idx.readFully(indexBytes);
+        ByteBuffer entries = ByteBuffer.wrap(indexBytes);
+
+        long first = entries.getLong(E_OFFSET);
+        int last = (n - 1) * ENTRY_SIZE;
+        long end = entries.getLong(last + E_OFFSET) + entries.getInt(last + E_LENGTH);
+        byte[] data = new byte[(int) (end - first)];
+        seg.seek(first);
+        seg.readFully(data);
+
+        for (int i = 0; i < n; i++) {
+            int e = i * ENTRY_SIZE;
+            int offset = (int) (entries.getLong(e + E_OFFSET) - first);
+            int length = entries.getInt(e + E_LENGTH);
+            int flags = entries.getInt(e + E_FLAGS);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+            long timestamp = in.readLong();
+            String messageId = in.readUTF();
+            String text = in.readUTF();
+
+            result[i] = new StoredMessage(fromSeq + i, messageId, text, timestamp,
+                    (flags & FLAG_OUTGOING) != 0, (flags & FLAG_ACKED) != 0,
+                    entries.getLong(e + E_ACK_TIME));
+        }
+        return result;
+    }
+
+    private void readEntry(long position) throws IOException {
+        idx.seek(HEADER_SIZE + position * ENTRY_SIZE);
+        idx.readFully(entry.array());
+    }
+
+    private long entryPosition(long seq) {
+        return HEADER_SIZE + (seq - baseSeq) * ENTRY_SIZE;
+    }
+
+    /** seq самого старого хранимого сообщения */
+    long firstSeq() {
+        return baseSeq;
+    }
+
+    /** seq, который получит следующее сообщение */
+    long endSeq() {
+        return baseSeq + count;
+    }
+
+    long size() {
+        return count;
+    }
+
+    long diskBytes() {
+        return segLength + HEADER_SIZE + count * ENTRY_SIZE;
+    }
+
+    // ==================== КОМПАКЦИЯ ====================
+
+    /**
+     * Оставить только keep последних сообщений.
+     * Копирует их в сегмент следующего поколения и атомарно подменяет индекс.
+     * @return количество удалённых сообщений
+     */
+    long compact(long keep) throws IOException {
+        if (count <= keep) {
+            return 0;
+        }
+        long drop = count - keep;
+        int newGeneration = generation + 1;
+        File newSegFile = segmentFile(newGeneration);
+        File tmpIdxFile = new File(dir, baseName + ".idx.tmp");
+
+        long newSegLength = 0;
+        try (RandomAccessFile newSeg = new RandomAccessFile(newSegFile, "rw");
+             RandomAccessFile newIdx = new RandomAccessFile(tmpIdxFile, "rw")) {
+            newSeg.setLength(0);
+            newIdx.setLength(0);
+            writeHeader(newIdx, baseSeq + drop, newGeneration);
+
+            byte[] indexBytes = new byte[COPY_BATCH * ENTRY_SIZE];
+            ByteBuffer entries = ByteBuffer.wrap(indexBytes);
+            for (long pos = drop; pos < count; pos += COPY_BATCH) {
+                int n = (int) Math.min(COPY_BATCH, count - pos);
+                idx.seek(HEADER_SIZE + pos * ENTRY_SIZE);
+                idx.readFully(indexBytes, 0, n * ENTRY_SIZE);
+
+                long first = entries.getLong(E_OFFSET);
+                int last = (n - 1) * ENTRY_SIZE;
+                long end = entries.getLong(last + E_OFFSET) + entries.getInt(last + E_LENGTH);
+                byte[] data = new byte[(int) (end - first)];
+                seg.seek(first);
+                seg.readFully(data);
+                newSeg.write(data);
+
+                for (int i = 0; i < n; i++) {
+                    int e = i * ENTRY_SIZE + E_OFFSET;
+                    entries.putLong(e, entries.getLong(e) - first + newSegLength);
+                }
+                newSegLength += data.length;
+                newIdx.write(indexBytes, 0, n * ENTRY_SIZE);
+            }
+            newSeg.getFD().sync();
+            newIdx.getFD().sync();
+        }
+
+        close();
+        if (!tmpIdxFile.renameTo(idxFile)) {
+            newSegFile.delete();
+            open();
+            throw new IOException("Failed to replace index " + idxFile);
+        }
+        open();
+        return drop;
+    }
+
+    // ==================== ЗАКРЫТИЕ ====================
+
+    void sync() throws IOException {
+        seg.getFD().sync();
+        idx.getFD().sync();
+    }
+
+    void close() throws IOException {
+        try {
+            if (seg != null) seg.close();
+        } finally {
+            if (idx != null) idx.close();
+            seg = null;
+            idx = null;
+        }
+    }
+}
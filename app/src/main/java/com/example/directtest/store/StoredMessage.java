@@ -0,0 +1,52 @@
+package com.example.directtest.store;
+
+/**
+ * Сообщение из постоянного хранилища переписки (неизменяемое).
+ */
+public final class StoredMessage {
+
+    /** Порядковый номер в журнале пира (курсор для постраничной загрузки) */
+    public final long seq;
+
+    /** ID сообщения (формат: shortId_sessionId_counter) */
+    public final String messageId;
+
+    public final String text;
+
+    /** Время отправки/получения (мс) */
+    public final long timestamp;
+
+    /** true - отправлено нами, false - получено от пира */
+    public final boolean outgoing;
+
+    public final boolean acked;
+    public final long ackTime;
+
+    StoredMessage(long seq, String messageId, String text, long timestamp,
+                  boolean outgoing, boolean acked, long ackTime) {
+        this.seq = seq;
+        this.messageId = messageId;
+        this.text = text;
+        this.timestamp = timestamp;
+        this.outgoing = outgoing;
+        this.acked = acked;
+        this.ackTime = ackTime;
+    }
+
+    /**
+     * Копия с отметкой о подтверждении
+     */
+    public StoredMessage withAck(long ackTime) {
+        return new StoredMessage(seq, messageId, text, timestamp, outgoing, true, ackTime);
+    }
+
+    @Override
+    public String toString() {
+        return "StoredMessage{" +
+                "seq=" + seq +
+                ", id='" + messageId + '\'' +
+                ", " + (outgoing ? "out" : "in") +
+                (acked ? ", acked" : "") +
+                '}';
+    }
+}
@@ -1,5 +1,8 @@
 package com.example.directtest.sync;
 
+import com.example.directtest.P2pConfig;
+import com.example.directtest.model.BoundedHistory;
+
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -7,7 +10,9 @@ import java.util.Set;
 
 /**
  * Состояние взаимодействия с конкретным устройством.
- * Хранит историю отправленных и полученных сообщений (до 3 последних).
+ * Хранит историю отправленных и полученных сообщений
+ * (глубина P2pConfig.STATE_HISTORY_DEPTH). В SYNC v1 уходят только последние SYNC_MAX_IDS,
+ * в SYNC v2 - дайджест всей истории полученных (SyncDigest).
  */
 public class DeviceState {
 
@@ -29,11 +34,22 @@ public class DeviceState {
     // Флаг: синхронизация завершена (все сообщения доставлены)
     public boolean synced;
 
-    // История сообщений (максимум 3)
-    public List<MessageRecord> sentMessages = new ArrayList<>();
-    public List<MessageRecord> recvMessages = new ArrayList<>();
+    // Устройство присылало SYNC v2 (дайджест) - списки v1 ему не нужны
+    public boolean digestSync;
+
+    // Время последнего отчёта "rx" о наших сообщениях текущей сессии (не сохраняется).
+    // Пока отчёты приходят, пропуски закрываются по ним и периодический SYNC не нужен.
+    public long gapReportTime;
+
+    // История сообщений (от новых к старым)
+    public final BoundedHistory<MessageRecord> sentMessages =
+            new BoundedHistory<>(P2pConfig.STATE_HISTORY_DEPTH, m -> m.msgId);
+    public final BoundedHistory<MessageRecord> recvMessages =
+            new BoundedHistory<>(P2pConfig.STATE_HISTORY_DEPTH, m -> m.msgId);
 
-    private static final int MAX_MESSAGES = 3;
+    // Количество неподтверждённых в sentMessages; -1 - не подсчитано
+    // (история заполнена напрямую, например при загрузке из JSON)
+    private int unackedSent = -1;
 
     // ==================== MESSAGE RECORD ====================
 
@@ -69,20 +85,18 @@ public class DeviceState {
      * Добавить отправленное сообщение в историю
      */
     public void addSentMessage(String msgId, String text) {
-        // Проверяем дубликаты
-        for (MessageRecord m : sentMessages) {
-            if (m.msgId.equals(msgId)) {
-                return;
-            }
-        }
-
-        MessageRecord msg = new MessageRecord(msgId, text);
-        sentMessages.add(0, msg);
+        int unacked = unackedSent();
+        MessageRecord evicted = sentMessages.size() == sentMessages.capacity()
+                ? sentMessages.get(sentMessages.size() - 1) : null;
 
-        // Храним только MAX_MESSAGES последних
-        while (sentMessages.size() > MAX_MESSAGES) {
-            sentMessages.remove(sentMessages.size() - 1);
+        // Дубликаты отбрасываются, самое старое вытесняется
+        if (!sentMessages.addNewest(new MessageRecord(msgId, text))) {
+            return;
         }
+        if (evicted != null && !evicted.acked) {
+            unacked--;
+        }
+        unackedSent = unacked + 1;
 
         lastSentTime = System.currentTimeMillis();
 
@@ -101,49 +115,56 @@ public class DeviceState {
         return ids;
     }
 
+    /**
+     * ID последних отправленных сообщений для записи SYNC
+     */
+    public List<String> getSyncSentIds() {
+        return idsOf(sentMessages.newest(P2pConfig.SYNC_MAX_IDS));
+    }
+
     /**
      * Найти отправленное сообщение по ID
      */
     public MessageRecord findSentMessage(String msgId) {
-        for (MessageRecord m : sentMessages) {
-            if (m.msgId.equals(msgId)) {
-                return m;
-            }
-        }
-        return null;
+        return sentMessages.get(msgId);
     }
 
     /**
      * Пометить отправленное сообщение как подтверждённое
      */
     public void markAcked(String msgId) {
-        for (MessageRecord m : sentMessages) {
-            if (m.msgId.equals(msgId)) {
-                m.acked = true;
-                m.ackTime = System.currentTimeMillis();
-                break;
+        MessageRecord m = sentMessages.get(msgId);
+        if (m != null && !m.acked) {
+            m.acked = true;
+            m.ackTime = System.currentTimeMillis();
+            if (unackedSent > 0) {
+                unackedSent--;
             }
         }
     }
 
-    // ==================== ПОЛУЧЕННЫЕ СООБЩЕНИЯ ====================
-
     /**
-     * Добавить полученное сообщение в историю
+     * Количество неподтверждённых отправленных в истории
      */
-    public void addRecvMessage(String msgId, String text) {
-        // Проверяем дубликаты
-        for (MessageRecord m : recvMessages) {
-            if (m.msgId.equals(msgId)) {
-                return;
+    public int unackedSent() {
+        if (unackedSent < 0) {
+            int n = 0;
+            for (MessageRecord m : sentMessages) {
+                if (!m.acked) n++;
             }
+            unackedSent = n;
         }
+        return unackedSent;
+    }
 
-        MessageRecord msg = new MessageRecord(msgId, text);
-        recvMessages.add(0, msg);
+    // ==================== ПОЛУЧЕННЫЕ СООБЩЕНИЯ ====================
 
-        while (recvMessages.size() > MAX_MESSAGES) {
-            recvMessages.remove(recvMessages.size() - 1);
+    /**
+     * Добавить полученное сообщение в историю
+     */
+    public void addRecvMessage(String msgId, String text) {
+        if (!recvMessages.addNewest(new MessageRecord(msgId, text))) {
+            return;
         }
 
         lastRecvTime = System.currentTimeMillis();
@@ -164,21 +185,62 @@ public class DeviceState {
     }
 
     /**
-     * Проверить, есть ли полученное сообщение с таким ID
+     * ID последних полученных сообщений для записи SYNC
      */
-    public boolean hasRecvMessage(String msgId) {
+    public List<String> getSyncRecvIds() {
+        return idsOf(recvMessages.newest(P2pConfig.SYNC_MAX_IDS));
+    }
+
+    /**
+     * Дайджест ID, полученных от устройства в его текущей сессии (для SYNC v2)
+     * @return null если сессия устройства неизвестна
+     */
+    public SyncDigest buildRecvDigest() {
+        String prefix = getPeerIdPrefix();
+        if (prefix == null) {
+            return null;
+        }
+        SyncDigest digest = new SyncDigest();
+        int minKey = Integer.MAX_VALUE;
         for (MessageRecord m : recvMessages) {
-            if (m.msgId.equals(msgId)) {
-                return true;
+            if (!m.msgId.startsWith(prefix)) continue;
+            int key = SyncDigest.keyOf(m.msgId);
+            if (key >= 0) {
+                digest.add(key);
+                minKey = Math.min(minKey, key);
             }
         }
-        return false;
+        // История заполнена - более старые могли быть вытеснены, их не сравниваем
+        if (recvMessages.size() == recvMessages.capacity() && digest.size() > 0) {
+            digest.setWindowStart(minKey);
+        }
+        return digest;
+    }
+
+    /**
+     * Префикс ID сообщений устройства в текущей сессии (shortId_sessionId_)
+     */
+    public String getPeerIdPrefix() {
+        if (deviceId == null || lastSessionId == null) {
+            return null;
+        }
+        String shortId = deviceId.length() > 8 ? deviceId.substring(0, 8) : deviceId;
+        return shortId + "_" + lastSessionId + "_";
+    }
+
+    /**
+     * Проверить, есть ли полученное сообщение с таким ID
+     */
+    public boolean hasRecvMessage(String msgId) {
+        return recvMessages.contains(msgId);
     }
 
     // ==================== СИНХРОНИЗАЦИЯ ====================
 
     /**
      * Найти сообщения, которые я отправлял, но другая сторона не получила.
+     * Сравниваются только последние SYNC_MAX_IDS - столько же другая сторона
+     * присылает в своём списке recv.
      *
      * @param theirRecvIds - список msgId которые другая сторона получила от меня
      * @return список сообщений для повторной отправки
@@ -187,7 +249,7 @@ public class DeviceState {
         List<MessageRecord> undelivered = new ArrayList<>();
         Set<String> theirSet = new HashSet<>(theirRecvIds);
 
-        for (MessageRecord m : sentMessages) {
+        for (MessageRecord m : sentMessages.newest(P2pConfig.SYNC_MAX_IDS)) {
             if (!theirSet.contains(m.msgId)) {
                 undelivered.add(m);
             }
@@ -213,10 +275,8 @@ public class DeviceState {
         }
 
         // Если есть неподтверждённые - нужно
-        for (MessageRecord m : sentMessages) {
-            if (!m.acked) {
-                return true;
-            }
+        if (hasUnackedInSyncWindow()) {
+            return true;
         }
 
         // Если есть полученные сообщения и не синхронизированы - нужно
@@ -228,6 +288,23 @@ public class DeviceState {
         return false;
     }
 
+    /**
+     * Есть ли неподтверждённые среди отправленных, которые может подтвердить SYNC:
+     * вся история для SYNC v2, последние SYNC_MAX_IDS для v1.
+     */
+    public boolean hasUnackedInSyncWindow() {
+        if (digestSync) {
+            return unackedSent() > 0;
+        }
+        int n = Math.min(P2pConfig.SYNC_MAX_IDS, sentMessages.size());
+        for (int i = 0; i < n; i++) {
+            if (!sentMessages.get(i).acked) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Пометить как синхронизированное
      */
@@ -244,12 +321,21 @@ public class DeviceState {
 
     // ==================== UTILITIES ====================
 
+    private static List<String> idsOf(List<MessageRecord> records) {
+        List<String> ids = new ArrayList<>(records.size());
+        for (MessageRecord m : records) {
+            ids.add(m.msgId);
+        }
+        return ids;
+    }
+
     /**
      * Очистить историю сообщений
      */
     public void clearMessages() {
         sentMessages.clear();
         recvMessages.clear();
+        unackedSent = 0;
         lastSentTime = 0;
         lastRecvTime = 0;
         lastSyncSentTime = 0;
@@ -261,6 +347,7 @@ public class DeviceState {
         return "DeviceState{" +
                 "deviceId='" + deviceId + '\'' +
                 ", synced=" + synced +
+                ", digestSync=" + digestSync +
                 ", sent=" + getSentMessageIds() +
                 ", recv=" + getRecvMessageIds() +
                 '}';
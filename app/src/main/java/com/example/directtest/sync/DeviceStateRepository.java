@@ -5,6 +5,8 @@ import android.os.Handler;
 import android.os.Looper;
 
 import com.example.directtest.DiagnosticLogger;
+import com.example.directtest.metrics.Histogram;
+import com.example.directtest.metrics.MetricsRegistry;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -35,6 +37,8 @@ public class DeviceStateRepository {
     private final Map<String, DeviceState> states = new ConcurrentHashMap<>();
     private final DiagnosticLogger log = DiagnosticLogger.getInstance();
     private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Histogram saveDuration = MetricsRegistry.getInstance()
+            .histogram(MetricsRegistry.REPO_SAVE_DURATION);
 
     private String myDeviceId;
     private String mySessionId;
@@ -158,6 +162,7 @@ public class DeviceStateRepository {
     public void saveNow() {
         dirty = false;
         lastSaveTime = System.currentTimeMillis();
+        long startNs = System.nanoTime();
 
         try {
             JSONObject root = new JSONObject();
@@ -177,6 +182,7 @@ public class DeviceStateRepository {
                 writer.write(root.toString(2));
             }
 
+            saveDuration.record((System.nanoTime() - startNs) / 1000);
             log.d("[Repo] Saved " + states.size() + " device states");
 
         } catch (JSONException | IOException e) {
@@ -260,6 +266,7 @@ public class DeviceStateRepository {
         json.put("lastRecvTime", state.lastRecvTime);
         json.put("lastSyncSentTime", state.lastSyncSentTime);
         json.put("synced", state.synced);
+        json.put("digestSync", state.digestSync);
 
         // Отправленные сообщения
         JSONArray sentArr = new JSONArray();
@@ -291,13 +298,14 @@ public class DeviceStateRepository {
         state.lastRecvTime = json.optLong("lastRecvTime", 0);
         state.lastSyncSentTime = json.optLong("lastSyncSentTime", 0);
         state.synced = json.optBoolean("synced", false);
+        state.digestSync = json.optBoolean("digestSync", false);
 
         // Отправленные сообщения
         JSONArray sentArr = json.optJSONArray("sentMessages");
         if (sentArr != null) {
             for (int i = 0; i < sentArr.length(); i++) {
                 try {
-                    state.sentMessages.add(jsonToMessage(sentArr.getJSONObject(i)));
+                    state.sentMessages.addOldest(jsonToMessage(sentArr.getJSONObject(i)));
                 } catch (JSONException e) {
                     // Пропускаем битые записи
                 }
@@ -309,7 +317,7 @@ public class DeviceStateRepository {
         if (recvArr != null) {
             for (int i = 0; i < recvArr.length(); i++) {
                 try {
-                    state.recvMessages.add(jsonToMessage(recvArr.getJSONObject(i)));
+                    state.recvMessages.addOldest(jsonToMessage(recvArr.getJSONObject(i)));
                 } catch (JSONException e) {
                     // Пропускаем битые записи
                 }
@@ -0,0 +1,203 @@
+package com.example.directtest.sync;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Окно приёма, объявляемое получателем (как receive window в TCP).
+ *
+ * Получатель, который редко обнаруживает записи отправителя, не успевает увидеть
+ * все его слоты: они висят до таймаута и перерегистрируются впустую. Поэтому каждый
+ * узел оценивает, с каким интервалом он обнаруживает записи каждого отправителя
+ * (EWMA промежутков между циклами обнаружения), и объявляет в heartbeat
+ * "w" = id:окно[,id:окно...] - сколько неподтверждённых сообщений от этого
+ * отправителя он готов отслеживать:
+ *   окно = reference / интервал, в пределах [1, maxWindow]
+ * Окно maxWindow не публикуется - это значение по умолчанию.
+ *
+ * Тот же класс на стороне отправителя хранит окна, объявленные ему получателями.
+ */
+public final class FlowWindow {
+
+    private static final double ALPHA = 0.25;
+
+    /**
+     * Темп обнаружения одного отправителя
+     */
+    private static final class Pace {
+        /** Начало текущего цикла обнаружения (мс) */
+        long cycleStart;
+        /** Последняя запись (мс) */
+        long lastArrival;
+        /** EWMA интервала между циклами (мс), 0 - ещё не измерен */
+        double intervalMs;
+        int window;
+    }
+
+    /**
+     * Окно, объявленное нам получателем
+     */
+    private static final class Advertised {
+        final int window;
+        final long receivedAt;
+
+        Advertised(int window, long receivedAt) {
+            this.window = window;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private final long referenceMs;
+    private final long burstGapMs;
+    private final long maxGapMs;
+    private final long ttlMs;
+    private final int maxWindow;
+
+    private final Map<String, Pace> paces = new HashMap<>();
+    private final Map<String, Advertised> advertised = new HashMap<>();
+
+    public FlowWindow(long referenceMs, long burstGapMs, long maxGapMs, long ttlMs, int maxWindow) {
+        this.referenceMs = referenceMs;
+        this.burstGapMs = burstGapMs;
+        this.maxGapMs = maxGapMs;
+        this.ttlMs = ttlMs;
+        this.maxWindow = maxWindow;
+    }
+
+    // ==================== ПОЛУЧАТЕЛЬ ====================
+
+    /**
+     * Учесть TXT запись отправителя
+     * @return true если наше окно для него изменилось
+     */
+    public boolean onArrival(String senderId, long now) {
+        Pace pace = paces.get(senderId);
+        if (pace == null) {
+            pace = new Pace();
+            pace.cycleStart = now;
+            pace.lastArrival = now;
+            pace.window = maxWindow;
+            paces.put(senderId, pace);
+            return false;
+        }
+
+        long sinceLast = now - pace.lastArrival;
+        pace.lastArrival = now;
+        if (sinceLast <= burstGapMs) {
+            return false;  // Тот же цикл обнаружения
+        }
+
+        long interval = now - pace.cycleStart;
+        pace.cycleStart = now;
+        if (interval > maxGapMs) {
+            return false;
+        }
+        pace.intervalMs = pace.intervalMs == 0 ? interval : pace.intervalMs + ALPHA * (interval - pace.intervalMs);
+
+        int window = (int) Math.max(1, Math.min(maxWindow, referenceMs / pace.intervalMs));
+        if (window == pace.window) {
+            return false;
+        }
+        pace.window = window;
+        return true;
+    }
+
+    /**
+     * Сколько неподтверждённых сообщений от отправителя мы готовы отслеживать
+     */
+    public int localWindow(String senderId) {
+        Pace pace = paces.get(senderId);
+        return pace != null ? pace.window : maxWindow;
+    }
+
+    /**
+     * Значение "w" для heartbeat: окна меньше максимального для активных отправителей
+     * @return пустая строка если объявлять нечего
+     */
+    public String encode(Collection<String> activeSenders, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        for (String senderId : activeSenders) {
+            int window = localWindow(senderId);
+            if (window >= maxWindow) continue;
+            String item = senderId + ":" + window;
+            if (sb.length() + item.length() + 1 > maxLength) break;
+            if (sb.length() > 0) sb.append(",");
+            sb.append(item);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Забыть отправителей, от которых давно ничего не было
+     */
+    public void prune(long now) {
+        Iterator<Pace> it = paces.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastArrival > maxGapMs) it.remove();
+        }
+    }
+
+    // ==================== ОТПРАВИТЕЛЬ ====================
+
+    /**
+     * Разобрать "w" из heartbeat получателя и запомнить окно для нас
+     * (без записи для нас - окно по умолчанию)
+     * @return true если окно для получателя увеличилось
+     */
+    public boolean onAdvertisement(String peerId, String w, String selfId, long now) {
+        int before = windowFor(peerId, now);
+        int window = maxWindow;
+        if (w != null && !w.isEmpty()) {
+            for (String item : w.split(",")) {
+                int colon = item.indexOf(':');
+                if (colon <= 0 || !item.substring(0, colon).equals(selfId)) continue;
+                try {
+                    window = Math.max(1, Math.min(maxWindow, Integer.parseInt(item.substring(colon + 1))));
+                } catch (NumberFormatException e) {}
+                break;
+            }
+        }
+        if (window >= maxWindow) {
+            advertised.remove(peerId);
+        } else {
+            advertised.put(peerId, new Advertised(window, now));
+        }
+        return window > before;
+    }
+
+    /**
+     * Сколько неподтверждённых сообщений можно держать в слотах для получателя
+     */
+    public int windowFor(String peerId, long now) {
+        Advertised a = advertised.get(peerId);
+        if (a == null) return maxWindow;
+        if (now - a.receivedAt > ttlMs) {
+            advertised.remove(peerId);
+            return maxWindow;
+        }
+        return a.window;
+    }
+
+    public void clear() {
+        paces.clear();
+        advertised.clear();
+    }
+
+    public String getDiagnosticInfo(long now) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Local windows (receiver):");
+        for (Map.Entry<String, Pace> e : paces.entrySet()) {
+            Pace p = e.getValue();
+            sb.append("\n  ").append(e.getKey()).append(" w=").append(p.window)
+                    .append(" interval=").append(p.intervalMs > 0 ? Math.round(p.intervalMs / 1000.0) + "s" : "?");
+        }
+        sb.append("\nAdvertised to us (sender):");
+        for (Map.Entry<String, Advertised> e : advertised.entrySet()) {
+            sb.append("\n  ").append(e.getKey()).append(" w=").append(e.getValue().window)
+                    .append(" age ").append((now - e.getValue().receivedAt) / 1000).append("s");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.directtest.sync;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Сборка сообщений из фрагментов FragmentCodec на стороне получателя.
+ *
+ * Фрагменты копятся по ID сообщения; как только получены любые k из n,
+ * сообщение восстанавливается и забывается. Незавершённые сборки без новых
+ * фрагментов дольше ttlMs отбрасываются (остаток доставит SYNC), число
+ * одновременных сборок ограничено - вытесняется самая старая.
+ */
+public final class FragmentAssembler {
+
+    private static final class Partial {
+        final byte[][] shards;
+        final int dataCount;
+        final int length;
+        int received;
+        long updatedAt;
+
+        Partial(FragmentCodec.Header h) {
+            shards = new byte[h.totalCount][];
+            dataCount = h.dataCount;
+            length = h.length;
+        }
+    }
+
+    private final int maxMessages;
+    private final long ttlMs;
+    private final LinkedHashMap<String, Partial> partials = new LinkedHashMap<>();
+
+    public FragmentAssembler(int maxMessages, long ttlMs) {
+        this.maxMessages = maxMessages;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Учесть фрагмент
+     * @return восстановленный текст, если этим фрагментом набрано k из n, иначе null
+     */
+    public String offer(String fragmentId, String payload, long now) {
+        FragmentCodec.Header h = FragmentCodec.parse(fragmentId);
+        byte[] shard = FragmentCodec.decodePayload(payload);
+        if (h == null || shard == null) return null;
+
+        Partial p = partials.get(h.baseId);
+        if (p == null || p.shards.length != h.totalCount || p.dataCount != h.dataCount) {
+            p = new Partial(h);
+            partials.put(h.baseId, p);
+            if (partials.size() > maxMessages) {
+                Iterator<String> it = partials.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        p.updatedAt = now;
+        if (p.shards[h.index] != null) return null;
+        p.shards[h.index] = shard;
+        p.received++;
+        if (p.received < p.dataCount) return null;
+
+        String text = FragmentCodec.decode(p.shards, p.dataCount, p.length);
+        if (text != null) {
+            partials.remove(h.baseId);
+        }
+        return text;
+    }
+
+    /**
+     * Сколько фрагментов сообщения уже получено (0 - сборки нет)
+     */
+    public int receivedCount(String baseId) {
+        Partial p = partials.get(baseId);
+        return p != null ? p.received : 0;
+    }
+
+    public void prune(long now) {
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().updatedAt > ttlMs) it.remove();
+        }
+    }
+
+    public int size() {
+        return partials.size();
+    }
+
+    public void clear() {
+        partials.clear();
+    }
+
+    public String getDiagnosticInfo(long now) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Assembling: ").append(partials.size());
+        for (Map.Entry<String, Partial> e : partials.entrySet()) {
+            Partial p = e.getValue();
+            sb.append("\n  ").append(e.getKey()).append(" ").append(p.received).append("/")
+                    .append(p.dataCount).append(" of ").append(p.shards.length)
+                    .append(" age ").append((now - p.updatedAt) / 1000).append("s");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,268 @@
+package com.example.directtest.sync;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Разбиение длинного сообщения на фрагменты с избыточностью (FEC).
+ *
+ * Байты UTF-8 сообщения делятся на k фрагментов данных одной длины (последний
+ * дополняется нулями), к ним добавляются r фрагментов чётности систематического
+ * кода Рида-Соломона (матрица Коши над GF(256)). Любые k из n = k + r фрагментов
+ * восстанавливают сообщение: фрагмент из записи, которую получатель так и не увидел,
+ * не заставляет ждать переотправки.
+ *
+ * Фрагмент передаётся как обычное сообщение: ID "base#i.k.n.len" (i - номер фрагмента,
+ * len - длина сообщения в байтах), текст - Base64 байтов фрагмента.
+ */
+public final class FragmentCodec {
+
+    private static final char SEPARATOR = '#';
+
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) x ^= 0x11D;
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    /**
+     * Фрагмент для отправки
+     */
+    public static final class Fragment {
+        public final String id;
+        public final String payload;
+
+        Fragment(String id, String payload) {
+            this.id = id;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Заголовок фрагмента, разобранный из ID
+     */
+    public static final class Header {
+        public final String baseId;
+        public final int index;
+        public final int dataCount;
+        public final int totalCount;
+        public final int length;
+
+        Header(String baseId, int index, int dataCount, int totalCount, int length) {
+            this.baseId = baseId;
+            this.index = index;
+            this.dataCount = dataCount;
+            this.totalCount = totalCount;
+            this.length = length;
+        }
+    }
+
+    private FragmentCodec() {}
+
+    // ==================== ОТПРАВИТЕЛЬ ====================
+
+    /**
+     * Разбить сообщение на фрагменты данных и добавить parity фрагментов чётности
+     * @param fragmentBytes наибольший размер фрагмента (байт)
+     */
+    public static List<Fragment> encode(String baseId, String text, int fragmentBytes, int parity) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        int k = Math.max(1, (data.length + fragmentBytes - 1) / fragmentBytes);
+        int size = (data.length + k - 1) / k;
+        int n = k + parity;
+
+        byte[][] shards = new byte[n][size];
+        for (int i = 0; i < k; i++) {
+            int from = i * size;
+            System.arraycopy(data, from, shards[i], 0, Math.max(0, Math.min(size, data.length - from)));
+        }
+        for (int j = 0; j < parity; j++) {
+            for (int i = 0; i < k; i++) {
+                mulAdd(shards[k + j], shards[i], coefficient(k, j, i));
+            }
+        }
+
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        List<Fragment> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String id = baseId + SEPARATOR + i + "." + k + "." + n + "." + data.length;
+            result.add(new Fragment(id, encoder.encodeToString(shards[i])));
+        }
+        return result;
+    }
+
+    /**
+     * Сколько фрагментов чётности нужно, чтобы при доле потерянных фрагментов loss
+     * получатель собрал k из n с вероятностью не ниже target
+     */
+    public static int parityFor(int k, double loss, double target, int maxParity) {
+        for (int r = 0; r < maxParity; r++) {
+            if (successProbability(k, k + r, loss) >= target) return r;
+        }
+        return maxParity;
+    }
+
+    /**
+     * Вероятность получить не меньше k из n фрагментов при независимых потерях
+     */
+    static double successProbability(int k, int n, double loss) {
+        double p = 0;
+        for (int got = k; got <= n; got++) {
+            p += binomial(n, got) * Math.pow(1 - loss, got) * Math.pow(loss, n - got);
+        }
+        return p;
+    }
+
+    private static double binomial(int n, int m) {
+        double c = 1;
+        for (int i = 1; i <= m; i++) {
+            c = c * (n - m + i) / i;
+        }
+        return c;
+    }
+
+    // ==================== ПОЛУЧАТЕЛЬ ====================
+
+    public static boolean isFragment(String msgId) {
+        return msgId != null && msgId.indexOf(SEPARATOR) > 0;
+    }
+
+    /**
+     * ID сообщения, к которому относится фрагмент (для обычного сообщения - сам ID)
+     */
+    public static String baseId(String msgId) {
+        int sep = msgId.indexOf(SEPARATOR);
+        return sep > 0 ? msgId.substring(0, sep) : msgId;
+    }
+
+    /**
+     * @return заголовок или null если ID не фрагмента или повреждён
+     */
+    public static Header parse(String fragmentId) {
+        int sep = fragmentId.indexOf(SEPARATOR);
+        if (sep <= 0) return null;
+        String[] parts = fragmentId.substring(sep + 1).split("\\.");
+        if (parts.length != 4) return null;
+        try {
+            int index = Integer.parseInt(parts[0]);
+            int k = Integer.parseInt(parts[1]);
+            int n = Integer.parseInt(parts[2]);
+            int length = Integer.parseInt(parts[3]);
+            if (k < 1 || n < k || n > 255 || index < 0 || index >= n || length < 0) return null;
+            return new Header(fragmentId.substring(0, sep), index, k, n, length);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static byte[] decodePayload(String payload) {
+        try {
+            return Base64.getDecoder().decode(payload);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Восстановить сообщение по k фрагментам
+     * @param shards фрагменты по номерам (null - не получен), не меньше k ненулевых одной длины
+     * @return текст или null если фрагментов не хватает
+     */
+    public static String decode(byte[][] shards, int k, int length) {
+        int size = -1;
+        int[] rows = new int[k];
+        int found = 0;
+        for (int i = 0; i < shards.length && found < k; i++) {
+            if (shards[i] == null) continue;
+            if (size >= 0 && shards[i].length != size) return null;
+            size = shards[i].length;
+            rows[found++] = i;
+        }
+        if (found < k) return null;
+
+        // Строки кодирующей матрицы для полученных фрагментов: единичная для данных, Коши для чётности
+        int[][] m = new int[k][k];
+        byte[][] rhs = new byte[k][];
+        for (int r = 0; r < k; r++) {
+            int idx = rows[r];
+            if (idx < k) {
+                m[r][idx] = 1;
+            } else {
+                for (int c = 0; c < k; c++) m[r][c] = coefficient(k, idx - k, c);
+            }
+            rhs[r] = Arrays.copyOf(shards[idx], size);
+        }
+
+        // Гаусс над GF(256)
+        for (int col = 0; col < k; col++) {
+            int pivot = col;
+            while (pivot < k && m[pivot][col] == 0) pivot++;
+            if (pivot == k) return null;
+            int[] tm = m[col]; m[col] = m[pivot]; m[pivot] = tm;
+            byte[] tr = rhs[col]; rhs[col] = rhs[pivot]; rhs[pivot] = tr;
+
+            int inv = inverse(m[col][col]);
+            for (int c = 0; c < k; c++) m[col][c] = mul(m[col][c], inv);
+            scale(rhs[col], inv);
+            for (int r = 0; r < k; r++) {
+                int f = m[r][col];
+                if (r == col || f == 0) continue;
+                for (int c = 0; c < k; c++) m[r][c] ^= mul(f, m[col][c]);
+                mulAdd(rhs[r], rhs[col], f);
+            }
+        }
+
+        byte[] data = new byte[Math.min(length, k * size)];
+        for (int i = 0; i < k; i++) {
+            int from = i * size;
+            int len = Math.min(size, data.length - from);
+            if (len <= 0) break;
+            System.arraycopy(rhs[i], 0, data, from, len);
+        }
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    // ==================== GF(256) ====================
+
+    /** Элемент матрицы Коши 1 / (x_j + y_i), x_j = k + j, y_i = i */
+    private static int coefficient(int k, int parityIndex, int dataIndex) {
+        return inverse((k + parityIndex) ^ dataIndex);
+    }
+
+    private static int mul(int a, int b) {
+        return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /** dst += src * f */
+    private static void mulAdd(byte[] dst, byte[] src, int f) {
+        if (f == 0) return;
+        int lf = LOG[f];
+        for (int i = 0; i < dst.length; i++) {
+            int s = src[i] & 0xFF;
+            if (s != 0) dst[i] ^= (byte) EXP[LOG[s] + lf];
+        }
+    }
+
+    private static void scale(byte[] dst, int f) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = (byte) mul(dst[i] & 0xFF, f);
+        }
+    }
+}
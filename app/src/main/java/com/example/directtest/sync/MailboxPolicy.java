@@ -0,0 +1,74 @@
+package com.example.directtest.sync;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Раздача почтовых ящиков получателям.
+ *
+ * - Активность получателя - последняя отправка ему или ACK от него; помнится
+ *   для нескольких поколений ящиков (4 * capacity получателей, LRU).
+ * - Новый получатель берёт свободный ящик, иначе ящик получателя, дольше всех
+ *   без активности, но только если тот простаивает не меньше idleMs.
+ *   Без записи об активности берётся время публикации ящика.
+ *
+ * Политика не знает о слотах: FastDiscoveryManager передаёт владельцев ящиков
+ * и сам снимает отданный ящик.
+ */
+public final class MailboxPolicy {
+
+    private final long idleMs;
+    private final Map<String, Long> activity;
+
+    public MailboxPolicy(int capacity, long idleMs) {
+        this.idleMs = idleMs;
+        int remembered = 4 * capacity;
+        this.activity = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > remembered;
+            }
+        };
+    }
+
+    /**
+     * Отправка получателю или ACK от него
+     */
+    public void touch(String peer, long now) {
+        activity.put(peer, now);
+    }
+
+    /**
+     * Последняя активность получателя
+     * @param fallback если активности не было
+     */
+    public long lastActive(String peer, long fallback) {
+        Long at = activity.get(peer);
+        return at != null ? at : fallback;
+    }
+
+    /**
+     * Ящик для нового получателя
+     * @param owners получатели ящиков по индексу (null - ящик свободен)
+     * @param publishedAt время публикации ящиков
+     * @return индекс свободного ящика, ящика простаивающего получателя или -1
+     */
+    public int pick(String[] owners, long[] publishedAt, long now) {
+        int lru = -1;
+        long lruAt = Long.MAX_VALUE;
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] == null) return i;
+            long at = lastActive(owners[i], publishedAt[i]);
+            if (at < lruAt) {
+                lruAt = at;
+                lru = i;
+            }
+        }
+        if (lru < 0 || now - lruAt < idleMs) return -1;
+        return lru;
+    }
+
+    public void clear() {
+        activity.clear();
+    }
+}
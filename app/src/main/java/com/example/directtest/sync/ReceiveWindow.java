@@ -0,0 +1,186 @@
+package com.example.directtest.sync;
+
+/**
+ * Окно приёма сообщений от одного отправителя в одной его сессии.
+ *
+ * Отправитель нумерует адресованные нам сообщения последовательно ("q" в слоте: 1, 2, 3...).
+ * Получатель хранит непрерывную границу hwm (все q <= hwm получены) и битовую карту
+ * полученных за ней: бит i означает q = hwm + 1 + i. Бит 0 всегда сброшен -
+ * иначе граница сдвинулась бы.
+ *
+ * Новое окно начинается с hwm = 0: записи приходят в любом порядке, и первый увиденный
+ * номер не говорит, что более ранние получены. Окно, вытесненное из отчёта после простоя,
+ * хранит владелец и возобновляет его для той же сессии.
+ * Номер дальше чем WINDOW за границей сдвигает окно вперёд. Что было в пропущенной части,
+ * окно больше не знает: номера до base включительно отчёт не подтверждает, и отправитель
+ * считает неподтверждённые из них потерянным хвостом.
+ *
+ * Тот же класс на стороне отправителя - разобранный отчёт пира из heartbeat ("rx").
+ */
+public final class ReceiveWindow {
+
+    public static final int WINDOW = 64;
+
+    /** Сессия отправителя, к которой относится окно */
+    public final String sessionId;
+
+    private long hwm = 0;
+    private long bitmap = 0;
+
+    /** Номера до base включительно неизвестны (окно сдвинуто за них), base <= hwm */
+    private long base = 0;
+
+    /** Время последнего изменения (мс) */
+    private long updatedAt;
+
+    /** Когда появился текущий пропуск (мс), 0 - пропусков нет */
+    private long gapOpenedAt;
+
+    public ReceiveWindow(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    // ==================== ПРИЁМ ====================
+
+    /**
+     * Отметить полученный номер
+     * @return true если номер новый и окно изменилось
+     */
+    public boolean onReceived(long q, long now) {
+        if (q <= 0) {
+            return false;
+        }
+        long offset = q - hwm - 1;
+        if (offset < 0) {
+            return false;
+        }
+        if (offset >= WINDOW) {
+            slide(offset - WINDOW + 1);
+            offset = q - hwm - 1;
+        }
+        long bit = 1L << offset;
+        if ((bitmap & bit) != 0) {
+            return false;
+        }
+        if (bitmap == 0 && offset > 0) {
+            gapOpenedAt = now;
+        }
+        bitmap |= bit;
+        while ((bitmap & 1) != 0) {
+            bitmap >>>= 1;
+            hwm++;
+        }
+        if (bitmap == 0) {
+            gapOpenedAt = 0;
+        }
+        updatedAt = now;
+        return true;
+    }
+
+    /**
+     * Сдвинуть границу вперёд на shift номеров
+     */
+    private void slide(long shift) {
+        hwm += shift;
+        base = hwm;
+        bitmap = shift >= WINDOW ? 0 : bitmap >>> shift;
+        while ((bitmap & 1) != 0) {
+            bitmap >>>= 1;
+            hwm++;
+        }
+        if (bitmap == 0) {
+            gapOpenedAt = 0;
+        }
+    }
+
+    public long hwm() {
+        return hwm;
+    }
+
+    public long base() {
+        return base;
+    }
+
+    public long updatedAt() {
+        return updatedAt;
+    }
+
+    public long gapOpenedAt() {
+        return gapOpenedAt;
+    }
+
+    /** Есть ли пропуски (получено что-то за границей) */
+    public boolean hasGaps() {
+        return bitmap != 0;
+    }
+
+    public boolean contains(long q) {
+        if (q <= base) {
+            return false;
+        }
+        if (q <= hwm) {
+            return true;
+        }
+        long offset = q - hwm - 1;
+        return offset < WINDOW && (bitmap & (1L << offset)) != 0;
+    }
+
+    /** Наибольший полученный номер */
+    public long highest() {
+        return bitmap == 0 ? hwm : hwm + WINDOW - Long.numberOfLeadingZeros(bitmap);
+    }
+
+    /** Количество пропущенных номеров до highest() */
+    public int missingCount() {
+        return (int) (highest() - hwm) - Long.bitCount(bitmap);
+    }
+
+    // ==================== КОДИРОВАНИЕ ====================
+
+    /**
+     * Запись отчёта для heartbeat: peerId.sid.hwm[.bitmapHex[.base]]
+     */
+    public String encode(String senderId) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(senderId).append('.').append(sessionId).append('.').append(hwm);
+        if (bitmap != 0 || base > 0) {
+            sb.append('.').append(Long.toHexString(bitmap));
+        }
+        if (base > 0) {
+            sb.append('.').append(base);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Найти в значении "rx" отчёт о сообщениях senderId
+     * @return null если отчёта для senderId нет или формат неверный
+     */
+    public static ReceiveWindow parse(String rx, String senderId) {
+        if (rx == null || senderId == null) {
+            return null;
+        }
+        for (String entry : rx.split(",")) {
+            String[] parts = entry.trim().split("\\.");
+            if (parts.length < 3 || parts.length > 5 || !senderId.equals(parts[0])) {
+                continue;
+            }
+            try {
+                ReceiveWindow w = new ReceiveWindow(parts[1]);
+                w.hwm = Long.parseLong(parts[2]);
+                w.bitmap = parts.length >= 4 ? Long.parseUnsignedLong(parts[3], 16) & ~1L : 0;
+                w.base = parts.length == 5 ? Long.parseLong(parts[4]) : 0;
+                return w.hwm >= 0 && w.base >= 0 && w.base <= w.hwm ? w : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "ReceiveWindow{sid=" + sessionId + ", base=" + base + ", hwm=" + hwm +
+                ", bitmap=" + Long.toHexString(bitmap) + '}';
+    }
+}
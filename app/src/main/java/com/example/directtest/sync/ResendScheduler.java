@@ -0,0 +1,224 @@
+package com.example.directtest.sync;
+
+import com.example.directtest.metrics.Counter;
+import com.example.directtest.metrics.MetricsRegistry;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Очередь переотправок недоставленных сообщений (найденных SYNC или по отчёту "rx").
+ *
+ * - Очередь на каждого пира, пиры обслуживаются по кругу.
+ * - Повторный запрос того же сообщения (из очередного SYNC) сливается с уже стоящим в очереди.
+ * - Не чаще одной переотправки в minIntervalMs.
+ * - Переотправки занимают не больше maxSlots слотов и только свободные;
+ *   reservedForLive свободных слотов всегда остаются новым сообщениям пользователя.
+ *   Если новому сообщению слота не хватило, оно вытесняет переотправку (requeueFront).
+ *
+ * Планировщик не знает о слотах и таймерах: FastDiscoveryManager вызывает poll()
+ * при постановке в очередь, освобождении слота и к nextPollTime().
+ */
+public final class ResendScheduler {
+
+    /**
+     * Запрос переотправки
+     */
+    public static final class Request {
+        public final String peerId;
+        public final String msgId;
+        public final String text;
+        public final long enqueuedAt;
+
+        private boolean cancelled;
+
+        Request(String peerId, String msgId, String text, long enqueuedAt) {
+            this.peerId = peerId;
+            this.msgId = msgId;
+            this.text = text;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private final long minIntervalMs;
+    private final int maxSlots;
+    private final int reservedForLive;
+
+    private final Map<String, ArrayDeque<Request>> queues = new HashMap<>();
+    /** Порядок обслуживания пиров (у каждого непустая очередь) */
+    private final ArrayDeque<String> peerOrder = new ArrayDeque<>();
+    private final Map<String, Request> byMsgId = new HashMap<>();
+    /** С какого момента у пира непустая очередь (для времени разбора) */
+    private final Map<String, Long> backlogSince = new HashMap<>();
+
+    private long nextAllowedAt = 0;
+
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final Counter mergedCounter = metrics.counter(MetricsRegistry.RESEND_MERGED);
+
+    public ResendScheduler(long minIntervalMs, int maxSlots, int reservedForLive) {
+        this.minIntervalMs = minIntervalMs;
+        this.maxSlots = maxSlots;
+        this.reservedForLive = reservedForLive;
+    }
+
+    // ==================== ОЧЕРЕДЬ ====================
+
+    /**
+     * Поставить сообщение в очередь пира
+     * @return false если оно уже в очереди (запросы слиты)
+     */
+    public boolean enqueue(String peerId, String msgId, String text, long now) {
+        if (byMsgId.containsKey(msgId)) {
+            mergedCounter.inc();
+            return false;
+        }
+        Request r = new Request(peerId, msgId, text, now);
+        byMsgId.put(msgId, r);
+        queueOf(peerId, now).addLast(r);
+        return true;
+    }
+
+    /**
+     * Вернуть переотправку, вытесненную из слота новым сообщением, в начало очереди
+     */
+    public void requeueFront(String peerId, String msgId, String text, long now) {
+        Request old = byMsgId.get(msgId);
+        if (old != null) {
+            old.cancelled = true;
+        }
+        Request r = new Request(peerId, msgId, text, now);
+        byMsgId.put(msgId, r);
+        queueOf(peerId, now).addFirst(r);
+    }
+
+    private ArrayDeque<Request> queueOf(String peerId, long now) {
+        ArrayDeque<Request> q = queues.get(peerId);
+        if (q == null) {
+            q = new ArrayDeque<>();
+            queues.put(peerId, q);
+            peerOrder.addLast(peerId);
+            backlogSince.put(peerId, now);
+        }
+        return q;
+    }
+
+    /**
+     * Сообщение подтверждено - переотправлять не нужно
+     */
+    public void cancel(String msgId, long now) {
+        Request r = byMsgId.remove(msgId);
+        if (r == null) return;
+        r.cancelled = true;
+
+        ArrayDeque<Request> q = queues.get(r.peerId);
+        for (Request other : q) {
+            if (!other.cancelled) return;
+        }
+        // Остались только отменённые - очередь пира разобрана
+        queues.remove(r.peerId);
+        peerOrder.remove(r.peerId);
+        finishBacklog(r.peerId, now);
+    }
+
+    /**
+     * Убрать все переотправки пиру (новая сессия, очистка истории)
+     */
+    public void cancelPeer(String peerId) {
+        ArrayDeque<Request> q = queues.remove(peerId);
+        if (q == null) return;
+        for (Request r : q) {
+            byMsgId.remove(r.msgId);
+        }
+        peerOrder.remove(peerId);
+        backlogSince.remove(peerId);
+    }
+
+    public void clear() {
+        queues.clear();
+        peerOrder.clear();
+        byMsgId.clear();
+        backlogSince.clear();
+    }
+
+    public boolean contains(String msgId) {
+        return byMsgId.containsKey(msgId);
+    }
+
+    /** Количество сообщений в очереди */
+    public int backlog() {
+        return byMsgId.size();
+    }
+
+    // ==================== ВЫДАЧА ====================
+
+    /**
+     * Следующая переотправка, если её можно выполнить сейчас
+     * @param freeSlots свободные слоты
+     * @param resendSlots слоты, занятые переотправками
+     * @return null если очередь пуста, не прошёл интервал или нет слота
+     */
+    public Request poll(long now, int freeSlots, int resendSlots) {
+        if (byMsgId.isEmpty() || now < nextAllowedAt) {
+            return null;
+        }
+        if (freeSlots <= reservedForLive || resendSlots >= maxSlots) {
+            return null;
+        }
+
+        while (!peerOrder.isEmpty()) {
+            String peerId = peerOrder.pollFirst();
+            ArrayDeque<Request> q = queues.get(peerId);
+            Request r = null;
+            while (!q.isEmpty() && r == null) {
+                Request head = q.pollFirst();
+                if (!head.cancelled) {
+                    r = head;
+                }
+            }
+
+            if (q.isEmpty()) {
+                queues.remove(peerId);
+                finishBacklog(peerId, now);
+            } else {
+                peerOrder.addLast(peerId);
+            }
+
+            if (r != null) {
+                byMsgId.remove(r.msgId);
+                nextAllowedAt = now + minIntervalMs;
+                return r;
+            }
+        }
+        return null;
+    }
+
+    private void finishBacklog(String peerId, long now) {
+        Long since = backlogSince.remove(peerId);
+        if (since != null) {
+            metrics.histogram(MetricsRegistry.RESEND_DRAIN, "peer", peerId).record(now - since);
+        }
+    }
+
+    /**
+     * Когда снова вызвать poll() (если мешает только интервал)
+     * @return -1 если очередь пуста
+     */
+    public long nextPollTime() {
+        return byMsgId.isEmpty() ? -1 : nextAllowedAt;
+    }
+
+    public String getDiagnosticInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Backlog: ").append(byMsgId.size()).append(" in ").append(queues.size()).append(" peers");
+        for (Map.Entry<String, ArrayDeque<Request>> e : queues.entrySet()) {
+            int live = 0;
+            for (Request r : e.getValue()) {
+                if (!r.cancelled) live++;
+            }
+            sb.append("\n  ").append(e.getKey()).append(": ").append(live);
+        }
+        return sb.toString();
+    }
+}
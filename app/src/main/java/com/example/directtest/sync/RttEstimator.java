@@ -0,0 +1,104 @@
+package com.example.directtest.sync;
+
+import java.util.Locale;
+
+/**
+ * Оценка RTT и таймаута повторной публикации (RTO) для одного пира, по схеме RFC 6298.
+ *
+ * RTT - время от публикации сообщения в слоте до ACK пира. По выборкам ведутся
+ * сглаженное среднее и отклонение:
+ *   rttvar = (1 - BETA) * rttvar + BETA * |srtt - rtt|
+ *   srtt   = (1 - ALPHA) * srtt + ALPHA * rtt
+ *   RTO    = srtt + K * rttvar, в пределах [minRto, maxRto]
+ * До первой выборки RTO = initialRto. Каждый таймаут без ACK удваивает RTO
+ * (экспоненциальный back-off, не выше maxRto), новая выборка сбрасывает удвоение.
+ * Выборки по перерегистрированным сообщениям не подаются (алгоритм Карна).
+ */
+public final class RttEstimator {
+
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int K = 4;
+
+    private final long initialRto;
+    private final long minRto;
+    private final long maxRto;
+
+    private double srtt;
+    private double rttvar;
+    private int samples;
+    private int backoff;
+
+    public RttEstimator(long initialRto, long minRto, long maxRto) {
+        this.initialRto = initialRto;
+        this.minRto = minRto;
+        this.maxRto = maxRto;
+    }
+
+    /**
+     * Учесть измеренный RTT (мс)
+     */
+    public void onSample(long rttMs) {
+        double rtt = Math.max(0, rttMs);
+        if (samples == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        samples++;
+        backoff = 0;
+    }
+
+    /**
+     * Таймаут без ACK: удвоить RTO (до maxRto)
+     * @return новый RTO (мс)
+     */
+    public long onTimeout() {
+        if (rto() < maxRto) {
+            backoff++;
+        }
+        return rto();
+    }
+
+    /**
+     * Сбросить удвоение: пир перезапустился, таймауты без ACK были из-за его отсутствия
+     */
+    public void resetBackoff() {
+        backoff = 0;
+    }
+
+    /**
+     * Текущий таймаут повторной публикации (мс)
+     */
+    public long rto() {
+        double base = samples == 0 ? initialRto : srtt + K * rttvar;
+        // Сначала пределы, потом удвоение (RFC 6298, 5.5): иначе при малом srtt
+        // удвоения съедаются подъёмом до minRto и первый таймаут RTO не растёт
+        base = Math.max(minRto, Math.min(maxRto, base));
+        double rto = base * (1L << Math.min(backoff, 16));
+        return (long) Math.min(maxRto, rto);
+    }
+
+    public long srtt() {
+        return (long) srtt;
+    }
+
+    public long rttvar() {
+        return (long) rttvar;
+    }
+
+    public int sampleCount() {
+        return samples;
+    }
+
+    @Override
+    public String toString() {
+        if (samples == 0) {
+            return String.format(Locale.US, "no samples rto=%.1fs backoff=%d", rto() / 1000.0, backoff);
+        }
+        return String.format(Locale.US, "srtt=%.1fs rttvar=%.1fs rto=%.1fs backoff=%d n=%d",
+                srtt / 1000.0, rttvar / 1000.0, rto() / 1000.0, backoff, samples);
+    }
+}
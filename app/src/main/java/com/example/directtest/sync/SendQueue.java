@@ -0,0 +1,206 @@
+package com.example.directtest.sync;
+
+import com.example.directtest.model.MessagePriority;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Очередь своих сообщений, ожидающих свободного слота.
+ *
+ * Сообщение ждёт здесь, если все слоты заняты сообщениями не ниже его приоритета.
+ * Выдача: сначала класс приоритета, внутри класса - ближайший срок (EDF).
+ * Вытесненное из слота более срочным сообщение возвращается сюда со своим
+ * исходным сроком и временем отправки.
+ *
+ * Срочные принимаются и в полную очередь: при переполнении вытесняется
+ * самое несрочное (последним в порядке выдачи).
+ */
+public final class SendQueue {
+
+    /**
+     * Сообщение в очереди
+     */
+    public static final class Entry {
+        public final String msgId;
+        public final String text;
+        /** null для broadcast */
+        public final String target;
+        public final MessagePriority priority;
+        /** Время отправки пользователем (мс) */
+        public final long createdAt;
+        /** Срок: createdAt + priority.deadlineMs */
+        public final long deadline;
+
+        private long seq;
+
+        public Entry(String msgId, String text, String target, MessagePriority priority, long createdAt) {
+            this.msgId = msgId;
+            this.text = text;
+            this.target = target;
+            this.priority = priority;
+            this.createdAt = createdAt;
+            this.deadline = createdAt + priority.deadlineMs;
+        }
+    }
+
+    /** Порядок выдачи: класс, срок, порядок постановки */
+    public static final Comparator<Entry> ORDER = (a, b) -> {
+        if (a.priority != b.priority) return Integer.compare(a.priority.level, b.priority.level);
+        if (a.deadline != b.deadline) return Long.compare(a.deadline, b.deadline);
+        return Long.compare(a.seq, b.seq);
+    };
+
+    private final int capacity;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(ORDER);
+    private final Map<String, Entry> byMsgId = new HashMap<>();
+    private long nextSeq = 0;
+
+    public SendQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Поставить в очередь
+     * @return вытесненное сообщение при переполнении (для срочного), entry если не принято, null если принято
+     */
+    public Entry offer(Entry entry) {
+        if (byMsgId.containsKey(entry.msgId)) {
+            return null;
+        }
+        Entry evicted = null;
+        if (queue.size() >= capacity) {
+            Entry worst = worst();
+            if (entry.priority != MessagePriority.URGENT || worst == null
+                    || ORDER.compare(entry, worst) >= 0) {
+                return entry;
+            }
+            remove(worst.msgId);
+            evicted = worst;
+        }
+        entry.seq = nextSeq++;
+        queue.add(entry);
+        byMsgId.put(entry.msgId, entry);
+        return evicted;
+    }
+
+    private Entry worst() {
+        Entry worst = null;
+        for (Entry e : queue) {
+            if (worst == null || ORDER.compare(e, worst) > 0) worst = e;
+        }
+        return worst;
+    }
+
+    public Entry peek() {
+        return queue.peek();
+    }
+
+    /**
+     * Первое в порядке выдачи сообщение, которое можно опубликовать сейчас
+     * (например, получатель не исчерпал окно приёма)
+     */
+    public Entry peek(Predicate<Entry> ready) {
+        Entry best = null;
+        for (Entry e : queue) {
+            if (ready.test(e) && (best == null || ORDER.compare(e, best) < 0)) best = e;
+        }
+        return best;
+    }
+
+    public Entry poll() {
+        Entry e = queue.poll();
+        if (e != null) byMsgId.remove(e.msgId);
+        return e;
+    }
+
+    public Entry remove(String msgId) {
+        Entry e = byMsgId.remove(msgId);
+        if (e != null) queue.remove(e);
+        return e;
+    }
+
+    /**
+     * Сообщения получателю в порядке выдачи
+     */
+    public List<Entry> entriesTo(String target) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry e : queue) {
+            if (target == null ? e.target == null : target.equals(e.target)) result.add(e);
+        }
+        result.sort(ORDER);
+        return result;
+    }
+
+    /**
+     * Взять сообщения получателю в запись слота, где уже лежат have сообщений: всего
+     * до maxPerRecord, каждое k-е (k >= 1) тратит budget байт по size(entry, k).
+     * Не поместившееся пропускается (следующее может быть короче). Фрагменты FEC
+     * не берутся: им нужна своя запись. Взятые убираются из очереди.
+     */
+    public List<Entry> takePack(String target, int have, int maxPerRecord, int budget,
+                                ToIntBiFunction<Entry, Integer> size) {
+        List<Entry> taken = new ArrayList<>();
+        for (Entry e : entriesTo(target)) {
+            int k = have + taken.size();
+            if (k >= maxPerRecord) break;
+            if (FragmentCodec.isFragment(e.msgId)) continue;
+            if (k > 0) {
+                int bytes = size.applyAsInt(e, k);
+                if (bytes > budget) continue;
+                budget -= bytes;
+            }
+            remove(e.msgId);
+            taken.add(e);
+        }
+        return taken;
+    }
+
+    public boolean contains(String msgId) {
+        return byMsgId.containsKey(msgId);
+    }
+
+    public boolean isFull() {
+        return queue.size() >= capacity;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Сколько сообщений ждут для получателя (null - broadcast)
+     */
+    public int countTo(String target) {
+        int n = 0;
+        for (Entry e : queue) {
+            if (target == null ? e.target == null : target.equals(e.target)) n++;
+        }
+        return n;
+    }
+
+    public void clear() {
+        queue.clear();
+        byMsgId.clear();
+    }
+
+    public String getDiagnosticInfo(long now) {
+        List<Entry> sorted = new ArrayList<>(queue);
+        sorted.sort(ORDER);
+        StringBuilder sb = new StringBuilder();
+        sb.append("Queued: ").append(sorted.size()).append("/").append(capacity);
+        for (Entry e : sorted) {
+            sb.append("\n  ").append(e.priority.label).append(" ").append(e.msgId)
+                    .append(" -> ").append(e.target != null ? e.target : "*")
+                    .append(" waiting ").append((now - e.createdAt) / 1000).append("s")
+                    .append(" deadline ").append((e.deadline - now) / 1000).append("s");
+        }
+        return sb.toString();
+    }
+}
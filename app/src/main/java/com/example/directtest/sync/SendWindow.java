@@ -0,0 +1,126 @@
+package com.example.directtest.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Последовательная нумерация сообщений одному получателю в текущей сессии.
+ *
+ * messageIdCounter общий для всех получателей, поэтому по нему получатель
+ * не может отличить потерю от сообщения другому пиру. Каждому адресату
+ * выдаётся свой номер "q" (1, 2, 3...), который он отражает в ReceiveWindow.
+ * Хранятся только неподтверждённые номера.
+ */
+public final class SendWindow {
+
+    /**
+     * Результат сравнения с отчётом получателя
+     */
+    public static final class Repair {
+        /** Получены (неявный ACK) */
+        public final List<String> delivered = new ArrayList<>();
+        /** Пропущены: получатель видел более поздние номера */
+        public final List<String> gaps = new ArrayList<>();
+        /** Не получены и после них ничего не получено, или неизвестны (до base отчёта) */
+        public final List<String> tail = new ArrayList<>();
+
+        public boolean isEmpty() {
+            return delivered.isEmpty() && gaps.isEmpty() && tail.isEmpty();
+        }
+    }
+
+    private long lastSeq = 0;
+
+    private final TreeMap<Long, String> unacked = new TreeMap<>();
+    private final Map<String, Long> seqById = new HashMap<>();
+
+    /** Время последней переотправки по номеру - не чаще repairGuardMs */
+    private final Map<Long, Long> repairedAt = new HashMap<>();
+
+    /**
+     * Выдать следующий номер сообщению
+     */
+    public long assign(String msgId) {
+        long q = ++lastSeq;
+        unacked.put(q, msgId);
+        seqById.put(msgId, q);
+        return q;
+    }
+
+    /**
+     * @return номер сообщения или -1 если оно не нумеровалось или уже подтверждено
+     */
+    public long seqOf(String msgId) {
+        Long q = seqById.get(msgId);
+        return q != null ? q : -1;
+    }
+
+    public void remove(String msgId) {
+        Long q = seqById.remove(msgId);
+        if (q != null) {
+            unacked.remove(q);
+            repairedAt.remove(q);
+        }
+    }
+
+    /**
+     * Неподтверждённые сообщения в порядке номеров
+     */
+    public List<String> unackedIds() {
+        return new ArrayList<>(unacked.values());
+    }
+
+    public int unackedCount() {
+        return unacked.size();
+    }
+
+    public long lastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Сравнить неподтверждённые номера с отчётом получателя.
+     * Подтверждённые удаляются; пропущенные попадают в результат не чаще
+     * раза в repairGuardMs для каждого номера.
+     */
+    public Repair apply(ReceiveWindow report, long now, long repairGuardMs) {
+        Repair repair = new Repair();
+        long highest = report.highest();
+
+        Iterator<Map.Entry<Long, String>> it = unacked.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, String> e = it.next();
+            long q = e.getKey();
+            String msgId = e.getValue();
+
+            if (report.contains(q)) {
+                repair.delivered.add(msgId);
+                it.remove();
+                seqById.remove(msgId);
+                repairedAt.remove(q);
+                continue;
+            }
+
+            Long last = repairedAt.get(q);
+            if (last != null && now - last < repairGuardMs) {
+                continue;
+            }
+            (q < highest && q > report.base() ? repair.gaps : repair.tail).add(msgId);
+        }
+        return repair;
+    }
+
+    /**
+     * Отметить переотправку (для ограничения частоты)
+     */
+    public void markRepaired(String msgId, long now) {
+        Long q = seqById.get(msgId);
+        if (q != null) {
+            repairedAt.put(q, now);
+        }
+    }
+}
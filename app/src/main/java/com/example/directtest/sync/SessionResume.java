@@ -0,0 +1,157 @@
+package com.example.directtest.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Возобновление доставки после перезапуска получателя.
+ *
+ * Перезапущенное устройство публикует в heartbeat ("rs") сохранённые границы приёма:
+ * для каждого отправителя - наибольший счётчик ID, полученного от него в его сессии
+ * (shortId.sessionId.counter). Всё, что выше границы, получатель точно не видел.
+ *
+ * Отправитель, заметив новую сессию получателя, запоминает свои неподтверждённые
+ * сообщения (до очистки истории) и по первому heartbeat новой сессии делит их:
+ * выше границы - переотправить сразу, не выше - проверить немедленным SYNC
+ * (среди них мог быть пропуск). Нет записи для отправителя - граница 0.
+ */
+public final class SessionResume {
+
+    /** Новая сессия получателя */
+    public final String sessionId;
+
+    /** Когда замечен перезапуск (мс) */
+    public final long detectedAt;
+
+    /** Неподтверждённые сообщения, от старых к новым */
+    private final List<DeviceState.MessageRecord> unacked;
+
+    /**
+     * Неподтверждённые сообщения, разделённые по границе приёма
+     */
+    public static final class Plan {
+        /** Выше границы - не получены */
+        public final List<DeviceState.MessageRecord> retarget = new ArrayList<>();
+        /** Не выше границы - получены или пропущены */
+        public final List<DeviceState.MessageRecord> verify = new ArrayList<>();
+    }
+
+    private SessionResume(String sessionId, List<DeviceState.MessageRecord> unacked, long detectedAt) {
+        this.sessionId = sessionId;
+        this.unacked = unacked;
+        this.detectedAt = detectedAt;
+    }
+
+    // ==================== ОТПРАВИТЕЛЬ ====================
+
+    /**
+     * Запомнить неподтверждённые сообщения текущей сессии (localPrefix) перед очисткой истории
+     * @param previous незавершённое возобновление того же пира (перезапуск подряд) или null
+     */
+    public static SessionResume capture(DeviceState state, String localPrefix, String newSessionId,
+                                        long now, SessionResume previous) {
+        List<DeviceState.MessageRecord> records = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        if (previous != null) {
+            for (DeviceState.MessageRecord m : previous.unacked) {
+                if (ids.add(m.msgId)) records.add(m);
+            }
+        }
+        List<DeviceState.MessageRecord> fresh = new ArrayList<>();
+        for (DeviceState.MessageRecord m : state.sentMessages) {
+            if (!m.acked && m.msgId.startsWith(localPrefix) && ids.add(m.msgId)) {
+                fresh.add(m);
+            }
+        }
+        Collections.reverse(fresh);
+        records.addAll(fresh);
+        return new SessionResume(newSessionId, records, previous != null ? previous.detectedAt : now);
+    }
+
+    public int size() {
+        return unacked.size();
+    }
+
+    /**
+     * Неподтверждённые сообщения, от старых к новым
+     */
+    public List<DeviceState.MessageRecord> records() {
+        return Collections.unmodifiableList(unacked);
+    }
+
+    /**
+     * Разделить сообщения по границе приёма
+     */
+    public Plan split(long mark) {
+        Plan plan = new Plan();
+        for (DeviceState.MessageRecord m : unacked) {
+            (SyncDigest.keyOf(m.msgId) > mark ? plan.retarget : plan.verify).add(m);
+        }
+        return plan;
+    }
+
+    /**
+     * Граница приёма для senderId в его сессии sessionId из значения "rs"
+     * @return 0 если записи нет или формат неверный
+     */
+    public static long parse(String rs, String senderId, String sessionId) {
+        if (rs == null || senderId == null || sessionId == null) {
+            return 0;
+        }
+        for (String entry : rs.split(",")) {
+            String[] parts = entry.trim().split("\\.");
+            if (parts.length != 3 || !senderId.equals(parts[0]) || !sessionId.equals(parts[1])) {
+                continue;
+            }
+            try {
+                return Math.max(0, Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    // ==================== ПЕРЕЗАПУЩЕННЫЙ ПОЛУЧАТЕЛЬ ====================
+
+    /**
+     * Значение "rs": границы приёма по сохранённым историям, недавние отправители первыми
+     */
+    public static String encode(Collection<DeviceState> states, int maxLength) {
+        List<DeviceState> senders = new ArrayList<>(states);
+        Collections.sort(senders, (a, b) -> Long.compare(b.lastRecvTime, a.lastRecvTime));
+
+        StringBuilder sb = new StringBuilder();
+        for (DeviceState state : senders) {
+            long mark = highWaterMark(state);
+            if (mark <= 0) continue;
+            String shortId = state.deviceId.length() > 8 ? state.deviceId.substring(0, 8) : state.deviceId;
+            String entry = shortId + "." + state.lastSessionId + "." + mark;
+            if (sb.length() + entry.length() + 1 > maxLength) break;
+            if (sb.length() > 0) sb.append(",");
+            sb.append(entry);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Наибольший счётчик ID, полученного от устройства в его последней сессии (0 - ничего)
+     */
+    static long highWaterMark(DeviceState state) {
+        String prefix = state.getPeerIdPrefix();
+        if (prefix == null) {
+            return 0;
+        }
+        long mark = 0;
+        for (DeviceState.MessageRecord m : state.recvMessages) {
+            if (m.msgId.startsWith(prefix)) {
+                mark = Math.max(mark, SyncDigest.keyOf(m.msgId));
+            }
+        }
+        return mark;
+    }
+}
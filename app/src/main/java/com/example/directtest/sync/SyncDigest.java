@@ -0,0 +1,228 @@
+package com.example.directtest.sync;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Дайджест множества ID сообщений для SYNC v2 - обратимая таблица Блума (IBLT).
+ *
+ * Ключ - счётчик из ID сообщения (shortId_sessionId_counter) по модулю 2^24:
+ * все ID в дайджесте принадлежат одной сессии одного отправителя.
+ * Каждый ключ попадает в одну ячейку каждой из HASHES подтаблиц.
+ * Ячейка: count (mod 256) + XOR ключей + XOR контрольных сумм ключей.
+ *
+ * Размер фиксирован (CELLS ячеек = ENCODED_LENGTH символов base64) и не зависит
+ * от количества сообщений. Разность двух дайджестов декодируется "отшелушиванием"
+ * чистых ячеек, если различающихся ключей не больше примерно CELLS / 1.5.
+ */
+public final class SyncDigest {
+
+    private static final int HASHES = 3;
+    private static final int CELLS_PER_HASH = 10;
+    public static final int CELLS = HASHES * CELLS_PER_HASH;
+
+    /** count(1) + keySum(3) + checkSum(2) */
+    private static final int CELL_BYTES = 6;
+
+    /** Длина закодированного дайджеста (base64 без '=') */
+    public static final int ENCODED_LENGTH = (CELLS * CELL_BYTES + 2) / 3 * 4;
+
+    public static final int KEY_MASK = 0xFFFFFF;
+    private static final int CHECK_MASK = 0xFFFF;
+
+    private static final int[] SEEDS = {0x3C6EF372, 0x1B873593, 0x5BD1E995};
+
+    private final byte[] counts = new byte[CELLS];
+    private final int[] keySums = new int[CELLS];
+    private final int[] checkSums = new int[CELLS];
+
+    /** Количество ключей в дайджесте */
+    private int size = 0;
+
+    /**
+     * Начало окна истории: ключи меньше него могли быть вытеснены у владельца
+     * дайджеста и не сравниваются. 0 - дайджест покрывает всю сессию.
+     */
+    private int windowStart = 0;
+
+    /**
+     * Результат декодирования разности local - remote
+     */
+    public static final class Difference {
+        /** Ключи, которые есть только в локальном множестве */
+        public final List<Integer> onlyLocal = new ArrayList<>();
+        /** Ключи, которые есть только в удалённом множестве */
+        public final List<Integer> onlyRemote = new ArrayList<>();
+    }
+
+    // ==================== ПОСТРОЕНИЕ ====================
+
+    public void add(int key) {
+        key &= KEY_MASK;
+        size++;
+        update(key, 1);
+    }
+
+    private void update(int key, int delta) {
+        int check = checkSum(key);
+        for (int h = 0; h < HASHES; h++) {
+            int cell = cellIndex(key, h);
+            counts[cell] += delta;
+            keySums[cell] ^= key;
+            checkSums[cell] ^= check;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int windowStart() {
+        return windowStart;
+    }
+
+    public void setWindowStart(int key) {
+        windowStart = key & KEY_MASK;
+    }
+
+    // ==================== РАЗНОСТЬ ====================
+
+    /**
+     * Декодировать разность this - remote.
+     * @return null если разность слишком велика для декодирования
+     */
+    public Difference subtractAndDecode(SyncDigest remote) {
+        byte[] c = new byte[CELLS];
+        int[] k = new int[CELLS];
+        int[] s = new int[CELLS];
+        for (int i = 0; i < CELLS; i++) {
+            c[i] = (byte) (counts[i] - remote.counts[i]);
+            k[i] = keySums[i] ^ remote.keySums[i];
+            s[i] = checkSums[i] ^ remote.checkSums[i];
+        }
+
+        Difference diff = new Difference();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (int i = 0; i < CELLS; i++) {
+                if ((c[i] != 1 && c[i] != -1) || s[i] != checkSum(k[i])) {
+                    continue;
+                }
+                // Чистая ячейка: ровно один ключ с одной стороны
+                int key = k[i];
+                int sign = c[i];
+                if (diff.onlyLocal.size() + diff.onlyRemote.size() >= CELLS) {
+                    // Каждое настоящее отшелушивание навсегда обнуляет ячейку - больше CELLS
+                    // ключей бывает только при ложно-чистых ячейках (иначе цикл не завершится)
+                    return null;
+                }
+                (sign > 0 ? diff.onlyLocal : diff.onlyRemote).add(key);
+
+                int check = checkSum(key);
+                for (int h = 0; h < HASHES; h++) {
+                    int cell = cellIndex(key, h);
+                    c[cell] -= sign;
+                    k[cell] ^= key;
+                    s[cell] ^= check;
+                }
+                progress = true;
+            }
+        }
+
+        for (int i = 0; i < CELLS; i++) {
+            if (c[i] != 0 || k[i] != 0 || s[i] != 0) {
+                return null;
+            }
+        }
+        return diff;
+    }
+
+    // ==================== КОДИРОВАНИЕ ====================
+
+    /**
+     * Закодировать ячейки в base64 (ENCODED_LENGTH символов)
+     */
+    public String encode() {
+        byte[] out = new byte[CELLS * CELL_BYTES];
+        for (int i = 0; i < CELLS; i++) {
+            int o = i * CELL_BYTES;
+            out[o] = counts[i];
+            out[o + 1] = (byte) (keySums[i] >>> 16);
+            out[o + 2] = (byte) (keySums[i] >>> 8);
+            out[o + 3] = (byte) keySums[i];
+            out[o + 4] = (byte) (checkSums[i] >>> 8);
+            out[o + 5] = (byte) checkSums[i];
+        }
+        return Base64.getEncoder().withoutPadding().encodeToString(out);
+    }
+
+    /**
+     * Разобрать дайджест из записи SYNC
+     * @param cells закодированные ячейки
+     * @param size количество ключей
+     * @param windowStart начало окна истории (null - вся сессия)
+     * @return null если формат неверный
+     */
+    public static SyncDigest parse(String cells, String size, String windowStart) {
+        if (cells == null || cells.length() != ENCODED_LENGTH) {
+            return null;
+        }
+        try {
+            byte[] in = Base64.getDecoder().decode(cells);
+            if (in.length != CELLS * CELL_BYTES) {
+                return null;
+            }
+            SyncDigest d = new SyncDigest();
+            for (int i = 0; i < CELLS; i++) {
+                int o = i * CELL_BYTES;
+                d.counts[i] = in[o];
+                d.keySums[i] = (in[o + 1] & 0xFF) << 16 | (in[o + 2] & 0xFF) << 8 | (in[o + 3] & 0xFF);
+                d.checkSums[i] = (in[o + 4] & 0xFF) << 8 | (in[o + 5] & 0xFF);
+            }
+            d.size = size != null ? Integer.parseInt(size) : 0;
+            d.windowStart = windowStart != null ? Integer.parseInt(windowStart) & KEY_MASK : 0;
+            return d;
+        } catch (IllegalArgumentException e) {
+            // Включая NumberFormatException
+            return null;
+        }
+    }
+
+    // ==================== КЛЮЧИ ====================
+
+    /**
+     * Ключ сообщения: счётчик из ID (shortId_sessionId_counter)
+     * @return -1 если ID не в этом формате
+     */
+    public static int keyOf(String msgId) {
+        int sep = msgId.lastIndexOf('_');
+        if (sep < 0 || sep == msgId.length() - 1) {
+            return -1;
+        }
+        try {
+            return (int) (Long.parseLong(msgId.substring(sep + 1)) & KEY_MASK);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int cellIndex(int key, int h) {
+        return h * CELLS_PER_HASH + (mix(key ^ SEEDS[h]) >>> 1) % CELLS_PER_HASH;
+    }
+
+    private static int checkSum(int key) {
+        return mix(key * 0x9E3779B1) & CHECK_MASK;
+    }
+
+    /** Финализатор MurmurHash3 */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
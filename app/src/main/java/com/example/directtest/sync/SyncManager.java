@@ -1,8 +1,12 @@
 package com.example.directtest.sync;
 
 import com.example.directtest.DiagnosticLogger;
+import com.example.directtest.metrics.Counter;
+import com.example.directtest.metrics.MetricsRegistry;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +20,20 @@ import java.util.Set;
  * 2. Если нужна синхронизация - публикуем SYNC с историей сообщений
  * 3. При получении SYNC - сравниваем и переотправляем недостающие
  * 4. При успешной синхронизации - ставим флаг synced = true
+ *
+ * SYNC v1: списки последних SYNC_MAX_IDS отправленных/полученных ID.
+ * SYNC v2: дайджест (SyncDigest) всех полученных от пира ID фиксированного размера.
+ * Получатель вычитает его из дайджеста своих отправленных и точно узнаёт,
+ * каких сообщений у пира нет. Пока пир не прислал v2, публикуются оба формата;
+ * если разность не декодируется - используются списки v1.
+ *
+ * Пиры, присылающие в heartbeat отчёт о приёме ("rx", ReceiveWindow), восстанавливают
+ * пропуски сразу по нему - периодический SYNC для них пропускается, пока отчёты свежие.
+ *
+ * Устройства, которым нужен SYNC, лежат в очереди по времени срабатывания триггера.
+ * checkSyncNeeded снимает только наступившие; синхронизированные устройства
+ * в очереди не находятся и ничего не стоят. После отправки/получения сообщения
+ * вызывается reschedule().
  */
 public class SyncManager {
 
@@ -25,23 +43,55 @@ public class SyncManager {
     private final DeviceStateRepository repository;
     private final DiagnosticLogger log = DiagnosticLogger.getInstance();
 
+    /** Префикс ID наших сообщений в текущей сессии (shortId_sessionId_) */
+    private final String localIdPrefix;
+
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final Counter resendCounter = metrics.counter(MetricsRegistry.SYNC_RESENDS);
+
     private SyncCallback callback;
 
     // Pending sync запросы (чтобы не спамить)
     private final Set<String> pendingSyncRequests = new HashSet<>();
 
+    // Очередь устройств по времени следующего SYNC
+    private final SyncSchedule schedule = new SyncSchedule();
+
     // ==================== CALLBACK INTERFACE ====================
 
     public interface SyncCallback {
-        void onPublishSync(String targetDeviceId, List<String> mySentIds, List<String> myRecvIds);
+        /**
+         * @param recvDigest дайджест полученных от устройства (null если его сессия неизвестна)
+         */
+        void onPublishSync(String targetDeviceId, List<String> mySentIds, List<String> myRecvIds,
+                           SyncDigest recvDigest);
+        /**
+         * Поставить сообщение в очередь переотправки (повторные запросы сливаются)
+         */
         void onResendMessage(String targetDeviceId, String msgId, String text);
         void onSyncComplete(String deviceId);
+
+        /**
+         * Сообщение подтверждено дайджестом SYNC v2 (вызывается до переотправок)
+         */
+        void onAckedViaSync(String deviceId, String msgId);
+
+        /**
+         * Сообщение ещё опубликовано в слоте и ждёт ACK или уже стоит
+         * в очереди переотправки - переотправлять не нужно
+         */
+        boolean isInFlight(String msgId);
     }
 
     // ==================== CONSTRUCTOR ====================
 
-    public SyncManager(DeviceStateRepository repository) {
+    public SyncManager(DeviceStateRepository repository, String localIdPrefix) {
         this.repository = repository;
+        this.localIdPrefix = localIdPrefix;
+
+        for (DeviceState state : repository.getAll().values()) {
+            reschedule(state);
+        }
     }
 
     public void setCallback(SyncCallback callback) {
@@ -52,55 +102,78 @@ public class SyncManager {
 
     /**
      * Вызывается периодически (каждые 10 сек).
-     * Проверяет, нужна ли синхронизация для каждого устройства.
+     * Публикует SYNC для устройств, у которых наступило время триггера.
      */
     public void checkSyncNeeded() {
+        if (callback == null) {
+            return;
+        }
         long now = System.currentTimeMillis();
 
-        Map<String, DeviceState> allStates = repository.getAll();
-
-        for (DeviceState state : allStates.values()) {
-            // Главная проверка: нужна ли вообще синхронизация?
-            if (!state.needsSync()) {
+        String deviceId;
+        while ((deviceId = schedule.pollDue(now)) != null) {
+            DeviceState state = repository.get(deviceId);
+            if (state == null) {
                 continue;
             }
 
-            boolean shouldSync = false;
-
-            // Триггер 1: Прошло больше минуты с последней активности
-            long lastActivity = state.getLastActivityTime();
-            if (lastActivity > 0 && now - lastActivity > SYNC_INACTIVITY_THRESHOLD) {
-                // Но не чаще чем раз в минуту
-                if (now - state.lastSyncSentTime > SYNC_INTERVAL) {
-                    shouldSync = true;
-                    log.d("[Sync] Trigger: inactivity for " + state.deviceId);
-                }
+            // Состояние могло измениться без reschedule() - проверяем заново
+            long due = dueTime(state);
+            if (due >= 0 && due <= now) {
+                log.d("[Sync] Trigger: " + (hasUnackedMessages(state) ? "unacked messages" : "inactivity")
+                        + " for " + state.deviceId);
+                publishSync(state);
+                due = dueTime(state);
             }
+            schedule.schedule(state.deviceId, due);
+        }
+    }
 
-            // Триггер 2: Есть неподтверждённые сообщения и прошёл интервал
-            if (!shouldSync && hasUnackedMessages(state)) {
-                if (now - state.lastSyncSentTime > SYNC_INTERVAL) {
-                    shouldSync = true;
-                    log.d("[Sync] Trigger: unacked messages for " + state.deviceId);
-                }
-            }
+    /**
+     * Пересчитать время SYNC устройства после изменения его состояния
+     */
+    public void reschedule(DeviceState state) {
+        if (state.deviceId != null) {
+            schedule.schedule(state.deviceId, dueTime(state));
+        }
+    }
 
-            if (shouldSync && callback != null) {
-                publishSync(state);
+    /** Количество устройств в очереди SYNC */
+    public int getScheduledCount() {
+        return schedule.size();
+    }
+
+    /**
+     * Когда сработает триггер SYNC:
+     * 1. тишина дольше SYNC_INACTIVITY_THRESHOLD;
+     * 2. есть неподтверждённые сообщения.
+     * Оба - не чаще раза в SYNC_INTERVAL и не пока приходят отчёты "rx".
+     *
+     * @return -1 если синхронизация не нужна
+     */
+    static long dueTime(DeviceState state) {
+        if (!state.needsSync()) {
+            return -1;
+        }
+
+        long due = state.lastSyncSentTime + SYNC_INTERVAL + 1;
+        if (!state.hasUnackedInSyncWindow()) {
+            long lastActivity = state.getLastActivityTime();
+            if (lastActivity <= 0) {
+                return -1;
             }
+            due = Math.max(due, lastActivity + SYNC_INACTIVITY_THRESHOLD + 1);
         }
+
+        // Пропуски закрываются по отчётам "rx" из heartbeat
+        return Math.max(due, state.gapReportTime + SYNC_INACTIVITY_THRESHOLD);
     }
 
     /**
      * Проверить есть ли неподтверждённые сообщения
      */
     private boolean hasUnackedMessages(DeviceState state) {
-        for (DeviceState.MessageRecord m : state.sentMessages) {
-            if (!m.acked) {
-                return true;
-            }
-        }
-        return false;
+        return state.hasUnackedInSyncWindow();
     }
 
     /**
@@ -116,6 +189,7 @@ public class SyncManager {
         if (state.needsSync() && callback != null) {
             log.i("[Sync] Device " + deviceId + " came online, triggering sync");
             publishSync(state);
+            reschedule(state);
         }
     }
 
@@ -124,14 +198,19 @@ public class SyncManager {
     private void publishSync(DeviceState state) {
         state.lastSyncSentTime = System.currentTimeMillis();
 
-        List<String> mySentIds = state.getSentMessageIds();
-        List<String> myRecvIds = state.getRecvMessageIds();
+        SyncDigest recvDigest = state.buildRecvDigest();
+
+        // Пир понимает v2 - списки v1 не нужны
+        boolean listsNeeded = !state.digestSync || recvDigest == null;
+        List<String> mySentIds = listsNeeded ? state.getSyncSentIds() : Collections.emptyList();
+        List<String> myRecvIds = listsNeeded ? state.getSyncRecvIds() : Collections.emptyList();
 
         log.i("[Sync] Publishing SYNC for " + state.deviceId +
-                " | sent=" + mySentIds + " | recv=" + myRecvIds);
+                " | sent=" + mySentIds + " | recv=" + myRecvIds +
+                (recvDigest != null ? " | digest n=" + recvDigest.size() : ""));
 
         if (callback != null) {
-            callback.onPublishSync(state.deviceId, mySentIds, myRecvIds);
+            callback.onPublishSync(state.deviceId, mySentIds, myRecvIds, recvDigest);
         }
     }
 
@@ -163,6 +242,7 @@ public class SyncManager {
 
             for (DeviceState.MessageRecord msg : undelivered) {
                 log.i("[Sync] Resending: " + msg.msgId);
+                resendCounter.inc();
                 if (callback != null) {
                     callback.onResendMessage(senderId, msg.msgId, msg.text);
                 }
@@ -189,6 +269,123 @@ public class SyncManager {
         clearPendingRequest(senderId);
     }
 
+    /**
+     * Обработать SYNC v2 от другого устройства.
+     *
+     * @param senderId - ID устройства, приславшего SYNC
+     * @param theirRecvDigest - дайджест того, что они от нас получили
+     * @return false если разность не декодирована (нужен v1)
+     */
+    public boolean processIncomingDigest(String senderId, SyncDigest theirRecvDigest) {
+        DeviceState state = repository.get(senderId);
+        if (state == null) {
+            log.w("[Sync] No state for device " + senderId);
+            return false;
+        }
+        if (!state.digestSync) {
+            log.i("[Sync] " + senderId + " supports SYNC v2");
+            state.digestSync = true;
+            repository.save();
+            // Окно неподтверждённых расширилось до всей истории
+            reschedule(state);
+        }
+
+        Map<Integer, DeviceState.MessageRecord> mine =
+                digestWindow(state.sentMessages, localIdPrefix, theirRecvDigest.windowStart());
+        Set<Integer> missingKeys = missingKeys(mine, theirRecvDigest);
+        if (missingKeys == null) {
+            log.w("[Sync] Digest from " + senderId + " not decodable (mine=" + mine.size()
+                    + ", theirs=" + theirRecvDigest.size() + "), falling back to v1");
+            metrics.counter(MetricsRegistry.SYNC_DIGESTS, "result", "undecodable").inc();
+            return false;
+        }
+        metrics.counter(MetricsRegistry.SYNC_DIGESTS, "result", "ok").inc();
+
+        List<String> newlyAcked = new ArrayList<>();
+        List<DeviceState.MessageRecord> missing = new ArrayList<>();
+        boolean inFlight = false;
+
+        for (Map.Entry<Integer, DeviceState.MessageRecord> e : mine.entrySet()) {
+            DeviceState.MessageRecord m = e.getValue();
+            if (!missingKeys.contains(e.getKey())) {
+                if (!m.acked) {
+                    state.markAcked(m.msgId);
+                    newlyAcked.add(m.msgId);
+                }
+            } else if (callback != null && callback.isInFlight(m.msgId)) {
+                inFlight = true;
+            } else {
+                missing.add(m);
+            }
+        }
+
+        log.i("[Sync] Digest from " + senderId + ": acked=" + newlyAcked.size()
+                + " missing=" + missing.size() + (inFlight ? " (+in flight)" : ""));
+
+        // Сначала подтверждения: они освобождают слоты для переотправок
+        if (callback != null) {
+            for (String msgId : newlyAcked) {
+                callback.onAckedViaSync(senderId, msgId);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            // Старые первыми; темп переотправок задаёт ResendScheduler
+            Collections.sort(missing, (a, b) -> Long.compare(a.timestamp, b.timestamp));
+            for (DeviceState.MessageRecord msg : missing) {
+                log.i("[Sync] Resending: " + msg.msgId);
+                resendCounter.inc();
+                if (callback != null) {
+                    callback.onResendMessage(senderId, msg.msgId, msg.text);
+                }
+            }
+        } else if (!inFlight) {
+            state.markSynced();
+            log.success("[Sync] All messages to " + senderId + " confirmed delivered (digest)");
+            if (callback != null) {
+                callback.onSyncComplete(senderId);
+            }
+        }
+
+        if (!newlyAcked.isEmpty()) {
+            repository.save();
+        }
+        clearPendingRequest(senderId);
+        return true;
+    }
+
+    /**
+     * Наши сообщения текущей сессии в окне истории пира (ключ не ниже windowStart)
+     */
+    static Map<Integer, DeviceState.MessageRecord> digestWindow(Iterable<DeviceState.MessageRecord> sent,
+                                                               String localIdPrefix, int windowStart) {
+        Map<Integer, DeviceState.MessageRecord> mine = new HashMap<>();
+        for (DeviceState.MessageRecord m : sent) {
+            if (!m.msgId.startsWith(localIdPrefix)) continue;
+            int key = SyncDigest.keyOf(m.msgId);
+            if (key < 0 || key < windowStart) continue;
+            mine.put(key, m);
+        }
+        return mine;
+    }
+
+    /**
+     * Ключи из окна, которых нет в дайджесте пира
+     * @return null если разность не декодирована или не сходится с размером их дайджеста
+     */
+    static Set<Integer> missingKeys(Map<Integer, DeviceState.MessageRecord> mine, SyncDigest theirRecvDigest) {
+        SyncDigest myDigest = new SyncDigest();
+        for (Integer key : mine.keySet()) {
+            myDigest.add(key);
+        }
+        SyncDigest.Difference diff = myDigest.subtractAndDecode(theirRecvDigest);
+        if (diff == null
+                || mine.size() - diff.onlyLocal.size() + diff.onlyRemote.size() != theirRecvDigest.size()) {
+            return null;
+        }
+        return new HashSet<>(diff.onlyLocal);
+    }
+
     // ==================== PENDING REQUESTS ====================
 
     public void clearPendingRequest(String deviceId) {
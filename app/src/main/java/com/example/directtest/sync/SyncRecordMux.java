@@ -0,0 +1,205 @@
+package com.example.directtest.sync;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Одна запись WFD_Sync с секциями для нескольких получателей.
+ *
+ * Секция получателя - два ключа TXT записи (каждая пара ключ=значение до 255 байт):
+ *   s.<shortId> = dn:dl;sent;recv   - размер и окно дайджеста, списки SYNC v1
+ *   g.<shortId> = ячейки SyncDigest  - только если есть дайджест
+ * Получатель читает только свои ключи и не разбирает чужие секции.
+ *
+ * Если секции не помещаются в бюджет записи, публикуются страницами по кругу.
+ * Время жизни секции отсчитывается от её первой публикации.
+ */
+public final class SyncRecordMux {
+
+    public static final String META_PREFIX = "s.";
+    public static final String DIGEST_PREFIX = "g.";
+
+    /**
+     * Секция одного получателя
+     */
+    public static final class Section {
+        public final String target;
+        public final List<String> sent;
+        public final List<String> recv;
+        public final SyncDigest digest;
+
+        private final String meta;
+        private final String encodedDigest;
+        private long firstShownAt = 0;
+
+        Section(String target, List<String> sent, List<String> recv, SyncDigest digest) {
+            this.target = target;
+            this.sent = sent;
+            this.recv = recv;
+            this.digest = digest;
+            this.encodedDigest = digest != null ? digest.encode() : null;
+            this.meta = (digest != null ? digest.size() + ":" + digest.windowStart() : "")
+                    + ";" + SyncManager.formatIdList(sent)
+                    + ";" + SyncManager.formatIdList(recv);
+        }
+
+        /** Байт в TXT записи (ключи, '=' и длины строк) */
+        int cost() {
+            int c = 1 + META_PREFIX.length() + target.length() + 1 + meta.length();
+            if (encodedDigest != null) {
+                c += 1 + DIGEST_PREFIX.length() + target.length() + 1 + encodedDigest.length();
+            }
+            return c;
+        }
+
+        void writeTo(Map<String, String> record) {
+            record.put(META_PREFIX + target, meta);
+            if (encodedDigest != null) {
+                record.put(DIGEST_PREFIX + target, encodedDigest);
+            }
+        }
+    }
+
+    private final int budget;
+    private final LinkedHashMap<String, Section> sections = new LinkedHashMap<>();
+
+    /** С какой секции начинается следующая страница */
+    private int cursor = 0;
+
+    /** Набор секций изменился с последней публикации */
+    private boolean dirty = false;
+
+    /**
+     * @param budget бюджет секций в записи (байт)
+     */
+    public SyncRecordMux(int budget) {
+        this.budget = budget;
+    }
+
+    // ==================== СЕКЦИИ ====================
+
+    /**
+     * Добавить или заменить секцию получателя
+     */
+    public void put(String target, List<String> sent, List<String> recv, SyncDigest digest) {
+        sections.put(target, new Section(target, sent, recv, digest));
+        dirty = true;
+    }
+
+    public void clear() {
+        sections.clear();
+        cursor = 0;
+        dirty = true;
+    }
+
+    public boolean isEmpty() {
+        return sections.isEmpty();
+    }
+
+    public int size() {
+        return sections.size();
+    }
+
+    /**
+     * Удалить секции, опубликованные дольше lifetimeMs назад
+     */
+    public void expire(long now, long lifetimeMs) {
+        Iterator<Section> it = sections.values().iterator();
+        while (it.hasNext()) {
+            Section s = it.next();
+            if (s.firstShownAt > 0 && now - s.firstShownAt > lifetimeMs) {
+                it.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /** Все секции не помещаются в одну запись */
+    public boolean needsRotation() {
+        int total = 0;
+        for (Section s : sections.values()) {
+            total += s.cost();
+            if (total > budget) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Нужно ли перепубликовать запись: секции изменились или идёт ротация
+     */
+    public boolean needsPublish() {
+        return dirty || needsRotation();
+    }
+
+    // ==================== СТРАНИЦЫ ====================
+
+    /**
+     * Записать в record очередную страницу секций (от курсора по кругу, пока помещаются)
+     * @return получатели, попавшие на страницу
+     */
+    public List<String> fillNextPage(Map<String, String> record, long now) {
+        List<String> targets = new ArrayList<>();
+        dirty = false;
+        if (sections.isEmpty()) {
+            return targets;
+        }
+
+        List<Section> all = new ArrayList<>(sections.values());
+        int n = all.size();
+        int start = cursor % n;
+        int used = 0;
+        int taken = 0;
+        while (taken < n) {
+            Section s = all.get((start + taken) % n);
+            if (taken > 0 && used + s.cost() > budget) break;
+            s.writeTo(record);
+            if (s.firstShownAt == 0) {
+                s.firstShownAt = now;
+            }
+            used += s.cost();
+            targets.add(s.target);
+            taken++;
+        }
+        cursor = (start + taken) % n;
+        return targets;
+    }
+
+    // ==================== РАЗБОР ====================
+
+    /**
+     * Достать из записи секцию для получателя myId.
+     * Понимает и старый формат - одна запись на получателя ("to", "sent", "recv", "dg").
+     * @return null если секции для myId нет
+     */
+    public static Section parse(Map<String, String> record, String myId) {
+        String meta = record.get(META_PREFIX + myId);
+        if (meta == null) {
+            return parseLegacy(record, myId);
+        }
+        String[] parts = meta.split(";", -1);
+        if (parts.length != 3) {
+            return null;
+        }
+
+        SyncDigest digest = null;
+        String cells = record.get(DIGEST_PREFIX + myId);
+        int colon = parts[0].indexOf(':');
+        if (cells != null && colon > 0) {
+            digest = SyncDigest.parse(cells, parts[0].substring(0, colon), parts[0].substring(colon + 1));
+        }
+        return new Section(myId, SyncManager.parseIdList(parts[1]), SyncManager.parseIdList(parts[2]), digest);
+    }
+
+    private static Section parseLegacy(Map<String, String> record, String myId) {
+        String targetId = record.get("to");
+        if (targetId == null || (!targetId.equalsIgnoreCase(myId) && !myId.startsWith(targetId))) {
+            return null;
+        }
+        SyncDigest digest = SyncDigest.parse(record.get("dg"), record.get("dn"), record.get("dl"));
+        return new Section(myId, SyncManager.parseIdList(record.get("sent")),
+                SyncManager.parseIdList(record.get("recv")), digest);
+    }
+}
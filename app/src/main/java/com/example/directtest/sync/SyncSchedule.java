@@ -0,0 +1,72 @@
+package com.example.directtest.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Очередь устройств по времени следующего SYNC.
+ *
+ * У каждого устройства не больше одной записи (dueAt, deviceId); перепланирование
+ * заменяет её. Снятие наступивших - O(log n) на устройство, устройства вне очереди
+ * ничего не стоят.
+ */
+final class SyncSchedule {
+
+    private final TreeSet<Entry> queue = new TreeSet<>((a, b) -> {
+        int c = Long.compare(a.dueAt, b.dueAt);
+        return c != 0 ? c : a.deviceId.compareTo(b.deviceId);
+    });
+    private final Map<String, Entry> byDevice = new HashMap<>();
+
+    private static final class Entry {
+        final String deviceId;
+        final long dueAt;
+
+        Entry(String deviceId, long dueAt) {
+            this.deviceId = deviceId;
+            this.dueAt = dueAt;
+        }
+    }
+
+    /**
+     * Запланировать устройство (заменяет прежнюю запись)
+     * @param dueAt время срабатывания, -1 - убрать из очереди
+     */
+    void schedule(String deviceId, long dueAt) {
+        Entry old = byDevice.remove(deviceId);
+        if (old != null) {
+            queue.remove(old);
+        }
+        if (dueAt >= 0) {
+            Entry entry = new Entry(deviceId, dueAt);
+            byDevice.put(deviceId, entry);
+            queue.add(entry);
+        }
+    }
+
+    /**
+     * Снять самое раннее устройство, если его время наступило
+     * @return null если наступивших нет
+     */
+    String pollDue(long now) {
+        if (queue.isEmpty() || queue.first().dueAt > now) {
+            return null;
+        }
+        Entry entry = queue.pollFirst();
+        byDevice.remove(entry.deviceId);
+        return entry.deviceId;
+    }
+
+    /**
+     * @return время SYNC устройства или -1 если его нет в очереди
+     */
+    long dueAt(String deviceId) {
+        Entry entry = byDevice.get(deviceId);
+        return entry != null ? entry.dueAt : -1;
+    }
+
+    int size() {
+        return queue.size();
+    }
+}
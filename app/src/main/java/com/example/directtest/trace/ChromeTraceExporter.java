@@ -0,0 +1,113 @@
+package com.example.directtest.trace;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Экспорт событий трассировки в Chrome trace-event JSON.
+ * Файл открывается в chrome://tracing или ui.perfetto.dev.
+ */
+public final class ChromeTraceExporter {
+
+    private static final int PID = 1;
+    private static final int TID = 1;
+
+    private ChromeTraceExporter() {
+        // Utility class
+    }
+
+    /**
+     * Записать события в JSON ({"traceEvents":[...]})
+     */
+    public static void write(List<TraceEvent> events, Writer out) throws IOException {
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        boolean first = true;
+        StringBuilder sb = new StringBuilder(256);
+        for (TraceEvent e : events) {
+            sb.setLength(0);
+            if (!first) sb.append(",\n");
+            first = false;
+            appendEvent(sb, e);
+            out.write(sb.toString());
+        }
+        out.write("\n]}\n");
+    }
+
+    /**
+     * Записать трассировку в файл (logs/trace_yyyyMMdd_HHmmss.json)
+     */
+    public static File exportToFile(Context context, List<TraceEvent> events) throws IOException {
+        File dir = new File(context.getExternalFilesDir(null), "logs");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        String filename = "trace_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault())
+                .format(new Date()) + ".json";
+        File file = new File(dir, filename);
+
+        try (FileWriter writer = new FileWriter(file)) {
+            write(events, writer);
+        }
+        return file;
+    }
+
+    // ==================== HELPERS ====================
+
+    private static void appendEvent(StringBuilder sb, TraceEvent e) {
+        sb.append("{\"name\":\"").append(escape(e.name))
+                .append("\",\"cat\":\"").append(escape(e.category))
+                .append("\",\"ph\":\"").append(e.phase)
+                .append("\",\"ts\":").append(e.timestampUs)
+                .append(",\"pid\":").append(PID)
+                .append(",\"tid\":").append(TID);
+
+        if (e.phase == TraceEvent.COMPLETE) {
+            sb.append(",\"dur\":").append(e.durationUs);
+        }
+        if (e.phase == TraceEvent.INSTANT) {
+            sb.append(",\"s\":\"g\"");
+        }
+        if (e.id != null) {
+            sb.append(",\"id\":\"").append(escape(e.id)).append("\"");
+        }
+        if (e.args != null) {
+            sb.append(",\"args\":{\"info\":\"").append(escape(e.args)).append("\"}");
+        }
+        sb.append("}");
+    }
+
+    private static String escape(String s) {
+        if (s == null) return "";
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String rep = null;
+            if (c == '"') rep = "\\\"";
+            else if (c == '\\') rep = "\\\\";
+            else if (c == '\n') rep = "\\n";
+            else if (c == '\r') rep = "\\r";
+            else if (c == '\t') rep = "\\t";
+            else if (c < 0x20) rep = String.format(Locale.US, "\\u%04x", (int) c);
+
+            if (rep != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(s.length() + 8);
+                    sb.append(s, 0, i);
+                }
+                sb.append(rep);
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? s : sb.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.directtest.trace;
+
+/**
+ * Одно событие трассировки (неизменяемое).
+ * Фазы соответствуют Chrome trace-event формату.
+ */
+public final class TraceEvent {
+
+    /** Начало асинхронного спана */
+    public static final char ASYNC_BEGIN = 'b';
+
+    /** Конец асинхронного спана */
+    public static final char ASYNC_END = 'e';
+
+    /** Мгновенное событие внутри асинхронного спана */
+    public static final char ASYNC_INSTANT = 'n';
+
+    /** Завершённое синхронное событие с длительностью */
+    public static final char COMPLETE = 'X';
+
+    /** Мгновенное глобальное событие */
+    public static final char INSTANT = 'i';
+
+    public final char phase;
+    public final String name;
+    /** Категория (send / recv / p2p) */
+    public final String category;
+    /** ID корреляции (messageId), null для глобальных событий */
+    public final String id;
+    /** Время начала (мкс, монотонное) */
+    public final long timestampUs;
+    /** Длительность (мкс), только для COMPLETE */
+    public final long durationUs;
+    /** Дополнительные данные (может быть null) */
+    public final String args;
+
+    TraceEvent(char phase, String name, String category, String id,
+               long timestampUs, long durationUs, String args) {
+        this.phase = phase;
+        this.name = name;
+        this.category = category;
+        this.id = id;
+        this.timestampUs = timestampUs;
+        this.durationUs = durationUs;
+        this.args = args;
+    }
+}
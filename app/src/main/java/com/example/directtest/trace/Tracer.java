@@ -0,0 +1,149 @@
+package com.example.directtest.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Трассировка конвейеров отправки и приёма.
+ *
+ * События пишутся в кольцевой буфер фиксированного размера без блокировок:
+ * запись - это getAndIncrement курсора и одна запись в AtomicReferenceArray.
+ * При переполнении старые события перезаписываются.
+ *
+ * Спаны одного сообщения коррелируются по messageId (async id в Chrome trace),
+ * поэтому sendMessage → регистрация слота → обнаружение пиром → ACK
+ * отображаются одной дорожкой в trace viewer.
+ */
+public final class Tracer {
+
+    private static Tracer instance;
+
+    // ==================== КАТЕГОРИИ ====================
+
+    public static final String CAT_SEND = "send";
+    public static final String CAT_RECV = "recv";
+    public static final String CAT_P2P = "p2p";
+
+    /** Размер буфера (степень двойки) */
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+
+    private final AtomicReferenceArray<TraceEvent> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong cursor = new AtomicLong(0);
+    private final long originNanos = System.nanoTime();
+
+    private volatile boolean enabled = true;
+
+    private Tracer() {}
+
+    public static synchronized Tracer getInstance() {
+        if (instance == null) {
+            instance = new Tracer();
+        }
+        return instance;
+    }
+
+    // ==================== ЗАПИСЬ ====================
+
+    /**
+     * Начать асинхронный спан для сообщения
+     */
+    public void begin(String category, String name, String id) {
+        record(TraceEvent.ASYNC_BEGIN, category, name, id, nowUs(), 0, null);
+    }
+
+    /**
+     * Завершить асинхронный спан для сообщения
+     */
+    public void end(String category, String name, String id) {
+        record(TraceEvent.ASYNC_END, category, name, id, nowUs(), 0, null);
+    }
+
+    /**
+     * Завершить асинхронный спан с дополнительными данными
+     */
+    public void end(String category, String name, String id, String args) {
+        record(TraceEvent.ASYNC_END, category, name, id, nowUs(), 0, args);
+    }
+
+    /**
+     * Мгновенное событие в рамках спана сообщения
+     */
+    public void mark(String category, String name, String id, String args) {
+        record(TraceEvent.ASYNC_INSTANT, category, name, id, nowUs(), 0, args);
+    }
+
+    /**
+     * Глобальное мгновенное событие (без привязки к сообщению)
+     */
+    public void instant(String category, String name, String args) {
+        record(TraceEvent.INSTANT, category, name, null, nowUs(), 0, args);
+    }
+
+    /**
+     * Завершённое событие с известным временем начала (см. {@link #nowUs()})
+     */
+    public void complete(String category, String name, long startUs, String args) {
+        long now = nowUs();
+        record(TraceEvent.COMPLETE, category, name, null, startUs, now - startUs, args);
+    }
+
+    private void record(char phase, String category, String name, String id,
+                        long ts, long dur, String args) {
+        if (!enabled) return;
+        long seq = cursor.getAndIncrement();
+        ring.set((int) (seq & MASK), new TraceEvent(phase, name, category, id, ts, dur, args));
+    }
+
+    /**
+     * Монотонное время трассировки (мкс от создания трассировщика)
+     */
+    public long nowUs() {
+        return (System.nanoTime() - originNanos) / 1000;
+    }
+
+    // ==================== УПРАВЛЕНИЕ ====================
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Общее количество записанных событий (включая перезаписанные)
+     */
+    public long getRecordedCount() {
+        return cursor.get();
+    }
+
+    public void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring.set(i, null);
+        }
+        cursor.set(0);
+    }
+
+    // ==================== ЧТЕНИЕ ====================
+
+    /**
+     * Копия событий из буфера (от старых к новым).
+     * Событие, которое пишется в момент чтения, может быть пропущено.
+     */
+    public List<TraceEvent> snapshot() {
+        long end = cursor.get();
+        long start = Math.max(0, end - CAPACITY);
+        List<TraceEvent> result = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            TraceEvent e = ring.get((int) (seq & MASK));
+            if (e != null) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.directtest.mesh;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Правила gossip-ретрансляции и их покрытие/число передач против затопления
+ */
+public class GossipPolicyTest {
+
+    @Test
+    public void fewNeighboursAlwaysForward() {
+        GossipPolicy p = new GossipPolicy(4, 4, 2, 8_000, new Random(1));
+        assertEquals(1.0, p.forwardProbability(0), 0.0);
+        assertEquals(1.0, p.forwardProbability(4), 0.0);
+        assertEquals(0.5, p.forwardProbability(8), 1e-9);
+        assertEquals(0.1, p.forwardProbability(40), 1e-9);
+    }
+
+    @Test
+    public void copyLimitFollowsProbability() {
+        GossipPolicy p = new GossipPolicy(4, 4, 2, 8_000, new Random(41));
+        int chosen = 0;
+        int trials = 20_000;
+        for (int i = 0; i < trials; i++) {
+            int limit = p.copyLimit(16);
+            assertTrue(limit == 4 || limit == 2);
+            if (limit == 4) chosen++;
+        }
+        assertEquals(0.25, (double) chosen / trials, 0.02);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(4, p.copyLimit(3));
+        }
+    }
+
+    @Test
+    public void backoffStaysInRange() {
+        GossipPolicy p = new GossipPolicy(4, 4, 2, 8_000, new Random(2));
+        for (int i = 0; i < 1_000; i++) {
+            long b = p.backoff();
+            assertTrue(b >= 0 && b < 8_000);
+        }
+    }
+
+    // ==================== СИМУЛЯЦИЯ ====================
+
+    private static final int FLOOD = 0;
+    private static final int FIXED = 1;
+    private static final int GOSSIP = 2;
+
+    /**
+     * Случайный геометрический граф, копия доходит до соседа с вероятностью 0.95
+     * за 0.5-8 с. Затопление и p=0.5 ретранслируют через 3 с (RELAY_HOLD),
+     * gossip (F=4, C=4, M=2) - через случайную задержку до 8 с.
+     */
+    @Test
+    public void gossipKeepsCoverageWithFewerTransmissions() {
+        Random rnd = new Random(11);
+        int trials = 60;
+        System.out.println("deg   n  | flood cov/tx   | p=0.5 cov/tx   | gossip cov/tx");
+        for (double deg : new double[]{15, 30}) {
+            for (int n : new int[]{40, 100}) {
+                int[][] nb = graph(n, deg, rnd);
+                double[][] r = new double[3][2];
+                for (int mode = 0; mode < 3; mode++) {
+                    for (int t = 0; t < trials; t++) {
+                        double[] x = trial(nb, mode, rnd);
+                        r[mode][0] += x[0] / trials;
+                        r[mode][1] += x[1] / trials;
+                    }
+                }
+                System.out.printf(Locale.US, "%3.0f %3d  | %5.1f%% %6.1f  | %5.1f%% %6.1f  | %5.1f%% %6.1f%n",
+                        deg, n, r[FLOOD][0] * 100, r[FLOOD][1], r[FIXED][0] * 100, r[FIXED][1],
+                        r[GOSSIP][0] * 100, r[GOSSIP][1]);
+
+                assertTrue(r[GOSSIP][0] > 0.99);
+                assertTrue(r[GOSSIP][0] > r[FIXED][0] - 0.005);
+                assertTrue(r[GOSSIP][1] < r[FLOOD][1] * 0.7);
+            }
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final double t;
+        final int node;
+        final int from;
+        final boolean tx;
+
+        Event(double t, int node, int from, boolean tx) {
+            this.t = t;
+            this.node = node;
+            this.from = from;
+            this.tx = tx;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            return Double.compare(t, o.t);
+        }
+    }
+
+    /** @return {доля получивших, число передач} */
+    private static double[] trial(int[][] nb, int mode, Random rnd) {
+        int n = nb.length;
+        GossipPolicy policy = new GossipPolicy(4, 4, 2, 8_000, rnd);
+        boolean[] got = new boolean[n];
+        List<Set<Integer>> copies = new ArrayList<>();
+        for (int i = 0; i < n; i++) copies.add(new HashSet<>());
+        boolean[] decided = new boolean[n];
+        int[] limit = new int[n];
+        PriorityQueue<Event> queue = new PriorityQueue<>();
+        int src = rnd.nextInt(n);
+        got[src] = true;
+        int reached = 1;
+        int tx = 0;
+        queue.add(new Event(0, src, -1, true));
+        while (!queue.isEmpty()) {
+            Event e = queue.poll();
+            if (e.t > 120) break;
+            if (e.tx) {
+                if (mode == GOSSIP && e.from == -2 && copies.get(e.node).size() >= limit[e.node]) continue;
+                tx++;
+                for (int v : nb[e.node]) {
+                    if (rnd.nextDouble() < 0.95) {
+                        queue.add(new Event(e.t + 0.5 + rnd.nextDouble() * 7.5, v, e.node, false));
+                    }
+                }
+                continue;
+            }
+            int v = e.node;
+            copies.get(v).add(e.from);
+            if (!got[v]) {
+                got[v] = true;
+                reached++;
+            }
+            if (decided[v]) continue;
+            decided[v] = true;
+            double delay = 3.0;
+            boolean forward = true;
+            if (mode == FIXED) {
+                forward = rnd.nextDouble() < 0.5;
+            } else if (mode == GOSSIP) {
+                limit[v] = policy.copyLimit(nb[v].length);
+                delay = policy.backoff() / 1000.0;
+            }
+            if (forward) queue.add(new Event(e.t + delay, v, -2, true));
+        }
+        return new double[]{(double) reached / n, tx};
+    }
+
+    /** Связный случайный геометрический граф со средней степенью около avgDegree */
+    private static int[][] graph(int n, double avgDegree, Random rnd) {
+        double r = Math.sqrt(avgDegree / (Math.PI * n));
+        while (true) {
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = rnd.nextDouble();
+                y[i] = rnd.nextDouble();
+            }
+            int[][] nb = new int[n][];
+            for (int i = 0; i < n; i++) {
+                List<Integer> l = new ArrayList<>();
+                for (int j = 0; j < n; j++) {
+                    if (i != j && Math.hypot(x[i] - x[j], y[i] - y[j]) < r) l.add(j);
+                }
+                nb[i] = l.stream().mapToInt(v -> v).toArray();
+            }
+            boolean[] seen = new boolean[n];
+            ArrayDeque<Integer> q = new ArrayDeque<>();
+            q.add(0);
+            seen[0] = true;
+            int reached = 1;
+            while (!q.isEmpty()) {
+                for (int v : nb[q.poll()]) {
+                    if (!seen[v]) {
+                        seen[v] = true;
+                        reached++;
+                        q.add(v);
+                    }
+                }
+            }
+            if (reached == n) return nb;
+        }
+    }
+}
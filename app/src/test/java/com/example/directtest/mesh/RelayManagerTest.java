@@ -0,0 +1,458 @@
+package com.example.directtest.mesh;
+
+import com.example.directtest.P2pConfig;
+import com.example.directtest.model.MessagePriority;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ретрансляция: удержание, темп, резерв слотов, TTL, дубликаты, ACK назад
+ */
+public class RelayManagerTest {
+
+    private static final long HOLD = 3_000;
+    private static final long INTERVAL = 2_000;
+    private static final long MAX_AGE = 120_000;
+    private static final long ACK_LIFE = 15_000;
+
+    private static RelayManager manager() {
+        return new RelayManager(HOLD, INTERVAL, 1, 1, 4, MAX_AGE, ACK_LIFE);
+    }
+
+    private static boolean offer(RelayManager m, String msgId, int hops, long now) {
+        return m.offer(msgId, "origin", "target", "text", hops, now / 1000, "up",
+                MessagePriority.NORMAL, now);
+    }
+
+    @Test
+    public void relayWaitsForHold() {
+        RelayManager m = manager();
+        assertTrue(offer(m, "m1", 3, 10_000));
+        assertEquals(1, m.backlog());
+        assertEquals(10_000 + HOLD, m.nextPollTime());
+
+        assertNull(m.poll(10_000 + HOLD - 1, 3, 0));
+        RelayManager.Relay r = m.poll(10_000 + HOLD, 3, 0);
+        assertNotNull(r);
+        assertEquals("m1", r.msgId);
+        assertEquals("up", r.upstream);
+        assertEquals(2, r.hops);
+        assertEquals(0, m.backlog());
+        assertEquals(-1, m.nextPollTime());
+    }
+
+    @Test
+    public void directAckDuringHoldCancelsRelay() {
+        RelayManager m = manager();
+        offer(m, "m1", 3, 0);
+        // Получатель ответил отправителю напрямую, пока мы ждали
+        assertNotNull(m.onAck("m1", 1_000));
+        assertNull(m.poll(HOLD, 3, 0));
+        assertEquals(0, m.backlog());
+    }
+
+    @Test
+    public void pollIsRateLimited() {
+        RelayManager m = manager();
+        offer(m, "m1", 3, 0);
+        offer(m, "m2", 3, 0);
+        assertNotNull(m.poll(HOLD, 3, 0));
+        assertNull(m.poll(HOLD + INTERVAL - 1, 3, 0));
+        assertEquals(HOLD + INTERVAL, m.nextPollTime());
+        assertNotNull(m.poll(HOLD + INTERVAL, 3, 0));
+    }
+
+    @Test
+    public void ownMessagesKeepReservedSlots() {
+        RelayManager m = manager();
+        offer(m, "m1", 3, 0);
+        // Свободен только зарезервированный слот
+        assertNull(m.poll(HOLD, 1, 0));
+        // Все слоты ретрансляций заняты
+        assertNull(m.poll(HOLD, 2, 1));
+        assertNotNull(m.poll(HOLD, 2, 0));
+    }
+
+    @Test
+    public void exhaustedHopCountIsDropped() {
+        RelayManager m = manager();
+        assertFalse(offer(m, "m0", 0, 0));
+        assertTrue(offer(m, "m1", 1, 0));
+        assertEquals(1, m.backlog());
+        // Последняя разрешённая ретрансляция: дальше её не передают
+        assertEquals(0, m.poll(HOLD, 3, 0).hops);
+    }
+
+    @Test
+    public void expiredRelayIsDropped() {
+        RelayManager m = manager();
+        offer(m, "m1", 3, 0);
+        assertNull(m.poll(MAX_AGE + 1_000, 3, 0));
+        assertEquals(0, m.backlog());
+    }
+
+    @Test
+    public void duplicatesAreNotQueuedTwice() {
+        RelayManager m = manager();
+        assertTrue(offer(m, "m1", 3, 0));
+        assertFalse(offer(m, "m1", 3, 500));
+        assertEquals(1, m.backlog());
+
+        // Опубликованная ретрансляция тоже известна
+        assertNotNull(m.poll(HOLD, 3, 0));
+        assertFalse(offer(m, "m1", 3, HOLD + 100));
+        assertEquals(0, m.backlog());
+
+        // И подтверждённая - пока ACK пересылается назад
+        m.onAck("m1", HOLD + 200);
+        assertFalse(offer(m, "m1", 3, HOLD + 300));
+        assertEquals(0, m.backlog());
+    }
+
+    @Test
+    public void overflowEvictsLeastUrgent() {
+        RelayManager m = manager();
+        for (int i = 1; i <= 4; i++) {
+            offer(m, "m" + i, 3, i * 1_000);
+        }
+        assertTrue(m.offer("u", "origin", "target", "text", 3, 5, "up", MessagePriority.URGENT, 5_000));
+        assertEquals(4, m.backlog());
+        // Вытеснено самое позднее из NORMAL, срочное выдаётся сразу
+        assertEquals("u", m.poll(5_000, 3, 0).msgId);
+        assertTrue(offer(m, "m4", 3, 6_000));
+    }
+
+    @Test
+    public void ackIsForwardedOnlyForOwnRelays() {
+        RelayManager m = manager();
+        assertNull(m.onAck("other", 0));
+        assertTrue(m.acksToForward(0, 5).isEmpty());
+
+        for (int i = 1; i <= 3; i++) {
+            offer(m, "m" + i, 3, 0);
+        }
+        RelayManager.Relay r = m.onAck("m1", 1_000);
+        assertNotNull(r);
+        assertEquals("up", r.upstream);
+        assertNull(m.onAck("m1", 1_100));
+        m.onAck("m2", 2_000);
+        m.onAck("m3", 3_000);
+
+        assertTrue(m.isAcked("m2"));
+        assertEquals(Arrays.asList("m3", "m2"), m.acksToForward(3_000, 2));
+        // ACK пересылается ACK_LIFE, затем забывается
+        assertEquals(Arrays.asList("m3", "m2"), m.acksToForward(1_000 + ACK_LIFE + 1, 5));
+        assertTrue(m.acksToForward(3_000 + ACK_LIFE + 1, 5).isEmpty());
+    }
+
+    @Test
+    public void nextHopCopyReleasesRelay() {
+        RelayManager m = manager();
+        offer(m, "m1", 3, 0);
+        RelayManager.Relay r = m.poll(HOLD, 3, 0);
+        assertNotNull(r);
+
+        // Копия от того, кто передал нам, - не продвижение
+        assertFalse(m.onForwarded("m1", "up"));
+        assertTrue(m.onForwarded("m1", "next"));
+        assertFalse(m.onForwarded("m1", "another"));
+
+        // Переданное дальше не возвращается в очередь, но ACK по-прежнему идёт назад
+        m.requeueFront("m1");
+        assertEquals(0, m.backlog());
+        assertSame(r, m.onAck("m1", HOLD + 5_000));
+        assertEquals(Collections.singletonList("m1"), m.acksToForward(HOLD + 5_000, 5));
+    }
+
+    @Test
+    public void preemptedRelayReturnsToFront() {
+        RelayManager m = manager();
+        offer(m, "m1", 3, 0);
+        offer(m, "m2", 3, 0);
+        assertEquals("m1", m.poll(HOLD, 3, 0).msgId);
+        m.requeueFront("m1");
+        assertEquals(2, m.backlog());
+        assertEquals("m1", m.poll(HOLD + INTERVAL, 3, 0).msgId);
+    }
+
+    // ==================== СИМУЛЯЦИЯ ====================
+
+    private static final int SLOTS = 3;
+    private static final long STEP = 100;
+    private static final long SLOT_TIMEOUT = 30_000;
+
+    /** Запись в слоте узла */
+    private static final class Rec {
+        String msgId;
+        String origin;
+        String target;
+        int hops;
+        long originTimeSec;
+        boolean relay;
+        long at;
+    }
+
+    private static final class Node {
+        final int id;
+        final List<Integer> neighbours = new ArrayList<>();
+        final Rec[] slots = new Rec[SLOTS];
+        final Map<String, Long> acks = new LinkedHashMap<>();
+        final Set<String> processed = new HashSet<>();
+        final Set<String> pendingOwn = new HashSet<>();
+        final RelayManager relay = new RelayManager(P2pConfig.RELAY_HOLD, P2pConfig.RELAY_MIN_INTERVAL,
+                P2pConfig.RELAY_MAX_SLOTS, P2pConfig.RELAY_RESERVED_SLOTS, P2pConfig.RELAY_QUEUE_CAPACITY,
+                MAX_AGE, P2pConfig.RELAY_ACK_LIFETIME);
+        long nextDiscovery;
+
+        Node(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Линия и решётка из 10-30 узлов, каждый видит только соседей по графу.
+     * Узел раз в ~2 мин пишет случайному узлу; цикл обнаружения 3-8 с, запись соседа
+     * слышна с вероятностью 0.8. Своё сообщение живёт в слоте 60 с, ретрансляция - 30 с.
+     * Без relay доставляются только сообщения соседям. Ретранслирует каждый услышавший
+     * сосед, поэтому в больших сетях единственный слот ретрансляций узла становится узким
+     * местом, и доля доставленных в пределах TTL падает.
+     */
+    @Test
+    public void relayDeliversBeyondOneHop() {
+        System.out.println("topo  N  | direct deliv  p50   | relay deliv  (<=" + (P2pConfig.RELAY_MAX_HOPS + 1)
+                + " hops)  p50    p90");
+        for (String topo : new String[]{"line", "grid"}) {
+            for (int n : new int[]{10, 20, 30}) {
+                double[] direct = simulate(topo, n, false, 42);
+                double[] relay = simulate(topo, n, true, 42);
+                System.out.printf(Locale.US, "%-4s %3d | %6.1f%%  %5.1fs | %6.1f%%  %6.1f%%  %6.1fs %6.1fs%n",
+                        topo, n, direct[0], direct[2], relay[0], relay[1], relay[2], relay[3]);
+
+                assertTrue(relay[0] > direct[0] * 2);
+                assertTrue(relay[1] > 50);
+                if (n == 10) assertTrue(relay[1] > 85);
+            }
+        }
+    }
+
+    /**
+     * @return {доставлено %, доставлено в пределах RELAY_MAX_HOPS + 1 переходов %, p50 с, p90 с}
+     */
+    private static double[] simulate(String topo, int n, boolean relayOn, long seed) {
+        Random rnd = new Random(seed);
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Node node = new Node(i);
+            node.nextDiscovery = rnd.nextInt(4_000);
+            nodes.add(node);
+        }
+        int side = (int) Math.round(Math.sqrt(n));
+        for (Node node : nodes) {
+            int i = node.id;
+            if (topo.equals("line")) {
+                if (i > 0) node.neighbours.add(i - 1);
+                if (i < n - 1) node.neighbours.add(i + 1);
+            } else {
+                int r = i / side;
+                int c = i % side;
+                for (int[] d : new int[][]{{0, 1}, {1, 0}, {0, -1}, {-1, 0}}) {
+                    int rr = r + d[0];
+                    int cc = c + d[1];
+                    if (rr >= 0 && cc >= 0 && cc < side && rr * side + cc < n) {
+                        node.neighbours.add(rr * side + cc);
+                    }
+                }
+            }
+        }
+
+        Map<String, Long> sentAt = new HashMap<>();
+        Map<String, Integer> distance = new HashMap<>();
+        Set<String> delivered = new HashSet<>();
+        List<Long> latency = new ArrayList<>();
+        long meanGap = 120_000;
+        long sendUntil = 20 * 60_000;
+        long[] nextSend = new long[n];
+        int[] counter = new int[n];
+        for (int i = 0; i < n; i++) nextSend[i] = (long) (-Math.log(rnd.nextDouble()) * meanGap);
+
+        for (long t = 0; t < 30 * 60_000; t += STEP) {
+            for (Node node : nodes) {
+                if (t < sendUntil && t >= nextSend[node.id]) {
+                    nextSend[node.id] = t + (long) (-Math.log(rnd.nextDouble()) * meanGap);
+                    int target;
+                    do target = rnd.nextInt(n); while (target == node.id);
+                    int idx = freeSlot(node);
+                    if (idx < 0 && relayOn) {
+                        // Своё сообщение вытесняет ретрансляцию
+                        for (int i = 0; i < SLOTS && idx < 0; i++) {
+                            if (node.slots[i].relay) {
+                                node.relay.requeueFront(node.slots[i].msgId);
+                                node.slots[i] = null;
+                                idx = i;
+                            }
+                        }
+                    }
+                    if (idx >= 0) {
+                        Rec r = new Rec();
+                        r.msgId = "n" + node.id + "_" + (++counter[node.id]);
+                        r.origin = "n" + node.id;
+                        r.target = "n" + target;
+                        r.hops = P2pConfig.RELAY_MAX_HOPS;
+                        r.originTimeSec = t / 1000;
+                        r.at = t;
+                        node.slots[idx] = r;
+                        node.pendingOwn.add(r.msgId);
+                        sentAt.put(r.msgId, t);
+                        distance.put(r.msgId, hopsBetween(nodes, node.id, target));
+                    }
+                }
+
+                for (int i = 0; i < SLOTS; i++) {
+                    Rec r = node.slots[i];
+                    if (r != null && t - r.at > (r.relay ? SLOT_TIMEOUT : 2 * SLOT_TIMEOUT)) {
+                        node.slots[i] = null;
+                    }
+                }
+
+                if (relayOn) {
+                    RelayManager.Relay relay;
+                    while ((relay = node.relay.poll(t, freeCount(node), relayCount(node))) != null) {
+                        Rec r = new Rec();
+                        r.msgId = relay.msgId;
+                        r.origin = relay.origin;
+                        r.target = relay.target;
+                        r.hops = relay.hops;
+                        r.originTimeSec = relay.originTimeSec;
+                        r.relay = true;
+                        r.at = t;
+                        node.slots[freeSlot(node)] = r;
+                    }
+                }
+
+                if (t < node.nextDiscovery) continue;
+                node.nextDiscovery = t + 3_000 + rnd.nextInt(5_000);
+                String self = "n" + node.id;
+                for (int j : node.neighbours) {
+                    if (rnd.nextDouble() > 0.8) continue;
+                    Node peer = nodes.get(j);
+                    for (String ack : ackField(peer, relayOn, t)) {
+                        if (node.pendingOwn.remove(ack)) {
+                            release(node, ack, false);
+                        } else if (relayOn && node.relay.onAck(ack, t) != null) {
+                            release(node, ack, true);
+                        }
+                    }
+                    for (Rec r : peer.slots) {
+                        if (r == null || r.origin.equals(self) || t - r.originTimeSec * 1000 > MAX_AGE) continue;
+                        if (r.target.equals(self)) {
+                            if (node.processed.add(r.msgId)) {
+                                delivered.add(r.msgId);
+                                latency.add(t - sentAt.get(r.msgId));
+                                node.acks.put(r.msgId, t);
+                            }
+                        } else if (relayOn) {
+                            if (node.processed.add(r.msgId)) {
+                                node.relay.offer(r.msgId, r.origin, r.target, "", r.hops, r.originTimeSec,
+                                        "n" + peer.id, MessagePriority.NORMAL, t);
+                            } else if (r.relay && node.relay.onForwarded(r.msgId, "n" + peer.id)) {
+                                release(node, r.msgId, true);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        int inReach = 0;
+        int inReachDelivered = 0;
+        for (Map.Entry<String, Integer> e : distance.entrySet()) {
+            if (e.getValue() <= P2pConfig.RELAY_MAX_HOPS + 1) {
+                inReach++;
+                if (delivered.contains(e.getKey())) inReachDelivered++;
+            }
+        }
+        Collections.sort(latency);
+        return new double[]{
+                100.0 * delivered.size() / sentAt.size(),
+                100.0 * inReachDelivered / Math.max(1, inReach),
+                latency.isEmpty() ? 0 : latency.get(latency.size() / 2) / 1000.0,
+                latency.isEmpty() ? 0 : latency.get(latency.size() * 9 / 10) / 1000.0};
+    }
+
+    private static List<String> ackField(Node node, boolean relayOn, long now) {
+        List<String> out = new ArrayList<>();
+        node.acks.entrySet().removeIf(e -> now - e.getValue() > P2pConfig.RELAY_ACK_LIFETIME);
+        for (String ack : node.acks.keySet()) {
+            if (out.size() >= 5) break;
+            out.add(ack);
+        }
+        if (relayOn && out.size() < 5) {
+            out.addAll(node.relay.acksToForward(now, 5 - out.size()));
+        }
+        return out;
+    }
+
+    private static void release(Node node, String msgId, boolean relay) {
+        for (int i = 0; i < SLOTS; i++) {
+            Rec r = node.slots[i];
+            if (r != null && r.relay == relay && msgId.equals(r.msgId)) node.slots[i] = null;
+        }
+    }
+
+    private static int freeSlot(Node node) {
+        for (int i = 0; i < SLOTS; i++) {
+            if (node.slots[i] == null) return i;
+        }
+        return -1;
+    }
+
+    private static int freeCount(Node node) {
+        int free = 0;
+        for (Rec r : node.slots) if (r == null) free++;
+        return free;
+    }
+
+    private static int relayCount(Node node) {
+        int relays = 0;
+        for (Rec r : node.slots) if (r != null && r.relay) relays++;
+        return relays;
+    }
+
+    private static int hopsBetween(List<Node> nodes, int from, int to) {
+        int[] d = new int[nodes.size()];
+        Arrays.fill(d, -1);
+        d[from] = 0;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(from);
+        while (!queue.isEmpty()) {
+            int x = queue.poll();
+            for (int y : nodes.get(x).neighbours) {
+                if (d[y] < 0) {
+                    d[y] = d[x] + 1;
+                    queue.add(y);
+                }
+            }
+        }
+        return d[to];
+    }
+}
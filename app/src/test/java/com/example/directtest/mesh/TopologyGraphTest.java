@@ -0,0 +1,295 @@
+package com.example.directtest.mesh;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Карта сети: инкрементальные кратчайшие пути против полного пересчёта Дейкстрой
+ */
+public class TopologyGraphTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+    private static final long VERSION = NOW / 1000;
+
+    private static String id(int i) {
+        return String.format("%08x", 0x10000000 + i);
+    }
+
+    private static String digest(Object... idQuality) {
+        List<NeighbourDigest.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < idQuality.length; i += 2) {
+            entries.add(new NeighbourDigest.Entry((String) idQuality[i], 3, (Integer) idQuality[i + 1]));
+        }
+        return NeighbourDigest.encode(entries, 240);
+    }
+
+    @Test
+    public void routesThroughAdvertisedNeighbours() {
+        TopologyGraph g = new TopologyGraph("a");
+        g.update("a", VERSION, digest("b", 100), NOW);
+        g.update("b", VERSION, digest("a", 100, "c", 100), NOW);
+        g.update("c", VERSION, digest("b", 100, "d", 100), NOW);
+
+        assertEquals("b", g.nextHop("c"));
+        assertEquals("b", g.nextHop("d"));
+        assertEquals(3, g.distance("d"));
+        assertNull(g.nextHop("zz"));
+        assertEquals(-1, g.distance("zz"));
+    }
+
+    @Test
+    public void olderOrEqualVersionIsIgnored() {
+        TopologyGraph g = new TopologyGraph("a");
+        assertTrue(g.update("b", VERSION, digest("a", 100), NOW));
+        assertFalse(g.update("b", VERSION, digest("a", 0), NOW));
+        assertFalse(g.update("b", VERSION - 1, digest("a", 0), NOW));
+        assertEquals(1, g.distance("b"));
+    }
+
+    @Test
+    public void edgeCostIsMinimumOfBothSides() {
+        TopologyGraph g = new TopologyGraph("a");
+        g.update("a", VERSION, digest("b", 0), NOW);
+        assertEquals(6, g.distance("b"));
+        g.update("b", VERSION, digest("a", 100), NOW);
+        assertEquals(1, g.distance("b"));
+    }
+
+    @Test
+    public void worsenedTreeEdgeReroutes() {
+        TopologyGraph g = new TopologyGraph("a");
+        g.update("a", VERSION, digest("b", 100, "c", 60), NOW);
+        g.update("b", VERSION, digest("a", 100, "d", 100), NOW);
+        g.update("c", VERSION, digest("a", 60, "d", 100), NOW);
+        assertEquals("b", g.nextHop("d"));
+
+        g.update("a", VERSION + 1, digest("b", 0, "c", 60), NOW);
+        g.update("b", VERSION + 1, digest("a", 0, "d", 100), NOW);
+        assertEquals("c", g.nextHop("d"));
+        assertEquals(4, g.distance("d"));
+    }
+
+    @Test
+    public void expiredNodeDropsItsEdges() {
+        TopologyGraph g = new TopologyGraph("a");
+        g.update("a", VERSION, digest("b", 100), NOW);
+        g.update("b", VERSION - 100, digest("c", 100), NOW);
+        assertEquals(2, g.distance("c"));
+
+        assertEquals(1, g.expire(NOW, 60_000));
+        assertEquals(-1, g.distance("c"));
+        assertEquals(1, g.distance("b"));
+    }
+
+    @Test
+    public void advertisementForwardsChangedListsFirst() {
+        TopologyGraph g = new TopologyGraph("a");
+        g.update("a", VERSION, digest("b", 100), NOW);
+        g.update("b", VERSION, digest("a", 100), NOW);
+        g.update("c", VERSION, digest("b", 100), NOW);
+
+        Map<String, String> record = new HashMap<>();
+        g.fillAdvertisement(record, 255);
+        assertEquals(String.valueOf(VERSION), record.get("nv"));
+        assertEquals(digest("b", 100), record.get("n"));
+        assertEquals(VERSION + ";" + digest("a", 100), record.get("L.b"));
+        assertEquals(VERSION + ";" + digest("b", 100), record.get("L.c"));
+
+        Map<String, String> small = new HashMap<>();
+        g.update("c", VERSION + 1, digest("b", 80), NOW);
+        g.fillAdvertisement(small, 60);
+        assertTrue(small.containsKey("L.c"));
+        assertFalse(small.containsKey("L.b"));
+    }
+
+    // ==================== СРАВНЕНИЕ С ПОЛНЫМ ПЕРЕСЧЁТОМ ====================
+
+    @Test
+    public void incrementalPathsMatchFullDijkstra() {
+        Random rnd = new Random(40);
+        System.out.println("topology        nodes  edges  change us  full us");
+        check("grid 10x10", grid(10), rnd);
+        check("geometric 100", geometric(100, 0.18, rnd), rnd);
+        check("geometric 30", geometric(30, 0.3, rnd), rnd);
+    }
+
+    private static void check(String name, List<List<Integer>> nb, Random rnd) {
+        int n = nb.size();
+        List<List<Integer>> q = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            List<Integer> l = new ArrayList<>();
+            for (int k = 0; k < nb.get(i).size(); k++) l.add(40 + rnd.nextInt(61));
+            q.add(l);
+        }
+        long[] ver = new long[n];
+        TopologyGraph g = new TopologyGraph(id(0));
+        for (int i = 0; i < n; i++) {
+            ver[i] = VERSION;
+            g.update(id(i), ver[i], encode(i, nb, q), NOW);
+        }
+        assertDistances(g, n, nb, q);
+
+        int ops = 3_000;
+        long changeNs = 0;
+        for (int it = 0; it < ops; it++) {
+            int i = rnd.nextInt(n);
+            List<Integer> mine = nb.get(i);
+            int action = rnd.nextInt(10);
+            if (action == 0 && !mine.isEmpty()) {
+                // Связь пропала у обеих сторон
+                int k = rnd.nextInt(mine.size());
+                int j = mine.get(k);
+                unlink(nb, q, i, j);
+                ver[j]++;
+                g.update(id(j), ver[j], encode(j, nb, q), NOW);
+            } else if (action == 1) {
+                // Новая связь (пока объявлена одной стороной)
+                int j = rnd.nextInt(n);
+                if (j != i && !mine.contains(j)) {
+                    mine.add(j);
+                    q.get(i).add(40 + rnd.nextInt(61));
+                }
+            } else if (!mine.isEmpty()) {
+                int k = rnd.nextInt(mine.size());
+                int v = q.get(i).get(k) + (rnd.nextBoolean() ? 25 : -25);
+                q.get(i).set(k, Math.max(0, Math.min(100, v)));
+            }
+            ver[i]++;
+            String dg = encode(i, nb, q);
+            long t0 = System.nanoTime();
+            g.update(id(i), ver[i], dg, NOW);
+            g.nextHop(id(rnd.nextInt(n)));
+            changeNs += System.nanoTime() - t0;
+            if (it % 25 == 0) {
+                assertDistances(g, n, nb, q);
+            }
+        }
+        assertDistances(g, n, nb, q);
+
+        long t0 = System.nanoTime();
+        for (int it = 0; it < 500; it++) reference(n, nb, q);
+        double fullUs = (System.nanoTime() - t0) / 1e3 / 500;
+        System.out.printf(Locale.US, "%-14s %6d %6d %10.2f %8.1f%n",
+                name, n, g.edgeCount(), changeNs / 1e3 / ops, fullUs);
+    }
+
+    private static void unlink(List<List<Integer>> nb, List<List<Integer>> q, int i, int j) {
+        int k = nb.get(i).indexOf(j);
+        nb.get(i).remove(k);
+        q.get(i).remove(k);
+        int back = nb.get(j).indexOf(i);
+        if (back >= 0) {
+            nb.get(j).remove(back);
+            q.get(j).remove(back);
+        }
+    }
+
+    private static void assertDistances(TopologyGraph g, int n, List<List<Integer>> nb, List<List<Integer>> q) {
+        Map<String, Integer> ref = reference(n, nb, q);
+        for (int j = 0; j < n; j++) {
+            int expected = ref.getOrDefault(id(j), -1);
+            assertEquals("distance to " + j, expected, g.distance(id(j)));
+            if (j != 0 && expected > 0) {
+                // Первый шаг - наш сосед, и путь через него не длиннее кратчайшего
+                String hop = g.nextHop(id(j));
+                int h = Integer.parseInt(hop, 16) - 0x10000000;
+                assertEquals(costOf(nb, q, 0, h), g.distance(hop));
+            }
+        }
+    }
+
+    private static String encode(int i, List<List<Integer>> nb, List<List<Integer>> q) {
+        List<NeighbourDigest.Entry> e = new ArrayList<>();
+        for (int k = 0; k < nb.get(i).size(); k++) {
+            e.add(new NeighbourDigest.Entry(id(nb.get(i).get(k)), 3, q.get(i).get(k)));
+        }
+        return NeighbourDigest.encode(e, 10_000);
+    }
+
+    /** Стоимость ребра i-j: минимум из объявлений обеих сторон */
+    private static int costOf(List<List<Integer>> nb, List<List<Integer>> q, int i, int j) {
+        int best = Integer.MAX_VALUE;
+        int k = nb.get(i).indexOf(j);
+        if (k >= 0) best = new NeighbourDigest.Entry("x", 0, q.get(i).get(k)).cost();
+        k = nb.get(j).indexOf(i);
+        if (k >= 0) best = Math.min(best, new NeighbourDigest.Entry("x", 0, q.get(j).get(k)).cost());
+        return best;
+    }
+
+    /** Полный пересчёт Дейкстрой от узла 0 */
+    private static Map<String, Integer> reference(int n, List<List<Integer>> nb, List<List<Integer>> q) {
+        Map<Integer, Map<Integer, Integer>> adj = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < nb.get(i).size(); k++) {
+                int j = nb.get(i).get(k);
+                int c = new NeighbourDigest.Entry("x", 0, q.get(i).get(k)).cost();
+                adj.computeIfAbsent(i, z -> new HashMap<>()).merge(j, c, Math::min);
+                adj.computeIfAbsent(j, z -> new HashMap<>()).merge(i, c, Math::min);
+            }
+        }
+        Map<Integer, Integer> d = new HashMap<>();
+        d.put(0, 0);
+        PriorityQueue<int[]> pq = new PriorityQueue<>((u, v) -> Integer.compare(u[1], v[1]));
+        pq.add(new int[]{0, 0});
+        while (!pq.isEmpty()) {
+            int[] e = pq.poll();
+            if (d.get(e[0]) != e[1]) continue;
+            for (Map.Entry<Integer, Integer> ed : adj.getOrDefault(e[0], Collections.emptyMap()).entrySet()) {
+                int nd = e[1] + ed.getValue();
+                if (nd < d.getOrDefault(ed.getKey(), Integer.MAX_VALUE)) {
+                    d.put(ed.getKey(), nd);
+                    pq.add(new int[]{ed.getKey(), nd});
+                }
+            }
+        }
+        Map<String, Integer> byId = new HashMap<>();
+        for (Map.Entry<Integer, Integer> e : d.entrySet()) byId.put(id(e.getKey()), e.getValue());
+        return byId;
+    }
+
+    private static List<List<Integer>> grid(int side) {
+        List<List<Integer>> nb = new ArrayList<>();
+        for (int i = 0; i < side * side; i++) {
+            int r = i / side;
+            int c = i % side;
+            List<Integer> l = new ArrayList<>();
+            if (r > 0) l.add(i - side);
+            if (r < side - 1) l.add(i + side);
+            if (c > 0) l.add(i - 1);
+            if (c < side - 1) l.add(i + 1);
+            nb.add(l);
+        }
+        return nb;
+    }
+
+    private static List<List<Integer>> geometric(int n, double radius, Random rnd) {
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = rnd.nextDouble();
+            y[i] = rnd.nextDouble();
+        }
+        List<List<Integer>> nb = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            List<Integer> l = new ArrayList<>();
+            for (int j = 0; j < n; j++) {
+                if (i != j && Math.hypot(x[i] - x[j], y[i] - y[j]) < radius) l.add(j);
+            }
+            nb.add(l);
+        }
+        return nb;
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.directtest.metrics;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Квантили лог-линейной гистограммы: оценка сверху, погрешность не больше 12.5%
+ */
+public class HistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        Histogram.Snapshot s = new Histogram().snapshot();
+        assertEquals(0, s.count);
+        assertEquals(0, s.percentile(0.5));
+        assertEquals(0.0, s.mean(), 0.0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram h = new Histogram();
+        for (int v = 0; v < 8; v++) {
+            h.record(v);
+        }
+        Histogram.Snapshot s = h.snapshot();
+        assertEquals(8, s.count);
+        assertEquals(0, s.percentile(0.1));
+        assertEquals(3, s.percentile(0.5));
+        assertEquals(7, s.percentile(1.0));
+        assertEquals(3.5, s.mean(), 1e-9);
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        Histogram h = new Histogram();
+        h.record(-5);
+        Histogram.Snapshot s = h.snapshot();
+        assertEquals(1, s.count);
+        assertEquals(0, s.sum);
+        assertEquals(0, s.percentile(1.0));
+    }
+
+    @Test
+    public void percentilesOfUniformValuesWithinBucketError() {
+        Histogram h = new Histogram();
+        for (int v = 1; v <= 10_000; v++) {
+            h.record(v);
+        }
+        Histogram.Snapshot s = h.snapshot();
+        for (double q : new double[]{0.5, 0.9, 0.95, 0.99}) {
+            long exact = (long) Math.ceil(q * 10_000);
+            long estimate = s.percentile(q);
+            assertTrue("p" + q + "=" + estimate, estimate >= exact);
+            assertTrue("p" + q + "=" + estimate, estimate <= exact * 1.125);
+        }
+        assertEquals(10_000, s.percentile(1.0));
+        assertEquals(10_000, s.max);
+        assertEquals(5000.5, s.mean(), 1e-9);
+    }
+
+    @Test
+    public void percentileNeverExceedsMax() {
+        Histogram h = new Histogram();
+        h.record(1000);
+        assertEquals(1000, h.snapshot().percentile(0.99));
+    }
+
+    @Test
+    public void valuesBeyondRangeGoToLastBucket() {
+        Histogram h = new Histogram();
+        long huge = 1L << 50;
+        h.record(huge);
+        assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.indexOf(huge));
+        assertEquals(huge, h.snapshot().percentile(0.5));
+    }
+
+    @Test
+    public void bucketBoundsCoverEveryValue() {
+        Random rnd = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            long v = rnd.nextLong() >>> (24 + rnd.nextInt(40));
+            int index = Histogram.indexOf(v);
+            assertTrue(v + " above its bucket", Histogram.upperBoundOf(index) >= v);
+            if (index > 0) {
+                assertTrue(v + " fits the previous bucket", Histogram.upperBoundOf(index - 1) < v);
+            }
+        }
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        Histogram h = new Histogram();
+        h.record(42);
+        h.reset();
+        Histogram.Snapshot s = h.snapshot();
+        assertEquals(0, s.count);
+        assertEquals(0, s.sum);
+        assertEquals(0, s.max);
+    }
+
+    /**
+     * Запись - на горячем пути приёма TXT записей: без аллокаций, порядка десятков нс
+     */
+    @Test
+    public void recordBenchmark() {
+        Histogram h = new Histogram();
+        int n = 5_000_000;
+        for (int i = 0; i < n; i++) {
+            h.record(i & 1023);  // прогрев
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            h.record(i & 1023);
+        }
+        double nsPerOp = (System.nanoTime() - start) / (double) n;
+        System.out.printf("Histogram.record: %.1f ns/op%n", nsPerOp);
+        assertEquals(2L * n, h.snapshot().count);
+        assertTrue(nsPerOp < 1000);
+    }
+}
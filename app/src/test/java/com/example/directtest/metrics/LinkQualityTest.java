@@ -0,0 +1,231 @@
+package com.example.directtest.metrics;
+
+import com.example.directtest.P2pConfig;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Качество связи: потери по пропускам heartbeat, интервал по циклам, свежесть и оценка
+ */
+public class LinkQualityTest {
+
+    private static final long HB = 5_000;
+    private static final long BURST = 1_500;
+
+    @Test
+    public void missedHeartbeatsRaiseLoss() {
+        LinkQuality lq = new LinkQuality(HB, BURST);
+        lq.onHeartbeat(1, 0, 3_000);
+        assertEquals(0.0, lq.lossRate(), 0.0);
+
+        lq.onHeartbeat(2, 5_000, 3_000);
+        assertEquals(0.0, lq.lossRate(), 1e-12);
+
+        // Номер 3 не увиден: одна потеря и один принятый
+        lq.onHeartbeat(4, 15_000, 3_000);
+        assertEquals(0.09, lq.lossRate(), 1e-12);
+
+        // Дальше без потерь оценка убывает
+        lq.onHeartbeat(5, 20_000, 3_000);
+        assertEquals(0.081, lq.lossRate(), 1e-12);
+    }
+
+    @Test
+    public void slowCycleSkipsAreNotLosses() {
+        LinkQuality lq = new LinkQuality(HB, BURST);
+        lq.onHeartbeat(1, 0, 16_000);
+        // За цикл 16 с пир успел пронумеровать ещё 2 heartbeat - это не потери
+        lq.onHeartbeat(4, 16_000, 16_000);
+        assertEquals(0.0, lq.lossRate(), 1e-12);
+        // Пропущенный цикл - одна потеря
+        lq.onHeartbeat(10, 48_000, 16_000);
+        assertEquals(0.09, lq.lossRate(), 1e-12);
+    }
+
+    @Test
+    public void longAbsenceAndNewSessionKeepLoss() {
+        LinkQuality lq = new LinkQuality(HB, BURST);
+        lq.onHeartbeat(1, 0, 3_000);
+        lq.onHeartbeat(3, 10_000, 3_000);
+        double loss = lq.lossRate();
+        int version = lq.getVersion();
+
+        // Разрыв больше MAX_HB_GAP - пир отсутствовал
+        lq.onHeartbeat(30, 150_000, 3_000);
+        assertEquals(loss, lq.lossRate(), 0.0);
+        assertEquals(version, lq.getVersion());
+
+        // Новая сессия нумерует заново
+        lq.onHeartbeat(1, 155_000, 3_000);
+        lq.onHeartbeat(2, 160_000, 3_000);
+        assertEquals(loss * 0.9, lq.lossRate(), 1e-12);
+        // Повтор номера ничего не меняет
+        lq.onHeartbeat(2, 161_000, 3_000);
+        assertEquals(loss * 0.9, lq.lossRate(), 1e-12);
+    }
+
+    @Test
+    public void recordsWithinBurstGapAreOneCycle() {
+        LinkQuality lq = new LinkQuality(HB, BURST);
+        lq.onRecord(1_000);
+        lq.onRecord(1_500);
+        assertEquals(0, lq.meanInterval());
+
+        lq.onRecord(9_000);
+        assertEquals(8_000, lq.meanInterval());
+        assertEquals(4_000, lq.jitter());
+
+        // Хвост пачки не сдвигает начало цикла
+        lq.onRecord(10_000);
+        lq.onRecord(11_400);
+        lq.onRecord(17_000);
+        assertEquals(8_000, lq.meanInterval());
+        assertEquals(3_000, lq.jitter());
+        assertEquals(17_000, lq.lastRecordAt());
+
+        // Отсутствие пира дольше MAX_CYCLE_GAP в интервал не входит
+        int version = lq.getVersion();
+        lq.onRecord(100_000);
+        assertEquals(8_000, lq.meanInterval());
+        assertEquals(version, lq.getVersion());
+        lq.onRecord(110_000);
+        assertEquals(8_250, lq.meanInterval());
+    }
+
+    @Test
+    public void freshnessDecaysAfterExpectedGap() {
+        LinkQuality lq = new LinkQuality(HB, BURST);
+        assertEquals(0.0, lq.freshness(1_000), 0.0);
+
+        // Интервал ещё не измерен - ожидается heartbeat
+        lq.onRecord(1_000);
+        assertEquals(1.0, lq.freshness(6_000), 0.0);
+        assertEquals(Math.exp(-1), lq.freshness(11_000), 1e-12);
+
+        lq.onRecord(9_000);
+        lq.onRecord(17_000);
+        // Ожидаемый промежуток 8 + 2 * 3 = 14 с
+        assertEquals(1.0, lq.freshness(31_000), 0.0);
+        assertEquals(Math.exp(-1), lq.freshness(45_000), 1e-12);
+        assertTrue(lq.freshness(60_000) < lq.freshness(50_000));
+    }
+
+    @Test
+    public void scoreStaysWithinBounds() {
+        LinkQuality lq = new LinkQuality(HB, BURST);
+        assertEquals(0, lq.score(0));
+        assertEquals("📶 no samples", lq.toShortString(0));
+
+        lq.onRecord(1_000);
+        lq.onHeartbeat(1, 1_000, 3_000);
+        assertEquals(100, lq.score(2_000));
+        lq.onHeartbeat(3, 11_000, 3_000);
+        lq.onRecord(11_000);
+        assertEquals(91, lq.score(11_000));
+        assertEquals(0, lq.score(1_000_000));
+        assertEquals("📶 Q 91 | loss 9% | every 10.0s ± 5.0s", lq.toShortString(11_000));
+
+        Random rnd = new Random(1);
+        for (int i = 0; i < 10_000; i++) {
+            double loss = rnd.nextDouble();
+            double interval = rnd.nextInt(3) == 0 ? 0 : rnd.nextDouble() * 60_000;
+            double jitter = interval * rnd.nextDouble();
+            long last = rnd.nextInt(5) == 0 ? 0 : 1 + rnd.nextInt(100_000);
+            long now = last + rnd.nextInt(200_000);
+            int score = LinkQuality.score(loss, interval, jitter, last, HB, now);
+            assertTrue(score >= 0 && score <= 100);
+        }
+
+        lq.clear();
+        assertEquals(0, lq.score(11_000));
+        assertEquals(0.0, lq.lossRate(), 0.0);
+    }
+
+    // ==================== СИМУЛЯЦИЯ ====================
+
+    /**
+     * Пир обновляет heartbeat каждые HEARTBEAT_INTERVAL, мы видим его записи
+     * в свой цикл обнаружения (3 или 8 с +-20%), пачка записи - heartbeat и слот
+     * через 300 мс. Пачка теряется целиком с вероятностью p. Истинные потери (после
+     * прогрева 600 с): при цикле короче heartbeat - доля номеров, не увиденных ни
+     * в одном цикле, при более длинном - доля потерянных циклов. Сравнивается со средней
+     * оценкой lossRate. Затем пир уходит: через сколько свежесть падает ниже 0.1.
+     */
+    @Test
+    public void estimatesTrackObservedLink() {
+        Random rnd = new Random(3);
+        System.out.println("cycle  drop | lost   est    | interval            | gone after");
+        for (double cycle : new double[]{3, 8}) {
+            for (double p : new double[]{0.0, 0.1, 0.3, 0.5}) {
+                LinkQuality lq = new LinkQuality(P2pConfig.HEARTBEAT_INTERVAL, P2pConfig.LINK_BURST_GAP);
+                long seq = 0;
+                long firstCounted = 0;
+                long seen = 0;
+                long lastSeen = 0;
+                double nextHb = 0;
+                double estSum = 0;
+                int samples = 0;
+                double sumCycle = 0;
+                int cycles = 0;
+                double prev = 0;
+                int dropped = 0;
+                for (double t = 0; t < 3_600; t += cycle * (0.8 + 0.4 * rnd.nextDouble())) {
+                    while (nextHb <= t) {
+                        seq++;
+                        nextHb += P2pConfig.HEARTBEAT_INTERVAL / 1000.0;
+                    }
+                    if (rnd.nextDouble() < p) {
+                        if (t > 600) dropped++;
+                        continue;
+                    }
+                    long now = (long) (t * 1000);
+                    lq.onRecord(now);
+                    lq.onHeartbeat(seq, now, (long) (cycle * 1000));
+                    lq.onRecord(now + 300);
+                    if (t > 600) {
+                        if (firstCounted == 0) firstCounted = seq;
+                        else if (seq != lastSeen) seen++;
+                        estSum += lq.lossRate();
+                        samples++;
+                        sumCycle += t - prev;
+                        cycles++;
+                    }
+                    lastSeen = seq;
+                    prev = t;
+                }
+                double hbLost = cycle * 1000 < P2pConfig.HEARTBEAT_INTERVAL
+                        ? 1.0 - (double) seen / (lastSeen - firstCounted)
+                        : (double) dropped / (dropped + samples);
+                double est = estSum / samples;
+                double meanGap = sumCycle / cycles * 1000;
+
+                long last = lq.lastRecordAt();
+                long gone = -1;
+                for (long t = last; t < last + 120_000; t += 100) {
+                    if (lq.freshness(t) < 0.1) {
+                        gone = t - last;
+                        break;
+                    }
+                }
+                System.out.printf(Locale.US, "%4.0fs %4.0f%% | %5.1f%% %5.1f%% | %4.1fs +- %3.1fs (%4.1fs) | %5.1fs%n",
+                        cycle, p * 100, hbLost * 100, est * 100,
+                        lq.meanInterval() / 1000.0, lq.jitter() / 1000.0, meanGap / 1000, gone / 1000.0);
+
+                assertEquals(hbLost, est, 0.05 + hbLost * 0.25);
+                // Один пропущенный цикл - ещё не уход; ушедший замечен
+                // за (1 + ln 10) ожидаемых промежутков
+                double expected = lq.meanInterval() + 2 * lq.jitter();
+                assertTrue(gone > 2 * meanGap);
+                assertTrue(gone <= (1 + Math.log(10)) * expected + 100);
+                // Сразу после записи оценка - только потери
+                assertEquals(Math.round(100 * (1 - lq.lossRate())), lq.score(last));
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.directtest.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Кольцевой буфер с индексом: порядок, вытеснение, индекс по ID
+ */
+public class BoundedHistoryTest {
+
+    private static final class Item {
+        final String id;
+
+        Item(String id) {
+            this.id = id;
+        }
+    }
+
+    private static BoundedHistory<Item> history(int capacity) {
+        return new BoundedHistory<>(capacity, m -> m.id);
+    }
+
+    private static List<String> ids(Iterable<Item> items) {
+        List<String> result = new ArrayList<>();
+        for (Item m : items) {
+            result.add(m.id);
+        }
+        return result;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCapacityIsRejected() {
+        history(0);
+    }
+
+    @Test
+    public void iteratesNewestFirst() {
+        BoundedHistory<Item> h = history(5);
+        h.addNewest(new Item("a"));
+        h.addNewest(new Item("b"));
+        h.addNewest(new Item("c"));
+        assertEquals(Arrays.asList("c", "b", "a"), ids(h));
+        assertEquals("c", h.get(0).id);
+        assertEquals("a", h.get(2).id);
+        assertEquals(Arrays.asList("c", "b"), ids(h.newest(2)));
+        assertEquals(3, h.newest(10).size());
+    }
+
+    @Test
+    public void duplicateIdIsRejected() {
+        BoundedHistory<Item> h = history(3);
+        Item first = new Item("a");
+        assertTrue(h.addNewest(first));
+        assertFalse(h.addNewest(new Item("a")));
+        assertEquals(1, h.size());
+        assertSame(first, h.get("a"));
+    }
+
+    @Test
+    public void overflowEvictsOldestFromRingAndIndex() {
+        BoundedHistory<Item> h = history(3);
+        for (String id : new String[]{"a", "b", "c", "d", "e"}) {
+            h.addNewest(new Item(id));
+        }
+        assertEquals(3, h.size());
+        assertEquals(Arrays.asList("e", "d", "c"), ids(h));
+        assertNull(h.get("a"));
+        assertFalse(h.contains("b"));
+        assertTrue(h.contains("c"));
+
+        // Вытесненный ID можно добавить снова
+        assertTrue(h.addNewest(new Item("a")));
+        assertEquals(Arrays.asList("a", "e", "d"), ids(h));
+        assertFalse(h.contains("c"));
+    }
+
+    @Test
+    public void addOldestAppendsUntilFull() {
+        BoundedHistory<Item> h = history(3);
+        h.addNewest(new Item("b"));
+        assertTrue(h.addOldest(new Item("a")));
+        assertTrue(h.addOldest(new Item("z")));
+        assertFalse(h.addOldest(new Item("y")));  // заполнена
+        assertEquals(Arrays.asList("b", "a", "z"), ids(h));
+
+        // Вытесняется добавленная последней в хвост
+        h.addNewest(new Item("c"));
+        assertEquals(Arrays.asList("c", "b", "a"), ids(h));
+    }
+
+    @Test
+    public void clearEmptiesRingAndIndex() {
+        BoundedHistory<Item> h = history(2);
+        h.addNewest(new Item("a"));
+        h.addNewest(new Item("b"));
+        h.clear();
+        assertTrue(h.isEmpty());
+        assertFalse(h.contains("a"));
+        assertFalse(h.iterator().hasNext());
+        h.addNewest(new Item("c"));
+        assertEquals(Arrays.asList("c"), ids(h));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void positionOutsideSizeThrows() {
+        BoundedHistory<Item> h = history(4);
+        h.addNewest(new Item("a"));
+        h.get(1);
+    }
+
+    @Test
+    public void modificationDuringIterationFails() {
+        BoundedHistory<Item> h = history(4);
+        h.addNewest(new Item("a"));
+        h.addNewest(new Item("b"));
+        Iterator<Item> it = h.iterator();
+        it.next();
+        h.addNewest(new Item("c"));
+        try {
+            it.next();
+            fail("expected ConcurrentModificationException");
+        } catch (ConcurrentModificationException expected) {
+            // ok
+        }
+    }
+
+    /**
+     * Добавление + поиск по ID не зависят от глубины (список был O(глубина))
+     */
+    @Test
+    public void addAndLookupBenchmark() {
+        int n = 200_000;
+        double[] nsPerOp = new double[2];
+        int[] depths = {10, 10_000};
+        for (int rep = 0; rep < 2; rep++) {
+            for (int d = 0; d < depths.length; d++) {
+                int depth = depths[d];
+                BoundedHistory<Item> h = history(depth);
+                long start = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    h.addNewest(new Item("id" + i));
+                    h.get("id" + (i - depth / 2));
+                }
+                nsPerOp[d] = (System.nanoTime() - start) / (double) n;
+                assertEquals(Math.min(n, depth), h.size());
+            }
+        }
+        System.out.printf("BoundedHistory add+get: depth %d %.0f ns/op, depth %d %.0f ns/op%n",
+                depths[0], nsPerOp[0], depths[1], nsPerOp[1]);
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.directtest.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Доставка broadcast по получателям: подтверждения, поздние получатели, покрытие
+ */
+public class BroadcastDeliveryTest {
+
+    @Test
+    public void acksAreCountedOncePerRecipient() {
+        BroadcastDelivery bd = new BroadcastDelivery("m", "x", 0, Arrays.asList("a", "b", "c"));
+        assertEquals(3, bd.recipientCount());
+        assertTrue(bd.markAcked("b"));
+        assertFalse(bd.markAcked("b"));
+        assertEquals(1, bd.ackedCount());
+        assertTrue(bd.isAcked("b"));
+        assertFalse(bd.isAcked("a"));
+        assertEquals(Arrays.asList("a", "c"), bd.unacked());
+    }
+
+    @Test
+    public void unknownAckerAndLateJoinerGrowRecipients() {
+        BroadcastDelivery bd = new BroadcastDelivery("m", "x", 0, Arrays.asList("a", "a"));
+        assertEquals(1, bd.recipientCount());
+        assertTrue(bd.markAcked("z"));
+        assertTrue(bd.addRecipient("late"));
+        assertFalse(bd.addRecipient("late"));
+        assertEquals(3, bd.recipientCount());
+        assertEquals(Arrays.asList("a", "late"), bd.unacked());
+    }
+
+    @Test
+    public void coverageNeedsRecipients() {
+        BroadcastDelivery empty = new BroadcastDelivery("m", "x", 0, Collections.emptyList());
+        assertFalse(empty.isCoverageMet(0.0));
+
+        BroadcastDelivery bd = new BroadcastDelivery("m", "x", 0, Arrays.asList("a", "b", "c", "d"));
+        bd.markAcked("a");
+        bd.markAcked("b");
+        assertFalse(bd.isCoverageMet(0.75));
+        bd.markAcked("c");
+        assertTrue(bd.isCoverageMet(0.75));
+        assertFalse(bd.isCoverageMet(1.0));
+        bd.markAcked("d");
+        assertTrue(bd.isCoverageMet(1.0));
+        // Поздний получатель снова открывает цель
+        bd.addRecipient("e");
+        assertFalse(bd.isCoverageMet(1.0));
+    }
+
+    // ==================== СИМУЛЯЦИЯ ====================
+
+    private static final int N = 15;
+
+    /**
+     * 15 узлов: 12 на связи при отправке (два со слабой связью), 3 подключаются
+     * на 45, 75 и 150 с. Тики по 1 с. Прежняя схема освобождает слот по первому ACK.
+     */
+    @Test
+    public void perRecipientTrackingReachesEveryone() {
+        double[] firstAck = simulate(false);
+        double[] perRecipient = simulate(true);
+        System.out.printf(Locale.US, "first-ACK:     delivered %.2f/15, late %.2f/3, slot busy %.1fs%n",
+                firstAck[0], firstAck[1], firstAck[2]);
+        System.out.printf(Locale.US, "per-recipient: delivered %.2f/15, late %.2f/3, slot busy %.1fs%n",
+                perRecipient[0], perRecipient[1], perRecipient[2]);
+
+        assertTrue(firstAck[0] < 5);
+        assertTrue(perRecipient[0] > 14.9);
+        assertTrue(perRecipient[1] > 2.9);
+    }
+
+    /** @return {доставлено, доставлено поздним, секунд занят слот} в среднем за прогон */
+    private static double[] simulate(boolean perRecipient) {
+        Random rnd = new Random(5);
+        int runs = 300;
+        long delivered = 0;
+        long late = 0;
+        long slotSec = 0;
+        for (int run = 0; run < runs; run++) {
+            double[] pHear = new double[N];
+            int[] joinAt = new int[N];
+            for (int i = 0; i < N; i++) {
+                pHear[i] = i < 2 ? 1.0 / 20 : 1.0 / 6;
+                joinAt[i] = i == 12 ? 45 : i == 13 ? 75 : i == 14 ? 150 : 0;
+            }
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 12; i++) expected.add("n" + i);
+            BroadcastDelivery bd = new BroadcastDelivery("m", "x", 0, expected);
+            boolean[] got = new boolean[N];
+            int[] ackVisibleUntil = new int[N];
+            boolean live = true;
+            int liveSince = 0;
+            long lastResend = 0;
+            for (int t = 0; t < 300; t++) {
+                for (int i = 0; i < N; i++) {
+                    if (t < joinAt[i]) continue;
+                    if (perRecipient && t == joinAt[i] && joinAt[i] > 0) {
+                        bd.addRecipient("n" + i);
+                        if (!live && t * 1000L - lastResend >= 30_000) {
+                            live = true;
+                            liveSince = t;
+                            lastResend = t * 1000L;
+                        }
+                    }
+                    if (live && !got[i] && rnd.nextDouble() < pHear[i]) got[i] = true;
+                    if (got[i] && live) ackVisibleUntil[i] = t + 10;
+                    if (got[i] && t <= ackVisibleUntil[i] && rnd.nextDouble() < pHear[i]) {
+                        boolean fresh = bd.markAcked("n" + i);
+                        if (fresh && !perRecipient && live) live = false;
+                    }
+                }
+                if (live) slotSec++;
+                if (live && t - liveSince >= 60) live = false;
+                if (perRecipient && live && bd.isCoverageMet(1.0)) live = false;
+            }
+            for (int i = 0; i < N; i++) {
+                if (got[i]) delivered++;
+                if (got[i] && i >= 12) late++;
+            }
+        }
+        return new double[]{(double) delivered / runs, (double) late / runs, (double) slotSec / runs};
+    }
+}
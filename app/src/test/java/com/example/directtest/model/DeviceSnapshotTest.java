@@ -0,0 +1,222 @@
+package com.example.directtest.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Снимки устройств: isCurrent, переиспользование неизменившихся частей, стоимость публикации
+ */
+public class DeviceSnapshotTest {
+
+    private static DiscoveredDevice device(int i, int history) {
+        DiscoveredDevice d = new DiscoveredDevice();
+        d.address = String.format("02:00:00:00:%02x:%02x", i / 256, i % 256);
+        d.deviceId = String.format("%08x", 0x10000000 + i) + "0000";
+        d.name = "Device " + i;
+        d.hasOurApp = true;
+        d.sessionId = "s" + i;
+        d.firstSeen = 1_000 + i;
+        d.lastSeen = 2_000 + i;
+        for (int k = 0; k < history; k++) {
+            d.addSentMessage(d.deviceId + "_out_" + k, "out " + k, k % 3);
+            d.addReceivedMessage(d.deviceId + "_in_" + k, "in " + k);
+        }
+        return d;
+    }
+
+    @Test
+    public void snapshotTracksEveryPublishedField() {
+        DiscoveredDevice d = device(1, 3);
+        DeviceSnapshot s = DeviceSnapshot.of(d, null, 1);
+        assertTrue(s.isCurrent(d));
+
+        d.lastSeen++;
+        assertFalse(s.isCurrent(d));
+        s = DeviceSnapshot.of(d, s, 2);
+        assertTrue(s.isCurrent(d));
+
+        d.currentVisibleMsgIds.add(d.deviceId + "_in_0");
+        assertFalse(s.isCurrent(d));
+        s = DeviceSnapshot.of(d, s, 3);
+
+        d.link.onRecord(5_000);
+        assertFalse(s.isCurrent(d));
+        s = DeviceSnapshot.of(d, s, 4);
+
+        d.latency.recordAckRtt(1_200);
+        assertFalse(s.isCurrent(d));
+        s = DeviceSnapshot.of(d, s, 5);
+
+        d.markReceivedMessageAckSent(d.deviceId + "_in_1");
+        assertFalse(s.isCurrent(d));
+        assertEquals(5, s.version);
+    }
+
+    @Test
+    public void unchangedHistoryReusesLists() {
+        DiscoveredDevice d = device(1, 5);
+        d.currentVisibleMsgIds.add(d.deviceId + "_in_4");
+        DeviceSnapshot first = DeviceSnapshot.of(d, null, 1);
+
+        d.lastSeen += 1_000;
+        d.seenCount++;
+        DeviceSnapshot second = DeviceSnapshot.of(d, first, 2);
+        assertSame(first.sentMessages, second.sentMessages);
+        assertSame(first.receivedMessages, second.receivedMessages);
+        assertSame(first.visibleMsgIds, second.visibleMsgIds);
+        assertSame(first.pendingAckIds, second.pendingAckIds);
+        assertSame(first.latencySummary, second.latencySummary);
+        assertEquals(d.lastSeen, second.lastSeen);
+    }
+
+    @Test
+    public void changedHistoryCopiesOnlyTheHead() {
+        int cap = Math.min(DeviceSnapshot.SNAPSHOT_HISTORY, DiscoveredDevice.MAX_MESSAGES_HISTORY);
+        DiscoveredDevice d = device(1, DeviceSnapshot.SNAPSHOT_HISTORY + 10);
+        DeviceSnapshot first = DeviceSnapshot.of(d, null, 1);
+        assertEquals(cap, first.sentMessages.size());
+        assertEquals(cap, first.receivedMessages.size());
+
+        d.addSentMessage("new", "newest", 0);
+        DeviceSnapshot second = DeviceSnapshot.of(d, first, 2);
+        assertNotSame(first.sentMessages, second.sentMessages);
+        assertEquals("new", second.sentMessages.get(0).messageId);
+        assertEquals(cap, second.sentMessages.size());
+        // Старый снимок не видит изменения
+        assertFalse("new".equals(first.sentMessages.get(0).messageId));
+    }
+
+    @Test
+    public void snapshotIsDetachedFromDevice() {
+        DiscoveredDevice d = device(1, 2);
+        String id = d.deviceId + "_out_1";
+        DeviceSnapshot s = DeviceSnapshot.of(d, null, 1);
+        d.markSentMessageAcked(id, Collections.singletonList("other"));
+
+        assertFalse(s.sentMessages.get(0).acknowledged);
+        assertEquals(2, s.getPendingSentMessagesCount());
+        try {
+            s.sentMessages.clear();
+            assertTrue("snapshot list must be unmodifiable", false);
+        } catch (UnsupportedOperationException expected) {
+            // ok
+        }
+
+        DeviceSnapshot next = DeviceSnapshot.of(d, s, 2);
+        assertTrue(next.sentMessages.get(0).acknowledged);
+        assertEquals("other", next.sentMessages.get(0).ackBatch);
+    }
+
+    @Test
+    public void pendingAcksFollowVisibilityAndConfirmation() {
+        DiscoveredDevice d = device(1, 3);
+        String a = d.deviceId + "_in_1";
+        String b = d.deviceId + "_in_2";
+        d.currentVisibleMsgIds.add(a);
+        DeviceSnapshot first = DeviceSnapshot.of(d, null, 1);
+        assertEquals(Collections.singletonList(a), first.pendingAckIds);
+
+        d.currentVisibleMsgIds.add(b);
+        DeviceSnapshot second = DeviceSnapshot.of(d, first, 2);
+        assertNotSame(first.pendingAckIds, second.pendingAckIds);
+        assertEquals(2, second.pendingAckIds.size());
+
+        d.markReceivedMessageAckConfirmed(a);
+        DeviceSnapshot third = DeviceSnapshot.of(d, second, 3);
+        assertEquals(Collections.singletonList(b), third.pendingAckIds);
+    }
+
+    // ==================== БЕНЧМАРК ====================
+
+    /**
+     * 200 устройств по 10+10 сообщений, за проход меняется одно устройство:
+     * его lastSeen (без истории) или новое сообщение. Публикация как в
+     * FastDiscoveryManager.publishSnapshots - против пересборки всех снимков.
+     */
+    @Test
+    public void publishCostAt200Devices() {
+        int n = 200;
+        List<DiscoveredDevice> devices = new ArrayList<>();
+        for (int i = 0; i < n; i++) devices.add(device(i, 10));
+
+        Map<String, DeviceSnapshot> index = new HashMap<>();
+        publish(devices, index, 0, true);
+
+        int passes = 20_000;
+        long version = 1;
+        long mutationNs = 0;
+        long incrementalNs = 0;
+        int rebuilt = 0;
+        for (int warm = 0; warm < 2; warm++) {
+            mutationNs = 0;
+            incrementalNs = 0;
+            rebuilt = 0;
+            for (int p = 0; p < passes; p++) {
+                DiscoveredDevice d = devices.get(p % n);
+                long t0 = System.nanoTime();
+                if (p % 4 == 0) {
+                    d.addReceivedMessage(d.deviceId + "_x_" + warm + "_" + p, "text");
+                } else {
+                    d.lastSeen++;
+                }
+                long t1 = System.nanoTime();
+                rebuilt += publish(devices, index, ++version, true);
+                incrementalNs += System.nanoTime() - t1;
+                mutationNs += t1 - t0;
+            }
+        }
+        // Каждый проход пересобирает ровно один снимок
+        assertEquals(passes, rebuilt);
+
+        long fullNs = 0;
+        int fullPasses = 2_000;
+        for (int p = 0; p < fullPasses; p++) {
+            devices.get(p % n).lastSeen++;
+            long t0 = System.nanoTime();
+            publish(devices, index, ++version, false);
+            fullNs += System.nanoTime() - t0;
+        }
+
+        double mutationUs = mutationNs / 1e3 / passes;
+        double incrementalUs = incrementalNs / 1e3 / passes;
+        double fullUs = fullNs / 1e3 / fullPasses;
+        System.out.printf("DeviceSnapshot, %d devices: mutation %.2f us, publish %.1f us, full rebuild %.1f us%n",
+                n, mutationUs, incrementalUs, fullUs);
+        assertTrue(incrementalUs * 3 < fullUs);
+    }
+
+    /** @return сколько снимков пересобрано */
+    private static int publish(List<DiscoveredDevice> devices, Map<String, DeviceSnapshot> index,
+                               long version, boolean reuse) {
+        int rebuilt = 0;
+        List<DeviceSnapshot> list = new ArrayList<>(devices.size());
+        for (DiscoveredDevice d : devices) {
+            DeviceSnapshot prev = index.get(d.address);
+            DeviceSnapshot snap;
+            if (reuse && prev != null && prev.isCurrent(d)) {
+                snap = prev;
+            } else {
+                snap = DeviceSnapshot.of(d, reuse ? prev : null, version);
+                rebuilt++;
+            }
+            index.put(d.address, snap);
+            list.add(snap);
+        }
+        Collections.sort(list, (a, b) -> {
+            int c = Long.compare(a.firstSeen, b.firstSeen);
+            return c != 0 ? c : a.address.compareTo(b.address);
+        });
+        return rebuilt;
+    }
+}
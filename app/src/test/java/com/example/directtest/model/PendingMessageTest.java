@@ -0,0 +1,32 @@
+package com.example.directtest.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Лимит неподтверждённых: broadcast и личные считаются раздельно, переотправки не считаются
+ */
+public class PendingMessageTest {
+
+    @Test
+    public void countToSeparatesBroadcastFromUnicast() {
+        PendingMessage resend = new PendingMessage("a3", "", "a", 1);
+        resend.isResend = true;
+        List<PendingMessage> pending = Arrays.asList(
+                new PendingMessage("a1", "", "a", 0),
+                new PendingMessage("a2", "", "a", 3),
+                resend,
+                new PendingMessage("b1", "", "b", 2),
+                new PendingMessage("all1", "", null, 0),
+                new PendingMessage("all2", "", null, 1));
+
+        assertEquals(2, PendingMessage.countTo(pending, "a"));
+        assertEquals(1, PendingMessage.countTo(pending, "b"));
+        assertEquals(2, PendingMessage.countTo(pending, null));
+        assertEquals(0, PendingMessage.countTo(pending, "c"));
+    }
+}
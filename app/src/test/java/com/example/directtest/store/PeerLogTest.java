@@ -0,0 +1,232 @@
+package com.example.directtest.store;
+
+import com.example.directtest.P2pConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Журнал пира: дозапись, ACK на месте, восстановление после обрыва записи,
+ * компакция со стабильными seq
+ */
+public class PeerLogTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private PeerLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.newFolder("store");
+        log = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        log.close();
+    }
+
+    private PeerLog open() throws IOException {
+        PeerLog peerLog = new PeerLog("peer", dir, "peer");
+        peerLog.open();
+        return peerLog;
+    }
+
+    private PeerLog reopen() throws IOException {
+        log.close();
+        log = open();
+        return log;
+    }
+
+    private void appendAll(int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            assertEquals(i, log.append("m" + i, "text " + i, 1000 + i, i % 2 == 0));
+        }
+    }
+
+    private String[] ids(StoredMessage[] messages) {
+        String[] ids = new String[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            ids[i] = messages[i].messageId;
+        }
+        return ids;
+    }
+
+    @Test
+    public void appendAndReadRoundTrip() throws IOException {
+        appendAll(0, 3);
+        StoredMessage[] page = log.read(0, 3);
+        assertArrayEquals(new String[]{"m0", "m1", "m2"}, ids(page));
+        assertEquals("text 1", page[1].text);
+        assertEquals(1001, page[1].timestamp);
+        assertTrue(page[0].outgoing);
+        assertFalse(page[1].outgoing);
+        assertEquals(1, page[1].seq);
+    }
+
+    @Test
+    public void multiByteTextSurvivesReopen() throws IOException {
+        log.append("u", "Привет, 世界 😀", 1, false);
+        assertEquals("Привет, 世界 😀", reopen().read(0, 1)[0].text);
+    }
+
+    @Test
+    public void duplicateIdIsNotAppended() throws IOException {
+        appendAll(0, 2);
+        assertEquals(-1, log.append("m1", "again", 5, false));
+        assertEquals(2, log.size());
+    }
+
+    @Test
+    public void ackIsWrittenInPlaceAndPersisted() throws IOException {
+        appendAll(0, 3);
+        assertEquals(1, log.markAcked("m1", 777));
+        assertEquals(-1, log.markAcked("m1", 888));
+        assertEquals(-1, log.markAcked("unknown", 888));
+
+        StoredMessage m = reopen().read(1, 1)[0];
+        assertTrue(m.acked);
+        assertEquals(777, m.ackTime);
+        assertFalse(log.read(0, 1)[0].acked);
+    }
+
+    @Test
+    public void reopenKeepsDuplicateDetection() throws IOException {
+        appendAll(0, 2);
+        assertEquals(-1, reopen().append("m0", "dup", 1, false));
+        assertEquals(2, log.append("m2", "next", 1, false));
+    }
+
+    @Test
+    public void segmentTruncatedMidRecordDropsOnlyThatRecord() throws IOException {
+        appendAll(0, 3);
+        log.close();
+        File seg = new File(dir, "peer.0.seg");
+        try (RandomAccessFile f = new RandomAccessFile(seg, "rw")) {
+            f.setLength(f.length() - 3);  // Обрыв при записи последнего сообщения
+        }
+        log = open();
+
+        assertEquals(2, log.size());
+        assertArrayEquals(new String[]{"m0", "m1"}, ids(log.read(0, 2)));
+        assertEquals(2, log.append("m2", "retry", 1, false));
+        assertEquals("retry", reopen().read(2, 1)[0].text);
+    }
+
+    @Test
+    public void partialIndexEntryIsDropped() throws IOException {
+        appendAll(0, 2);
+        log.close();
+        try (RandomAccessFile f = new RandomAccessFile(new File(dir, "peer.idx"), "rw")) {
+            f.setLength(f.length() + 7);  // Обрыв посреди записи индекса
+        }
+        log = open();
+        assertEquals(2, log.size());
+        assertEquals(2, log.append("m2", "x", 1, false));
+    }
+
+    @Test
+    public void corruptHeaderStartsEmptyLog() throws IOException {
+        appendAll(0, 2);
+        log.close();
+        try (RandomAccessFile f = new RandomAccessFile(new File(dir, "peer.idx"), "rw")) {
+            f.writeInt(0);
+        }
+        log = open();
+        assertEquals(0, log.size());
+        assertEquals(0, log.append("n0", "fresh", 1, false));
+    }
+
+    @Test
+    public void compactionKeepsSeqStable() throws IOException {
+        appendAll(0, 10);
+        log.markAcked("m8", 42);
+        assertEquals(6, log.compact(4));
+
+        assertEquals(6, log.firstSeq());
+        assertEquals(10, log.endSeq());
+        StoredMessage[] kept = log.read(6, 4);
+        assertArrayEquals(new String[]{"m6", "m7", "m8", "m9"}, ids(kept));
+        assertEquals(8, kept[2].seq);
+        assertTrue(kept[2].acked);
+        assertEquals(10, log.append("m10", "after", 1, false));
+
+        // Поколение 1 после переоткрытия, старый сегмент удалён
+        reopen();
+        assertEquals(6, log.firstSeq());
+        assertEquals("m10", log.read(10, 1)[0].messageId);
+        assertFalse(new File(dir, "peer.0.seg").exists());
+        assertTrue(new File(dir, "peer.1.seg").exists());
+        assertEquals(0, log.compact(100));
+    }
+
+    @Test
+    public void clearContinuesSeq() throws IOException {
+        appendAll(0, 3);
+        log.clear();
+        assertEquals(0, log.size());
+        assertEquals(3, log.firstSeq());
+        assertEquals(3, log.append("m0", "ID снова свободен", 1, false));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readOutsideRangeThrows() throws IOException {
+        appendAll(0, 2);
+        log.read(1, 2);
+    }
+
+    /**
+     * Дозапись и загрузка страницы не зависят от длины переписки: журнал заполняется до
+     * порога компакции (STORE_MAX_MESSAGES_PER_PEER + 25%) и сжимается до предела
+     */
+    @Test
+    public void appendAndPageBenchmark() throws IOException {
+        int n = P2pConfig.STORE_MAX_MESSAGES_PER_PEER;
+        int total = n + n / 4;
+        long[] appendNs = new long[2];
+        for (int i = 0; i < total; i++) {
+            long t0 = System.nanoTime();
+            log.append("b" + i, "message number " + i, i, false);
+            // Первые и последние 10 000 дозаписей
+            if (i < 10_000) appendNs[0] += System.nanoTime() - t0;
+            else if (i >= total - 10_000) appendNs[1] += System.nanoTime() - t0;
+        }
+        double firstUs = appendNs[0] / 1000.0 / 10_000;
+        double lastUs = appendNs[1] / 1000.0 / 10_000;
+
+        int pages = 2_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < pages; i++) {
+            log.read((i * 7919L) % (total - 50), 50);
+        }
+        double pageUs = (System.nanoTime() - start) / 1000.0 / pages;
+        long diskKb = log.diskBytes() / 1024;
+
+        start = System.nanoTime();
+        assertEquals(total - n, log.compact(n));
+        double compactMs = (System.nanoTime() - start) / 1e6;
+        System.out.printf("PeerLog: append %.1f us (first 10k) / %.1f us (last 10k), page of 50 %.1f us, "
+                        + "compact %d -> %d in %.0f ms (%d KB)%n",
+                firstUs, lastUs, pageUs, total, n, compactMs, diskKb);
+        assertEquals(n, log.size());
+        assertEquals(total - n, log.firstSeq());
+        assertEquals(total, log.endSeq());
+        assertEquals("b" + (total - 1), log.read(total - 1, 1)[0].messageId);
+        // Рост журнала не замедляет дозапись
+        assertTrue(lastUs < firstUs * 3 + 5);
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Окно приёма по темпу обнаружения: расчёт, объявление "w" и его учёт отправителем
+ */
+public class FlowWindowTest {
+
+    private static final int SLOTS = 3;
+
+    private static FlowWindow window() {
+        return new FlowWindow(15_000, 1_500, 60_000, 60_000, SLOTS);
+    }
+
+    @Test
+    public void slowDiscoveryShrinksWindow() {
+        FlowWindow fw = window();
+        assertFalse(fw.onArrival("S", 0));
+        assertEquals(SLOTS, fw.localWindow("S"));
+
+        // Записи одного цикла обнаружения не считаются интервалом
+        assertFalse(fw.onArrival("S", 400));
+        assertFalse(fw.onArrival("S", 800));
+        assertEquals(SLOTS, fw.localWindow("S"));
+
+        assertTrue(fw.onArrival("S", 20_000));
+        assertEquals(1, fw.localWindow("S"));
+        assertEquals("S:1", fw.encode(Collections.singletonList("S"), 100));
+    }
+
+    @Test
+    public void fastDiscoveryRestoresWindow() {
+        FlowWindow fw = window();
+        fw.onArrival("S", 0);
+        fw.onArrival("S", 20_000);
+        long t = 20_000;
+        for (int i = 0; i < 30; i++) {
+            t += 4_000;
+            fw.onArrival("S", t);
+        }
+        assertEquals(SLOTS, fw.localWindow("S"));
+        // Окно по умолчанию не публикуется
+        assertEquals("", fw.encode(Collections.singletonList("S"), 100));
+    }
+
+    @Test
+    public void longSilenceIsNotAnInterval() {
+        FlowWindow fw = window();
+        fw.onArrival("S", 0);
+        assertFalse(fw.onArrival("S", 120_000));
+        assertEquals(SLOTS, fw.localWindow("S"));
+
+        fw.prune(120_000 + 60_001);
+        assertEquals(SLOTS, fw.localWindow("S"));
+    }
+
+    @Test
+    public void encodeRespectsLengthLimit() {
+        FlowWindow fw = window();
+        for (String id : Arrays.asList("aaaa1111", "bbbb2222", "cccc3333")) {
+            fw.onArrival(id, 0);
+            fw.onArrival(id, 30_000);
+        }
+        String w = fw.encode(Arrays.asList("aaaa1111", "bbbb2222", "cccc3333"), 25);
+        assertEquals("aaaa1111:1,bbbb2222:1", w);
+    }
+
+    @Test
+    public void senderUsesAdvertisedWindowUntilTtl() {
+        FlowWindow fw = window();
+        assertEquals(SLOTS, fw.windowFor("r", 0));
+
+        assertFalse(fw.onAdvertisement("r", "other:2,me:1", "me", 1_000));
+        assertEquals(1, fw.windowFor("r", 1_000));
+
+        // Нет записи для нас - окно по умолчанию, и оно увеличилось
+        assertTrue(fw.onAdvertisement("r", "other:2", "me", 2_000));
+        assertEquals(SLOTS, fw.windowFor("r", 2_000));
+
+        fw.onAdvertisement("r", "me:0", "me", 3_000);
+        assertEquals(1, fw.windowFor("r", 3_000));
+        fw.onAdvertisement("r", "me:x", "me", 4_000);
+        assertEquals(SLOTS, fw.windowFor("r", 4_000));
+
+        fw.onAdvertisement("r", "me:2", "me", 5_000);
+        assertEquals(2, fw.windowFor("r", 65_000));
+        assertEquals(SLOTS, fw.windowFor("r", 65_001));
+    }
+
+    // ==================== СИМУЛЯЦИЯ ====================
+
+    /**
+     * Отправитель с 3 слотами пишет получателям по кругу. Получатель с циклом
+     * обнаружения cycle видит за цикл не больше budget слотов. Слот без ACK
+     * продлевается один раз через 30 с и снимается ещё через 30 с (впустую).
+     */
+    @Test
+    public void advertisedWindowCutsWastedRegistrations() {
+        System.out.println("receivers       mode     msg/min  regs  wasted");
+        double[][] cycles = {{5, 20}, {20}};
+        int[][] budgets = {{3, 1}, {1}};
+        for (int c = 0; c < cycles.length; c++) {
+            double[] fixed = average(false, cycles[c], budgets[c]);
+            double[] advert = average(true, cycles[c], budgets[c]);
+            print(cycles[c], "fixed=3", fixed);
+            print(cycles[c], "advert", advert);
+
+            assertTrue(advert[0] >= fixed[0] * 0.95);
+            assertTrue(advert[2] / advert[1] < 0.05);
+            assertTrue(advert[2] / advert[1] < fixed[2] / fixed[1] / 3);
+        }
+    }
+
+    private static void print(double[] cycles, String mode, double[] r) {
+        System.out.printf(Locale.US, "%-15s %-8s %6.2f  %5.0f  %5.1f%%%n",
+                Arrays.toString(cycles), mode, r[0], r[1], 100 * r[2] / r[1]);
+    }
+
+    /** @return {доставлено в минуту, регистраций, снятых впустую} в среднем */
+    private static double[] average(boolean adaptive, double[] cycles, int[] budgets) {
+        int trials = 5;
+        double[] sum = new double[3];
+        for (int k = 0; k < trials; k++) {
+            double[] r = run(adaptive, cycles, budgets, 100 + k);
+            for (int i = 0; i < 3; i++) sum[i] += r[i] / trials;
+        }
+        return sum;
+    }
+
+    private static final class Slot {
+        int target;
+        long msg;
+        double regAt;
+        boolean extended;
+    }
+
+    private static final class Receiver {
+        double cycle;
+        int budget;
+        double nextCycle;
+        final Set<Long> acked = new HashSet<>();
+        final FlowWindow fw = window();
+    }
+
+    private static double[] run(boolean adaptive, double[] cycles, int[] budgets, long seed) {
+        Random rnd = new Random(seed);
+        int n = cycles.length;
+        Receiver[] rx = new Receiver[n];
+        for (int i = 0; i < n; i++) {
+            rx[i] = new Receiver();
+            rx[i].cycle = cycles[i];
+            rx[i].budget = budgets[i];
+            rx[i].nextCycle = rnd.nextDouble() * cycles[i];
+        }
+        FlowWindow sender = window();
+        Slot[] slots = new Slot[SLOTS];
+        long[] nextMsg = new long[n];
+        Deque<long[]> retry = new ArrayDeque<>();
+        int delivered = 0;
+        int regs = 0;
+        int wasted = 0;
+        double senderNext = rnd.nextDouble() * 5;
+        int rr = 0;
+        double duration = 3_600;
+        for (double t = 0; t < duration; t += 0.1) {
+            long now = (long) (t * 1000);
+            for (int s = 0; s < SLOTS; s++) {
+                if (slots[s] != null) continue;
+                for (int k = 0; k < n; k++) {
+                    int target = (rr + k) % n;
+                    int inFlight = 0;
+                    for (Slot o : slots) if (o != null && o.target == target) inFlight++;
+                    int w = adaptive ? sender.windowFor("r" + target, now) : SLOTS;
+                    if (inFlight >= w) continue;
+                    Slot sl = new Slot();
+                    sl.target = target;
+                    sl.regAt = t;
+                    long[] again = null;
+                    for (long[] x : retry) if (x[0] == target) { again = x; break; }
+                    if (again != null) {
+                        retry.remove(again);
+                        sl.msg = again[1];
+                    } else {
+                        sl.msg = target * 1_000_000L + nextMsg[target]++;
+                    }
+                    slots[s] = sl;
+                    regs++;
+                    rr = target + 1;
+                    break;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                Receiver r = rx[i];
+                if (t < r.nextCycle) continue;
+                r.nextCycle = t + r.cycle * (0.8 + 0.4 * rnd.nextDouble());
+                int busy = 0;
+                for (Slot o : slots) if (o != null) busy++;
+                double p = busy == 0 ? 1 : Math.min(1.0, (double) r.budget / busy);
+                long arrival = now;
+                r.fw.onArrival("S", arrival);
+                for (Slot o : slots) {
+                    if (o == null || t - o.regAt < 1.0 || rnd.nextDouble() >= p) continue;
+                    arrival += 200;
+                    r.fw.onArrival("S", arrival);
+                    if (o.target == i) r.acked.add(o.msg);
+                }
+            }
+            if (t >= senderNext) {
+                senderNext = t + 5 * (0.8 + 0.4 * rnd.nextDouble());
+                for (int i = 0; i < n; i++) {
+                    if (rnd.nextDouble() >= 0.9) continue;
+                    int lw = rx[i].fw.localWindow("S");
+                    sender.onAdvertisement("r" + i, lw < SLOTS ? "self:" + lw : null, "self", now);
+                    for (int s = 0; s < SLOTS; s++) {
+                        Slot o = slots[s];
+                        if (o != null && o.target == i && rx[i].acked.contains(o.msg)) {
+                            delivered++;
+                            slots[s] = null;
+                        }
+                    }
+                }
+            }
+            for (int s = 0; s < SLOTS; s++) {
+                Slot o = slots[s];
+                if (o == null || t - o.regAt < 30) continue;
+                if (!o.extended) {
+                    o.extended = true;
+                    o.regAt = t;
+                    continue;
+                }
+                wasted++;
+                slots[s] = null;
+                if (rx[o.target].acked.contains(o.msg)) delivered++;
+                else retry.add(new long[]{o.target, o.msg});
+            }
+        }
+        return new double[]{delivered * 60.0 / duration, regs, wasted};
+    }
+}
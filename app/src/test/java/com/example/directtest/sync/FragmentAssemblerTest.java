@@ -0,0 +1,99 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Сборка сообщения из фрагментов: дубликаты, смена k/n, вытеснение и TTL
+ */
+public class FragmentAssemblerTest {
+
+    private static final String TEXT = "Длинное сообщение, которое не помещается в один слот: "
+            + "его байты UTF-8 делятся на фрагменты, к ним добавляется чётность.";
+
+    private static FragmentAssembler assembler() {
+        return new FragmentAssembler(2, 60_000);
+    }
+
+    @Test
+    public void parityReplacesLostDataFragment() {
+        List<FragmentCodec.Fragment> f = FragmentCodec.encode("m", TEXT, 72, 2);
+        int k = FragmentCodec.parse(f.get(0).id).dataCount;
+        assertTrue(k >= 2);
+        FragmentAssembler a = assembler();
+        String out = null;
+        for (int i = f.size() - 1; i >= f.size() - k; i--) {
+            assertNull(out);
+            out = a.offer(f.get(i).id, f.get(i).payload, 0);
+        }
+        assertEquals(TEXT, out);
+        assertEquals(0, a.size());
+        assertEquals(0, a.receivedCount("m"));
+    }
+
+    @Test
+    public void duplicateFragmentIsNotCounted() {
+        List<FragmentCodec.Fragment> f = FragmentCodec.encode("m", TEXT, 72, 1);
+        FragmentAssembler a = assembler();
+        assertNull(a.offer(f.get(0).id, f.get(0).payload, 0));
+        assertNull(a.offer(f.get(0).id, f.get(0).payload, 1));
+        assertEquals(1, a.receivedCount("m"));
+
+        String out = null;
+        for (int i = 1; out == null && i < f.size(); i++) {
+            out = a.offer(f.get(i).id, f.get(i).payload, 2);
+        }
+        assertEquals(TEXT, out);
+    }
+
+    @Test
+    public void mismatchedCountsRestartAssembly() {
+        List<FragmentCodec.Fragment> one = FragmentCodec.encode("m", TEXT, 72, 1);
+        List<FragmentCodec.Fragment> two = FragmentCodec.encode("m", TEXT, 72, 2);
+        FragmentAssembler a = assembler();
+        a.offer(one.get(0).id, one.get(0).payload, 0);
+        a.offer(one.get(1).id, one.get(1).payload, 0);
+
+        // Переотправлено с другой чётностью: фрагменты с прежним n не смешиваются
+        assertNull(a.offer(two.get(0).id, two.get(0).payload, 1));
+        assertEquals(1, a.receivedCount("m"));
+        String out = null;
+        for (int i = 1; out == null && i < two.size(); i++) {
+            out = a.offer(two.get(i).id, two.get(i).payload, 2);
+        }
+        assertEquals(TEXT, out);
+    }
+
+    @Test
+    public void malformedFragmentIsIgnored() {
+        FragmentAssembler a = assembler();
+        assertNull(a.offer("m#0.2.3", "AAAA", 0));
+        assertNull(a.offer("m#0.2.3.10", "not base64!", 0));
+        assertEquals(0, a.size());
+    }
+
+    @Test
+    public void oldestAndStaleAssembliesAreDropped() {
+        FragmentAssembler a = assembler();
+        for (String id : new String[]{"a", "b", "c"}) {
+            FragmentCodec.Fragment f = FragmentCodec.encode(id, TEXT, 72, 1).get(0);
+            a.offer(f.id, f.payload, 0);
+        }
+        assertEquals(2, a.size());
+        assertEquals(0, a.receivedCount("a"));
+
+        FragmentCodec.Fragment f = FragmentCodec.encode("b", TEXT, 72, 1).get(1);
+        a.offer(f.id, f.payload, 50_000);
+        a.prune(60_001);
+        assertEquals(1, a.size());
+        assertEquals(2, a.receivedCount("b"));
+
+        a.clear();
+        assertEquals(0, a.size());
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Фрагменты Рида-Соломона: любые k из n восстанавливают сообщение
+ */
+public class FragmentCodecTest {
+
+    private static String randomText(Random rnd, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            int c = rnd.nextInt(12);
+            sb.append(c == 0 ? 'ж' : c == 1 ? '€' : (char) ('a' + rnd.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    private static byte[][] shards(List<FragmentCodec.Fragment> fragments) {
+        byte[][] shards = new byte[fragments.size()][];
+        for (int i = 0; i < fragments.size(); i++) {
+            shards[i] = FragmentCodec.decodePayload(fragments.get(i).payload);
+        }
+        return shards;
+    }
+
+    @Test
+    public void anyKOfNRestoreMessage() {
+        Random rnd = new Random(1);
+        for (int t = 0; t < 1_000; t++) {
+            String text = randomText(rnd, 1 + rnd.nextInt(300));
+            int parity = rnd.nextInt(5);
+            List<FragmentCodec.Fragment> fragments = FragmentCodec.encode("abc_1_" + t, text, 72, parity);
+            FragmentCodec.Header h = FragmentCodec.parse(fragments.get(0).id);
+            assertEquals(h.dataCount + parity, fragments.size());
+
+            byte[][] shards = shards(fragments);
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < shards.length; i++) order.add(i);
+            Collections.shuffle(order, rnd);
+            int erased = rnd.nextInt(parity + 1);
+            for (int i = 0; i < erased; i++) shards[order.get(i)] = null;
+
+            assertEquals(text, FragmentCodec.decode(shards, h.dataCount, h.length));
+        }
+    }
+
+    @Test
+    public void tooManyErasuresFail() {
+        List<FragmentCodec.Fragment> fragments = FragmentCodec.encode("m", randomText(new Random(2), 200), 72, 1);
+        FragmentCodec.Header h = FragmentCodec.parse(fragments.get(0).id);
+        byte[][] shards = shards(fragments);
+        shards[0] = null;
+        shards[2] = null;
+        assertNull(FragmentCodec.decode(shards, h.dataCount, h.length));
+    }
+
+    @Test
+    public void multiByteTextSplitsOnBytes() {
+        String text = "Привет, мир! 日本語 €€€ " + "ёжик ".repeat(20);
+        List<FragmentCodec.Fragment> fragments = FragmentCodec.encode("m", text, 72, 2);
+        FragmentCodec.Header h = FragmentCodec.parse(fragments.get(0).id);
+        assertEquals(text.getBytes(StandardCharsets.UTF_8).length, h.length);
+        for (FragmentCodec.Fragment f : fragments) {
+            assertTrue(FragmentCodec.decodePayload(f.payload).length <= 72);
+        }
+        byte[][] shards = shards(fragments);
+        shards[0] = null;
+        shards[1] = null;
+        assertEquals(text, FragmentCodec.decode(shards, h.dataCount, h.length));
+    }
+
+    @Test
+    public void emptyTextIsOneEmptyFragment() {
+        List<FragmentCodec.Fragment> fragments = FragmentCodec.encode("m", "", 72, 1);
+        assertEquals(2, fragments.size());
+        assertEquals("m#0.1.2.0", fragments.get(0).id);
+        assertEquals("", fragments.get(0).payload);
+        assertEquals("", FragmentCodec.decode(new byte[][]{null, new byte[0]}, 1, 0));
+    }
+
+    @Test
+    public void parseRejectsMalformedIds() {
+        FragmentCodec.Header h = FragmentCodec.parse("ab_1_2#3.2.5.140");
+        assertEquals("ab_1_2", h.baseId);
+        assertEquals(3, h.index);
+        assertEquals(2, h.dataCount);
+        assertEquals(5, h.totalCount);
+        assertEquals(140, h.length);
+
+        for (String id : Arrays.asList("ab_1_2", "#0.1.1.0", "m#0.1.1", "m#1.1.1.0", "m#0.2.1.0",
+                "m#0.0.1.0", "m#0.1.256.0", "m#0.1.1.-1", "m#x.1.1.0")) {
+            assertNull(id, FragmentCodec.parse(id));
+        }
+        assertNull(FragmentCodec.decodePayload("not base64!"));
+    }
+
+    @Test
+    public void idHelpers() {
+        assertTrue(FragmentCodec.isFragment("m#0.1.1.0"));
+        assertFalse(FragmentCodec.isFragment("m"));
+        assertFalse(FragmentCodec.isFragment("#0"));
+        assertFalse(FragmentCodec.isFragment(null));
+        assertEquals("m", FragmentCodec.baseId("m#0.1.1.0"));
+        assertEquals("m", FragmentCodec.baseId("m"));
+    }
+
+    @Test
+    public void parityGrowsWithLoss() {
+        assertEquals(1, FragmentCodec.parityFor(2, 0.05, 0.95, 4));
+        assertEquals(2, FragmentCodec.parityFor(2, 0.20, 0.95, 4));
+        assertEquals(4, FragmentCodec.parityFor(3, 0.30, 0.95, 4));
+        assertEquals(0, FragmentCodec.parityFor(2, 0.0, 0.95, 4));
+        assertEquals(4, FragmentCodec.parityFor(3, 0.9, 0.95, 4));
+    }
+
+    // ==================== СИМУЛЯЦИЯ ====================
+
+    /**
+     * Одно длинное сообщение из k фрагментов через 3 слота, фрагмент на слот.
+     * Запись теряется с вероятностью loss (устаревший кэш: не видна до перерегистрации
+     * через 30 с), иначе получатель видит её в свой цикл обнаружения (8 с +-25%).
+     * ACK доходит в цикл отправителя и освобождает слот для следующего фрагмента.
+     * Время - пока получатель не соберёт k разных фрагментов.
+     */
+    @Test
+    public void parityCutsDeliveryLatency() {
+        int runs = 2_000;
+        System.out.println("k loss   r | no FEC mean p95     | FEC mean p95");
+        for (int k : new int[]{2, 3}) {
+            for (double loss : new double[]{0.05, 0.10, 0.20, 0.30}) {
+                int r = FragmentCodec.parityFor(k, Math.max(0.05, loss), 0.95, 4);
+                double[] plain = new double[runs];
+                double[] fec = new double[runs];
+                Random rnd = new Random(7);
+                for (int i = 0; i < runs; i++) plain[i] = deliveryTime(k, 0, loss, rnd);
+                rnd = new Random(7);
+                for (int i = 0; i < runs; i++) fec[i] = deliveryTime(k, r, loss, rnd);
+                Arrays.sort(plain);
+                Arrays.sort(fec);
+                double p95Plain = plain[runs * 95 / 100];
+                double p95Fec = fec[runs * 95 / 100];
+                System.out.printf(Locale.US, "%d %3.0f%% %2d | %5.1fs %5.1fs | %5.1fs %5.1fs%n",
+                        k, loss * 100, r, mean(plain), p95Plain, mean(fec), p95Fec);
+
+                assertTrue(mean(fec) < mean(plain) * 0.7);
+                assertTrue(p95Fec < p95Plain * 0.5);
+            }
+        }
+    }
+
+    private static double mean(double[] x) {
+        double s = 0;
+        for (double v : x) s += v;
+        return s / x.length;
+    }
+
+    private static double deliveryTime(int k, int parity, double loss, Random rnd) {
+        double cycle = 8;
+        double rto = 30;
+        int n = k + parity;
+        int next = 0;
+        int[] slot = {-1, -1, -1};
+        boolean[] lost = new boolean[3];
+        double[] regAt = new double[3];
+        Set<Integer> seen = new HashSet<>();
+        Map<Integer, Double> ackAt = new HashMap<>();
+        double rxNext = rnd.nextDouble() * cycle;
+        double txNext = rnd.nextDouble() * cycle;
+        for (double t = 0; t < 600; t += 0.05) {
+            for (int s = 0; s < 3; s++) {
+                if (slot[s] < 0 && next < n) {
+                    slot[s] = next++;
+                    lost[s] = rnd.nextDouble() < loss;
+                    regAt[s] = t;
+                }
+            }
+            if (t >= rxNext) {
+                rxNext += cycle * (0.75 + 0.5 * rnd.nextDouble());
+                for (int s = 0; s < 3; s++) {
+                    if (slot[s] >= 0 && !lost[s] && seen.add(slot[s])) ackAt.put(slot[s], t);
+                }
+                if (seen.size() >= k) return t;
+            }
+            if (t >= txNext) {
+                txNext += cycle * (0.75 + 0.5 * rnd.nextDouble());
+                for (int s = 0; s < 3; s++) {
+                    if (slot[s] >= 0 && ackAt.containsKey(slot[s]) && ackAt.get(slot[s]) < t) slot[s] = -1;
+                }
+            }
+            for (int s = 0; s < 3; s++) {
+                if (slot[s] >= 0 && t - regAt[s] >= rto) {
+                    // Новых фрагментов нет - перерегистрируется застрявший
+                    regAt[s] = t;
+                    lost[s] = rnd.nextDouble() < loss;
+                }
+            }
+        }
+        return 600;
+    }
+}
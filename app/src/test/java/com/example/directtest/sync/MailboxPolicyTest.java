@@ -0,0 +1,63 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Раздача ящиков: свободный, иначе простаивающий дольше MAILBOX_IDLE по LRU
+ */
+public class MailboxPolicyTest {
+
+    private static final long IDLE = 30_000;
+
+    @Test
+    public void freeMailboxComesFirst() {
+        MailboxPolicy policy = new MailboxPolicy(3, IDLE);
+        assertEquals(0, policy.pick(new String[]{null, null, null}, new long[3], 0));
+        assertEquals(1, policy.pick(new String[]{"a", null, "c"}, new long[3], 100_000));
+    }
+
+    @Test
+    public void activeOwnersKeepTheirMailboxes() {
+        MailboxPolicy policy = new MailboxPolicy(2, IDLE);
+        String[] owners = {"a", "b"};
+        long[] publishedAt = {0, 0};
+        policy.touch("a", 10_000);
+        policy.touch("b", 20_000);
+        assertEquals(-1, policy.pick(owners, publishedAt, 39_999));
+        // Раньше всех простаивает a
+        assertEquals(0, policy.pick(owners, publishedAt, 40_000));
+
+        // ACK от a - теперь простаивает b
+        policy.touch("a", 45_000);
+        assertEquals(-1, policy.pick(owners, publishedAt, 49_999));
+        assertEquals(1, policy.pick(owners, publishedAt, 50_000));
+    }
+
+    @Test
+    public void publicationTimeStandsInForUnknownActivity() {
+        MailboxPolicy policy = new MailboxPolicy(2, IDLE);
+        String[] owners = {"a", "b"};
+        long[] publishedAt = {5_000, 1_000};
+        policy.touch("a", 2_000);
+        assertEquals(1, policy.pick(owners, publishedAt, 31_000));
+        assertEquals(1_000, policy.lastActive("b", 1_000));
+        assertEquals(2_000, policy.lastActive("a", 0));
+    }
+
+    @Test
+    public void activityIsRememberedForRecentPeersOnly() {
+        MailboxPolicy policy = new MailboxPolicy(2, IDLE);
+        policy.touch("old", 1_000);
+        for (int i = 0; i < 8; i++) {
+            policy.touch("p" + i, 2_000 + i);
+        }
+        // Помнятся 4 * capacity получателей
+        assertEquals(-1, policy.lastActive("old", -1));
+        assertEquals(2_000, policy.lastActive("p0", -1));
+
+        policy.clear();
+        assertEquals(-1, policy.lastActive("p7", -1));
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Окно приёма: граница, пропуски, сдвиг за WINDOW и формат отчёта "rx"
+ */
+public class ReceiveWindowTest {
+
+    @Test
+    public void inOrderAdvancesBoundary() {
+        ReceiveWindow w = new ReceiveWindow("s1");
+        for (long q = 1; q <= 5; q++) {
+            assertTrue(w.onReceived(q, 100));
+        }
+        assertEquals(5, w.hwm());
+        assertEquals(5, w.highest());
+        assertFalse(w.hasGaps());
+        assertEquals(0, w.gapOpenedAt());
+    }
+
+    @Test
+    public void gapIsTrackedUntilFilled() {
+        ReceiveWindow w = new ReceiveWindow("s1");
+        w.onReceived(1, 100);
+        w.onReceived(2, 100);
+        assertTrue(w.onReceived(5, 200));
+        assertTrue(w.onReceived(7, 300));
+
+        assertEquals(2, w.hwm());
+        assertEquals(7, w.highest());
+        assertTrue(w.hasGaps());
+        assertEquals(3, w.missingCount());
+        assertEquals(200, w.gapOpenedAt());
+        assertTrue(w.contains(2));
+        assertFalse(w.contains(3));
+        assertTrue(w.contains(5));
+        assertFalse(w.contains(8));
+
+        w.onReceived(3, 400);
+        w.onReceived(4, 400);
+        assertEquals(5, w.hwm());
+        w.onReceived(6, 500);
+        assertEquals(7, w.hwm());
+        assertFalse(w.hasGaps());
+        assertEquals(0, w.gapOpenedAt());
+    }
+
+    @Test
+    public void duplicatesAndOldNumbersAreIgnored() {
+        ReceiveWindow w = new ReceiveWindow("s1");
+        w.onReceived(1, 100);
+        w.onReceived(3, 100);
+        assertFalse(w.onReceived(1, 200));
+        assertFalse(w.onReceived(3, 200));
+        assertFalse(w.onReceived(0, 200));
+        assertEquals(100, w.updatedAt());
+    }
+
+    @Test
+    public void newWindowDoesNotAssumeEarlierNumbers() {
+        // q=1 потерян, первым пришёл q=2
+        ReceiveWindow w = new ReceiveWindow("s1");
+        assertTrue(w.onReceived(2, 100));
+        assertEquals(0, w.hwm());
+        assertEquals(2, w.highest());
+        assertFalse(w.contains(1));
+        assertTrue(w.hasGaps());
+        assertEquals(1, w.missingCount());
+
+        ReceiveWindow parsed = ReceiveWindow.parse(w.encode("a"), "a");
+        assertNotNull(parsed);
+        assertFalse(parsed.contains(1));
+        assertTrue(parsed.contains(2));
+
+        assertTrue(w.onReceived(1, 200));
+        assertEquals(2, w.hwm());
+        assertFalse(w.hasGaps());
+    }
+
+    @Test
+    public void numberBeyondWindowSlidesBoundary() {
+        ReceiveWindow w = new ReceiveWindow("s1");
+        w.onReceived(1, 100);
+        w.onReceived(3, 100);
+
+        long far = 1 + 1 + ReceiveWindow.WINDOW + 10;
+        assertTrue(w.onReceived(far, 200));
+        assertEquals(far, w.highest());
+        assertEquals(far - ReceiveWindow.WINDOW, w.hwm());
+        assertTrue(w.contains(far));
+        assertTrue(w.hasGaps());
+        // Пропущенная часть неизвестна - не подтверждается, в том числе пропуск 2
+        assertEquals(w.hwm(), w.base());
+        assertFalse(w.contains(2));
+        assertFalse(w.contains(w.hwm()));
+
+        // Окно продолжает работать за сдвинутой границей
+        for (long q = w.hwm() + 1; q < far; q++) {
+            w.onReceived(q, 300);
+        }
+        assertEquals(far, w.hwm());
+        assertFalse(w.hasGaps());
+        assertEquals(0, w.gapOpenedAt());
+    }
+
+    @Test
+    public void slideCollapsesReceivedRun() {
+        ReceiveWindow w = new ReceiveWindow("s1");
+        w.onReceived(1, 100);
+        for (long q = 3; q <= 10; q++) {
+            w.onReceived(q, 100);
+        }
+        // Сдвиг за пропуск 2: полученные 3..10 сразу входят в границу, 2 - неизвестен
+        w.onReceived(2 + ReceiveWindow.WINDOW, 200);
+        assertEquals(10, w.hwm());
+        assertEquals(2, w.base());
+        assertFalse(w.contains(2));
+        assertTrue(w.contains(3));
+        assertEquals(2 + ReceiveWindow.WINDOW, w.highest());
+    }
+
+    @Test
+    public void jumpFarBeyondWindowClearsBitmap() {
+        ReceiveWindow w = new ReceiveWindow("s1");
+        w.onReceived(1, 100);
+        w.onReceived(5, 100);
+        assertTrue(w.onReceived(10_000, 200));
+        assertEquals(10_000, w.highest());
+        assertEquals(10_000 - ReceiveWindow.WINDOW, w.hwm());
+        assertEquals(ReceiveWindow.WINDOW - 1, w.missingCount());
+    }
+
+    @Test
+    public void encodeParseRoundTrip() {
+        ReceiveWindow w = new ReceiveWindow("65f0a1b2");
+        w.onReceived(1, 100);
+        w.onReceived(2, 100);
+        w.onReceived(4, 100);
+        w.onReceived(66, 100);
+
+        String rx = w.encode("a1b2c3d4");
+        assertEquals("a1b2c3d4.65f0a1b2.2." + Long.toHexString((1L << 1) | (1L << 63)), rx);
+
+        ReceiveWindow parsed = ReceiveWindow.parse("ffff0000.s.9," + rx, "a1b2c3d4");
+        assertNotNull(parsed);
+        assertEquals("65f0a1b2", parsed.sessionId);
+        assertEquals(2, parsed.hwm());
+        assertEquals(66, parsed.highest());
+        assertTrue(parsed.contains(4));
+        assertFalse(parsed.contains(3));
+        assertEquals(w.missingCount(), parsed.missingCount());
+
+        ReceiveWindow plain = ReceiveWindow.parse("a1b2c3d4.s.7", "a1b2c3d4");
+        assertNotNull(plain);
+        assertEquals(7, plain.highest());
+        assertFalse(plain.hasGaps());
+    }
+
+    @Test
+    public void slidWindowReportsBase() {
+        ReceiveWindow w = new ReceiveWindow("s");
+        w.onReceived(1, 100);
+        long far = 2 + ReceiveWindow.WINDOW;
+        w.onReceived(far, 100);
+        // 2 вышел за сдвинутую границу - опоздавшая запись уже не отмечается
+        assertFalse(w.onReceived(2, 100));
+        for (long q = 3; q < far; q++) {
+            w.onReceived(q, 100);
+        }
+        assertFalse(w.hasGaps());
+        assertEquals("a.s." + far + ".0.2", w.encode("a"));
+
+        ReceiveWindow parsed = ReceiveWindow.parse(w.encode("a"), "a");
+        assertNotNull(parsed);
+        assertEquals(2, parsed.base());
+        assertFalse(parsed.contains(2));
+        assertTrue(parsed.contains(3));
+        assertTrue(parsed.contains(far));
+    }
+
+    @Test
+    public void parseRejectsMalformedEntries() {
+        assertNull(ReceiveWindow.parse(null, "a"));
+        assertNull(ReceiveWindow.parse("b.s.1", "a"));
+        assertNull(ReceiveWindow.parse("a.s", "a"));
+        assertNull(ReceiveWindow.parse("a.s.x", "a"));
+        assertNull(ReceiveWindow.parse("a.s.-1", "a"));
+        assertNull(ReceiveWindow.parse("a.s.1.zz", "a"));
+        assertNull(ReceiveWindow.parse("a.s.5.0.9", "a"));
+        assertNull(ReceiveWindow.parse("a.s.5.0.x", "a"));
+    }
+
+    @Test
+    public void parsedBitZeroIsIgnored() {
+        ReceiveWindow parsed = ReceiveWindow.parse("a.s.3.5", "a");
+        assertNotNull(parsed);
+        assertFalse(parsed.contains(4));
+        assertTrue(parsed.contains(6));
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Очередь переотправок: слияние, интервал, резерв слотов, обход пиров по кругу
+ */
+public class ResendSchedulerTest {
+
+    @Test
+    public void repeatedRequestIsMerged() {
+        ResendScheduler rs = new ResendScheduler(1_000, 2, 1);
+        assertTrue(rs.enqueue("p", "m1", "a", 0));
+        assertFalse(rs.enqueue("p", "m1", "a", 10));
+        assertEquals(1, rs.backlog());
+    }
+
+    @Test
+    public void pollRespectsIntervalAndSlots() {
+        ResendScheduler rs = new ResendScheduler(1_000, 2, 1);
+        rs.enqueue("p", "m1", "a", 0);
+        rs.enqueue("p", "m2", "b", 0);
+
+        // Последний свободный слот - новым сообщениям
+        assertNull(rs.poll(0, 1, 0));
+        // Лимит слотов под переотправки
+        assertNull(rs.poll(0, 3, 2));
+
+        assertEquals("m1", rs.poll(0, 3, 0).msgId);
+        assertNull(rs.poll(999, 3, 1));
+        assertEquals(1_000, rs.nextPollTime());
+        assertEquals("m2", rs.poll(1_000, 3, 1).msgId);
+        assertEquals(-1, rs.nextPollTime());
+    }
+
+    @Test
+    public void peersAreServedRoundRobin() {
+        ResendScheduler rs = new ResendScheduler(0, 3, 0);
+        rs.enqueue("a", "a1", "", 0);
+        rs.enqueue("a", "a2", "", 0);
+        rs.enqueue("a", "a3", "", 0);
+        rs.enqueue("b", "b1", "", 0);
+
+        List<String> order = new ArrayList<>();
+        ResendScheduler.Request r;
+        while ((r = rs.poll(0, 3, 0)) != null) {
+            order.add(r.msgId);
+        }
+        assertEquals(Arrays.asList("a1", "b1", "a2", "a3"), order);
+    }
+
+    @Test
+    public void cancelledRequestIsSkipped() {
+        ResendScheduler rs = new ResendScheduler(0, 3, 0);
+        rs.enqueue("p", "m1", "", 0);
+        rs.enqueue("p", "m2", "", 0);
+        rs.cancel("m1", 5);
+        assertFalse(rs.contains("m1"));
+        assertEquals("m2", rs.poll(10, 3, 0).msgId);
+        assertNull(rs.poll(10, 3, 0));
+    }
+
+    @Test
+    public void preemptedResendGoesFirst() {
+        ResendScheduler rs = new ResendScheduler(0, 3, 0);
+        rs.enqueue("p", "m2", "", 0);
+        rs.requeueFront("p", "m1", "", 5);
+        assertEquals("m1", rs.poll(10, 3, 0).msgId);
+        assertEquals("m2", rs.poll(10, 3, 0).msgId);
+    }
+
+    @Test
+    public void cancelPeerDropsItsQueue() {
+        ResendScheduler rs = new ResendScheduler(0, 3, 0);
+        rs.enqueue("a", "a1", "", 0);
+        rs.enqueue("b", "b1", "", 0);
+        rs.cancelPeer("a");
+        assertEquals(1, rs.backlog());
+        ResendScheduler.Request r = rs.poll(0, 3, 0);
+        assertNotNull(r);
+        assertEquals("b1", r.msgId);
+    }
+
+    // ==================== СИМУЛЯЦИЯ ====================
+
+    /**
+     * 3 слота; опубликованное сообщение подтверждается через U(3, 8) с с вероятностью 0.9,
+     * иначе слот живёт минуту. SYNC раз в минуту находит недоставленные; первые 2 минуты
+     * пользователь пишет каждые 4 с. Прежняя схема: первые SYNC_MAX_IDS из SYNC сразу
+     * в слот (свободный или самый старый).
+     */
+    @Test
+    public void pacedResendsDrainFasterAndKeepSlotsForLive() {
+        System.out.println("backlog  mode       drain   live failed");
+        for (int backlog : new int[]{10, 30}) {
+            long[] old = simulate(false, backlog);
+            long[] paced = simulate(true, backlog);
+            System.out.printf(Locale.US, "%7d  old        %4ds   %d/%d%n", backlog, old[0] / 1000, old[1], old[2]);
+            System.out.printf(Locale.US, "%7d  scheduler  %4ds   %d/%d%n", backlog, paced[0] / 1000, paced[1], paced[2]);
+            assertTrue(paced[0] < old[0]);
+            assertTrue(paced[1] < old[1]);
+        }
+    }
+
+    private static final int SLOTS = 3;
+    private static final long SLOT_LIFE = 60_000;
+    private static final long SYNC_EVERY = 60_000;
+    private static final long LIVE_EVERY = 4_000;
+    private static final long LIVE_UNTIL = 120_000;
+
+    private static final class Slot {
+        String id;
+        boolean resend;
+        long until;
+        long ackAt;
+    }
+
+    /** @return {среднее время разбора, неудачных живых, всего живых} */
+    private static long[] simulate(boolean paced, int backlog) {
+        int runs = 20;
+        long drain = 0;
+        long failed = 0;
+        long sent = 0;
+        for (int run = 0; run < runs; run++) {
+            Random rnd = new Random(run);
+            Slot[] slots = new Slot[SLOTS];
+            Set<String> missing = new LinkedHashSet<>();
+            for (int i = 0; i < backlog; i++) missing.add("m" + i);
+            ResendScheduler rs = new ResendScheduler(1_000, 2, 1);
+            long drainedAt = -1;
+
+            for (long t = 0; t < 3_600_000; t += 100) {
+                for (int i = 0; i < SLOTS; i++) {
+                    Slot s = slots[i];
+                    if (s == null) continue;
+                    if (s.ackAt > 0 && t >= s.ackAt) {
+                        missing.remove(s.id);
+                        rs.cancel(s.id, t);
+                        slots[i] = null;
+                    } else if (t >= s.until) {
+                        slots[i] = null;
+                    }
+                }
+                if (t % SYNC_EVERY == 0 && !missing.isEmpty()) {
+                    List<String> ids = new ArrayList<>(missing);
+                    if (!paced) ids = ids.subList(0, Math.min(3, ids.size()));
+                    for (String id : ids) {
+                        if (indexOf(slots, id) >= 0) continue;
+                        if (paced) {
+                            rs.enqueue("peer", id, "x", t);
+                        } else {
+                            int idx = -1;
+                            long oldest = Long.MAX_VALUE;
+                            for (int i = 0; i < SLOTS; i++) {
+                                if (slots[i] == null) { idx = i; break; }
+                                if (slots[i].until < oldest) { oldest = slots[i].until; idx = i; }
+                            }
+                            slots[idx] = publish(rnd, id, t, true);
+                        }
+                    }
+                }
+                if (paced) {
+                    ResendScheduler.Request r;
+                    while ((r = rs.poll(t, count(slots, false), count(slots, true))) != null) {
+                        slots[indexOf(slots, null)] = publish(rnd, r.msgId, t, true);
+                    }
+                }
+                if (t > 0 && t <= LIVE_UNTIL && t % LIVE_EVERY == 0) {
+                    String id = "live" + t;
+                    sent++;
+                    int idx = indexOf(slots, null);
+                    if (idx < 0 && paced) {
+                        long latest = -1;
+                        for (int i = 0; i < SLOTS; i++) {
+                            if (slots[i].resend && slots[i].until > latest) { latest = slots[i].until; idx = i; }
+                        }
+                        if (idx >= 0) rs.requeueFront("peer", slots[idx].id, "x", t);
+                    }
+                    if (idx < 0) {
+                        failed++;
+                    } else {
+                        slots[idx] = publish(rnd, id, t, false);
+                    }
+                }
+                if (missing.isEmpty() && drainedAt < 0) drainedAt = t;
+                if (drainedAt >= 0 && t > LIVE_UNTIL + 60_000) break;
+            }
+            drain += drainedAt;
+        }
+        return new long[]{drain / runs, failed, sent};
+    }
+
+    private static int indexOf(Slot[] slots, String id) {
+        for (int i = 0; i < slots.length; i++) {
+            if (id == null ? slots[i] == null : slots[i] != null && slots[i].id.equals(id)) return i;
+        }
+        return -1;
+    }
+
+    /** Свободные слоты или слоты с переотправками */
+    private static int count(Slot[] slots, boolean resends) {
+        int n = 0;
+        for (Slot s : slots) {
+            if (resends ? s != null && s.resend : s == null) n++;
+        }
+        return n;
+    }
+
+    private static Slot publish(Random rnd, String id, long t, boolean resend) {
+        Slot s = new Slot();
+        s.id = id;
+        s.resend = resend;
+        s.until = t + SLOT_LIFE;
+        s.ackAt = rnd.nextDouble() < 0.1 ? 0 : t + 3_000 + (long) (rnd.nextDouble() * 5_000);
+        return s;
+    }
+}
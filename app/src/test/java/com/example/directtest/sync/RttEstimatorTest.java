@@ -0,0 +1,250 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RTT/RTO по RFC 6298: сглаживание, пределы, удвоение по таймауту
+ */
+public class RttEstimatorTest {
+
+    private static RttEstimator estimator() {
+        return new RttEstimator(30_000, 10_000, 60_000);
+    }
+
+    @Test
+    public void initialRtoUntilFirstSample() {
+        RttEstimator e = estimator();
+        assertEquals(0, e.sampleCount());
+        assertEquals(30_000, e.rto());
+    }
+
+    @Test
+    public void firstSampleSetsMeanAndHalfDeviation() {
+        RttEstimator e = estimator();
+        e.onSample(10_000);
+        assertEquals(10_000, e.srtt());
+        assertEquals(5_000, e.rttvar());
+        assertEquals(30_000, e.rto());
+        assertEquals(1, e.sampleCount());
+    }
+
+    @Test
+    public void laterSamplesAreSmoothed() {
+        RttEstimator e = estimator();
+        e.onSample(10_000);
+        e.onSample(18_000);
+        assertEquals(11_000, e.srtt());
+        assertEquals(5_750, e.rttvar());
+        assertEquals(34_000, e.rto());
+    }
+
+    @Test
+    public void baseIsClampedBeforeBackoff() {
+        RttEstimator e = estimator();
+        e.onSample(2_000);
+        // srtt + 4 * rttvar = 6 с - поднято до minRto
+        assertEquals(10_000, e.rto());
+        // Удвоение от minRto, а не от 6 с
+        assertEquals(20_000, e.onTimeout());
+        assertEquals(40_000, e.onTimeout());
+        assertEquals(60_000, e.onTimeout());
+        assertEquals(60_000, e.onTimeout());
+    }
+
+    @Test
+    public void rtoNeverExceedsMax() {
+        RttEstimator e = estimator();
+        e.onSample(50_000);
+        assertEquals(60_000, e.rto());
+        assertEquals(60_000, e.onTimeout());
+        // Удвоение на потолке не копится
+        assertTrue(e.toString().endsWith("backoff=0 n=1"));
+    }
+
+    @Test
+    public void sampleAndResetClearBackoff() {
+        RttEstimator e = estimator();
+        assertEquals(60_000, e.onTimeout());
+        e.resetBackoff();
+        assertEquals(30_000, e.rto());
+
+        e.onTimeout();
+        e.onSample(10_000);
+        assertEquals(30_000, e.rto());
+    }
+
+    @Test
+    public void negativeSampleCountsAsZero() {
+        RttEstimator e = estimator();
+        e.onSample(-5_000);
+        assertEquals(0, e.srtt());
+        assertEquals(10_000, e.rto());
+    }
+
+    // ==================== СИМУЛЯЦИЯ ====================
+
+    private static final int SLOTS = 3;
+    /** Доля потерянных публикаций по пирам */
+    private static final double[] LOSS = {0.1, 0.1, 0.3, 0.3, 1.0, 0.1};
+    /** Наибольший цикл обнаружения пира (с) */
+    private static final double[] CYCLE = {5, 8, 10, 16, 8, 8};
+    /** Пир 5 - 5 минут на связи, 5 минут нет */
+    private static final boolean[] FLAKY = {false, false, false, false, false, true};
+
+    private static final class Msg {
+        int peer;
+        double created;
+        int attempts;
+    }
+
+    private static final class Slot {
+        Msg m;
+        double pubAt;
+        double heldSince;
+        double timerAt;
+        boolean extended;
+        double ackAt = -1;
+    }
+
+    /**
+     * 3 слота, 6 пиров с разными потерями и циклами обнаружения (один недоступен
+     * совсем, один пропадает через раз на 5 минут). Прежняя схема: 30 с, продление
+     * на 30 с, затем в SYNC. RTO: перерегистрация по таймауту пира не дольше 60 с
+     * в слоте, пропавший пир освобождает слот сразу.
+     */
+    @Test
+    public void adaptiveTimeoutDeliversMoreUnderLoad() {
+        System.out.println("offered  | fixed msg/min lat pubs/msg | RTO msg/min lat pubs/msg");
+        for (double load : new double[]{4, 8}) {
+            double[][] r = new double[2][3];
+            int trials = 10;
+            for (int k = 0; k < trials; k++) {
+                for (int m = 0; m < 2; m++) {
+                    double[] x = run(m == 1, load, 1000 + k);
+                    for (int i = 0; i < 3; i++) r[m][i] += x[i] / trials;
+                }
+            }
+            System.out.printf(Locale.US, "%4.1f/min | %5.2f %5.0fs %4.2f | %5.2f %5.0fs %4.2f%n",
+                    load, r[0][0], r[0][1], r[0][2], r[1][0], r[1][1], r[1][2]);
+
+            assertTrue(r[1][0] > r[0][0] * 1.1);
+            assertTrue(r[1][1] < r[0][1]);
+        }
+    }
+
+    private static boolean online(int p, double t) {
+        return !FLAKY[p] || ((int) (t / 300)) % 2 == 0;
+    }
+
+    /** @return {доставлено в минуту, средняя задержка (с), публикаций на сообщение} */
+    private static double[] run(boolean adaptive, double load, long seed) {
+        Random rnd = new Random(seed);
+        int peers = LOSS.length;
+        RttEstimator[] rtt = new RttEstimator[peers];
+        for (int i = 0; i < peers; i++) rtt[i] = estimator();
+        ArrayDeque<Msg> queue = new ArrayDeque<>();
+        List<Object[]> syncLater = new ArrayList<>();
+        Slot[] slots = new Slot[SLOTS];
+        double duration = 7_200;
+        double delivered = 0;
+        double latSum = 0;
+        int pubs = 0;
+        double[] lastSeen = new double[peers];
+        double nextArrival = 0;
+        for (double t = 0; t < duration; t += 0.1) {
+            t = Math.round(t * 10) / 10.0;
+            for (int p = 0; p < peers; p++) if (online(p, t)) lastSeen[p] = t;
+            while (nextArrival <= t) {
+                Msg m = new Msg();
+                m.peer = rnd.nextInt(peers);
+                m.created = t;
+                queue.add(m);
+                nextArrival += -Math.log(1 - rnd.nextDouble()) * 60.0 / load;
+            }
+            // SYNC возвращает неподтверждённое в очередь, когда пир снова виден
+            for (Iterator<Object[]> it = syncLater.iterator(); it.hasNext(); ) {
+                Object[] e = it.next();
+                Msg m = (Msg) e[0];
+                if ((double) e[1] <= t && online(m.peer, t)) {
+                    it.remove();
+                    if (++m.attempts < 3) queue.add(m);
+                }
+            }
+            for (int s = 0; s < SLOTS; s++) {
+                Slot sl = slots[s];
+                if (sl == null && !queue.isEmpty()) {
+                    sl = new Slot();
+                    sl.m = queue.poll();
+                    sl.heldSince = t;
+                    slots[s] = sl;
+                    publish(sl, t, adaptive ? rtt[sl.m.peer].rto() / 1000.0 : 30, rnd);
+                    pubs++;
+                }
+                if (sl == null) continue;
+                int p = sl.m.peer;
+                if (sl.ackAt >= 0 && sl.ackAt <= t) {
+                    delivered++;
+                    latSum += t - sl.m.created;
+                    if (adaptive && !sl.extended) rtt[p].onSample((long) ((t - sl.pubAt) * 1000));
+                    slots[s] = null;
+                    continue;
+                }
+                boolean offline = t - lastSeen[p] > 20;
+                if (adaptive && offline && ((int) (t * 10)) % 100 == 0) {
+                    slots[s] = null;
+                    syncLater.add(new Object[]{sl.m, t + 30});
+                    continue;
+                }
+                if (t < sl.timerAt) continue;
+                if (!adaptive) {
+                    if (!sl.extended) {
+                        sl.extended = true;
+                        sl.timerAt = t + 30;
+                    } else {
+                        slots[s] = null;
+                        syncLater.add(new Object[]{sl.m, t + 30});
+                    }
+                    continue;
+                }
+                double remaining = 60 - (t - sl.heldSince);
+                if (offline || remaining <= 0) {
+                    slots[s] = null;
+                    syncLater.add(new Object[]{sl.m, t + 30});
+                    continue;
+                }
+                double rto = rtt[p].onTimeout() / 1000.0;
+                if (rto > remaining) {
+                    sl.timerAt = t + remaining;
+                    continue;
+                }
+                // Перерегистрированное не даёт выборок RTT (алгоритм Карна)
+                sl.extended = true;
+                publish(sl, t, rto, rnd);
+                pubs++;
+            }
+        }
+        return new double[]{delivered * 60 / duration, latSum / delivered, pubs / delivered};
+    }
+
+    private static void publish(Slot sl, double t, double timeout, Random rnd) {
+        int p = sl.m.peer;
+        sl.pubAt = t;
+        sl.timerAt = t + timeout;
+        double seeAt = t + 1 + rnd.nextDouble() * CYCLE[p];
+        boolean lost = rnd.nextDouble() < LOSS[p];
+        if (!lost && online(p, seeAt)) {
+            double ack = seeAt + 1 + rnd.nextDouble() * 8;
+            if (sl.ackAt < 0 || ack < sl.ackAt) sl.ackAt = ack;
+        }
+    }
+}
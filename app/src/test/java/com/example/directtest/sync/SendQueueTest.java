@@ -0,0 +1,669 @@
+package com.example.directtest.sync;
+
+import com.example.directtest.P2pConfig;
+import com.example.directtest.model.MessagePriority;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Очередь ожидания слота: класс приоритета, затем срок (EDF); срочные вытесняют несрочные
+ */
+public class SendQueueTest {
+
+    private static SendQueue.Entry entry(String id, MessagePriority p, long createdAt) {
+        return new SendQueue.Entry(id, "", "peer", p, createdAt);
+    }
+
+    private static List<String> drain(SendQueue q) {
+        List<String> ids = new ArrayList<>();
+        SendQueue.Entry e;
+        while ((e = q.poll()) != null) ids.add(e.msgId);
+        return ids;
+    }
+
+    @Test
+    public void classFirstThenEarliestDeadline() {
+        SendQueue q = new SendQueue(10);
+        q.offer(entry("low", MessagePriority.LOW, 0));
+        q.offer(entry("normal-late", MessagePriority.NORMAL, 5_000));
+        q.offer(entry("normal-early", MessagePriority.NORMAL, 1_000));
+        q.offer(entry("urgent", MessagePriority.URGENT, 9_000));
+        q.offer(entry("normal-tie", MessagePriority.NORMAL, 1_000));
+        assertEquals(Arrays.asList("urgent", "normal-early", "normal-tie", "normal-late", "low"), drain(q));
+    }
+
+    @Test
+    public void preemptedEntryKeepsItsDeadline() {
+        SendQueue q = new SendQueue(10);
+        q.offer(entry("new", MessagePriority.NORMAL, 20_000));
+        // Вытесненное из слота возвращается со старым временем отправки
+        q.offer(entry("old", MessagePriority.NORMAL, 1_000));
+        assertEquals("old", q.peek().msgId);
+        assertEquals(61_000, q.peek().deadline);
+    }
+
+    @Test
+    public void fullQueueRejectsNonUrgent() {
+        SendQueue q = new SendQueue(2);
+        assertNull(q.offer(entry("a", MessagePriority.LOW, 0)));
+        assertNull(q.offer(entry("b", MessagePriority.LOW, 0)));
+        assertTrue(q.isFull());
+        SendQueue.Entry rejected = entry("c", MessagePriority.NORMAL, 0);
+        assertSame(rejected, q.offer(rejected));
+        assertEquals(2, q.size());
+    }
+
+    @Test
+    public void urgentEvictsLeastUrgent() {
+        SendQueue q = new SendQueue(3);
+        q.offer(entry("normal", MessagePriority.NORMAL, 0));
+        q.offer(entry("low-early", MessagePriority.LOW, 0));
+        q.offer(entry("low-late", MessagePriority.LOW, 1_000));
+
+        SendQueue.Entry evicted = q.offer(entry("urgent", MessagePriority.URGENT, 2_000));
+        assertEquals("low-late", evicted.msgId);
+        assertEquals(Arrays.asList("urgent", "normal", "low-early"), drain(q));
+    }
+
+    @Test
+    public void urgentDoesNotEvictMoreUrgent() {
+        SendQueue q = new SendQueue(2);
+        q.offer(entry("u1", MessagePriority.URGENT, 0));
+        q.offer(entry("u2", MessagePriority.URGENT, 100));
+        SendQueue.Entry late = entry("u3", MessagePriority.URGENT, 200);
+        assertSame(late, q.offer(late));
+
+        SendQueue.Entry early = entry("u0", MessagePriority.URGENT, -1_000);
+        assertEquals("u2", q.offer(early).msgId);
+        assertEquals(Arrays.asList("u0", "u1"), drain(q));
+    }
+
+    @Test
+    public void duplicateIsIgnored() {
+        SendQueue q = new SendQueue(2);
+        q.offer(entry("a", MessagePriority.NORMAL, 0));
+        assertNull(q.offer(entry("a", MessagePriority.URGENT, 0)));
+        assertEquals(1, q.size());
+        assertEquals(MessagePriority.NORMAL, q.peek().priority);
+    }
+
+    @Test
+    public void readinessAndTargetQueries() {
+        SendQueue q = new SendQueue(10);
+        q.offer(new SendQueue.Entry("x1", "", "x", MessagePriority.URGENT, 0));
+        q.offer(new SendQueue.Entry("y1", "", "y", MessagePriority.NORMAL, 0));
+        q.offer(new SendQueue.Entry("b1", "", null, MessagePriority.LOW, 0));
+        q.offer(new SendQueue.Entry("y2", "", "y", MessagePriority.NORMAL, 5));
+
+        // Окно приёма x исчерпано - первым готово сообщение y
+        assertEquals("y1", q.peek(e -> !"x".equals(e.target)).msgId);
+        assertNull(q.peek(e -> false));
+        assertEquals(2, q.countTo("y"));
+        assertEquals(1, q.countTo(null));
+        assertEquals("y1", q.entriesTo("y").get(0).msgId);
+
+        assertEquals("y1", q.remove("y1").msgId);
+        assertNull(q.remove("y1"));
+        assertEquals(3, q.size());
+    }
+
+    @Test
+    public void takePackFillsRecordWithinLimits() {
+        SendQueue q = new SendQueue(10);
+        q.offer(new SendQueue.Entry("x1", "", "x", MessagePriority.NORMAL, 0));
+        q.offer(new SendQueue.Entry("y1", "", "y", MessagePriority.NORMAL, 1));
+        q.offer(new SendQueue.Entry("x2#0.1.2.5", "", "x", MessagePriority.NORMAL, 2));
+        q.offer(new SendQueue.Entry("x3", "long", "x", MessagePriority.NORMAL, 3));
+        q.offer(new SendQueue.Entry("x4", "", "x", MessagePriority.NORMAL, 4));
+        q.offer(new SendQueue.Entry("x5", "", "x", MessagePriority.NORMAL, 5));
+
+        // В записи уже одно сообщение: бюджет на 2 коротких, длинное пропускается
+        List<SendQueue.Entry> pack = q.takePack("x", 1, 4, 20, (e, k) -> 10 + e.text.length() * 10);
+        assertEquals(Arrays.asList("x1", "x4"), ids(pack));
+        assertEquals(4, q.size());
+        assertTrue(q.contains("x2#0.1.2.5"));
+
+        // Пустая запись: первое сообщение идёт в обычных полях и бюджет не тратит
+        pack = q.takePack("x", 0, 2, 0, (e, k) -> 10);
+        assertEquals(Collections.singletonList("x3"), ids(pack));
+        assertTrue(q.takePack("x", 4, 4, 1_000, (e, k) -> 0).isEmpty());
+        assertEquals(1, q.countTo("y"));
+    }
+
+    @Test
+    public void mailboxRewriteKeepsUnackedAndAddsQueued() {
+        // Ящик с a1, a2; ACK a1 - на его место встают ждущие a3, a4 (не b1)
+        List<String> box = new ArrayList<>(Arrays.asList("a1", "a2"));
+        SendQueue q = new SendQueue(10);
+        q.offer(new SendQueue.Entry("a3", "", "a", MessagePriority.NORMAL, 3));
+        q.offer(new SendQueue.Entry("b1", "", "b", MessagePriority.NORMAL, 4));
+        q.offer(new SendQueue.Entry("a4", "", "a", MessagePriority.LOW, 5));
+        q.offer(new SendQueue.Entry("a5", "", "a", MessagePriority.NORMAL, 6));
+
+        box.remove("a1");
+        box.addAll(ids(q.takePack("a", box.size(), P2pConfig.MAX_MSGS_PER_SLOT, P2pConfig.SLOT_PACK_BUDGET,
+                (e, k) -> 50)));
+        assertEquals(Arrays.asList("a2", "a3", "a5", "a4"), box);
+        assertEquals(1, q.size());
+        assertEquals("b1", q.peek().msgId);
+    }
+
+    private static List<String> ids(List<SendQueue.Entry> entries) {
+        List<String> ids = new ArrayList<>();
+        for (SendQueue.Entry e : entries) ids.add(e.msgId);
+        return ids;
+    }
+
+    // ==================== СИМУЛЯЦИЯ ====================
+
+    private static final int SLOTS = 3;
+    /** Сколько секунд после последнего сообщения очереди дослать хвост */
+    private static final double DRAIN = 300;
+
+    private static final class Live {
+        SendQueue.Entry entry;
+        double until;
+        boolean resend;
+    }
+
+    /**
+     * 3 слота, пуассоновский поток 0.3 сообщения/с 5000 с (10% срочных, 60% обычных,
+     * 30% фоновых), слот занят до ACK через 4-15 с - загрузка около 95%. FIFO-очередь
+     * на 16 сообщений против SendQueue, где срочное вытесняет из слота несрочное. Личное,
+     * не поместившееся в SendQueue, уходит в очередь переотправок (темп RESEND_MIN_INTERVAL,
+     * не больше RESEND_MAX_SLOTS слотов, RESEND_RESERVED_SLOTS свободны для новых); новое
+     * сообщение вытесняет переотправку раньше, чем своё. После потока ещё DRAIN секунд без
+     * новых сообщений. Потеряно - так и не доставлено (FIFO оставляет выпавшее SYNC),
+     * опоздало - доставлено позже срока класса или не доставлено.
+     * <p>
+     * Компромисс приоритетов: ничего не теряется, срочные не ждут, обычные опаздывают
+     * не чаще чем в FIFO, а платят фоновые - их дольше держат в очереди.
+     */
+    @Test
+    public void urgentMessagesDoNotWaitBehindBacklog() {
+        Result fifo = simulate(false);
+        Result priority = simulate(true);
+        for (MessagePriority p : MessagePriority.values()) {
+            System.out.printf(Locale.US,
+                    "%-7s FIFO lost %4.1f%% late %4.1f%% wait p95 %5.1fs | priority lost %4.1f%% late %4.1f%% wait p95 %6.1fs%n",
+                    p.label, fifo.lost(p) * 100, fifo.late(p) * 100, fifo.p95(p),
+                    priority.lost(p) * 100, priority.late(p) * 100, priority.p95(p));
+        }
+
+        // Переполнение уходит в переотправки, а не ждёт SYNC
+        for (MessagePriority p : MessagePriority.values()) {
+            assertEquals(p.label, 0.0, priority.lost(p), 0.0);
+        }
+        assertTrue(fifo.lost(MessagePriority.NORMAL) > 0.01);
+        assertTrue(fifo.lost(MessagePriority.LOW) > 0.01);
+
+        assertTrue(priority.p95(MessagePriority.URGENT) < 1.0);
+        assertTrue(fifo.p95(MessagePriority.URGENT) > 10.0);
+        assertTrue(priority.late(MessagePriority.URGENT) < fifo.late(MessagePriority.URGENT) / 2);
+        assertTrue(priority.p95(MessagePriority.NORMAL) < fifo.p95(MessagePriority.NORMAL));
+        assertTrue(priority.late(MessagePriority.NORMAL) <= fifo.late(MessagePriority.NORMAL));
+        // Цена - задержка фоновых, но не потери
+        assertTrue(priority.late(MessagePriority.LOW) <= fifo.late(MessagePriority.LOW) + 0.03);
+    }
+
+    private static final class Result {
+        final Map<MessagePriority, List<Double>> waits = new EnumMap<>(MessagePriority.class);
+        final Map<MessagePriority, int[]> counts = new EnumMap<>(MessagePriority.class);
+        final Map<MessagePriority, List<Double>> delivery = new EnumMap<>(MessagePriority.class);
+
+        Result() {
+            for (MessagePriority p : MessagePriority.values()) {
+                waits.put(p, new ArrayList<>());
+                delivery.put(p, new ArrayList<>());
+                counts.put(p, new int[2]);
+            }
+        }
+
+        double lost(MessagePriority p) {
+            return 1.0 - (double) counts.get(p)[1] / counts.get(p)[0];
+        }
+
+        /** Не доставлено к сроку класса или вовсе */
+        double late(MessagePriority p) {
+            int onTime = 0;
+            for (double d : delivery.get(p)) if (d * 1000 <= p.deadlineMs) onTime++;
+            return 1.0 - (double) onTime / counts.get(p)[0];
+        }
+
+        double p95(MessagePriority p) {
+            List<Double> w = waits.get(p);
+            Collections.sort(w);
+            return w.isEmpty() ? 0 : w.get((int) (w.size() * 0.95));
+        }
+    }
+
+    private static Result simulate(boolean priority) {
+        Random rnd = new Random(3);
+        Result r = new Result();
+        Set<String> published = new HashSet<>();
+        SendQueue queue = new SendQueue(16);
+        ArrayDeque<SendQueue.Entry> fifo = new ArrayDeque<>();
+        ArrayDeque<SendQueue.Entry> resends = new ArrayDeque<>();
+        double nextResend = 0;
+        Live[] slots = new Live[SLOTS];
+        double lambda = 0.3;
+        double nextArrival = exp(rnd, lambda);
+        int id = 0;
+        for (double t = 0; t < 5_000 + DRAIN; t += 0.05) {
+            for (int i = 0; i < SLOTS; i++) {
+                if (slots[i] != null && t >= slots[i].until) {
+                    SendQueue.Entry e = slots[i].entry;
+                    r.counts.get(e.priority)[1]++;
+                    r.delivery.get(e.priority).add(t - e.createdAt / 1000.0);
+                    slots[i] = null;
+                }
+            }
+            while (t >= nextArrival && t < 5_000) {
+                double u = rnd.nextDouble();
+                MessagePriority p = u < 0.1 ? MessagePriority.URGENT
+                        : u < 0.7 ? MessagePriority.NORMAL : MessagePriority.LOW;
+                SendQueue.Entry e = new SendQueue.Entry("m" + id++, "", "peer", p, (long) (nextArrival * 1000));
+                r.counts.get(p)[0]++;
+                int free = free(slots);
+                if (!priority) {
+                    if (free >= 0 && fifo.isEmpty()) publish(slots, free, e, t, rnd, r, published);
+                    else if (fifo.size() < 16) fifo.add(e);
+                } else {
+                    SendQueue.Entry dropped = queue.offer(e);
+                    if (dropped != null) resends.addLast(dropped);
+                    SendQueue.Entry head = queue.peek();
+                    int v = free >= 0 ? -1 : resendSlot(slots);
+                    if (v >= 0) {
+                        // Новое сообщение важнее переотправки - она в начало своей очереди
+                        resends.addFirst(slots[v].entry);
+                    } else if (free < 0 && head.priority == MessagePriority.URGENT) {
+                        v = victim(slots, head.priority);
+                        if (v >= 0) {
+                            // Вытесненное возвращается в очередь со своим сроком
+                            SendQueue.Entry d = queue.offer(slots[v].entry);
+                            if (d != null) resends.addLast(d);
+                        }
+                    }
+                    if (v >= 0) {
+                        queue.remove(head.msgId);
+                        publish(slots, v, head, t, rnd, r, published);
+                    }
+                }
+                nextArrival += exp(rnd, lambda);
+            }
+            int free;
+            while ((free = free(slots)) >= 0) {
+                SendQueue.Entry e = priority ? queue.poll() : fifo.poll();
+                if (e == null) break;
+                publish(slots, free, e, t, rnd, r, published);
+            }
+            if (priority && !resends.isEmpty() && t >= nextResend
+                    && freeCount(slots) > P2pConfig.RESEND_RESERVED_SLOTS
+                    && resendCount(slots) < P2pConfig.RESEND_MAX_SLOTS) {
+                int i = free(slots);
+                publish(slots, i, resends.poll(), t, rnd, r, published);
+                slots[i].resend = true;
+                nextResend = t + P2pConfig.RESEND_MIN_INTERVAL / 1000.0;
+            }
+        }
+        return r;
+    }
+
+    /** Слот с наименее срочным сообщением ниже priority (из равных - самое новое) */
+    private static int victim(Live[] slots, MessagePriority priority) {
+        int v = -1;
+        for (int i = 0; i < SLOTS; i++) {
+            if (slots[i] == null || slots[i].resend || !priority.isHigherThan(slots[i].entry.priority)) continue;
+            if (v < 0 || slots[v].entry.priority.isHigherThan(slots[i].entry.priority)
+                    || (slots[i].entry.priority == slots[v].entry.priority
+                    && slots[i].entry.createdAt > slots[v].entry.createdAt)) {
+                v = i;
+            }
+        }
+        return v;
+    }
+
+    /** Слот с самой поздней переотправкой */
+    private static int resendSlot(Live[] slots) {
+        int v = -1;
+        for (int i = 0; i < SLOTS; i++) {
+            if (slots[i] != null && slots[i].resend && (v < 0 || slots[i].until > slots[v].until)) v = i;
+        }
+        return v;
+    }
+
+    private static int free(Live[] slots) {
+        for (int i = 0; i < SLOTS; i++) {
+            if (slots[i] == null) return i;
+        }
+        return -1;
+    }
+
+    private static int freeCount(Live[] slots) {
+        int n = 0;
+        for (Live l : slots) if (l == null) n++;
+        return n;
+    }
+
+    private static int resendCount(Live[] slots) {
+        int n = 0;
+        for (Live l : slots) if (l != null && l.resend) n++;
+        return n;
+    }
+
+    private static void publish(Live[] slots, int i, SendQueue.Entry e, double t, Random rnd,
+                                Result r, Set<String> published) {
+        Live l = new Live();
+        l.entry = e;
+        l.until = t + 4 + rnd.nextDouble() * 11;
+        slots[i] = l;
+        if (published.add(e.msgId)) {
+            r.waits.get(e.priority).add(t - e.createdAt / 1000.0);
+        }
+    }
+
+    private static double exp(Random rnd, double lambda) {
+        return -Math.log(1 - rnd.nextDouble()) / lambda;
+    }
+
+    /**
+     * Пачки сообщений одному получателю, 3 слота. Получатель видит записи раз в цикл
+     * обнаружения (8 с, потеря 20%), ACK доходит на следующем цикле отправителя,
+     * запись без ACK перерегистрируется через 30 с. Упаковка берёт из очереди
+     * до MAX_MSGS_PER_SLOT сообщений тому же получателю после окна накопления.
+     */
+    @Test
+    public void packingKeepsUpWithBursts() {
+        System.out.println("burst every | single msg/min msg/reg lat | packed msg/min msg/reg lat");
+        for (int burst : new int[]{4, 8}) {
+            double[] single = new double[3];
+            double[] packed = new double[3];
+            int trials = 5;
+            for (long seed = 0; seed < trials; seed++) {
+                double[] x = packSim(false, burst, 20, seed);
+                double[] y = packSim(true, burst, 20, seed);
+                for (int i = 0; i < 3; i++) {
+                    single[i] += x[i] / trials;
+                    packed[i] += y[i] / trials;
+                }
+            }
+            System.out.printf(Locale.US, "%5d  20s  | %6.2f %5.2f %6.1fs | %6.2f %5.2f %6.1fs%n",
+                    burst, single[0], single[1], single[2], packed[0], packed[1], packed[2]);
+
+            assertTrue(packed[1] > 3 * single[1]);
+            assertTrue(packed[2] < single[2]);
+            assertEquals(burst * 3.0, packed[0], 0.1);
+        }
+    }
+
+    /** @return {доставлено в минуту, доставлено на регистрацию, средняя задержка (с)} */
+    private static double[] packSim(boolean pack, int burst, double burstEvery, long seed) {
+        Random rnd = new Random(seed);
+        double cycle = 8;
+        double loss = 0.2;
+        double duration = 3_600;
+        SendQueue queue = new SendQueue(100_000);
+        List<List<SendQueue.Entry>> slots = new ArrayList<>();
+        double[] regAt = new double[SLOTS];
+        for (int i = 0; i < SLOTS; i++) slots.add(null);
+        Set<String> seen = new HashSet<>();
+        Map<String, Double> ackVisibleAt = new HashMap<>();
+        double rxNext = rnd.nextDouble() * cycle;
+        double txNext = rnd.nextDouble() * cycle;
+        double nextBurst = 0;
+        double coalesceUntil = -1;
+        double latSum = 0;
+        int id = 0;
+        int regs = 0;
+        int delivered = 0;
+        for (double t = 0; t < duration; t += 0.05) {
+            if (t >= nextBurst) {
+                for (int i = 0; i < burst; i++) {
+                    queue.offer(new SendQueue.Entry("m" + id++, "", "peer", MessagePriority.NORMAL, (long) (t * 1000)));
+                }
+                nextBurst += burstEvery;
+                if (pack && coalesceUntil < t) coalesceUntil = t + P2pConfig.COALESCE_WINDOW / 1000.0;
+            }
+            for (int s = 0; s < SLOTS && (!pack || t >= coalesceUntil); s++) {
+                if (slots.get(s) != null || queue.size() == 0) continue;
+                List<SendQueue.Entry> record = new ArrayList<>();
+                record.add(queue.poll());
+                if (pack) {
+                    for (SendQueue.Entry e : queue.entriesTo("peer")) {
+                        if (record.size() >= P2pConfig.MAX_MSGS_PER_SLOT) break;
+                        queue.remove(e.msgId);
+                        record.add(e);
+                    }
+                }
+                slots.set(s, record);
+                regAt[s] = t;
+                regs++;
+            }
+            if (t >= rxNext) {
+                rxNext += cycle * (0.75 + 0.5 * rnd.nextDouble());
+                for (List<SendQueue.Entry> record : slots) {
+                    if (record == null || rnd.nextDouble() < loss) continue;
+                    for (SendQueue.Entry e : record) {
+                        if (seen.add(e.msgId)) {
+                            delivered++;
+                            latSum += t - e.createdAt / 1000.0;
+                            ackVisibleAt.put(e.msgId, t);
+                        }
+                    }
+                }
+            }
+            if (t >= txNext) {
+                txNext += cycle * (0.75 + 0.5 * rnd.nextDouble());
+                if (rnd.nextDouble() >= loss) {
+                    for (int s = 0; s < SLOTS; s++) {
+                        List<SendQueue.Entry> record = slots.get(s);
+                        if (record == null) continue;
+                        double now = t;
+                        record.removeIf(e -> ackVisibleAt.containsKey(e.msgId) && ackVisibleAt.get(e.msgId) < now);
+                        if (record.isEmpty()) slots.set(s, null);
+                    }
+                }
+            }
+            for (int s = 0; s < SLOTS; s++) {
+                if (slots.get(s) != null && t - regAt[s] >= 30) {
+                    regAt[s] = t;
+                    regs++;
+                }
+            }
+        }
+        return new double[]{delivered / (duration / 60), (double) delivered / Math.max(1, regs),
+                latSum / Math.max(1, delivered)};
+    }
+
+    /**
+     * Один отправитель, peers получателей по 6 сообщений/мин, общая очередь на 16.
+     * Слоты: 3 нумерованных слота, запись несёт до MAX_MSGS_PER_SLOT сообщений одному
+     * получателю и снимается, когда все подтверждены. Ящики: до MAX_MAILBOXES записей по
+     * одной на получателя (MailboxPolicy, простаивающий отдаёт ящик), запись переписывается
+     * на месте при ACK и новых сообщениях. Получатели видят записи раз в цикл (8 с +-25%,
+     * потеря 20%), ACK доходит в цикл отправителя, запись видна через 1 с после регистрации,
+     * без ACK перерегистрируется через 30 с.
+     */
+    @Test
+    public void mailboxesServeMorePeers() {
+        System.out.println("peers | slots msg/min lat    drop/min | boxes msg/min lat    drop/min evicted");
+        for (int peers : new int[]{1, 2, 4, 6, 8}) {
+            double[] slots = new double[4];
+            double[] boxes = new double[4];
+            int trials = 10;
+            for (long seed = 0; seed < trials; seed++) {
+                double[] x = boxSim(false, peers, seed);
+                double[] y = boxSim(true, peers, seed);
+                for (int i = 0; i < 4; i++) {
+                    slots[i] += x[i] / trials;
+                    boxes[i] += y[i] / trials;
+                }
+            }
+            System.out.printf(Locale.US, "%5d | %6.1f %6.1fs %5.2f   | %6.1f %6.1fs %5.2f    %5.2f%n",
+                    peers, slots[0], slots[1], slots[2], boxes[0], boxes[1], boxes[2], boxes[3]);
+
+            if (peers <= 2) {
+                // Мало получателей - слотов хватает; одному получателю слоты дают
+                // несколько записей сразу, ящик - одну
+                assertEquals(slots[0], boxes[0], 0.5);
+            }
+            if (peers >= 4) {
+                // Ящиков хватает на всех: записи не ждут, пока освободится чужой слот
+                assertTrue(boxes[0] >= slots[0] - 0.1);
+                assertTrue(boxes[1] < slots[1] * 0.7);
+            }
+            if (peers >= 6) {
+                assertTrue(boxes[0] > slots[0]);
+                assertTrue(boxes[2] * 5 < slots[2]);
+            }
+            if (peers == 8) {
+                assertTrue(boxes[0] > slots[0] * 1.2);
+            }
+        }
+    }
+
+    /**
+     * @return {доставлено в минуту, средняя задержка (с), выброшено из очереди в минуту,
+     *         оставлено SYNC при передаче ящика в минуту}
+     */
+    private static double[] boxSim(boolean mailboxes, int peers, long seed) {
+        Random rnd = new Random(seed);
+        double cycle = 8;
+        double loss = 0.2;
+        double duration = 3_600;
+        double dt = 0.05;
+        int records = mailboxes ? P2pConfig.MAX_MAILBOXES : SLOTS;
+        SendQueue queue = new SendQueue(16);
+        MailboxPolicy policy = new MailboxPolicy(P2pConfig.MAX_MAILBOXES, P2pConfig.MAILBOX_IDLE);
+        String[] owners = new String[records];
+        long[] publishedAt = new long[records];
+        List<List<SendQueue.Entry>> slots = new ArrayList<>();
+        double[] regAt = new double[records];
+        double[] visibleAt = new double[records];
+        for (int i = 0; i < records; i++) slots.add(null);
+        double[] rxNext = new double[peers];
+        for (int p = 0; p < peers; p++) rxNext[p] = rnd.nextDouble() * cycle;
+        double txNext = rnd.nextDouble() * cycle;
+        Set<String> seen = new HashSet<>();
+        Map<String, Double> ackVisibleAt = new HashMap<>();
+        double arrival = 6.0 / 60 * dt;
+        double latSum = 0;
+        int id = 0;
+        int delivered = 0;
+        int dropped = 0;
+        int evicted = 0;
+        for (double t = 0; t < duration; t += dt) {
+            long now = (long) (t * 1000);
+            for (int p = 0; p < peers; p++) {
+                if (rnd.nextDouble() >= arrival) continue;
+                SendQueue.Entry e = new SendQueue.Entry("m" + id++, "", "p" + p, MessagePriority.NORMAL, now);
+                if (queue.offer(e) != null) dropped++;
+            }
+            // Получатели в порядке самого раннего ждущего сообщения
+            SendQueue.Entry head;
+            Set<String> served = new HashSet<>();
+            while ((head = queue.peek(e -> !served.contains(e.target))) != null) {
+                String peer = head.target;
+                served.add(peer);
+                int own = -1;
+                for (int i = 0; i < records; i++) {
+                    if (slots.get(i) != null && peer.equals(owners[i])) own = i;
+                }
+                int r;
+                if (mailboxes && own >= 0) {
+                    if (slots.get(own).size() >= P2pConfig.MAX_MSGS_PER_SLOT) continue;
+                    r = own;
+                } else if (mailboxes) {
+                    r = policy.pick(owners, publishedAt, now);
+                    if (r < 0) continue;
+                    if (owners[r] != null) {
+                        evicted += slots.get(r).size();
+                        slots.set(r, null);
+                    }
+                } else {
+                    r = -1;
+                    for (int i = 0; i < records && r < 0; i++) {
+                        if (slots.get(i) == null) r = i;
+                    }
+                    if (r < 0) break;
+                    // Нумерованный слот - следующему получателю можно взять ещё один
+                    served.remove(peer);
+                }
+                List<SendQueue.Entry> record = slots.get(r) != null ? slots.get(r) : new ArrayList<>();
+                if (record.isEmpty()) {
+                    owners[r] = peer;
+                    publishedAt[r] = now;
+                }
+                record.addAll(queue.takePack(peer, record.size(), P2pConfig.MAX_MSGS_PER_SLOT,
+                        Integer.MAX_VALUE, (e, k) -> 0));
+                slots.set(r, record);
+                policy.touch(peer, now);
+                regAt[r] = t;
+                visibleAt[r] = t + 1;
+            }
+            for (int p = 0; p < peers; p++) {
+                if (t < rxNext[p]) continue;
+                rxNext[p] += cycle * (0.75 + 0.5 * rnd.nextDouble());
+                for (int i = 0; i < records; i++) {
+                    List<SendQueue.Entry> record = slots.get(i);
+                    if (record == null || !owners[i].equals("p" + p) || t < visibleAt[i]
+                            || rnd.nextDouble() < loss) continue;
+                    for (SendQueue.Entry e : record) {
+                        if (seen.add(e.msgId)) {
+                            delivered++;
+                            latSum += t - e.createdAt / 1000.0;
+                            ackVisibleAt.put(e.msgId, t);
+                        }
+                    }
+                }
+            }
+            if (t >= txNext) {
+                txNext += cycle * (0.75 + 0.5 * rnd.nextDouble());
+                for (int i = 0; i < records; i++) {
+                    List<SendQueue.Entry> record = slots.get(i);
+                    if (record == null || rnd.nextDouble() < loss) continue;
+                    int before = record.size();
+                    double at = t;
+                    record.removeIf(e -> ackVisibleAt.containsKey(e.msgId) && ackVisibleAt.get(e.msgId) < at);
+                    if (record.isEmpty()) {
+                        slots.set(i, null);
+                        owners[i] = null;
+                    } else if (mailboxes && record.size() < before) {
+                        // Ящик переписывается на месте: без подтверждённых, с ждущими
+                        policy.touch(owners[i], now);
+                        record.addAll(queue.takePack(owners[i], record.size(), P2pConfig.MAX_MSGS_PER_SLOT,
+                                Integer.MAX_VALUE, (e, k) -> 0));
+                        regAt[i] = t;
+                        visibleAt[i] = t + 1;
+                    }
+                }
+            }
+            for (int i = 0; i < records; i++) {
+                if (slots.get(i) != null && t - regAt[i] >= 30) {
+                    regAt[i] = t;
+                    visibleAt[i] = t + 1;
+                }
+            }
+        }
+        double minutes = duration / 60;
+        return new double[]{delivered / minutes, latSum / Math.max(1, delivered), dropped / minutes, evicted / minutes};
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Сравнение неподтверждённых номеров с отчётом получателя
+ */
+public class SendWindowTest {
+
+    private static final long GUARD = 5_000;
+
+    private static SendWindow window(int count) {
+        SendWindow w = new SendWindow();
+        for (int i = 1; i <= count; i++) {
+            assertEquals(i, w.assign("m" + i));
+        }
+        return w;
+    }
+
+    private static ReceiveWindow report(long... received) {
+        ReceiveWindow r = new ReceiveWindow("s");
+        r.onReceived(1, 0);
+        for (long q : received) {
+            r.onReceived(q, 0);
+        }
+        return r;
+    }
+
+    @Test
+    public void reportSplitsDeliveredGapsAndTail() {
+        SendWindow w = window(6);
+        // Получены 1, 2, 4; пропущен 3; хвост 5, 6
+        SendWindow.Repair repair = w.apply(report(2, 4), 1_000, GUARD);
+
+        assertEquals(Arrays.asList("m1", "m2", "m4"), repair.delivered);
+        assertEquals(Collections.singletonList("m3"), repair.gaps);
+        assertEquals(Arrays.asList("m5", "m6"), repair.tail);
+        assertEquals(3, w.unackedCount());
+        assertEquals(-1, w.seqOf("m1"));
+        assertEquals(3, w.seqOf("m3"));
+    }
+
+    @Test
+    public void repairIsRateLimitedPerNumber() {
+        SendWindow w = window(3);
+        ReceiveWindow r = report(3);
+
+        SendWindow.Repair first = w.apply(r, 1_000, GUARD);
+        assertEquals(Collections.singletonList("m2"), first.gaps);
+        w.markRepaired("m2", 1_000);
+
+        assertTrue(w.apply(r, 2_000, GUARD).isEmpty());
+        assertEquals(Collections.singletonList("m2"), w.apply(r, 1_000 + GUARD, GUARD).gaps);
+    }
+
+    @Test
+    public void highestIsNotAGap() {
+        SendWindow w = window(2);
+        SendWindow.Repair repair = w.apply(report(), 1_000, GUARD);
+        assertEquals(Collections.singletonList("m1"), repair.delivered);
+        assertTrue(repair.gaps.isEmpty());
+        assertEquals(Collections.singletonList("m2"), repair.tail);
+    }
+
+    @Test
+    public void lostFirstNumberIsNotConfirmedByLaterOne() {
+        // q=1 потерян, получатель видел только q=2
+        SendWindow w = window(2);
+        ReceiveWindow r = new ReceiveWindow("s");
+        r.onReceived(2, 0);
+        SendWindow.Repair repair = w.apply(ReceiveWindow.parse(r.encode("me"), "me"), 1_000, GUARD);
+
+        assertEquals(Collections.singletonList("m2"), repair.delivered);
+        assertEquals(Collections.singletonList("m1"), repair.gaps);
+        assertEquals(1, w.seqOf("m1"));
+    }
+
+    @Test
+    public void reportAfterOverflowTreatsSkippedNumbersAsTail() {
+        int count = ReceiveWindow.WINDOW + 20;
+        SendWindow w = window(count);
+        ReceiveWindow r = report(3, count);
+        assertEquals(count - ReceiveWindow.WINDOW, r.hwm());
+
+        ReceiveWindow parsed = ReceiveWindow.parse(r.encode("me"), "me");
+        SendWindow.Repair repair = w.apply(parsed, 1_000, GUARD);
+
+        // Номера до base не подтверждаются: их судьба неизвестна
+        assertEquals(Collections.singletonList("m" + count), repair.delivered);
+        assertEquals(ReceiveWindow.WINDOW - 1, repair.gaps.size());
+        assertEquals(count - ReceiveWindow.WINDOW, repair.tail.size());
+        assertEquals("m1", repair.tail.get(0));
+        assertEquals("m" + (count - ReceiveWindow.WINDOW + 1), repair.gaps.get(0));
+        assertEquals(count - 1, w.unackedCount());
+    }
+
+    @Test
+    public void removeDropsNumber() {
+        SendWindow w = window(3);
+        w.remove("m2");
+        assertEquals(Arrays.asList("m1", "m3"), w.unackedIds());
+        assertEquals(3, w.lastSeq());
+        assertEquals(Collections.singletonList("m3"), w.apply(report(), 0, GUARD).tail);
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Возобновление после перезапуска получателя: граница приёма "rs" и деление неподтверждённого
+ */
+public class SessionResumeTest {
+
+    private static final String PREFIX = "aaaa1111_s1_";
+
+    private static List<String> ids(List<DeviceState.MessageRecord> records) {
+        List<String> ids = new ArrayList<>();
+        for (DeviceState.MessageRecord m : records) ids.add(m.msgId);
+        return ids;
+    }
+
+    private static DeviceState sender(String... sent) {
+        DeviceState st = new DeviceState();
+        st.deviceId = "bbbb2222cccc";
+        for (String id : sent) st.addSentMessage(id, "text " + id);
+        return st;
+    }
+
+    private static DeviceState receivedFrom(String deviceId, String sessionId, long lastRecvTime, int... counters) {
+        DeviceState st = new DeviceState();
+        st.deviceId = deviceId;
+        st.lastSessionId = sessionId;
+        String shortId = deviceId.length() > 8 ? deviceId.substring(0, 8) : deviceId;
+        for (int c : counters) st.addRecvMessage(shortId + "_" + sessionId + "_" + c, "");
+        st.lastRecvTime = lastRecvTime;
+        return st;
+    }
+
+    @Test
+    public void captureKeepsUnackedOwnMessagesOldestFirst() {
+        DeviceState st = sender(PREFIX + "1", PREFIX + "2", "zzzz9999_s7_1", PREFIX + "3");
+        st.markAcked(PREFIX + "2");
+
+        SessionResume r = SessionResume.capture(st, PREFIX, "new", 1_000, null);
+        assertEquals("new", r.sessionId);
+        assertEquals(1_000, r.detectedAt);
+        assertEquals(Arrays.asList(PREFIX + "1", PREFIX + "3"), ids(r.records()));
+    }
+
+    @Test
+    public void consecutiveRestartMergesWithPrevious() {
+        SessionResume first = SessionResume.capture(sender(PREFIX + "1", PREFIX + "3"), PREFIX, "n1", 1_000, null);
+        DeviceState st = sender(PREFIX + "3", PREFIX + "4");
+
+        SessionResume second = SessionResume.capture(st, PREFIX, "n2", 9_000, first);
+        assertEquals("n2", second.sessionId);
+        assertEquals(1_000, second.detectedAt);
+        assertEquals(Arrays.asList(PREFIX + "1", PREFIX + "3", PREFIX + "4"), ids(second.records()));
+        assertEquals(3, second.size());
+    }
+
+    @Test
+    public void splitByReceiptMark() {
+        SessionResume r = SessionResume.capture(
+                sender(PREFIX + "2", PREFIX + "5", PREFIX + "6", PREFIX + "9"), PREFIX, "n", 0, null);
+
+        SessionResume.Plan plan = r.split(6);
+        assertEquals(Arrays.asList(PREFIX + "9"), ids(plan.retarget));
+        assertEquals(Arrays.asList(PREFIX + "2", PREFIX + "5", PREFIX + "6"), ids(plan.verify));
+
+        plan = r.split(0);
+        assertEquals(4, plan.retarget.size());
+        assertTrue(plan.verify.isEmpty());
+    }
+
+    @Test
+    public void parseFindsOwnEntry() {
+        String rs = "aaaa1111.s1.5,bbbb2222.s2.7";
+        assertEquals(5, SessionResume.parse(rs, "aaaa1111", "s1"));
+        assertEquals(7, SessionResume.parse(rs, "bbbb2222", "s2"));
+        // Граница прежней сессии отправителя к текущей не относится
+        assertEquals(0, SessionResume.parse(rs, "aaaa1111", "s2"));
+        assertEquals(0, SessionResume.parse(rs, "cccc3333", "s1"));
+    }
+
+    @Test
+    public void parseToleratesBadInput() {
+        assertEquals(0, SessionResume.parse(null, "aaaa1111", "s1"));
+        assertEquals(0, SessionResume.parse("aaaa1111.s1.5", null, "s1"));
+        assertEquals(0, SessionResume.parse("", "aaaa1111", "s1"));
+        assertEquals(0, SessionResume.parse("aaaa1111.s1.x", "aaaa1111", "s1"));
+        assertEquals(0, SessionResume.parse("aaaa1111.s1.-3", "aaaa1111", "s1"));
+        assertEquals(0, SessionResume.parse("aaaa1111.s1", "aaaa1111", "s1"));
+        assertEquals(4, SessionResume.parse("garbage, aaaa1111.s1.4", "aaaa1111", "s1"));
+    }
+
+    @Test
+    public void highWaterMarkCountsCurrentSessionOnly() {
+        DeviceState st = receivedFrom("aaaa1111ffff", "s1", 0, 3, 8, 5);
+        st.addRecvMessage("aaaa1111_s0_40", "");
+        assertEquals(8, SessionResume.highWaterMark(st));
+
+        st.lastSessionId = null;
+        assertEquals(0, SessionResume.highWaterMark(st));
+    }
+
+    @Test
+    public void encodeRecentSendersFirstWithinLength() {
+        DeviceState a = receivedFrom("aaaa1111ffff", "s1", 100, 5);
+        DeviceState b = receivedFrom("bbbb2222", "s2", 300, 7, 2);
+        DeviceState c = receivedFrom("cccc3333", "s3", 200, 12);
+        DeviceState none = receivedFrom("dddd4444", "s4", 400);
+
+        assertEquals("bbbb2222.s2.7,cccc3333.s3.12,aaaa1111.s1.5",
+                SessionResume.encode(Arrays.asList(a, b, c, none), 255));
+        assertEquals("bbbb2222.s2.7,cccc3333.s3.12",
+                SessionResume.encode(Arrays.asList(a, b, c, none), 30));
+        assertEquals("", SessionResume.encode(Collections.singletonList(none), 255));
+
+        String rs = SessionResume.encode(Arrays.asList(a, b, c), 255);
+        assertEquals(12, SessionResume.parse(rs, "cccc3333", "s3"));
+    }
+
+    // ==================== СИМУЛЯЦИЯ ====================
+
+    private static final double CYCLE = 8_000;
+    private static final double LOSS = 0.2;
+    private static final double RATE = 6 / 60_000.0;
+    private static final double OFFLINE_AFTER = 30_000;
+    private static final double RESEND_GAP = 1_000;
+    private static final double KILL = 120_000;
+    private static final double END = 600_000;
+
+    private static final class Msg {
+        int counter;
+        double sentAt;
+        boolean inSlot = true;
+        boolean delivered;
+        double deliveredAt = -1;
+        double resendAt = -1;
+    }
+
+    /**
+     * Получатель R убит на 120 с и перезапущен через down, отправитель S пишет ему
+     * 6 сообщений/мин. Циклы обнаружения 8 с, потеря записи 20%. S снимает слоты,
+     * когда R не виден 30 с. Без возобновления история очищается с новой сессией R -
+     * снятое теряется. С возобновлением S по "rs" делит неподтверждённое через
+     * SessionResume: выше границы - сразу, пропуски ниже - после немедленного SYNC.
+     */
+    @Test
+    public void resumeLosesNothingAcrossRestart() {
+        for (double down : new double[]{20_000, 60_000}) {
+            double[] baseline = simulate(down, false);
+            double[] resume = simulate(down, true);
+            System.out.printf(Locale.US, "down %3.0fs baseline lost %5.1f%% | resume lost %5.1f%% recovery mean %5.1fs p95 %5.1fs%n",
+                    down / 1000, baseline[0] * 100, resume[0] * 100, resume[1] / 1000, resume[2] / 1000);
+
+            assertEquals(0.0, resume[0], 0.0);
+            assertTrue(baseline[0] > 0.3);
+            assertTrue(resume[2] < 60_000);
+        }
+    }
+
+    /** @return {доля потерянных из под угрозой, средняя задержка восстановления, p95 (мс)} */
+    private static double[] simulate(double down, boolean resume) {
+        Random rnd = new Random(7);
+        List<Double> recovery = new ArrayList<>();
+        int lost = 0;
+        int total = 0;
+        for (int trial = 0; trial < 100; trial++) {
+            double restart = KILL + down;
+            List<Msg> msgs = new ArrayList<>();
+            double t = rnd.nextDouble() * 10_000;
+            int c = 0;
+            while (t < restart) {
+                Msg m = new Msg();
+                m.counter = ++c;
+                m.sentAt = t;
+                msgs.add(m);
+                t += -Math.log(1 - rnd.nextDouble()) / RATE;
+            }
+            double rPhase = rnd.nextDouble() * CYCLE;
+            double sPhase = rnd.nextDouble() * CYCLE;
+            double lastHbSeen = 0;
+            Set<Integer> persisted = new HashSet<>();
+            Set<Integer> acked = new HashSet<>();
+            Map<Integer, Double> pendingAck = new HashMap<>();
+            boolean detected = false;
+            for (double now = 0; now < END; now += 100) {
+                boolean rAlive = now < KILL || now >= restart;
+                // Цикл обнаружения R: видит слоты и переотправленное
+                if (rAlive && now >= rPhase && (now - rPhase) % CYCLE < 100) {
+                    for (Msg m : msgs) {
+                        if (m.sentAt > now || acked.contains(m.counter)) continue;
+                        boolean visible = m.inSlot || (m.resendAt >= 0 && m.resendAt <= now);
+                        if (!visible || rnd.nextDouble() < LOSS) continue;
+                        if (persisted.add(m.counter)) {
+                            m.delivered = true;
+                            m.deliveredAt = now;
+                        }
+                        pendingAck.put(m.counter, now);
+                    }
+                }
+                // Цикл обнаружения S: heartbeat и ACK от R
+                if (rAlive && now >= sPhase && (now - sPhase) % CYCLE < 100 && rnd.nextDouble() >= LOSS) {
+                    lastHbSeen = now;
+                    if (now < KILL || detected) {
+                        acked.addAll(pendingAck.keySet());
+                        pendingAck.clear();
+                        for (Msg m : msgs) {
+                            if (acked.contains(m.counter)) {
+                                m.inSlot = false;
+                                m.resendAt = -1;
+                            }
+                        }
+                    }
+                    if (now >= restart && !detected) {
+                        detected = true;
+                        // ACK прежнего процесса R не опубликованы
+                        pendingAck.clear();
+                        if (resume) planResume(msgs, acked, persisted, now);
+                    }
+                }
+                if (lastHbSeen > 0 && now - lastHbSeen > OFFLINE_AFTER) {
+                    for (Msg m : msgs) {
+                        if (m.sentAt <= now && !acked.contains(m.counter)) m.inSlot = false;
+                    }
+                }
+            }
+            for (Msg m : msgs) {
+                if (m.delivered && m.deliveredAt < KILL) continue;
+                total++;
+                if (!m.delivered) {
+                    lost++;
+                } else {
+                    recovery.add(Math.max(0, m.deliveredAt - restart));
+                }
+            }
+        }
+        Collections.sort(recovery);
+        double mean = recovery.stream().mapToDouble(x -> x).average().orElse(0);
+        double p95 = recovery.isEmpty() ? 0 : recovery.get((int) (recovery.size() * 0.95));
+        return new double[]{(double) lost / total, mean, p95};
+    }
+
+    /**
+     * S видит первый heartbeat новой сессии R с границей "rs" по сохранённой истории
+     */
+    private static void planResume(List<Msg> msgs, Set<Integer> acked, Set<Integer> persisted, double now) {
+        DeviceState st = new DeviceState();
+        st.deviceId = "bbbb2222";
+        Map<String, Msg> byId = new HashMap<>();
+        for (Msg m : msgs) {
+            if (m.sentAt > now) continue;
+            String id = PREFIX + m.counter;
+            byId.put(id, m);
+            st.addSentMessage(id, "");
+            if (acked.contains(m.counter)) st.markAcked(id);
+        }
+        DeviceState mine = receivedFrom("aaaa1111", "s1", 0);
+        for (int k : persisted) mine.addRecvMessage(PREFIX + k, "");
+        String rs = SessionResume.encode(Collections.singletonList(mine), 255);
+
+        SessionResume.Plan plan = SessionResume.capture(st, PREFIX, "s2", (long) now, null)
+                .split(SessionResume.parse(rs, "aaaa1111", "s1"));
+        double next = now;
+        for (DeviceState.MessageRecord r : plan.retarget) {
+            Msg m = byId.get(r.msgId);
+            if (!m.inSlot) {
+                m.resendAt = next;
+                next += RESEND_GAP;
+            }
+        }
+        for (DeviceState.MessageRecord r : plan.verify) {
+            Msg m = byId.get(r.msgId);
+            // Пропуск ниже границы находит немедленный SYNC (два цикла)
+            if (!m.inSlot && !persisted.contains(m.counter)) {
+                m.resendAt = next + 2 * CYCLE;
+                next += RESEND_GAP;
+            }
+        }
+    }
+}
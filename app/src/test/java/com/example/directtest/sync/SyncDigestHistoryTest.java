@@ -0,0 +1,130 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SYNC v1 и v2 на историях разной длины: байты на SYNC и ложные переотправки
+ */
+@RunWith(Parameterized.class)
+public class SyncDigestHistoryTest {
+
+    private static final String DEVICE_ID = "a1b2c3d4e5f6";
+    private static final String SESSION = "65f0a1b2";
+    private static final String PREFIX = "a1b2c3d4_" + SESSION + "_";
+
+    @Parameterized.Parameters(name = "history={0}")
+    public static Collection<Object[]> sizes() {
+        return Arrays.asList(new Object[][]{{3}, {300}, {3000}});
+    }
+
+    private final int history;
+
+    public SyncDigestHistoryTest(int history) {
+        this.history = history;
+    }
+
+    /**
+     * Отправитель пишет history сообщений, каждое теряется с вероятностью 3%.
+     * Получатель помнит и старую сессию отправителя. Его дайджест проходит
+     * encode/parse и сравнивается с окном истории отправителя, как в
+     * SyncManager.processIncomingDigest; v1 - списки последних SYNC_MAX_IDS.
+     * Переотправка ложная, если получатель сообщение уже имеет.
+     */
+    @Test
+    public void digestFindsLossesWithoutFalseResends() {
+        Random rnd = new Random(history);
+        int trials = 200;
+        long v1Bytes = 0;
+        long v2Bytes = 0;
+        int lost = 0;
+        int v1Found = 0;
+        int v1False = 0;
+        int v2Found = 0;
+        int v2False = 0;
+        int undecodable = 0;
+
+        for (int t = 0; t < trials; t++) {
+            DeviceState sender = new DeviceState();
+            DeviceState receiver = new DeviceState();
+            receiver.deviceId = DEVICE_ID;
+            receiver.lastSessionId = SESSION;
+            for (int i = 1; i <= 5; i++) {
+                receiver.addRecvMessage("a1b2c3d4_00000001_" + i, "old");
+            }
+            for (int i = 1; i <= history; i++) {
+                String id = PREFIX + i;
+                sender.addSentMessage(id, "text " + i);
+                if (rnd.nextDouble() >= 0.03) {
+                    receiver.addRecvMessage(id, "text " + i);
+                }
+            }
+            for (DeviceState.MessageRecord m : sender.sentMessages) {
+                if (!receiver.hasRecvMessage(m.msgId)) lost++;
+            }
+
+            // SYNC v1
+            List<String> recvIds = receiver.getSyncRecvIds();
+            v1Bytes += SyncManager.formatIdList(recvIds).length()
+                    + SyncManager.formatIdList(receiver.getSyncSentIds()).length();
+            for (DeviceState.MessageRecord m : sender.findUndeliveredSent(recvIds)) {
+                if (receiver.hasRecvMessage(m.msgId)) v1False++;
+                else v1Found++;
+            }
+
+            // SYNC v2
+            SyncDigest built = receiver.buildRecvDigest();
+            String cells = built.encode();
+            String size = String.valueOf(built.size());
+            String window = String.valueOf(built.windowStart());
+            v2Bytes += cells.length() + size.length() + window.length();
+            SyncDigest theirs = SyncDigest.parse(cells, size, window);
+            assertNotNull(theirs);
+
+            Map<Integer, DeviceState.MessageRecord> mine =
+                    SyncManager.digestWindow(sender.sentMessages, PREFIX, theirs.windowStart());
+            Set<Integer> missing = SyncManager.missingKeys(mine, theirs);
+            if (missing == null) {
+                undecodable++;
+                continue;
+            }
+            for (Integer key : missing) {
+                if (receiver.hasRecvMessage(mine.get(key).msgId)) v2False++;
+                else v2Found++;
+            }
+        }
+
+        System.out.printf(Locale.US,
+                "history %4d: lost %4d | v1 %5.1f B/sync, found %5.1f%%, false %d | "
+                        + "v2 %5.1f B/sync, found %5.1f%%, false %d, undecodable %.1f%%%n",
+                history, lost,
+                (double) v1Bytes / trials, pct(v1Found, lost), v1False,
+                (double) v2Bytes / trials, pct(v2Found, lost), v2False, pct(undecodable, trials));
+
+        assertEquals(0, v2False);
+        assertTrue(undecodable * 20 < trials);
+        // Размер дайджеста не зависит от длины истории
+        assertTrue(v2Bytes <= (long) trials * (SyncDigest.ENCODED_LENGTH + 10));
+        if (lost > 0) {
+            assertTrue(v2Found >= v1Found);
+            assertTrue(pct(v2Found, lost) > 90);
+        }
+    }
+
+    private static double pct(int part, int whole) {
+        return whole == 0 ? 100 : 100.0 * part / whole;
+    }
+}
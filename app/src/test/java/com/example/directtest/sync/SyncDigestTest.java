@@ -0,0 +1,193 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * IBLT-дайджест SYNC v2: декодирование разности, кодирование, окно истории
+ */
+public class SyncDigestTest {
+
+    private static final String PREFIX = "a1b2c3d4_65f0a1b2_";
+
+    @Test
+    public void equalSetsDecodeToEmptyDifference() {
+        SyncDigest a = digest(1, 200);
+        SyncDigest b = digest(1, 200);
+        SyncDigest.Difference diff = a.subtractAndDecode(b);
+        assertNotNull(diff);
+        assertTrue(diff.onlyLocal.isEmpty());
+        assertTrue(diff.onlyRemote.isEmpty());
+    }
+
+    @Test
+    public void smallDifferenceDecodesBothSides() {
+        SyncDigest a = digest(1, 100);
+        SyncDigest b = digest(1, 100);
+        a.add(150);
+        a.add(151);
+        b.add(160);
+        SyncDigest.Difference diff = a.subtractAndDecode(b);
+        assertNotNull(diff);
+        assertEquals(set(150, 151), new HashSet<>(diff.onlyLocal));
+        assertEquals(set(160), new HashSet<>(diff.onlyRemote));
+    }
+
+    @Test
+    public void decodeRateFallsAsDifferenceApproachesCellLimit() {
+        Random rnd = new Random(34);
+        int trials = 300;
+        double[] rate = new double[SyncDigest.CELLS + 6];
+        for (int d = 1; d < rate.length; d++) {
+            int ok = 0;
+            for (int t = 0; t < trials; t++) {
+                int base = rnd.nextInt(1 << 20);
+                SyncDigest local = digest(base, base + 100);
+                SyncDigest remote = digest(base, base + 100);
+                Set<Integer> onlyLocal = new HashSet<>();
+                Set<Integer> onlyRemote = new HashSet<>();
+                for (int i = 0; i < d; i++) {
+                    int key = base + 100 + i;
+                    if (rnd.nextBoolean()) {
+                        local.add(key);
+                        onlyLocal.add(key);
+                    } else {
+                        remote.add(key);
+                        onlyRemote.add(key);
+                    }
+                }
+                SyncDigest.Difference diff = local.subtractAndDecode(remote);
+                if (diff == null) {
+                    continue;
+                }
+                // Декодированная разность никогда не бывает неверной - только null
+                assertEquals(onlyLocal, new HashSet<>(diff.onlyLocal));
+                assertEquals(onlyRemote, new HashSet<>(diff.onlyRemote));
+                ok++;
+            }
+            rate[d] = (double) ok / trials;
+        }
+
+        System.out.println(" diff  decoded");
+        for (int d = 1; d < rate.length; d++) {
+            System.out.printf(Locale.US, "%5d  %6.1f%%%n", d, rate[d] * 100);
+        }
+
+        assertTrue(rate[1] == 1.0);
+        assertTrue(rate[5] > 0.95);
+        assertTrue(rate[10] > 0.85);
+        assertTrue(rate[SyncDigest.CELLS] < 0.05);
+        assertEquals(0.0, rate[rate.length - 1], 0.0);
+    }
+
+    @Test
+    public void sizeIsFixedUnlikeIdList() {
+        System.out.println("   ids  v1 list  v2 digest");
+        for (int n : new int[]{10, 64, 200, 1000}) {
+            StringBuilder ids = new StringBuilder();
+            SyncDigest d = new SyncDigest();
+            for (int i = 1; i <= n; i++) {
+                if (ids.length() > 0) ids.append(',');
+                ids.append(PREFIX).append(i);
+                d.add(SyncDigest.keyOf(PREFIX + i));
+            }
+            String encoded = d.encode();
+            System.out.printf(Locale.US, "%6d  %7d  %9d%n", n, ids.length(), encoded.length());
+            assertEquals(SyncDigest.ENCODED_LENGTH, encoded.length());
+        }
+        // Дайджест помещается в одно значение TXT-записи
+        assertTrue(SyncDigest.ENCODED_LENGTH <= 255);
+    }
+
+    @Test
+    public void parseOfEncodeRoundTrips() {
+        SyncDigest a = digest(1, 80);
+        a.setWindowStart(17);
+        SyncDigest parsed = SyncDigest.parse(a.encode(),
+                String.valueOf(a.size()), String.valueOf(a.windowStart()));
+        assertNotNull(parsed);
+        assertEquals(a.size(), parsed.size());
+        assertEquals(17, parsed.windowStart());
+        assertEquals(a.encode(), parsed.encode());
+
+        SyncDigest.Difference diff = a.subtractAndDecode(parsed);
+        assertNotNull(diff);
+        assertTrue(diff.onlyLocal.isEmpty());
+        assertTrue(diff.onlyRemote.isEmpty());
+
+        SyncDigest noWindow = SyncDigest.parse(a.encode(), null, null);
+        assertNotNull(noWindow);
+        assertEquals(0, noWindow.size());
+        assertEquals(0, noWindow.windowStart());
+    }
+
+    @Test
+    public void parseRejectsMalformedInput() {
+        String cells = digest(1, 10).encode();
+        assertNull(SyncDigest.parse(null, "10", null));
+        assertNull(SyncDigest.parse(cells.substring(1), "10", null));
+        assertNull(SyncDigest.parse(cells.substring(1) + "!", "10", null));
+        assertNull(SyncDigest.parse(cells, "ten", null));
+        assertNull(SyncDigest.parse(cells, "10", "x"));
+    }
+
+    @Test
+    public void keyOfTakesCounterModulo24Bits() {
+        assertEquals(42, SyncDigest.keyOf(PREFIX + "42"));
+        assertEquals(5, SyncDigest.keyOf(PREFIX + ((1L << 24) + 5)));
+        assertEquals(-1, SyncDigest.keyOf("nounderscore"));
+        assertEquals(-1, SyncDigest.keyOf(PREFIX));
+        assertEquals(-1, SyncDigest.keyOf(PREFIX + "abc"));
+    }
+
+    @Test
+    public void windowStartMismatchIsResolvedByFilteringBelowWindow() {
+        // Отправитель помнит 1..300, получатель вытеснил всё ниже 237 и потерял 250
+        SyncDigest recv = new SyncDigest();
+        for (int k = 237; k <= 300; k++) {
+            if (k != 250) recv.add(k);
+        }
+        recv.setWindowStart(237);
+        SyncDigest theirs = SyncDigest.parse(recv.encode(),
+                String.valueOf(recv.size()), String.valueOf(recv.windowStart()));
+        assertNotNull(theirs);
+
+        // Без учёта окна вытесненные ключи выглядят как 236 пропусков - не декодируется
+        assertNull(digest(1, 300).subtractAndDecode(theirs));
+
+        // Сравниваются только ключи не ниже windowStart - остаётся настоящий пропуск
+        SyncDigest mine = new SyncDigest();
+        for (int k = 1; k <= 300; k++) {
+            if (k >= theirs.windowStart()) mine.add(k);
+        }
+        SyncDigest.Difference diff = mine.subtractAndDecode(theirs);
+        assertNotNull(diff);
+        assertEquals(set(250), new HashSet<>(diff.onlyLocal));
+        assertTrue(diff.onlyRemote.isEmpty());
+        assertEquals(theirs.size(), mine.size() - diff.onlyLocal.size() + diff.onlyRemote.size());
+    }
+
+    /** Дайджест ключей [from, to) */
+    private static SyncDigest digest(int from, int to) {
+        SyncDigest d = new SyncDigest();
+        for (int k = from; k < to; k++) {
+            d.add(k);
+        }
+        return d;
+    }
+
+    private static Set<Integer> set(Integer... keys) {
+        Set<Integer> s = new HashSet<>();
+        for (Integer k : keys) s.add(k);
+        return s;
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Секции нескольких получателей в одной записи WFD_Sync: разбор, страницы, срок жизни
+ */
+public class SyncRecordMuxTest {
+
+    private static SyncDigest digest(int keys) {
+        SyncDigest d = new SyncDigest();
+        for (int i = 1; i <= keys; i++) d.add(i);
+        d.setWindowStart(1);
+        return d;
+    }
+
+    @Test
+    public void sectionRoundTrip() {
+        SyncRecordMux mux = new SyncRecordMux(900);
+        mux.put("aaaa1111", Arrays.asList("x_s_1", "x_s_2"), Collections.singletonList("y_s_9"), digest(20));
+        mux.put("bbbb2222", Collections.emptyList(), Collections.emptyList(), null);
+
+        Map<String, String> record = new HashMap<>();
+        assertEquals(Arrays.asList("aaaa1111", "bbbb2222"), mux.fillNextPage(record, 100));
+
+        SyncRecordMux.Section a = SyncRecordMux.parse(record, "aaaa1111");
+        assertNotNull(a);
+        assertEquals(Arrays.asList("x_s_1", "x_s_2"), a.sent);
+        assertEquals(Collections.singletonList("y_s_9"), a.recv);
+        assertNotNull(a.digest);
+        assertEquals(20, a.digest.size());
+        assertEquals(1, a.digest.windowStart());
+        assertEquals(digest(20).encode(), a.digest.encode());
+
+        SyncRecordMux.Section b = SyncRecordMux.parse(record, "bbbb2222");
+        assertNotNull(b);
+        assertNull(b.digest);
+        assertTrue(b.sent.isEmpty());
+
+        assertNull(SyncRecordMux.parse(record, "cccc3333"));
+    }
+
+    @Test
+    public void legacyRecordIsUnderstood() {
+        Map<String, String> record = new HashMap<>();
+        record.put("to", "aaaa1111");
+        record.put("sent", "x_s_1");
+        record.put("recv", "");
+        SyncRecordMux.Section s = SyncRecordMux.parse(record, "aaaa1111");
+        assertNotNull(s);
+        assertEquals(Collections.singletonList("x_s_1"), s.sent);
+        assertNull(SyncRecordMux.parse(record, "bbbb2222"));
+    }
+
+    @Test
+    public void sectionsBeyondBudgetRotateThroughPages() {
+        SyncRecordMux mux = new SyncRecordMux(900);
+        for (int i = 0; i < 10; i++) {
+            mux.put(String.format("peer%04d", i), Collections.emptyList(), Collections.emptyList(), digest(5));
+        }
+        assertTrue(mux.needsRotation());
+
+        Set<String> seen = new HashSet<>();
+        int pages = 0;
+        while (seen.size() < 10) {
+            Map<String, String> record = new HashMap<>();
+            List<String> page = mux.fillNextPage(record, 100);
+            assertFalse(page.isEmpty());
+            int bytes = 0;
+            for (Map.Entry<String, String> e : record.entrySet()) {
+                bytes += 1 + e.getKey().length() + 1 + e.getValue().length();
+            }
+            assertTrue(bytes <= 900);
+            seen.addAll(page);
+            pages++;
+        }
+        assertTrue(pages > 1);
+        // Ротация продолжается, даже если секции не менялись
+        assertTrue(mux.needsPublish());
+    }
+
+    @Test
+    public void sectionsExpireFromFirstPublication() {
+        SyncRecordMux mux = new SyncRecordMux(900);
+        mux.put("aaaa1111", Collections.emptyList(), Collections.emptyList(), null);
+        mux.expire(1_000_000, 30_000);
+        assertEquals(1, mux.size());
+
+        mux.fillNextPage(new HashMap<>(), 1_000);
+        assertFalse(mux.needsPublish());
+        mux.expire(31_000, 30_000);
+        assertEquals(1, mux.size());
+        mux.expire(31_001, 30_000);
+        assertTrue(mux.isEmpty());
+        assertTrue(mux.needsPublish());
+    }
+
+    // ==================== СИМУЛЯЦИЯ ====================
+
+    /**
+     * 20 пиров возвращаются за 10 с, каждому нужен SYNC при появлении и затем раз в минуту
+     * (3 раунда). Прежняя схема: один сервис на получателя, замена на каждый SYNC,
+     * удаление через 30 с. Считаются операции add/remove локального сервиса.
+     */
+    @Test
+    public void multiplexingCutsServiceChurn() {
+        Storm perTarget = new Storm(false).run();
+        Storm mux = new Storm(true).run();
+        System.out.printf(Locale.US, "per-target   ops=%d, max in 1s=%d, peers shown: %d%n",
+                perTarget.ops.size(), perTarget.maxPerSecond(), perTarget.shown.size());
+        System.out.printf(Locale.US, "multiplexed  ops=%d, max in 1s=%d, peers shown: %d%n",
+                mux.ops.size(), mux.maxPerSecond(), mux.shown.size());
+
+        assertTrue(mux.ops.size() < perTarget.ops.size());
+        assertTrue(mux.maxPerSecond() <= 2);
+        assertEquals(20, mux.shown.size());
+        assertTrue(perTarget.shown.size() < 20);
+    }
+
+    private static final class Storm {
+        final boolean multiplexed;
+        final TreeMap<Long, List<Runnable>> events = new TreeMap<>();
+        final List<Long> ops = new ArrayList<>();
+        /** Пиры, чья секция простояла достаточно для обнаружения */
+        final Set<String> shown = new HashSet<>();
+
+        // Прежняя схема
+        Object current;
+        long currentAt;
+        String currentPeer;
+
+        // Мультиплексор
+        final SyncRecordMux mux = new SyncRecordMux(900);
+        boolean registered;
+        long scheduledAt = -1;
+        long lastPublishAt = -100_000;
+
+        Storm(boolean multiplexed) {
+            this.multiplexed = multiplexed;
+        }
+
+        void at(long t, Runnable r) {
+            events.computeIfAbsent(t, k -> new ArrayList<>()).add(r);
+        }
+
+        void perTarget(long t, String peer) {
+            if (current != null) {
+                ops.add(t);
+                if (t - currentAt >= 3_000) shown.add(currentPeer);
+            }
+            ops.add(t);
+            Object svc = new Object();
+            current = svc;
+            currentAt = t;
+            currentPeer = peer;
+            at(t + 30_000, () -> {
+                if (current == svc) {
+                    ops.add(t + 30_000);
+                    shown.add(peer);
+                    current = null;
+                }
+            });
+        }
+
+        void multiplexed(long t, String peer) {
+            mux.put(peer, Collections.emptyList(), Collections.emptyList(), digest(20));
+            schedule(Math.max(t + 300, lastPublishAt + 2_000));
+        }
+
+        void schedule(long t) {
+            scheduledAt = t;
+            at(t, () -> {
+                if (scheduledAt == t) publish(t);
+            });
+        }
+
+        void publish(long t) {
+            mux.expire(t, 30_000);
+            if (mux.isEmpty()) {
+                if (registered) {
+                    ops.add(t);
+                    registered = false;
+                }
+                return;
+            }
+            if (mux.needsPublish()) {
+                shown.addAll(mux.fillNextPage(new HashMap<>(), t));
+                if (registered) ops.add(t);
+                ops.add(t);
+                registered = true;
+                lastPublishAt = t;
+            }
+            schedule(t + 5_000);
+        }
+
+        Storm run() {
+            Random rnd = new Random(1);
+            for (int p = 0; p < 20; p++) {
+                String peer = String.format("peer%04d", p);
+                long t0 = (long) (rnd.nextDouble() * 10_000);
+                for (int round = 0; round < 3; round++) {
+                    long t = t0 + round * 60_000;
+                    at(t, () -> {
+                        if (multiplexed) multiplexed(t, peer);
+                        else perTarget(t, peer);
+                    });
+                }
+            }
+            while (!events.isEmpty()) {
+                for (Runnable r : events.pollFirstEntry().getValue()) r.run();
+            }
+            return this;
+        }
+
+        int maxPerSecond() {
+            int max = 0;
+            for (int i = 0; i < ops.size(); i++) {
+                int n = 0;
+                for (int j = i; j < ops.size() && ops.get(j) - ops.get(i) < 1_000; j++) n++;
+                max = Math.max(max, n);
+            }
+            return max;
+        }
+    }
+}
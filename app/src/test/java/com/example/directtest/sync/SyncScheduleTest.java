@@ -0,0 +1,141 @@
+package com.example.directtest.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Очередь SYNC по времени срабатывания и расчёт этого времени
+ */
+public class SyncScheduleTest {
+
+    private static final long NOW = 10_000_000;
+
+    @Test
+    public void pollsOnlyDueDevicesInOrder() {
+        SyncSchedule s = new SyncSchedule();
+        s.schedule("c", 300);
+        s.schedule("a", 100);
+        s.schedule("b", 100);
+
+        assertNull(s.pollDue(99));
+        assertEquals("a", s.pollDue(100));
+        assertEquals("b", s.pollDue(100));
+        assertNull(s.pollDue(299));
+        assertEquals("c", s.pollDue(1_000));
+        assertEquals(0, s.size());
+    }
+
+    @Test
+    public void rescheduleReplacesEntry() {
+        SyncSchedule s = new SyncSchedule();
+        s.schedule("a", 100);
+        s.schedule("a", 500);
+        assertEquals(1, s.size());
+        assertEquals(500, s.dueAt("a"));
+        assertNull(s.pollDue(400));
+
+        s.schedule("a", -1);
+        assertEquals(0, s.size());
+        assertEquals(-1, s.dueAt("a"));
+    }
+
+    @Test
+    public void syncedDeviceIsNotScheduled() {
+        DeviceState st = state("p1", true);
+        st.markAcked("p1_s_2");
+        st.markSynced();
+        assertEquals(-1, SyncManager.dueTime(st));
+    }
+
+    @Test
+    public void unackedIsDueAfterSyncInterval() {
+        DeviceState st = state("p1", false);
+        st.lastSentTime = NOW;
+        st.lastSyncSentTime = NOW - 30_000;
+        // Неподтверждённые не ждут тишины - только интервал между SYNC
+        assertEquals(NOW + 30_001, SyncManager.dueTime(st));
+    }
+
+    @Test
+    public void inactivityTriggerWaitsForSilence() {
+        DeviceState st = state("p1", true);
+        st.markAcked("p1_s_2");
+        st.addRecvMessage("q_s_1", "hi");
+        st.lastRecvTime = NOW;
+        st.lastSyncSentTime = NOW - 600_000;
+        assertEquals(NOW + 60_001, SyncManager.dueTime(st));
+    }
+
+    @Test
+    public void freshRxReportsHoldSyncBack() {
+        DeviceState st = state("p1", false);
+        st.lastSyncSentTime = NOW - 600_000;
+        st.gapReportTime = NOW;
+        assertEquals(NOW + 60_000, SyncManager.dueTime(st));
+    }
+
+    @Test
+    public void queueCheckIsCheaperThanFullScan() {
+        int devices = 10_000;
+        List<DeviceState> states = new ArrayList<>(devices);
+        SyncSchedule schedule = new SyncSchedule();
+        for (int i = 0; i < devices; i++) {
+            DeviceState st = new DeviceState();
+            st.deviceId = String.format("%08x", i);
+            st.digestSync = true;
+            for (int m = 0; m < 64; m++) {
+                String id = st.deviceId + "_s_" + m;
+                st.addSentMessage(id, "x");
+                // 99% подтверждены; у 1% последнее не подтверждено
+                if (i % 100 != 0 || m != 63) st.markAcked(id);
+            }
+            st.lastSentTime = NOW - 600_000;
+            st.lastSyncSentTime = NOW - 30_000;
+            if (i % 100 != 0) st.markSynced();
+            states.add(st);
+            schedule.schedule(st.deviceId, SyncManager.dueTime(st));
+        }
+        assertEquals(devices / 100, schedule.size());
+
+        int rounds = 200;
+        int sink = 0;
+        long t0 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            // Прежний checkSyncNeeded: needsSync() каждого состояния
+            for (DeviceState st : states) {
+                long due = SyncManager.dueTime(st);
+                if (due >= 0 && due <= NOW) sink++;
+            }
+        }
+        long t1 = System.nanoTime();
+        for (int r = 0; r < rounds * 100; r++) {
+            if (schedule.pollDue(NOW) != null) sink++;
+        }
+        long t2 = System.nanoTime();
+
+        double scanUs = (t1 - t0) / 1e3 / rounds;
+        double queueUs = (t2 - t1) / 1e3 / (rounds * 100);
+        System.out.printf("SYNC check, %d devices: full scan %.1f us, queue %.3f us%n",
+                devices, scanUs, queueUs);
+        assertEquals(0, sink);
+        assertTrue(queueUs * 10 < scanUs);
+    }
+
+    /** Состояние с двумя отправленными; второе не подтверждено */
+    private static DeviceState state(String id, boolean digest) {
+        DeviceState st = new DeviceState();
+        st.deviceId = id;
+        st.digestSync = digest;
+        st.addSentMessage(id + "_s_1", "a");
+        st.addSentMessage(id + "_s_2", "b");
+        st.markAcked(id + "_s_1");
+        st.lastSentTime = 0;
+        return st;
+    }
+}